@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission control for an operation queue, based on queueing delay in the style of CoDel. The
+ * delay of every operation leaving the queue is compared with a target. A queue whose delay stays
+ * at or above the target for a full interval is overloaded, until an operation leaves the queue
+ * below the target, or no operation leaves the queue for an interval. While overloaded, new
+ * requests and requests that waited longer than the target can be shed, so clients get a fast
+ * rejection instead of a time out.
+ *
+ * Queueing delays are also recorded in a histogram with power of two bins, for percentile
+ * statistics. State is updated without locks; concurrent updates can race, which only affects
+ * the moment the queue is considered overloaded
+ */
+class AdmissionController {
+
+    private static final int DELAY_HISTOGRAM_BIN_COUNT = Long.SIZE;
+
+    public static AdmissionController create() {
+        return new AdmissionController();
+    }
+
+    /**
+     * Time, in microseconds since epoch, at which the queue becomes overloaded, if the delay stays
+     * at or above the target until then. Zero if the delay is below the target
+     */
+    private volatile long overloadTimeMicros;
+
+    /**
+     * Time, in microseconds since epoch, until which the queue is considered overloaded
+     */
+    private volatile long overloadedUntilMicros;
+
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLongArray delayHistogram = new AtomicLongArray(
+            DELAY_HISTOGRAM_BIN_COUNT);
+
+    private AdmissionController() {
+    }
+
+    /**
+     * Records the queueing delay of an operation leaving the queue. Returns true if the queue is
+     * overloaded and the operation waited at least the target delay, so it should be shed. A
+     * target of zero disables admission control, and only records the delay
+     */
+    public boolean onDequeue(long delayMicros, long nowMicros, long targetMicros,
+            long intervalMicros) {
+        this.delayHistogram.incrementAndGet(getBinIndex(delayMicros));
+
+        // avoid writing shared state for every operation, when the queue is not overloaded
+        if (targetMicros <= 0 || delayMicros < targetMicros) {
+            if (this.overloadTimeMicros != 0) {
+                this.overloadTimeMicros = 0;
+            }
+            if (this.overloadedUntilMicros != 0) {
+                this.overloadedUntilMicros = 0;
+            }
+            return false;
+        }
+
+        long overloadTime = this.overloadTimeMicros;
+        if (overloadTime == 0) {
+            this.overloadTimeMicros = nowMicros + intervalMicros;
+            return false;
+        }
+
+        if (nowMicros < overloadTime) {
+            return false;
+        }
+
+        this.overloadedUntilMicros = nowMicros + intervalMicros;
+        return true;
+    }
+
+    public boolean isOverloaded(long nowMicros) {
+        return nowMicros < this.overloadedUntilMicros;
+    }
+
+    public void onShed() {
+        this.shedCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of operations shed since the previous call
+     */
+    public long resetShedCount() {
+        return this.shedCount.getAndSet(0);
+    }
+
+    /**
+     * Returns the upper bound of the histogram bin holding the given percentile, in the range
+     * [0.0, 1.0], of delays recorded since the histogram was last reset. Returns zero if no delay
+     * was recorded
+     */
+    public long getDelayPercentileMicros(double percentile) {
+        long[] counts = new long[DELAY_HISTOGRAM_BIN_COUNT];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.delayHistogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= rank) {
+                return getBinUpperBound(i);
+            }
+        }
+        return getBinUpperBound(counts.length - 1);
+    }
+
+    /**
+     * Returns the number of delays recorded, and clears the histogram
+     */
+    public long resetDelayHistogram() {
+        long total = 0;
+        for (int i = 0; i < DELAY_HISTOGRAM_BIN_COUNT; i++) {
+            total += this.delayHistogram.getAndSet(i, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Bin zero holds delays of zero, bin i holds delays in [2^(i-1), 2^i - 1]
+     */
+    private static int getBinIndex(long delayMicros) {
+        if (delayMicros <= 0) {
+            return 0;
+        }
+        return Math.min(Long.SIZE - Long.numberOfLeadingZeros(delayMicros),
+                DELAY_HISTOGRAM_BIN_COUNT - 1);
+    }
+
+    private static long getBinUpperBound(int binIndex) {
+        if (binIndex >= Long.SIZE - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << binIndex) - 1;
+    }
+}
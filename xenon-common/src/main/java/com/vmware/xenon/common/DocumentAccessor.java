@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.esotericsoftware.reflectasm.ConstructorAccess;
+import com.esotericsoftware.reflectasm.FieldAccess;
+
+/**
+ * Reads, writes and copies the fields of a class through accessor classes generated at run time,
+ * instead of reflection and Kryo. An accessor is generated once per class, for public classes
+ * whose super classes are public as well, and cached.
+ *
+ * A copy is a deep copy, equivalent to the Kryo document copy: fields of immutable types are
+ * shared, arrays, collections and maps of common types are copied element by element, instances of
+ * classes with an accessor are copied field by field, and any other value is copied with Kryo.
+ * Classes with private or final instance fields, or without a public default constructor, are
+ * copied with Kryo
+ */
+class DocumentAccessor {
+
+    private static final int KIND_VALUE = 0;
+    private static final int KIND_IMMUTABLE = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_INT = 3;
+    private static final int KIND_BOOLEAN = 4;
+    private static final int KIND_DOUBLE = 5;
+
+    /**
+     * Placeholder for classes without an accessor, since the map does not hold null values
+     */
+    private static final DocumentAccessor NONE = new DocumentAccessor();
+
+    private static final ConcurrentMap<Class<?>, DocumentAccessor> accessors = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the accessor for the given class, or null if its fields can not be accessed by
+     * generated code
+     */
+    public static DocumentAccessor get(Class<?> clazz) {
+        DocumentAccessor accessor = accessors.get(clazz);
+        if (accessor == null) {
+            accessor = accessors.computeIfAbsent(clazz, DocumentAccessor::create);
+        }
+        return accessor == NONE ? null : accessor;
+    }
+
+    /**
+     * Returns a deep copy of the given object
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T copy(T source) {
+        return (T) copyValue(source);
+    }
+
+    private static DocumentAccessor create(Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.isArray() || clazz.isInterface()
+                || isImmutable(clazz)) {
+            return NONE;
+        }
+
+        boolean isCopySupported = !Modifier.isAbstract(clazz.getModifiers())
+                && (clazz.getEnclosingClass() == null
+                        || Modifier.isStatic(clazz.getModifiers()));
+        for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return NONE;
+            }
+            for (Field f : c.getDeclaredFields()) {
+                int mods = f.getModifiers();
+                if (Modifier.isStatic(mods)) {
+                    continue;
+                }
+                if (!Modifier.isPublic(mods) || Modifier.isFinal(mods)) {
+                    isCopySupported = false;
+                }
+            }
+        }
+
+        DocumentAccessor accessor = new DocumentAccessor();
+        try {
+            accessor.fieldAccess = FieldAccess.get(clazz);
+            if (isCopySupported) {
+                Constructor<?> ctor = clazz.getDeclaredConstructor();
+                if (Modifier.isPublic(ctor.getModifiers())) {
+                    accessor.constructorAccess = ConstructorAccess.get(clazz);
+                }
+            }
+        } catch (Throwable e) {
+            if (accessor.fieldAccess == null) {
+                return NONE;
+            }
+        }
+
+        String[] names = accessor.fieldAccess.getFieldNames();
+        Class<?>[] types = accessor.fieldAccess.getFieldTypes();
+        accessor.fieldKinds = new int[types.length];
+        for (int i = 0; i < types.length; i++) {
+            accessor.fieldKinds[i] = getKind(types[i]);
+        }
+
+        // hidden fields share a name, so they can not be looked up by name
+        accessor.fieldIndexes = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (accessor.fieldIndexes.putIfAbsent(names[i], i) != null) {
+                accessor.fieldIndexes.put(names[i], -1);
+            }
+        }
+        return accessor;
+    }
+
+    private static int getKind(Class<?> type) {
+        if (type == long.class) {
+            return KIND_LONG;
+        }
+        if (type == int.class) {
+            return KIND_INT;
+        }
+        if (type == boolean.class) {
+            return KIND_BOOLEAN;
+        }
+        if (type == double.class) {
+            return KIND_DOUBLE;
+        }
+        if (type.isPrimitive() || isImmutable(type)) {
+            return KIND_IMMUTABLE;
+        }
+        return KIND_VALUE;
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        return type == String.class || type == Long.class || type == Integer.class
+                || type == Boolean.class || type == Double.class || type == Float.class
+                || type == Short.class || type == Byte.class || type == Character.class
+                || type == URI.class || type == UUID.class || type == Instant.class
+                || type == ZonedDateTime.class || Enum.class.isAssignableFrom(type)
+                || ZoneId.class.isAssignableFrom(type);
+    }
+
+    private static Object copyValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        Class<?> type = value.getClass();
+        if (isImmutable(type)) {
+            return value;
+        }
+
+        if (type == ArrayList.class) {
+            ArrayList<?> source = (ArrayList<?>) value;
+            ArrayList<Object> target = new ArrayList<>(source.size());
+            for (int i = 0; i < source.size(); i++) {
+                target.add(copyValue(source.get(i)));
+            }
+            return target;
+        }
+
+        if (type == HashMap.class || type == LinkedHashMap.class) {
+            // default capacity, like Kryo, so the copy iterates in the same order as the source,
+            // which document signatures depend on
+            Map<?, ?> source = (Map<?, ?>) value;
+            Map<Object, Object> target = type == HashMap.class ? new HashMap<>()
+                    : new LinkedHashMap<>();
+            for (Entry<?, ?> e : source.entrySet()) {
+                target.put(copyValue(e.getKey()), copyValue(e.getValue()));
+            }
+            return target;
+        }
+
+        if (type == HashSet.class || type == LinkedHashSet.class) {
+            Collection<?> source = (Collection<?>) value;
+            Collection<Object> target = type == HashSet.class ? new HashSet<>()
+                    : new LinkedHashSet<>();
+            for (Object o : source) {
+                target.add(copyValue(o));
+            }
+            return target;
+        }
+
+        if (type == byte[].class) {
+            byte[] source = (byte[]) value;
+            return Arrays.copyOf(source, source.length);
+        }
+
+        if (type.isArray() && !type.getComponentType().isPrimitive()) {
+            Object[] source = (Object[]) value;
+            Object[] target = (Object[]) Array.newInstance(type.getComponentType(),
+                    source.length);
+            for (int i = 0; i < source.length; i++) {
+                target[i] = copyValue(source[i]);
+            }
+            return target;
+        }
+
+        DocumentAccessor accessor = get(type);
+        if (accessor != null && accessor.constructorAccess != null) {
+            return accessor.copyFields(value);
+        }
+
+        return Utils.cloneWithKryo(value);
+    }
+
+    private FieldAccess fieldAccess;
+    private ConstructorAccess<?> constructorAccess;
+    private int[] fieldKinds;
+    private Map<String, Integer> fieldIndexes;
+
+    private DocumentAccessor() {
+    }
+
+    /**
+     * Returns the index of the given field, or -1 if the field can not be accessed by index
+     */
+    public int getIndex(Field f) {
+        Integer index = this.fieldIndexes.get(f.getName());
+        if (index == null || index < 0
+                || this.fieldAccess.getFieldTypes()[index] != f.getType()) {
+            return -1;
+        }
+        return index;
+    }
+
+    public Object get(Object instance, int index) {
+        return this.fieldAccess.get(instance, index);
+    }
+
+    public void set(Object instance, int index, Object value) {
+        this.fieldAccess.set(instance, index, value);
+    }
+
+    private Object copyFields(Object source) {
+        FieldAccess fa = this.fieldAccess;
+        Object target = this.constructorAccess.newInstance();
+        for (int i = 0; i < this.fieldKinds.length; i++) {
+            switch (this.fieldKinds[i]) {
+            case KIND_LONG:
+                fa.setLong(target, i, fa.getLong(source, i));
+                break;
+            case KIND_INT:
+                fa.setInt(target, i, fa.getInt(source, i));
+                break;
+            case KIND_BOOLEAN:
+                fa.setBoolean(target, i, fa.getBoolean(source, i));
+                break;
+            case KIND_DOUBLE:
+                fa.setDouble(target, i, fa.getDouble(source, i));
+                break;
+            case KIND_IMMUTABLE:
+                fa.set(target, i, fa.get(source, i));
+                break;
+            default:
+                fa.set(target, i, copyValue(fa.get(source, i)));
+                break;
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import com.vmware.xenon.services.common.QueryTask;
+
+/**
+ * Starts or synchronizes the children of a factory, from the pages of a child query. Child
+ * synchronizations are pipelined: the next query page is fetched while the children of the
+ * current page are processed, and children are started as soon as a slot in the window of
+ * in-flight synchronizations frees up, instead of page by page.
+ *
+ * The window is an adaptive concurrency limit, up to the factory query result limit. It starts
+ * small and grows by one for every successful synchronization, until the first failure. A failure,
+ * such as a time out or a rejection from an overloaded peer, halves the window, once per window,
+ * and the window then grows by one for every window worth of successful synchronizations.
+ *
+ * Progress is reported through factory stats, when the factory has
+ * {@link Service.ServiceOption#INSTRUMENTATION}
+ */
+class FactoryChildSynchronizer {
+
+    private static final int INITIAL_WINDOW = 8;
+
+    public static FactoryChildSynchronizer create(FactoryService factory, Operation parentOp) {
+        if (factory == null || parentOp == null) {
+            throw new IllegalArgumentException("factory and parentOp are required");
+        }
+        FactoryChildSynchronizer s = new FactoryChildSynchronizer();
+        s.factory = factory;
+        s.parentOp = parentOp;
+        s.maxWindow = Math.max(1, factory.getSelfQueryResultLimit());
+        s.window = Math.min(INITIAL_WINDOW, s.maxWindow);
+        s.startTimeMicros = Utils.getNowMicrosUtc();
+        return s;
+    }
+
+    private FactoryService factory;
+    private Operation parentOp;
+    private long startTimeMicros;
+
+    private final Deque<String> pendingLinks = new ArrayDeque<>();
+    private URI nextPage;
+    private boolean isFetchingPage;
+    private boolean isDone;
+
+    private int maxWindow;
+    private double window;
+    private boolean isSlowStart = true;
+    private int inFlightCount;
+
+    /**
+     * Decreases are ignored until this many synchronizations completed, so synchronizations
+     * started before a decrease do not decrease the window again
+     */
+    private long recoveryCount;
+
+    private long completedCount;
+    private long failedCount;
+    private long totalCount = -1;
+
+    private FactoryChildSynchronizer() {
+    }
+
+    /**
+     * Starts processing from the first page of child query results
+     */
+    public void start(URI firstPage) {
+        synchronized (this) {
+            this.nextPage = firstPage;
+        }
+        processPending();
+    }
+
+    /**
+     * Sets the number of children to synchronize, used for the estimated time to completion
+     */
+    public synchronized void setTotalCount(long totalCount) {
+        this.totalCount = totalCount;
+    }
+
+    private void processPending() {
+        List<String> linksToStart = null;
+        URI pageToFetch = null;
+        boolean isComplete = false;
+        boolean isCancelled = false;
+
+        synchronized (this) {
+            if (this.isDone) {
+                return;
+            }
+
+            if (this.factory.getHost().isStopping()) {
+                this.isDone = true;
+                isCancelled = true;
+            } else {
+                while (this.inFlightCount < (int) this.window && !this.pendingLinks.isEmpty()) {
+                    if (linksToStart == null) {
+                        linksToStart = new ArrayList<>();
+                    }
+                    linksToStart.add(this.pendingLinks.poll());
+                    this.inFlightCount++;
+                }
+
+                // keep at most one page ahead of the window
+                if (!this.isFetchingPage && this.nextPage != null
+                        && this.pendingLinks.size() < this.maxWindow) {
+                    this.isFetchingPage = true;
+                    pageToFetch = this.nextPage;
+                    this.nextPage = null;
+                }
+
+                if (this.inFlightCount == 0 && this.pendingLinks.isEmpty()
+                        && this.nextPage == null && !this.isFetchingPage) {
+                    this.isDone = true;
+                    isComplete = true;
+                }
+            }
+        }
+
+        if (isCancelled) {
+            this.parentOp.fail(new CancellationException());
+            return;
+        }
+
+        if (pageToFetch != null) {
+            fetchPage(pageToFetch);
+        }
+
+        if (linksToStart != null) {
+            for (String link : linksToStart) {
+                startOrSynchChildService(link);
+            }
+        }
+
+        if (isComplete) {
+            updateStats();
+            this.factory.logFine("Synchronized %d children (%d failed) in %d micros",
+                    this.completedCount, this.failedCount,
+                    Utils.getNowMicrosUtc() - this.startTimeMicros);
+            this.parentOp.complete();
+        }
+    }
+
+    private void fetchPage(URI page) {
+        Operation get = Operation.createGet(page).setCompletion((o, e) -> {
+            if (e != null) {
+                this.factory.logWarning("Failure retrieving query results from %s: %s",
+                        page, e.toString());
+                synchronized (this) {
+                    this.isFetchingPage = false;
+                }
+                processPending();
+                return;
+            }
+
+            ServiceDocumentQueryResult rsp = o.getBody(QueryTask.class).results;
+            synchronized (this) {
+                this.isFetchingPage = false;
+                if (rsp.documentLinks != null) {
+                    this.pendingLinks.addAll(rsp.documentLinks);
+                }
+                // a page can be empty, if all of its results were filtered out, but only the
+                // last page has no next page link
+                if (rsp.nextPageLink != null) {
+                    this.nextPage = UriUtils.buildUri(page, rsp.nextPageLink);
+                }
+            }
+            updateStats();
+            processPending();
+        });
+        this.factory.sendRequest(get);
+    }
+
+    private void startOrSynchChildService(String link) {
+        Operation post = Operation.createPost(this.factory, link)
+                .setReferer(this.factory.getUri())
+                .setCompletion((o, e) -> {
+                    if (e != null && !this.factory.getHost().isStopping()) {
+                        this.factory.logFine("Synchronization for %s failed: %s",
+                                link, e.getMessage());
+                    }
+                    onChildComplete(e != null);
+                    processPending();
+                });
+        try {
+            Service child = this.factory.createChildService();
+            post.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_VERSION_CHECK);
+            this.factory.getHost().startOrSynchService(post, child);
+        } catch (Throwable e) {
+            post.fail(e);
+        }
+    }
+
+    private synchronized void onChildComplete(boolean isFailure) {
+        this.inFlightCount--;
+        this.completedCount++;
+
+        if (isFailure) {
+            this.failedCount++;
+            if (this.completedCount < this.recoveryCount) {
+                return;
+            }
+            this.isSlowStart = false;
+            this.window = Math.max(1, this.window / 2);
+            this.recoveryCount = this.completedCount + this.inFlightCount;
+            return;
+        }
+
+        // grow by one per completion while in slow start, by one per window afterwards
+        this.window += this.isSlowStart ? 1 : 1 / this.window;
+        this.window = Math.min(this.window, this.maxWindow);
+    }
+
+    /**
+     * Updates progress stats, under the instance lock, so an update racing with completion can
+     * not overwrite the final values
+     */
+    private synchronized void updateStats() {
+        if (!this.factory.hasOption(Service.ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+
+        long elapsed = Utils.getNowMicrosUtc() - this.startTimeMicros;
+        this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_COMPLETED_COUNT,
+                this.completedCount);
+        this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_FAILED_COUNT, this.failedCount);
+        this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_WINDOW, this.window);
+        this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_ELAPSED_MICROS, elapsed);
+
+        if (this.isDone) {
+            this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_REMAINING_COUNT, 0);
+            this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_ESTIMATED_REMAINING_MICROS,
+                    0);
+            return;
+        }
+
+        if (this.totalCount < 0) {
+            return;
+        }
+
+        long remaining = Math.max(0, this.totalCount - this.completedCount);
+        this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_REMAINING_COUNT, remaining);
+        if (this.completedCount > 0) {
+            this.factory.setStat(FactoryService.STAT_NAME_CHILD_SYNC_ESTIMATED_REMAINING_MICROS,
+                    (double) elapsed * remaining / this.completedCount);
+        }
+    }
+}
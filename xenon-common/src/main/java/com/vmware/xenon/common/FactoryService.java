@@ -18,7 +18,6 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.Operation.CompletionHandler;
@@ -38,6 +37,18 @@ import com.vmware.xenon.services.common.ServiceUriPaths;
 public abstract class FactoryService extends StatelessService {
 
     public static final int SELF_QUERY_RESULT_LIMIT = 1000;
+
+    public static final String STAT_NAME_CHILD_CACHE_HIT_COUNT = "childStateCacheHitCount";
+    public static final String STAT_NAME_CHILD_CACHE_MISS_COUNT = "childStateCacheMissCount";
+    public static final String STAT_NAME_CHILD_CACHE_EVICTION_COUNT = "childStateCacheEvictionCount";
+    public static final String STAT_NAME_CHILD_SYNC_COMPLETED_COUNT = "childSyncCompletedCount";
+    public static final String STAT_NAME_CHILD_SYNC_FAILED_COUNT = "childSyncFailedCount";
+    public static final String STAT_NAME_CHILD_SYNC_REMAINING_COUNT = "childSyncRemainingCount";
+    public static final String STAT_NAME_CHILD_SYNC_WINDOW = "childSyncWindow";
+    public static final String STAT_NAME_CHILD_SYNC_ELAPSED_MICROS = "childSyncElapsedMicros";
+    public static final String STAT_NAME_CHILD_SYNC_ESTIMATED_REMAINING_MICROS =
+            "childSyncEstimatedRemainingMicros";
+
     private EnumSet<ServiceOption> childOptions;
     private String nodeSelectorLink = ServiceUriPaths.DEFAULT_NODE_SELECTOR;
     private int selfQueryResultLimit = SELF_QUERY_RESULT_LIMIT;
@@ -85,6 +96,10 @@ public abstract class FactoryService extends StatelessService {
                 toggleOption(ServiceOption.PERSISTENCE, true);
             }
 
+            if (this.childOptions.contains(ServiceOption.ON_DEMAND_LOAD)) {
+                toggleOption(ServiceOption.ON_DEMAND_LOAD, true);
+            }
+
             Class<?> childStateTypeDeclaredInChild = s.getStateType();
 
             if (!getStateType().equals(childStateTypeDeclaredInChild)) {
@@ -110,6 +125,12 @@ public abstract class FactoryService extends StatelessService {
             return;
         }
 
+        if (hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+            // children are started by the host, on their first request
+            startPost.complete();
+            return;
+        }
+
         startOrSynchronizeChildServices(startPost);
     }
 
@@ -120,6 +141,31 @@ public abstract class FactoryService extends StatelessService {
                 op);
     }
 
+    /**
+     * Counts the children to synchronize, for the estimated time to completion. Only issued when
+     * the factory reports stats
+     */
+    private void countChildren(URI queryFactoryUri, FactoryChildSynchronizer synchronizer) {
+        if (!hasOption(ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+
+        QueryTask countTask = buildChildQueryTask();
+        countTask.querySpec.resultLimit = null;
+        countTask.querySpec.options = EnumSet.of(QueryOption.COUNT);
+        sendRequest(Operation.createPost(queryFactoryUri)
+                .setBody(countTask)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        return;
+                    }
+                    ServiceDocumentQueryResult rsp = o.getBody(QueryTask.class).results;
+                    if (rsp != null && rsp.documentCount != null) {
+                        synchronizer.setTotalCount(rsp.documentCount);
+                    }
+                }));
+    }
+
     protected void queryForChildren(QueryTask queryTask, URI queryFactoryUri,
             Operation parentOperation) {
         // check with the document store if any documents exist for services
@@ -152,8 +198,11 @@ public abstract class FactoryService extends StatelessService {
                         parentOperation.complete();
                         return;
                     }
-                    processChildQueryPage(UriUtils.buildUri(queryFactoryUri, rsp.nextPageLink),
-                            queryTask, parentOperation);
+
+                    FactoryChildSynchronizer synchronizer = FactoryChildSynchronizer.create(this,
+                            parentOperation);
+                    countChildren(queryFactoryUri, synchronizer);
+                    synchronizer.start(UriUtils.buildUri(queryFactoryUri, rsp.nextPageLink));
                 });
 
         sendRequest(queryPost);
@@ -191,89 +240,6 @@ public abstract class FactoryService extends StatelessService {
         return queryTask;
     }
 
-    /**
-     * Retrieves a page worth of results for child service links and restarts them
-     */
-    private void processChildQueryPage(URI queryPage, QueryTask queryTask, Operation parentOp) {
-        if (queryPage == null) {
-            parentOp.complete();
-            return;
-        }
-
-        if (getHost().isStopping()) {
-            parentOp.fail(new CancellationException());
-            return;
-        }
-
-        sendRequest(Operation.createGet(queryPage).setCompletion(
-                (o, e) -> {
-                    if (e != null) {
-                        logWarning("Failure retrieving query results from %s: %s", queryPage,
-                                e.toString());
-                        parentOp.complete();
-                        return;
-                    }
-
-                    ServiceDocumentQueryResult rsp = o.getBody(QueryTask.class).results;
-                    if (rsp.documentCount == 0 || rsp.documentLinks.isEmpty()) {
-                        parentOp.complete();
-                        return;
-                    }
-                    synchronizeChildrenInQueryPage(queryPage, queryTask, parentOp,
-                            rsp);
-                }));
-    }
-
-    private void synchronizeChildrenInQueryPage(URI queryPage,
-            QueryTask queryTask, Operation parentOp,
-            ServiceDocumentQueryResult rsp) {
-
-        AtomicInteger pendingStarts = new AtomicInteger(rsp.documentLinks.size());
-        // track child service request in parallel, passing a single parent operation
-        CompletionHandler c = (so, se) -> {
-            int r = pendingStarts.decrementAndGet();
-            if (se != null && getHost().isStopping()) {
-                logWarning("Restart for children failed: %s", se.getMessage());
-            }
-
-            if (getHost().isStopping()) {
-                parentOp.fail(new CancellationException());
-                return;
-            }
-
-            if (r != 0) {
-                return;
-            }
-
-            URI nextQueryPage = rsp.nextPageLink == null ? null : UriUtils.buildUri(
-                    queryPage, rsp.nextPageLink);
-
-            processChildQueryPage(nextQueryPage, queryTask, parentOp);
-        };
-
-        for (String link : rsp.documentLinks) {
-            if (getHost().isStopping()) {
-                parentOp.fail(new CancellationException());
-                return;
-            }
-            Operation post = Operation.createPost(this, link)
-                    .setCompletion(c)
-                    .setReferer(getUri());
-            startOrSynchChildService(link, post);
-        }
-    }
-
-    private void startOrSynchChildService(String link, Operation post) {
-        try {
-            Service child = createChildService();
-            post.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_VERSION_CHECK);
-            getHost().startOrSynchService(post, child);
-        } catch (Throwable e1) {
-            post.fail(e1);
-        }
-        return;
-    }
-
     @Override
     public void handleRequest(Operation op) {
         handleRequest(op, OperationProcessingStage.PROCESSING_FILTERS);
@@ -389,6 +355,34 @@ public abstract class FactoryService extends StatelessService {
             return;
         }
 
+        if (hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+            // the child might exist in the index without being started
+            checkIndexAndStartChildService(o, childService);
+            return;
+        }
+
+        startChildService(o, childService);
+    }
+
+    private void checkIndexAndStartChildService(Operation o, Service childService) {
+        URI u = UriUtils.buildDocumentQueryUri(getHost(), o.getUri().getPath(), false, false,
+                this.childOptions);
+        sendRequest(Operation.createGet(u).setCompletion((getOp, e) -> {
+            if (e != null) {
+                o.fail(e);
+                return;
+            }
+
+            if (getOp.hasBody()) {
+                handleServiceExistsPostCompletion(o);
+                return;
+            }
+
+            startChildService(o, childService);
+        }));
+    }
+
+    private void startChildService(Operation o, Service childService) {
         if (!o.isFromReplication() && !o.isReplicationDisabled()) {
             o.nestCompletion(startOp -> {
                 publish(o);
@@ -557,7 +551,7 @@ public abstract class FactoryService extends StatelessService {
         op.complete();
     }
 
-    private Service createChildService() throws Throwable {
+    Service createChildService() throws Throwable {
         Service childService;
         childService = createServiceInstance();
         this.childOptions = childService.getOptions();
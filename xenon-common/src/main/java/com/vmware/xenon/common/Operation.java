@@ -17,6 +17,7 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -58,7 +59,7 @@ public class Operation implements Cloneable {
         }
 
         public void updateLastUseTime() {
-            this.lastUseTimeMicros = Utils.getNowMicrosUtc();
+            this.lastUseTimeMicros = Utils.getSystemNowMicrosUtc();
         }
 
         public void writeHttpRequest(Object request) {
@@ -176,6 +177,11 @@ public class Operation implements Cloneable {
          */
         private QueryFilter resourceQueryFilter = null;
 
+        /**
+         * Self links of the roles that applied to this user during authorization.
+         */
+        private Set<String> roleLinks = Collections.emptySet();
+
         public Claims getClaims() {
             return this.claims;
         }
@@ -196,6 +202,10 @@ public class Operation implements Cloneable {
             return this.resourceQueryFilter;
         }
 
+        public Set<String> getRoleLinks() {
+            return this.roleLinks;
+        }
+
         public boolean isSystemUser() {
             Claims claims = getClaims();
             if (claims == null) {
@@ -255,11 +265,44 @@ public class Operation implements Cloneable {
                 this.authorizationContext.resourceQueryFilter = resourceQueryFilter;
                 return this;
             }
+
+            public Builder setRoleLinks(Set<String> roleLinks) {
+                this.authorizationContext.roleLinks = Collections.unmodifiableSet(roleLinks);
+                return this;
+            }
         }
     }
 
     public static enum OperationOption {
-        REPLICATED, REPLICATION_DISABLED, CLONING_DISABLED, NOTIFICATION_DISABLED, REPLICATED_TARGET
+        REPLICATED, REPLICATION_DISABLED, CLONING_DISABLED, NOTIFICATION_DISABLED, REPLICATED_TARGET,
+        REMOTE_CLIENT
+    }
+
+    /**
+     * Priority class of an operation. The host dispatches queued operations of higher classes
+     * ahead of lower ones, and the client dispatches them first when waiting for a connection.
+     * Lower classes are not starved: the longer an operation waits, the more it is favored
+     */
+    public static enum Priority {
+        /**
+         * Node group membership and health checks
+         */
+        CONTROL,
+
+        /**
+         * Replication and synchronization between peers
+         */
+        REPLICATION,
+
+        /**
+         * Requests from clients and services, the default
+         */
+        USER,
+
+        /**
+         * Work that can be delayed, like expirations
+         */
+        BACKGROUND
     }
 
     public static class SerializedOperation extends ServiceDocument {
@@ -347,6 +390,7 @@ public class Operation implements Cloneable {
             + "rpl-phase";
     public static final String VMWARE_DCP_TRANSACTION_HEADER = HEADER_NAME_PREFIX
             + "tx-phase";
+    public static final String PRIORITY_HEADER = HEADER_NAME_PREFIX + "priority";
 
     public static final String PRAGMA_DIRECTIVE_FORWARDED = "xn-fwd";
     public static final String PRAGMA_DIRECTIVE_REPLICATED = "xn-rpl";
@@ -364,6 +408,31 @@ public class Operation implements Cloneable {
      */
     public static final String PRAGMA_DIRECTIVE_NO_INDEX_UPDATE = "xn-no-index-update";
 
+    /**
+     * Pragma directives known to the runtime. They are kept as bits in the operation instead of
+     * in the pragma request header, which is only assembled when the operation is sent over the
+     * network. Any other directive is kept in the request header
+     */
+    private static final String[] KNOWN_PRAGMA_DIRECTIVES = {
+            PRAGMA_DIRECTIVE_FORWARDED,
+            PRAGMA_DIRECTIVE_REPLICATED,
+            PRAGMA_DIRECTIVE_NO_QUEUING,
+            PRAGMA_DIRECTIVE_QUEUE_FOR_SERVICE_AVAILABILITY,
+            PRAGMA_DIRECTIVE_NO_FORWARDING,
+            PRAGMA_DIRECTIVE_NOTIFICATION,
+            PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS,
+            PRAGMA_DIRECTIVE_INDEX_CHECK,
+            PRAGMA_DIRECTIVE_VERSION_CHECK,
+            PRAGMA_DIRECTIVE_NO_INDEX_UPDATE };
+
+    private static final Map<String, Integer> PRAGMA_DIRECTIVE_BITS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KNOWN_PRAGMA_DIRECTIVES.length; i++) {
+            PRAGMA_DIRECTIVE_BITS.put(KNOWN_PRAGMA_DIRECTIVES[i], 1 << i);
+        }
+    }
+
     public static final String TX_TRY_COMMIT = "try-commit";
     public static final String TX_ENSURE_COMMIT = "ensure-commit";
     public static final String TX_COMMIT = "commit";
@@ -381,6 +450,12 @@ public class Operation implements Cloneable {
     public static final String MEDIA_TYPE_IMAGE_SVG_XML = "image/svg+xml";
     public static final String MEDIA_TYPE_APPLICATION_FONT_WOFF2 = "application/font-woff2";
 
+    /**
+     * Binary (Kryo) encoding of the body, used between peer nodes. Only accepted in requests
+     * authenticated as the system user
+     */
+    public static final String MEDIA_TYPE_APPLICATION_KRYO = "application/kryo";
+
     public static final int STATUS_CODE_SERVER_FAILURE_THRESHOLD = HttpURLConnection.HTTP_INTERNAL_ERROR;
     public static final int STATUS_CODE_FAILURE_THRESHOLD = HttpURLConnection.HTTP_BAD_REQUEST;
     public static final int STATUS_CODE_UNAUTHORIZED = HttpURLConnection.HTTP_UNAUTHORIZED;
@@ -396,20 +471,28 @@ public class Operation implements Cloneable {
     public static final int STATUS_CODE_ACCEPTED = HttpURLConnection.HTTP_ACCEPTED;
     public static final int STATUS_CODE_BAD_REQUEST = HttpURLConnection.HTTP_BAD_REQUEST;
     public static final int STATUS_CODE_BAD_METHOD = HttpURLConnection.HTTP_BAD_METHOD;
+    public static final int STATUS_CODE_UNSUPPORTED_TYPE = HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
 
     public static final String MEDIA_TYPE_EVERYTHING_WILDCARDS = "*/*";
     public static final String EMPTY_JSON_BODY = "{}";
     public static final String HEADER_FIELD_VALUE_SEPARATOR = ":";
     public static final String CR_LF = "\r\n";
 
-    private static AtomicLong idCounter = new AtomicLong();
+    /**
+     * Operation ids are handed out by each thread from a block of ids reserved from the
+     * global counter, so id generation does not contend across threads. Ids are unique but
+     * only increase within a thread
+     */
+    private static final int ID_BLOCK_SIZE = 1024;
+    private static final AtomicLong idCounter = new AtomicLong();
+    private static final ThreadLocal<long[]> idBlock = ThreadLocal.withInitial(() -> new long[2]);
     private static AtomicReferenceFieldUpdater<Operation, CompletionHandler> completionUpdater =
             AtomicReferenceFieldUpdater.newUpdater(Operation.class, CompletionHandler.class,
                     "completion");
 
     private URI uri;
     private URI referer;
-    private final long id = idCounter.incrementAndGet();
+    private final long id = generateId();
     private int statusCode = HttpURLConnection.HTTP_OK;
     private Action action;
     private ServiceDocument linkedState;
@@ -422,6 +505,9 @@ public class Operation implements Cloneable {
     private String contentType = MEDIA_TYPE_APPLICATION_JSON;
     private long contentLength;
     private RemoteContext remoteCtx;
+    private int pragmaFlags;
+    private Priority priority;
+    private long queueTimeMicros;
     private AuthorizationContext authorizationCtx;
     private InstrumentationContext instrumentationCtx;
     private Map<String, String> cookies;
@@ -457,6 +543,16 @@ public class Operation implements Cloneable {
         return op;
     }
 
+    static long generateId() {
+        long[] block = idBlock.get();
+        if (block[0] == block[1]) {
+            // block exhausted, reserve the next one. Ids start at 1
+            block[0] = idCounter.getAndAdd(ID_BLOCK_SIZE) + 1;
+            block[1] = block[0] + ID_BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+
     public static Operation createPost(Service sender, String targetPath) {
         return createPost(UriUtils.buildUri(sender.getHost(), targetPath));
     }
@@ -659,8 +755,9 @@ public class Operation implements Cloneable {
         if (this.body != null && !(this.body instanceof String)) {
 
             if (this.isRemote()
-                    && (this.contentType == null || !this.contentType
-                            .contains(MEDIA_TYPE_APPLICATION_JSON))) {
+                    && (this.contentType == null || !(this.contentType
+                            .contains(MEDIA_TYPE_APPLICATION_JSON)
+                            || this.contentType.contains(MEDIA_TYPE_APPLICATION_KRYO)))) {
                 throw new IllegalStateException("content type is not JSON: " + this.contentType);
             }
 
@@ -966,9 +1063,14 @@ public class Operation implements Cloneable {
     }
 
     public Operation addRequestHeader(String name, String value) {
-        allocateRemoteContext();
         value = value.replace(CR_LF, "").trim();
-        this.remoteCtx.requestHeaders.put(name.toLowerCase(), value);
+        name = name.toLowerCase();
+        if (PRAGMA_HEADER.equals(name)) {
+            setPragmaHeader(value);
+            return this;
+        }
+        allocateRemoteContext();
+        this.remoteCtx.requestHeaders.put(name, value);
         return this;
     }
 
@@ -989,13 +1091,21 @@ public class Operation implements Cloneable {
     }
 
     public Operation addPragmaDirective(String directive) {
+        int bit = getPragmaDirectiveBit(directive);
+        if (bit != 0) {
+            this.pragmaFlags |= bit;
+            return this;
+        }
         allocateRemoteContext();
         directive = directive.toLowerCase();
-        String existingDirectives = getRequestHeader(PRAGMA_HEADER);
-        if (existingDirectives != null && !existingDirectives.contains(directive)) {
+        String existingDirectives = this.remoteCtx.requestHeaders.get(PRAGMA_HEADER);
+        if (existingDirectives != null) {
+            if (existingDirectives.contains(directive)) {
+                return this;
+            }
             directive = existingDirectives + ";" + directive;
         }
-        addRequestHeader(PRAGMA_HEADER, directive);
+        this.remoteCtx.requestHeaders.put(PRAGMA_HEADER, directive);
         return this;
     }
 
@@ -1003,7 +1113,14 @@ public class Operation implements Cloneable {
      * Checks if a directive is present. Lower case strings must be used.
      */
     public boolean hasPragmaDirective(String directive) {
-        String existingDirectives = getRequestHeader(PRAGMA_HEADER);
+        int bit = getPragmaDirectiveBit(directive);
+        if (bit != 0) {
+            return (this.pragmaFlags & bit) != 0;
+        }
+        if (this.remoteCtx == null) {
+            return false;
+        }
+        String existingDirectives = this.remoteCtx.requestHeaders.get(PRAGMA_HEADER);
         if (existingDirectives != null
                 && existingDirectives.contains(directive)) {
             return true;
@@ -1015,15 +1132,93 @@ public class Operation implements Cloneable {
      * Removes a directive. Lower case strings must be used
      */
     public Operation removePragmaDirective(String directive) {
-        allocateRemoteContext();
-        String existingDirectives = getRequestHeader(PRAGMA_HEADER);
+        int bit = getPragmaDirectiveBit(directive);
+        if (bit != 0) {
+            this.pragmaFlags &= ~bit;
+            return this;
+        }
+        if (this.remoteCtx == null) {
+            return this;
+        }
+        String existingDirectives = this.remoteCtx.requestHeaders.get(PRAGMA_HEADER);
         if (existingDirectives != null) {
-            directive = existingDirectives.replace(directive, "");
+            this.remoteCtx.requestHeaders.put(PRAGMA_HEADER,
+                    existingDirectives.replace(directive, ""));
         }
-        addRequestHeader(PRAGMA_HEADER, directive);
         return this;
     }
 
+    private static int getPragmaDirectiveBit(String directive) {
+        Integer bit = PRAGMA_DIRECTIVE_BITS.get(directive);
+        if (bit == null) {
+            bit = PRAGMA_DIRECTIVE_BITS.get(directive.toLowerCase());
+        }
+        return bit == null ? 0 : bit;
+    }
+
+    /**
+     * Replaces all pragma directives with the ones in the supplied header value
+     */
+    private void setPragmaHeader(String value) {
+        this.pragmaFlags = 0;
+        StringBuilder otherDirectives = null;
+        for (String directive : value.split(";")) {
+            directive = directive.trim();
+            if (directive.isEmpty()) {
+                continue;
+            }
+            int bit = getPragmaDirectiveBit(directive);
+            if (bit != 0) {
+                this.pragmaFlags |= bit;
+                continue;
+            }
+            if (otherDirectives == null) {
+                otherDirectives = new StringBuilder();
+            } else {
+                otherDirectives.append(';');
+            }
+            otherDirectives.append(directive);
+        }
+
+        if (otherDirectives != null) {
+            allocateRemoteContext();
+            this.remoteCtx.requestHeaders.put(PRAGMA_HEADER, otherDirectives.toString());
+        } else if (this.remoteCtx != null) {
+            this.remoteCtx.requestHeaders.remove(PRAGMA_HEADER);
+        }
+    }
+
+    /**
+     * Assembles the pragma header value from the known directives set on this operation and any
+     * other directives kept in the request headers
+     */
+    private String getPragmaHeader() {
+        String otherDirectives = this.remoteCtx == null ? null
+                : this.remoteCtx.requestHeaders.get(PRAGMA_HEADER);
+        if (this.pragmaFlags == 0) {
+            return otherDirectives;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < KNOWN_PRAGMA_DIRECTIVES.length; i++) {
+            if ((this.pragmaFlags & (1 << i)) == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(KNOWN_PRAGMA_DIRECTIVES[i]);
+        }
+        if (otherDirectives != null) {
+            sb.append(';').append(otherDirectives);
+        }
+        return sb.toString();
+    }
+
+    private boolean hasPragmaHeader() {
+        return this.pragmaFlags != 0 || (this.remoteCtx != null
+                && this.remoteCtx.requestHeaders.containsKey(PRAGMA_HEADER));
+    }
+
     public boolean isKeepAlive() {
         return this.remoteCtx == null ? false : this.remoteCtx.isKeepAlive;
     }
@@ -1070,6 +1265,18 @@ public class Operation implements Cloneable {
         return this.instrumentationCtx;
     }
 
+    /**
+     * Records the time the operation was placed in a service queue, from which the host
+     * measures queueing delay for admission control
+     */
+    void setQueueTime(long nowMicrosUtc) {
+        this.queueTimeMicros = nowMicrosUtc;
+    }
+
+    long getQueueTime() {
+        return this.queueTimeMicros;
+    }
+
     public Operation setReplicationDisabled(boolean disable) {
         if (disable) {
             this.options.add(OperationOption.REPLICATION_DISABLED);
@@ -1083,6 +1290,11 @@ public class Operation implements Cloneable {
         return this.options.contains(OperationOption.REPLICATION_DISABLED);
     }
 
+    /**
+     * Returns the request headers. Pragma directives known to the runtime are not kept in this
+     * map, use {@link #getRequestHeader(String)} with {@link #PRAGMA_HEADER} to read the complete
+     * pragma header
+     */
     public Map<String, String> getRequestHeaders() {
         if (this.remoteCtx == null) {
             return new HashMap<>();
@@ -1098,13 +1310,17 @@ public class Operation implements Cloneable {
     }
 
     public String getRequestHeader(String headerName) {
+        headerName = headerName.toLowerCase();
+        if (PRAGMA_HEADER.equals(headerName)) {
+            return getPragmaHeader();
+        }
         if (this.remoteCtx == null) {
             return null;
         }
         if (this.remoteCtx.requestHeaders == null) {
             return null;
         }
-        String value = this.remoteCtx.requestHeaders.get(headerName.toLowerCase());
+        String value = this.remoteCtx.requestHeaders.get(headerName);
         if (value != null) {
             value = value.trim().replace(CR_LF, "");
         }
@@ -1192,6 +1408,57 @@ public class Operation implements Cloneable {
         return this.options.contains(OperationOption.REPLICATED);
     }
 
+    /**
+     * Infrastructure use only
+     */
+    public Operation setFromRemoteClient(boolean isFromRemoteClient) {
+        if (isFromRemoteClient) {
+            this.options.add(OperationOption.REMOTE_CLIENT);
+        } else {
+            this.options.remove(OperationOption.REMOTE_CLIENT);
+        }
+        return this;
+    }
+
+    /**
+     * Infrastructure use only.
+     *
+     * Value indicating whether this operation was received by the host listener, from a remote
+     * client or peer
+     */
+    public boolean isFromRemoteClient() {
+        return this.options.contains(OperationOption.REMOTE_CLIENT);
+    }
+
+    /**
+     * Sets the priority class of the operation. A remote peer receives the class with the request
+     */
+    public Operation setPriority(Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Returns the priority class set on the operation. If none was set, replicated operations are
+     * in the {@link Priority#REPLICATION} class and all others in the {@link Priority#USER} class
+     */
+    public Priority getPriority() {
+        if (this.priority != null) {
+            return this.priority;
+        }
+        if (isFromReplication() || hasPragmaDirective(PRAGMA_DIRECTIVE_REPLICATED)) {
+            return Priority.REPLICATION;
+        }
+        return Priority.USER;
+    }
+
+    /**
+     * Returns true if a priority class was set on the operation
+     */
+    public boolean hasPriority() {
+        return this.priority != null;
+    }
+
     public String getRequestCallbackLocation() {
         if (this.remoteCtx == null) {
             return null;
@@ -1250,6 +1517,13 @@ public class Operation implements Cloneable {
      * headers with the same name already present on this instance will be overwritten.
      */
     public Operation transferRequestHeadersFrom(Operation op) {
+        if (op.hasPragmaHeader()) {
+            this.pragmaFlags = op.pragmaFlags;
+            if (this.remoteCtx != null) {
+                this.remoteCtx.requestHeaders.remove(PRAGMA_HEADER);
+            }
+        }
+
         if (op.remoteCtx == null || op.remoteCtx.requestHeaders == null
                 || op.remoteCtx.requestHeaders.isEmpty()) {
             return this;
@@ -1270,14 +1544,18 @@ public class Operation implements Cloneable {
 
         allocateRemoteContext();
         for (Entry<String, String> e : op.getResponseHeaders().entrySet()) {
+            if (PRAGMA_HEADER.equals(e.getKey())) {
+                setPragmaHeader(e.getValue());
+                continue;
+            }
             this.remoteCtx.requestHeaders.put(e.getKey(), e.getValue());
         }
         return this;
     }
 
     public Operation transferRequestHeadersToResponseHeadersFrom(Operation op) {
-        if (op.remoteCtx == null || op.remoteCtx.requestHeaders == null
-                || op.remoteCtx.requestHeaders.isEmpty()) {
+        if (op.pragmaFlags == 0 && (op.remoteCtx == null || op.remoteCtx.requestHeaders == null
+                || op.remoteCtx.requestHeaders.isEmpty())) {
             return this;
         }
 
@@ -1285,6 +1563,9 @@ public class Operation implements Cloneable {
         for (Entry<String, String> e : op.getRequestHeaders().entrySet()) {
             this.remoteCtx.responseHeaders.put(e.getKey(), e.getValue());
         }
+        if (op.pragmaFlags != 0) {
+            this.remoteCtx.responseHeaders.put(PRAGMA_HEADER, op.getPragmaHeader());
+        }
         return this;
     }
 
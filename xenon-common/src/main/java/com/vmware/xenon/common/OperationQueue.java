@@ -17,11 +17,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Queue implementation customized for the needs of a service. Depending on creation options
  * it will act as a limited capacity {@code Deque} with either FIFO or LIFO behavior.
- * The queue is not thread safe and should be used within a synchronized context
+ * The queue is lock free and safe for concurrent producers and consumers: the element count is
+ * reserved atomically before an operation is inserted, so the limit holds without a lock
  */
 class OperationQueue {
 
@@ -41,9 +43,9 @@ class OperationQueue {
      * Maximum number of elements in the queue. The choice of FIFO or LIFO is encoded in the limit:
      * A positive limit indicates FIFO, a negative limit indicates LIFO
      */
-    private int limit;
+    private volatile int limit;
 
-    private int elementCount;
+    private final AtomicInteger elementCount = new AtomicInteger();
 
     /**
      * Underlying storage for the operation queue. The choice of data structure is subject to
@@ -84,24 +86,30 @@ class OperationQueue {
 
         // we use non restricted queue so we do not check for offer failures
 
-        if (this.limit < 0) {
-            // LIFO queue
-            if (this.elementCount >= -this.limit) {
-                return false;
-            }
+        int l = this.limit;
+        if (!reserve(Math.abs(l))) {
+            return false;
+        }
 
+        if (l < 0) {
+            // LIFO queue
             this.store.offerFirst(op);
-            this.elementCount++;
-            return true;
         } else {
             // FIFO queue
-            if (this.elementCount >= this.limit) {
+            this.store.offerLast(op);
+        }
+        return true;
+    }
+
+    private boolean reserve(int max) {
+        while (true) {
+            int count = this.elementCount.get();
+            if (count >= max) {
                 return false;
             }
-
-            this.store.offerLast(op);
-            this.elementCount++;
-            return true;
+            if (this.elementCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
         }
     }
 
@@ -114,15 +122,27 @@ class OperationQueue {
         if (op == null) {
             return null;
         }
-        this.elementCount--;
-        if (this.elementCount < 0) {
+        if (this.elementCount.decrementAndGet() < 0) {
             throw new IllegalStateException("elementCount is negative");
         }
         return op;
     }
 
+    /**
+     * Removes and returns all queued operations. Each operation is returned to exactly one
+     * caller, even if the queue is drained concurrently
+     */
+    Collection<Operation> drain() {
+        ArrayList<Operation> ops = new ArrayList<>();
+        Operation op;
+        while ((op = poll()) != null) {
+            ops.add(op);
+        }
+        return ops;
+    }
+
     Collection<Operation> toCollection() {
-        ArrayList<Operation> clone = new ArrayList<>(this.elementCount);
+        ArrayList<Operation> clone = new ArrayList<>(this.elementCount.get());
         for (Operation op : this.store) {
             clone.add(op);
         }
@@ -130,6 +150,6 @@ class OperationQueue {
     }
 
     public void clear() {
-        this.store.clear();
+        drain();
     }
 }
\ No newline at end of file
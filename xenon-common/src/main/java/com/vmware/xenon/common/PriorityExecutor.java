@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vmware.xenon.common.Operation.Priority;
+
+/**
+ * Dispatches tasks to an executor through one queue per priority class. The executor runs a
+ * dispatch for every task submitted, and each dispatch runs the queued task with the largest
+ * weighted wait: the time the task at the head of a queue has waited, times the weight of its
+ * class. Higher classes are dispatched ahead of lower ones, while a lower class is dispatched
+ * once its wait outgrows the weight difference, so no class is starved.
+ *
+ * The wait of every task, from submission to dispatch, is recorded per class
+ */
+class PriorityExecutor {
+
+    /**
+     * Dispatch weights, indexed by priority class
+     */
+    private static final long[] PRIORITY_WEIGHTS = { 16, 8, 2, 1 };
+
+    private static final class Task {
+        private final Runnable runnable;
+        private final long submitTimeMicros;
+
+        private Task(Runnable runnable, long submitTimeMicros) {
+            this.runnable = runnable;
+            this.submitTimeMicros = submitTimeMicros;
+        }
+    }
+
+    /**
+     * Wait statistics of a priority class, accumulated since the last reset
+     */
+    public static final class WaitStats {
+        public long count;
+        public long totalWaitMicros;
+        public long maxWaitMicros;
+    }
+
+    private static final class Lane {
+        private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+        private final long weight;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalWaitMicros = new LongAdder();
+        private final AtomicLong maxWaitMicros = new AtomicLong();
+
+        private Lane(long weight) {
+            this.weight = weight;
+        }
+
+        private void recordWait(long waitMicros) {
+            this.count.increment();
+            this.totalWaitMicros.add(waitMicros);
+            long max = this.maxWaitMicros.get();
+            while (waitMicros > max && !this.maxWaitMicros.compareAndSet(max, waitMicros)) {
+                max = this.maxWaitMicros.get();
+            }
+        }
+    }
+
+    public static PriorityExecutor create(ExecutorService executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is required");
+        }
+        PriorityExecutor pe = new PriorityExecutor();
+        pe.executor = executor;
+        pe.lanes = new Lane[Priority.values().length];
+        for (Priority p : Priority.values()) {
+            pe.lanes[p.ordinal()] = new Lane(PRIORITY_WEIGHTS[p.ordinal()]);
+        }
+        return pe;
+    }
+
+    private ExecutorService executor;
+    private Lane[] lanes;
+    private final Runnable dispatchTask = this::dispatch;
+
+    private PriorityExecutor() {
+    }
+
+    public void execute(Priority priority, Runnable runnable) {
+        Lane lane = this.lanes[priority.ordinal()];
+        lane.tasks.offer(new Task(runnable, Utils.getSystemNowMicrosUtc()));
+        this.executor.execute(this.dispatchTask);
+    }
+
+    private void dispatch() {
+        Task task = null;
+        Lane lane = null;
+        long now = 0;
+        // every dispatch follows the submission of a task, so a task is eventually found, even
+        // if a concurrent dispatch takes the selected task first
+        while (task == null) {
+            now = Utils.getSystemNowMicrosUtc();
+            lane = selectLane(now);
+            if (lane == null) {
+                return;
+            }
+            task = lane.tasks.poll();
+        }
+        lane.recordWait(now - task.submitTimeMicros);
+        task.runnable.run();
+    }
+
+    private Lane selectLane(long now) {
+        Lane selected = null;
+        long selectedWeightedWait = -1;
+        for (Lane lane : this.lanes) {
+            Task head = lane.tasks.peek();
+            if (head == null) {
+                continue;
+            }
+            // add one, so tasks submitted within the same microsecond are ordered by weight
+            long weightedWait = (Math.max(0, now - head.submitTimeMicros) + 1) * lane.weight;
+            if (weightedWait > selectedWeightedWait) {
+                selected = lane;
+                selectedWeightedWait = weightedWait;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the wait statistics of the given class, and starts accumulating them again
+     */
+    public WaitStats resetWaitStats(Priority priority) {
+        Lane lane = this.lanes[priority.ordinal()];
+        WaitStats stats = new WaitStats();
+        stats.count = lane.count.sumThenReset();
+        stats.totalWaitMicros = lane.totalWaitMicros.sumThenReset();
+        stats.maxWaitMicros = lane.maxWaitMicros.getAndSet(0);
+        return stats;
+    }
+}
@@ -48,11 +48,25 @@ public class QueryFilterUtils {
      * The service associated with the state must be started on the host.
      */
     public static boolean evaluate(QueryFilter filter, ServiceDocument state, ServiceHost host) {
-        ServiceDocumentDescription sdd = host.buildDocumentDescription(state.documentSelfLink);
+        ServiceDocumentDescription sdd = getDocumentDescription(state, host);
         if (sdd == null) {
-            host.log(Level.WARNING, "Service %s not found", state.documentSelfLink);
             return false;
         }
         return filter.evaluate(state, sdd);
     }
+
+    /**
+     * Infrastructure use only.
+     *
+     * Returns the document description cached by the service host for the service associated
+     * with the state, or null if the service is not started on the host.
+     */
+    public static ServiceDocumentDescription getDocumentDescription(ServiceDocument state,
+            ServiceHost host) {
+        ServiceDocumentDescription sdd = host.buildDocumentDescription(state.documentSelfLink);
+        if (sdd == null) {
+            host.log(Level.WARNING, "Service %s not found", state.documentSelfLink);
+        }
+        return sdd;
+    }
 }
@@ -33,6 +33,9 @@ public class ReflectionUtils {
 
     public static Object getPropertyValue(PropertyDescription pd, Object instance) {
         try {
+            if (pd.fieldAccessor != null) {
+                return pd.fieldAccessor.get(instance, pd.fieldAccessorIndex);
+            }
             return pd.accessor.get(instance);
         } catch (Throwable e) {
             Utils.logWarning("Reflection error: %s", Utils.toString(e));
@@ -42,6 +45,10 @@ public class ReflectionUtils {
 
     public static void setPropertyValue(PropertyDescription pd, Object instance, Object value) {
         try {
+            if (pd.fieldAccessor != null) {
+                pd.fieldAccessor.set(instance, pd.fieldAccessorIndex, value);
+                return;
+            }
             pd.accessor.set(instance, value);
         } catch (Throwable e) {
             throw new RuntimeException(e);
@@ -164,6 +164,16 @@ public interface Service {
          */
         LIFO_QUEUE,
 
+        /**
+         * Service is started on its first request, with its state loaded from the index, instead of
+         * when its factory starts. Set on a factory child, it keeps factories with many persisted
+         * children from starting all of them on host restart. Services that stay idle under memory
+         * pressure are detached and started again on demand
+         *
+         * Requires: PERSISTENCE Not compatible with: PERIODIC_MAINTENANCE, REPLICATION
+         */
+        ON_DEMAND_LOAD,
+
         NONE
     }
 
@@ -244,6 +254,9 @@ public interface Service {
     String STAT_NAME_REQUEST_OUT_OF_ORDER_COUNT = "requestOutOfOrderCount";
     String STAT_NAME_STATE_PERSIST_LATENCY = "statePersistLatencyMicros";
     String STAT_NAME_OPERATION_QUEUEING_LATENCY = "operationQueueingLatencyMicros";
+    String STAT_NAME_OPERATION_SHED_COUNT = "operationShedCount";
+    String STAT_NAME_OPERATION_QUEUE_DELAY_P50 = "operationQueueDelayP50Micros";
+    String STAT_NAME_OPERATION_QUEUE_DELAY_P99 = "operationQueueDelayP99Micros";
     String STAT_NAME_SERVICE_HANDLER_LATENCY = "operationHandlerProcessingLatencyMicros";
     String STAT_NAME_OPERATION_DURATION = "operationDuration";
     String STAT_NAME_MAINTENANCE_COUNT = "maintenanceCount";
@@ -35,6 +35,7 @@ import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.ServiceDocument.Documentation;
 import com.vmware.xenon.common.ServiceDocument.UsageOption;
 import com.vmware.xenon.common.ServiceDocument.UsageOptions;
+import com.vmware.xenon.common.serialization.BinaryBodyClassResolver;
 
 public class ServiceDocumentDescription {
     /**
@@ -141,6 +142,13 @@ public class ServiceDocumentDescription {
         public Object exampleValue;
         transient Field accessor;
 
+        /**
+         * Generated accessor of the class declaring the property, and the property index in it.
+         * Null if the property is read and written through reflection
+         */
+        transient DocumentAccessor fieldAccessor;
+        transient int fieldAccessorIndex;
+
         public EnumSet<PropertyIndexingOption> indexingOptions;
         public EnumSet<PropertyUsageOption> usageOptions;
         public String propertyDocumentation;
@@ -246,7 +254,9 @@ public class ServiceDocumentDescription {
             }
 
             visited.add(typeName);
+            BinaryBodyClassResolver.allowClass(clazz);
 
+            DocumentAccessor classAccessor = DocumentAccessor.get(clazz);
             for (Field f : clazz.getFields()) {
                 int mods = f.getModifiers();
                 if (Modifier.isStatic(mods) || Modifier.isTransient(mods)) {
@@ -275,6 +285,13 @@ public class ServiceDocumentDescription {
                 }
 
                 fd.accessor = f;
+                if (classAccessor != null) {
+                    int index = classAccessor.getIndex(f);
+                    if (index >= 0) {
+                        fd.fieldAccessor = classAccessor;
+                        fd.fieldAccessorIndex = index;
+                    }
+                }
                 pd.fieldDescriptions.put(f.getName(), fd);
             }
 
@@ -54,4 +54,33 @@ public class ServiceDocumentQueryResult extends ServiceDocument {
      * Duration of the query execution.
      */
     public Long queryTimeMicros;
+
+    /**
+     * Group key of the aggregation result, when the post processing specification does not
+     * group results by a property
+     */
+    public static final String AGGREGATION_GROUP_ALL = "*";
+
+    /**
+     * Results of the group operation in the query post processing specification, keyed by the
+     * value of the group by property, or {@link #AGGREGATION_GROUP_ALL}
+     */
+    public Map<String, AggregationResult> aggregations;
+
+    /**
+     * Partial aggregate of a group. Aggregates computed on different nodes are merged by
+     * combining count, sum, min and max, and the value of the group operation is then computed
+     * from the merged aggregate
+     */
+    public static class AggregationResult {
+        public long count;
+        public double sum;
+        public Double min;
+        public Double max;
+
+        /**
+         * Result of the group operation for the group
+         */
+        public Double value;
+    }
 }
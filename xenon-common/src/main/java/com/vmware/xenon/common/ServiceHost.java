@@ -34,7 +34,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -45,7 +44,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
@@ -61,6 +59,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
@@ -76,6 +75,7 @@ import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest.Forwa
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Operation.Priority;
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
@@ -279,8 +279,13 @@ public class ServiceHost {
      */
     public static final int DEFAULT_SERVICE_INSTANCE_COST_BYTES = Service.MAX_SERIALIZED_SIZE_BYTES
             / 2;
-    private static final long ONE_MINUTE_IN_MICROS = TimeUnit.MINUTES.toMicros(1);
 
+    /**
+     * Token bucket for request rate limiting. The bucket holds up to {@code burst} tokens and is
+     * refilled at {@code limit} tokens per second. Instead of a token count, the bucket keeps the
+     * time it will be full again: each admitted request moves that time forward by one refill
+     * interval, with a single compare and set
+     */
     public static class RequestRateInfo {
         /**
          * Request limit (upper bound) in requests per second
@@ -288,14 +293,42 @@ public class ServiceHost {
         public double limit;
 
         /**
-         * Number of requests since most recent time window
+         * Number of requests admitted at once, after the key has been idle long enough for the
+         * bucket to fill up
+         */
+        public int burst;
+
+        /**
+         * Number of requests rejected since the limit was set
+         */
+        public AtomicLong throttledCount = new AtomicLong();
+
+        /**
+         * Infrastructure use only. Time in microseconds since epoch at which the bucket is full
          */
-        public AtomicInteger count = new AtomicInteger();
+        public AtomicLong bucketFullTimeMicros = new AtomicLong();
 
         /**
-         * Start time in microseconds since epoch for the timing window
+         * Takes a token from the bucket. Returns zero if the request is admitted, otherwise the
+         * time, in microseconds, until a token is available
          */
-        public long startTimeMicros;
+        long acquire(long nowMicros) {
+            long intervalMicros = Math.max(1,
+                    (long) (TimeUnit.SECONDS.toMicros(1) / this.limit));
+            long capacityMicros = intervalMicros * Math.max(1, this.burst);
+            while (true) {
+                long fullTime = this.bucketFullTimeMicros.get();
+                long nextFullTime = Math.max(fullTime, nowMicros) + intervalMicros;
+                long waitMicros = nextFullTime - nowMicros - capacityMicros;
+                if (waitMicros > 0) {
+                    this.throttledCount.incrementAndGet();
+                    return waitMicros;
+                }
+                if (this.bucketFullTimeMicros.compareAndSet(fullTime, nextFullTime)) {
+                    return 0;
+                }
+            }
+        }
     }
 
     public static class ServiceHostState extends ServiceDocument {
@@ -310,12 +343,35 @@ public class ServiceHost {
         public static final long DEFAULT_MAINTENANCE_INTERVAL_MICROS = TimeUnit.SECONDS
                 .toMicros(1);
         public static final long DEFAULT_OPERATION_TIMEOUT_MICROS = TimeUnit.SECONDS.toMicros(60);
+        public static final long DEFAULT_QUEUE_DELAY_INTERVAL_MICROS = TimeUnit.SECONDS
+                .toMicros(1);
         public String bindAddress;
         public int httpPort;
         public int httpsPort;
         public URI publicUri;
         public long maintenanceIntervalMicros = DEFAULT_MAINTENANCE_INTERVAL_MICROS;
         public long operationTimeoutMicros = DEFAULT_OPERATION_TIMEOUT_MICROS;
+
+        /**
+         * Admission control target for the time operations wait in a service queue. Once
+         * operations leaving the queue of a service waited longer than the target, for a full
+         * interval, requests from remote clients to that service are shed, until the delay
+         * drops below the target. Zero disables admission control for service queues, queueing
+         * delay percentiles are still reported
+         */
+        public long serviceQueueDelayTargetMicros;
+
+        /**
+         * Admission control target for the time operations wait for an executor thread, for the
+         * host as a whole. Zero disables admission control for the executor
+         */
+        public long hostQueueDelayTargetMicros;
+
+        /**
+         * Interval the queueing delay must stay above the target before requests are shed
+         */
+        public long queueDelayIntervalMicros = DEFAULT_QUEUE_DELAY_INTERVAL_MICROS;
+
         public String operationTracingLevel;
         public SslClientAuthMode sslClientAuthMode;
 
@@ -349,9 +405,9 @@ public class ServiceHost {
 
         /**
          * Request limits, in operations per second. Each limit is associated with a key,
-         * derived from some context (user, tenant, context id). An operation is associated with
-         * a key and then service host tracks and applies the limit for each in bound request that
-         * belongs to the same context.
+         * derived from the authorization context: the subject, or the self link of a role that
+         * applied to the subject. The service host tracks and applies the limit for each in
+         * bound request that belongs to the same context.
          *
          * Rate limiting is a global back pressure mechanism that is independent of the target
          * service and any additional throttling applied during service request
@@ -359,6 +415,12 @@ public class ServiceHost {
          */
         public Map<String, RequestRateInfo> requestRateLimits = new ConcurrentSkipListMap<>();
 
+        /**
+         * Request limits, in operations per second, keyed by service path prefix. A limit applies
+         * to all in bound requests to services under the prefix, independent of the subject
+         */
+        public Map<String, RequestRateInfo> requestRateLimitsByPath = new ConcurrentSkipListMap<>();
+
         /**
          * Infrastructure use only.
          *
@@ -376,16 +438,6 @@ public class ServiceHost {
         public String[] initialPeerNodes;
     }
 
-    private static ConcurrentSkipListSet<Operation> createOperationSet() {
-        return new ConcurrentSkipListSet<>(new Comparator<Operation>() {
-            @Override
-            public int compare(Operation o1, Operation o2) {
-                return Long.compare(o1.getExpirationMicrosUtc(),
-                        o2.getExpirationMicrosUtc());
-            }
-        });
-    }
-
     public static int findListenPort() {
         int port = 0;
         ServerSocket socket = null;
@@ -416,15 +468,33 @@ public class ServiceHost {
     private final ServiceDocumentDescription.Builder descriptionBuilder = Builder.create();
 
     private ExecutorService executor;
+
+    /**
+     * Dispatches operations and expirations to the executor by priority class
+     */
+    private PriorityExecutor priorityExecutor;
     protected ScheduledExecutorService scheduledExecutor;
 
-    private final ConcurrentSkipListMap<String, Service> attachedServices = new ConcurrentSkipListMap<>();
+    private final ServiceRegistry attachedServices = new ServiceRegistry();
     private final ConcurrentSkipListSet<String> coreServices = new ConcurrentSkipListSet<>();
 
     private final ConcurrentSkipListSet<String> pendingNodeSelectorsForFactorySynch = new ConcurrentSkipListSet<>();
-    private final SortedSet<Operation> pendingStartOperations = createOperationSet();
-    private final Map<String, SortedSet<Operation>> pendingServiceAvailableCompletions = new ConcurrentSkipListMap<>();
-    private final SortedSet<Operation> pendingOperationsForRetry = createOperationSet();
+
+    /**
+     * Host wide timers for operation expiration, periodic service maintenance and document
+     * expiration. Advanced during host maintenance
+     */
+    private final TimingWheel timingWheel = TimingWheel.create(TimingWheel.DEFAULT_TICK_MICROS,
+            TimingWheel.DEFAULT_BUCKET_COUNT);
+
+    // admission control for the executor, and for services with queued operations
+    private final AdmissionController hostAdmissionController = AdmissionController.create();
+    private final Map<String, AdmissionController> serviceAdmissionControllers = new ConcurrentHashMap<>();
+
+    // pending operations, with the timer that fails each of them on expiration
+    private final Map<Operation, TimingWheel.Timer> pendingStartOperations = new ConcurrentHashMap<>();
+    private final Map<String, Map<Operation, TimingWheel.Timer>> pendingServiceAvailableCompletions = new ConcurrentHashMap<>();
+    private final Map<Operation, TimingWheel.Timer> pendingOperationsForRetry = new ConcurrentHashMap<>();
 
     private ServiceHostState state;
     private Service documentIndexService;
@@ -441,7 +511,11 @@ public class ServiceHost {
     private URI transactionServiceUri;
     private ScheduledFuture<?> maintenanceTask;
 
-    private final ConcurrentSkipListMap<String, ServiceDocument> cachedServiceStates = new ConcurrentSkipListMap<>();
+    /**
+     * Cached service state, bounded by the {@link MemoryLimitType#LOW_WATERMARK} of the host
+     * memory limit. The limit is set when the host memory limit is set
+     */
+    private final ServiceStateCache cachedServiceStates = ServiceStateCache.create(Long.MAX_VALUE);
 
     private ConcurrentSkipListSet<String> serviceFactoriesUnderMemoryPressure = new ConcurrentSkipListSet<>();
     private ConcurrentSkipListMap<String, Service> pendingPauseServices = new ConcurrentSkipListMap<>();
@@ -937,6 +1011,7 @@ public class ServiceHost {
         }
 
         this.executor = Executors.newWorkStealingPool(Utils.DEFAULT_THREAD_COUNT);
+        this.priorityExecutor = PriorityExecutor.create(this.executor);
         this.scheduledExecutor = Executors.newScheduledThreadPool(Utils.DEFAULT_THREAD_COUNT,
                 r -> new Thread(r, getUri().toString() + "/scheduled/" + this.state.id));
 
@@ -1536,10 +1611,10 @@ public class ServiceHost {
                 return null;
             }
 
-            schedule(() -> {
+            scheduleExpiration(() -> {
                 sendRequest(Operation.createDelete(UriUtils.buildUri(this,
                         notificationTarget.getSelfLink())));
-            } , delta, TimeUnit.MICROSECONDS);
+            }, request.documentExpirationTimeMicros);
         }
 
         request.reference = subscriptionUri;
@@ -1695,9 +1770,8 @@ public class ServiceHost {
             // do not directly attach utility services
         } else {
             synchronized (this.state) {
-                Service previous = this.attachedServices.put(servicePath, service);
+                Service previous = this.attachedServices.putIfAbsent(servicePath, service);
                 if (previous != null) {
-                    this.attachedServices.put(servicePath, previous);
                     post.fail(new ServiceAlreadyStartedException(servicePath));
                     return this;
                 }
@@ -1707,14 +1781,14 @@ public class ServiceHost {
         }
 
         if (post.getExpirationMicrosUtc() == 0) {
-            post.setExpiration(this.state.operationTimeoutMicros + Utils.getNowMicrosUtc());
+            post.setExpiration(this.state.operationTimeoutMicros + Utils.getSystemNowMicrosUtc());
         }
 
         service.setProcessingStage(ProcessingStage.CREATED);
 
         // make sure we detach the service on start failure
         post.nestCompletion((o, e) -> {
-            this.pendingStartOperations.remove(post);
+            untrackOperation(this.pendingStartOperations, post);
             if (e != null) {
                 stopService(service);
                 post.fail(e);
@@ -1723,7 +1797,7 @@ public class ServiceHost {
             post.complete();
         });
 
-        this.pendingStartOperations.add(post);
+        trackOperationExpiration(this.pendingStartOperations, post);
         if (!validateServiceOptions(service, post)) {
             return this;
         }
@@ -1754,7 +1828,7 @@ public class ServiceHost {
     }
 
     void notifyServiceAvailabilitySubscribers(Service s) {
-        SortedSet<Operation> ops = null;
+        Map<Operation, TimingWheel.Timer> ops = null;
         synchronized (this.state) {
             ops = this.pendingServiceAvailableCompletions.remove(s.getSelfLink());
             if (ops == null) {
@@ -1762,7 +1836,11 @@ public class ServiceHost {
             }
         }
 
-        for (Operation op : ops) {
+        for (Operation op : ops.keySet()) {
+            if (!untrackOperation(ops, op)) {
+                // operation expired
+                continue;
+            }
             run(() -> {
                 if (op.getUri() == null) {
                     op.setUri(s.getUri());
@@ -2162,6 +2240,7 @@ public class ServiceHost {
                 .createPost(synchServiceForGroup)
                 .setBodyNoCloning(t)
                 .setReferer(s.getUri())
+                .setPriority(Priority.REPLICATION)
                 .setCompletion(c);
         sendRequest(synchPost);
     }
@@ -2304,14 +2383,9 @@ public class ServiceHost {
             return;
         }
 
-        ServiceDocument p = null;
-        synchronized (s.getSelfLink()) {
-            p = this.cachedServiceStates.put(s.getSelfLink(), st);
-            if (p != null && p.documentVersion > st.documentVersion) {
-                // restore cached state, discarding update, if the existing version is higher
-                this.cachedServiceStates.put(s.getSelfLink(), p);
-            }
-        }
+        // the update is discarded if the cached version is higher. State of services that are
+        // not indexed can not be reloaded, so it is never evicted
+        this.cachedServiceStates.put(s.getSelfLink(), st, !isServiceIndexed(s));
     }
 
     private void handleLoadInitialStateCompletion(Service s, Operation serviceStartPost,
@@ -2401,6 +2475,7 @@ public class ServiceHost {
         }
 
         this.pendingPauseServices.remove(path);
+        this.serviceAdmissionControllers.remove(path);
         clearCachedServiceState(path);
 
         synchronized (this.state) {
@@ -2453,8 +2528,10 @@ public class ServiceHost {
      * Infrastructure use only
      */
     public boolean handleRequest(Service service, Operation inboundOp) {
+        // requests dequeued by the service were admitted by the rate limiter when first received
+        boolean applyRateLimit = inboundOp != null;
         if (inboundOp == null && service != null) {
-            inboundOp = service.dequeueRequest();
+            inboundOp = dequeueRequest(service);
         }
 
         if (inboundOp == null) {
@@ -2489,17 +2566,18 @@ public class ServiceHost {
         if (this.isAuthorizationEnabled()) {
             if (this.authorizationService != null) {
                 inboundOp.nestCompletion(op -> {
-                    handleAuthorizedRequest(service, op);
+                    handleAuthorizedRequest(service, op, applyRateLimit);
                 });
                 queueOrScheduleRequest(this.authorizationService, inboundOp);
                 return true;
             }
         }
 
-        return handleAuthorizedRequest(service, inboundOp);
+        return handleAuthorizedRequest(service, inboundOp, applyRateLimit);
     }
 
-    private boolean handleAuthorizedRequest(Service service, Operation inboundOp) {
+    private boolean handleAuthorizedRequest(Service service, Operation inboundOp,
+            boolean applyRateLimit) {
         String path;
         if (service == null) {
             path = inboundOp.getUri().getPath();
@@ -2518,6 +2596,11 @@ public class ServiceHost {
             service = pendingStopService;
         }
 
+        if (applyRateLimit && (applyRequestRateLimit(path, inboundOp)
+                || applyAdmissionControl(path, inboundOp))) {
+            return true;
+        }
+
         if (queueRequestUntilServiceAvailable(inboundOp, service, path)) {
             return true;
         }
@@ -2569,7 +2652,7 @@ public class ServiceHost {
             }
 
             Long expirationTime = claims.getExpirationTime();
-            if (expirationTime != null && expirationTime <= Utils.getNowMicrosUtc()) {
+            if (expirationTime != null && expirationTime <= Utils.getSystemNowMicrosUtc()) {
                 this.authorizationContextCache.remove(token);
                 return null;
             }
@@ -2821,12 +2904,19 @@ public class ServiceHost {
     }
 
     void failRequestLimitExceeded(Operation request) {
-        // Add a header indicating retry should be attempted after some interval.
-        // Currently set to just one second, subject to change in the future
-        request.addResponseHeader(Operation.RETRY_AFTER_HEADER, "1");
+        failRequestLimitExceeded(request, "queue limit exceeded", TimeUnit.SECONDS.toMicros(1));
+    }
+
+    private void failRequestLimitExceeded(Operation request, String message,
+            long retryAfterMicros) {
+        // Add a header indicating retry should be attempted after some interval, in whole
+        // seconds
+        long retryAfterSeconds = Math.max(1, TimeUnit.MICROSECONDS.toSeconds(
+                retryAfterMicros + TimeUnit.SECONDS.toMicros(1) - 1));
+        request.addResponseHeader(Operation.RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
         // a specific ServiceErrorResponse will be added in the future with retry hints
         request.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE)
-                .fail(new CancellationException("queue limit exceeded"));
+                .fail(new CancellationException(message));
     }
 
     private void failForwardRequest(Operation op, Operation fo, Throwable fe) {
@@ -2851,11 +2941,11 @@ public class ServiceHost {
         }
 
         if (shouldRetry) {
-            this.pendingOperationsForRetry.add(op);
+            scheduleRetry(op);
             return;
         }
 
-        if (op.getExpirationMicrosUtc() < Utils.getNowMicrosUtc()) {
+        if (op.getExpirationMicrosUtc() < Utils.getSystemNowMicrosUtc()) {
             op.setBodyNoCloning(fo.getBodyRaw()).fail(new TimeoutException());
             return;
         }
@@ -2889,8 +2979,13 @@ public class ServiceHost {
                     waitForService = isServiceStarting(factoryService, factoryPath);
                 }
                 if (!waitForService) {
-                    // the service might be paused (stopped due to memory pressure)
-                    if (factoryService.hasOption(ServiceOption.PERSISTENCE)) {
+                    if (factoryService.hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+                        // the service might be indexed but not started yet
+                        if (checkAndStartOnDemandService(inboundOp, factoryService, path)) {
+                            return true;
+                        }
+                    } else if (factoryService.hasOption(ServiceOption.PERSISTENCE)) {
+                        // the service might be paused (stopped due to memory pressure)
                         if (checkAndResumePausedService(inboundOp)) {
                             return true;
                         }
@@ -2940,12 +3035,6 @@ public class ServiceHost {
     private void queueOrScheduleRequest(Service s, Operation op) {
         boolean processRequest = true;
         try {
-
-            if (applyRequestRateLimit(op)) {
-                processRequest = false;
-                return;
-            }
-
             ProcessingStage stage = s.getProcessingStage();
             if (stage == ProcessingStage.AVAILABLE) {
                 return;
@@ -2956,6 +3045,12 @@ public class ServiceHost {
             }
 
             if (stage == ProcessingStage.PAUSED) {
+                if (s.hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+                    // the service was detached, a new instance is started on demand
+                    processRequest = false;
+                    handleRequest(null, op);
+                    return;
+                }
                 if (checkAndResumePausedService(op)) {
                     processRequest = false;
                     return;
@@ -2970,7 +3065,12 @@ public class ServiceHost {
             }
 
             if (!s.queueRequest(op)) {
-                this.executor.execute(() -> {
+                long enqueueTimeMicros = Utils.getSystemNowMicrosUtc();
+                this.priorityExecutor.execute(op.getPriority(), () -> {
+                    if (shedExecutorRequest(op, enqueueTimeMicros)) {
+                        return;
+                    }
+
                     if (!s.hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)) {
                         OperationContext.setContextId(op.getContextId());
                     }
@@ -2994,48 +3094,174 @@ public class ServiceHost {
         }
     }
 
-    private boolean applyRequestRateLimit(Operation op) {
-        if (this.state.requestRateLimits.isEmpty()) {
-            return false;
+    /**
+     * Dequeues the next operation queued by the service. While the service queue is overloaded,
+     * requests from remote clients that waited longer than the target delay are shed. Queueing
+     * delay is recorded for the percentile stats even without a target, only the shedding
+     * decision is skipped
+     */
+    private Operation dequeueRequest(Service service) {
+        while (true) {
+            Operation op = service.dequeueRequest();
+            if (op == null) {
+                return null;
+            }
+
+            long queueTimeMicros = op.getQueueTime();
+            // only operations that waited in the queue carry a queue time
+            if (queueTimeMicros == 0) {
+                return op;
+            }
+
+            String path = service.getSelfLink();
+            AdmissionController ac = this.serviceAdmissionControllers.get(path);
+            if (ac == null) {
+                ac = this.serviceAdmissionControllers.computeIfAbsent(path,
+                        (k) -> AdmissionController.create());
+            }
+
+            long now = Utils.getSystemNowMicrosUtc();
+            if (!ac.onDequeue(now - queueTimeMicros, now,
+                    this.state.serviceQueueDelayTargetMicros,
+                    this.state.queueDelayIntervalMicros)
+                    || !isSheddable(op)) {
+                return op;
+            }
+            ac.onShed();
+            failRequestQueueDelayExceeded(op);
         }
+    }
 
-        AuthorizationContext authCtx = op.getAuthorizationContext();
-        if (authCtx == null) {
+    private boolean shedExecutorRequest(Operation op, long enqueueTimeMicros) {
+        long now = Utils.getSystemNowMicrosUtc();
+        if (!this.hostAdmissionController.onDequeue(now - enqueueTimeMicros, now,
+                this.state.hostQueueDelayTargetMicros, this.state.queueDelayIntervalMicros)
+                || !isSheddable(op)) {
             return false;
         }
+        this.hostAdmissionController.onShed();
+        failRequestQueueDelayExceeded(op);
+        return true;
+    }
 
-        Claims claims = authCtx.getClaims();
-        if (claims == null) {
+    /**
+     * Sheds a new request from a remote client while the executor, or the queue of the target
+     * service, is overloaded
+     */
+    private boolean applyAdmissionControl(String path, Operation op) {
+        if (!isSheddable(op)) {
             return false;
         }
 
-        String subject = claims.getSubject();
-        if (subject == null) {
+        long now = Utils.getSystemNowMicrosUtc();
+        AdmissionController ac = this.hostAdmissionController;
+        if (!ac.isOverloaded(now)) {
+            ac = this.serviceAdmissionControllers.get(path);
+            if (ac == null || !ac.isOverloaded(now)) {
+                return false;
+            }
+        }
+        ac.onShed();
+        failRequestQueueDelayExceeded(op);
+        return true;
+    }
+
+    /**
+     * Only requests from remote clients are shed. Control and replication traffic, forwarded
+     * requests between peers, and operations issued by services on this host, are queued until
+     * they expire
+     */
+    private static boolean isSheddable(Operation op) {
+        if (!op.isFromRemoteClient()) {
             return false;
         }
+        Priority p = op.getPriority();
+        return p != Priority.CONTROL && p != Priority.REPLICATION
+                && !op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORWARDED)
+                && !op.isNotification();
+    }
+
+    private void failRequestQueueDelayExceeded(Operation op) {
+        failRequestLimitExceeded(op, "queue delay exceeded", this.state.queueDelayIntervalMicros);
+    }
 
-        // TODO: use the roles that applied during authorization as the rate limiting key.
-        // We currently just use the subject but this is going to change.
-        RequestRateInfo rateInfo = this.state.requestRateLimits.get(subject);
-        if (rateInfo == null) {
+    /**
+     * Takes a token from every bucket that applies to the request: the service path prefixes,
+     * the subject and the roles that applied during authorization. Tokens taken before a bucket
+     * rejects the request are not returned
+     */
+    private boolean applyRequestRateLimit(String path, Operation op) {
+        if (this.state.requestRateLimits.isEmpty()
+                && this.state.requestRateLimitsByPath.isEmpty()) {
             return false;
         }
 
-        double count = rateInfo.count.incrementAndGet();
-        long now = Utils.getNowMicrosUtc();
-        long delta = now - rateInfo.startTimeMicros;
-        double deltaInSeconds = delta / 1000000.0;
-        if (delta < getMaintenanceIntervalMicros()) {
+        long now = Utils.getSystemNowMicrosUtc();
+        long retryAfterMicros = applyPathRequestRateLimits(path, now);
+        if (retryAfterMicros == 0) {
+            retryAfterMicros = applyAuthorizationRequestRateLimits(op, now);
+        }
+        if (retryAfterMicros == 0) {
             return false;
         }
 
-        double requestsPerSec = count / deltaInSeconds;
-        if (requestsPerSec > rateInfo.limit) {
-            this.failRequestLimitExceeded(op);
-            return true;
+        failRequestLimitExceeded(op, "request rate limit exceeded", retryAfterMicros);
+        return true;
+    }
+
+    private long applyPathRequestRateLimits(String path, long now) {
+        if (this.state.requestRateLimitsByPath.isEmpty() || path == null) {
+            return 0;
         }
 
-        return false;
+        for (int i = path.length(); i > 0; i = path.lastIndexOf(UriUtils.URI_PATH_CHAR, i - 1)) {
+            RequestRateInfo rateInfo = this.state.requestRateLimitsByPath
+                    .get(path.substring(0, i));
+            if (rateInfo == null) {
+                continue;
+            }
+            long retryAfterMicros = rateInfo.acquire(now);
+            if (retryAfterMicros > 0) {
+                return retryAfterMicros;
+            }
+        }
+        return 0;
+    }
+
+    private long applyAuthorizationRequestRateLimits(Operation op, long now) {
+        if (this.state.requestRateLimits.isEmpty()) {
+            return 0;
+        }
+
+        AuthorizationContext authCtx = op.getAuthorizationContext();
+        if (authCtx == null) {
+            return 0;
+        }
+
+        Claims claims = authCtx.getClaims();
+        if (claims == null || claims.getSubject() == null) {
+            return 0;
+        }
+
+        RequestRateInfo rateInfo = this.state.requestRateLimits.get(claims.getSubject());
+        if (rateInfo != null) {
+            long retryAfterMicros = rateInfo.acquire(now);
+            if (retryAfterMicros > 0) {
+                return retryAfterMicros;
+            }
+        }
+
+        for (String roleLink : authCtx.getRoleLinks()) {
+            rateInfo = this.state.requestRateLimits.get(roleLink);
+            if (rateInfo == null) {
+                continue;
+            }
+            long retryAfterMicros = rateInfo.acquire(now);
+            if (retryAfterMicros > 0) {
+                return retryAfterMicros;
+            }
+        }
+        return 0;
     }
 
     private void handleUncaughtException(Service s, Operation op, Throwable e) {
@@ -3096,7 +3322,7 @@ public class ServiceHost {
             op.forceRemote();
         }
         if (op.getExpirationMicrosUtc() == 0) {
-            op.setExpiration(Utils.getNowMicrosUtc() + this.state.operationTimeoutMicros);
+            op.setExpiration(Utils.getSystemNowMicrosUtc() + this.state.operationTimeoutMicros);
         }
 
         if (op.getCompletion() == null) {
@@ -3189,7 +3415,7 @@ public class ServiceHost {
         log(Level.INFO, "All core services stopped");
 
         this.attachedServices.clear();
-        this.maintenanceHelper.close();
+        this.timingWheel.clear();
         this.state.isStarted = false;
 
         removeLogging();
@@ -3217,22 +3443,68 @@ public class ServiceHost {
     }
 
     private void stopAndClearPendingQueues() {
-        for (Operation op : this.pendingOperationsForRetry) {
-            op.fail(new CancellationException());
-        }
-        this.pendingOperationsForRetry.clear();
+        cancelTrackedOperations(this.pendingOperationsForRetry);
+        cancelTrackedOperations(this.pendingStartOperations);
 
-        for (Operation op : this.pendingStartOperations) {
-            op.fail(new CancellationException());
+        for (Map<Operation, TimingWheel.Timer> ops : this.pendingServiceAvailableCompletions
+                .values()) {
+            cancelTrackedOperations(ops);
         }
-        this.pendingStartOperations.clear();
+        this.pendingServiceAvailableCompletions.clear();
+    }
 
-        for (SortedSet<Operation> opSet : this.pendingServiceAvailableCompletions.values()) {
-            for (Operation op : opSet) {
+    private void cancelTrackedOperations(Map<Operation, TimingWheel.Timer> ops) {
+        for (Operation op : ops.keySet()) {
+            if (untrackOperation(ops, op)) {
                 op.fail(new CancellationException());
             }
         }
-        this.pendingServiceAvailableCompletions.clear();
+    }
+
+    /**
+     * Adds the operation to the pending operation map and fails it with a timeout if it is still
+     * pending once it expires
+     */
+    private void trackOperationExpiration(Map<Operation, TimingWheel.Timer> ops, Operation op) {
+        ops.put(op, this.timingWheel.schedule(op.getExpirationMicrosUtc(),
+                () -> checkOperationExpiration(ops, op)));
+    }
+
+    private void checkOperationExpiration(Map<Operation, TimingWheel.Timer> ops, Operation op) {
+        if (ops.remove(op) == null) {
+            return;
+        }
+        run(() -> op.fail(new TimeoutException(op.toString())));
+    }
+
+    /**
+     * Removes the operation from the pending operation map and cancels its expiration timer.
+     * Returns false if the operation was not pending, or was already removed by another caller
+     */
+    private static boolean untrackOperation(Map<Operation, TimingWheel.Timer> ops, Operation op) {
+        TimingWheel.Timer t = ops.remove(op);
+        if (t == null) {
+            return false;
+        }
+        t.cancel();
+        return true;
+    }
+
+    /**
+     * Re-issues the operation during the next host maintenance
+     */
+    private void scheduleRetry(Operation op) {
+        Map<Operation, TimingWheel.Timer> ops = this.pendingOperationsForRetry;
+        ops.put(op, this.timingWheel.schedule(Utils.getSystemNowMicrosUtc(), () -> {
+            if (ops.remove(op) == null) {
+                return;
+            }
+            if (isStopping()) {
+                op.fail(new CancellationException());
+                return;
+            }
+            handleRequest(null, op);
+        }));
     }
 
     private void waitForServiceStop(final CountDownLatch latch) {
@@ -3345,7 +3617,7 @@ public class ServiceHost {
         }
         Operation op = Operation.createPost(null)
                 .setCompletion(completion)
-                .setExpiration(getOperationTimeoutMicros() + Utils.getNowMicrosUtc());
+                .setExpiration(getOperationTimeoutMicros() + Utils.getSystemNowMicrosUtc());
         registerForServiceAvailability(op, servicePaths);
     }
 
@@ -3362,15 +3634,14 @@ public class ServiceHost {
                 if (s != null && s.getProcessingStage() == Service.ProcessingStage.AVAILABLE) {
                     continue;
                 }
-                SortedSet<Operation> pendingOps = this.pendingServiceAvailableCompletions
+                Map<Operation, TimingWheel.Timer> pendingOps = this.pendingServiceAvailableCompletions
                         .get(link);
                 if (pendingOps == null) {
-                    // create sorted set using the operation expiration as the key. This allows us
-                    // to efficiently detect expiration during host maintenance
-                    pendingOps = createOperationSet();
+                    pendingOps = new ConcurrentHashMap<>();
                     this.pendingServiceAvailableCompletions.put(link, pendingOps);
                 }
-                pendingOps.add(doOpClone ? opTemplate.clone() : opTemplate);
+                // the operation is failed on expiration by the host timing wheel
+                trackOperationExpiration(pendingOps, doOpClone ? opTemplate.clone() : opTemplate);
                 // null the link so we do not attempt to invoke the completion below
                 clonedLinks[i] = null;
             }
@@ -3398,15 +3669,50 @@ public class ServiceHost {
      * Infrastructure use only.
      *
      * Sets an upper limit, in terms of operations per second, for all operations
-     * associated with some context. The context is (tenant, user, referrer) is used
-     * to derive the key.
+     * associated with some context. The key is the subject, or the self link of a role that
+     * applies to the subject. Bursts of up to one second worth of operations are admitted
      */
     public ServiceHost setRequestRateLimit(String key, double operationsPerSecond) {
+        return setRequestRateLimit(key, operationsPerSecond,
+                (int) Math.ceil(operationsPerSecond));
+    }
+
+    /**
+     * Infrastructure use only.
+     *
+     * Sets an upper limit, in terms of operations per second, for all operations associated
+     * with some context, admitting bursts of up to the given number of operations
+     */
+    public ServiceHost setRequestRateLimit(String key, double operationsPerSecond, int burst) {
+        this.state.requestRateLimits.put(key, createRequestRateInfo(operationsPerSecond, burst));
+        return this;
+    }
+
+    /**
+     * Infrastructure use only.
+     *
+     * Sets an upper limit, in terms of operations per second, for all operations to services
+     * under the given path prefix, admitting bursts of up to the given number of operations
+     */
+    public ServiceHost setRequestRateLimitByPath(String pathPrefix, double operationsPerSecond,
+            int burst) {
+        this.state.requestRateLimitsByPath.put(UriUtils.normalizeUriPath(pathPrefix),
+                createRequestRateInfo(operationsPerSecond, burst));
+        return this;
+    }
+
+    private static RequestRateInfo createRequestRateInfo(double operationsPerSecond, int burst) {
+        if (operationsPerSecond <= 0) {
+            throw new IllegalArgumentException("operationsPerSecond must be positive");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst must be positive");
+        }
         RequestRateInfo ri = new RequestRateInfo();
         ri.limit = operationsPerSecond;
-        ri.startTimeMicros = Utils.getNowMicrosUtc();
-        this.state.requestRateLimits.put(key, ri);
-        return this;
+        ri.burst = burst;
+        ri.bucketFullTimeMicros.set(Utils.getSystemNowMicrosUtc());
+        return ri;
     }
 
     /**
@@ -3439,6 +3745,10 @@ public class ServiceHost {
                     + Utils.toJsonHtml(this.state.relativeMemoryLimits));
         }
         this.state.relativeMemoryLimits.put(servicePath, percentOfTotal);
+        if (servicePath.equals(ROOT_PATH)) {
+            this.cachedServiceStates.setMaxWeight(getServiceMemoryLimitMB(ROOT_PATH,
+                    MemoryLimitType.LOW_WATERMARK) * 1024 * 1024);
+        }
         return this;
     }
 
@@ -3608,11 +3918,18 @@ public class ServiceHost {
     }
 
     public void run(Runnable task) {
+        run(Priority.USER, task);
+    }
+
+    /**
+     * Runs the task on the host executor, dispatched with queued operations of the given class
+     */
+    public void run(Priority priority, Runnable task) {
         if (this.executor.isShutdown()) {
             throw new IllegalStateException("Stopped");
         }
         AuthorizationContext origContext = OperationContext.getAuthorizationContext();
-        this.executor.execute(() -> {
+        this.priorityExecutor.execute(priority, () -> {
             OperationContext.setAuthorizationContext(origContext);
             executeRunnableSafe(task);
         });
@@ -3633,6 +3950,26 @@ public class ServiceHost {
         } , delay, unit);
     }
 
+    /**
+     * Runs the task once the given absolute time has passed. Unlike
+     * {@link #schedule(Runnable, long, TimeUnit)} the task is held by the host timing wheel and
+     * runs within a maintenance interval after its expiration, never before it, which makes it
+     * suitable for the large number of coarse expirations (tasks, subscriptions) a host tracks
+     */
+    public void scheduleExpiration(Runnable task, long expirationMicrosUtc) {
+        if (this.isStopping()) {
+            throw new IllegalStateException("Stopped");
+        }
+
+        AuthorizationContext origContext = OperationContext.getAuthorizationContext();
+        this.timingWheel.schedule(expirationMicrosUtc, () -> {
+            this.priorityExecutor.execute(Priority.BACKGROUND, () -> {
+                OperationContext.setAuthorizationContext(origContext);
+                executeRunnableSafe(task);
+            });
+        });
+    }
+
     private void executeRunnableSafe(Runnable task) {
         try {
             task.run();
@@ -3650,7 +3987,7 @@ public class ServiceHost {
      */
     private void scheduleMaintenance() {
         Runnable r = () -> {
-            this.state.lastMaintenanceTimeUtcMicros = Utils.getNowMicrosUtc();
+            this.state.lastMaintenanceTimeUtcMicros = Utils.getSystemNowMicrosUtc();
             performMaintenanceStage(Operation.createPost(getUri()),
                     MaintenanceStage.UTILS);
         };
@@ -3667,7 +4004,7 @@ public class ServiceHost {
     private void performMaintenanceStage(Operation post, MaintenanceStage stage) {
 
         try {
-            long now = Utils.getNowMicrosUtc();
+            long now = Utils.getSystemNowMicrosUtc();
             long deadline = this.state.lastMaintenanceTimeUtcMicros
                     + this.state.maintenanceIntervalMicros;
 
@@ -3678,6 +4015,7 @@ public class ServiceHost {
                 break;
             case MEMORY:
                 applyMemoryLimit(deadline);
+                updateServiceStateCacheStats();
                 stage = MaintenanceStage.IO;
                 break;
             case IO:
@@ -3688,7 +4026,12 @@ public class ServiceHost {
                 stage = MaintenanceStage.SERVICE;
                 break;
             case SERVICE:
-                this.maintenanceHelper.performMaintenance(post, deadline);
+                // fires service maintenance, operation expirations, retries and scheduled
+                // expirations that are due. Advancing to the end of the interval would fire them
+                // up to an interval early, so service maintenance deadlines are kept one
+                // interval apart instead of one interval after completion
+                this.timingWheel.advance(now);
+                updateTimingWheelStats();
                 stage = null;
                 break;
             default:
@@ -3710,17 +4053,9 @@ public class ServiceHost {
 
     private void performIOMaintenance(Operation post, long now, MaintenanceStage nextStage) {
         try {
-            performPendingOperationMaintenance();
-
-            // reset request limits, start new time window
-            for (RequestRateInfo rri : this.state.requestRateLimits.values()) {
-                if (now - rri.startTimeMicros < ONE_MINUTE_IN_MICROS) {
-                    // reset only after a fixed interval
-                    return;
-                }
-                rri.startTimeMicros = now;
-                rri.count.set(0);
-            }
+            updateRequestRateLimitStats();
+            updateAdmissionControlStats();
+            updatePriorityExecutorStats();
 
             int expected = 0;
             ServiceClient c = getClient();
@@ -3762,28 +4097,6 @@ public class ServiceHost {
         }
     }
 
-    private void performPendingOperationMaintenance() {
-        long now = Utils.getNowMicrosUtc();
-        Iterator<Operation> startOpsIt = this.pendingStartOperations.iterator();
-        checkOperationExpiration(now, startOpsIt);
-
-        for (SortedSet<Operation> ops : this.pendingServiceAvailableCompletions.values()) {
-            Iterator<Operation> it = ops.iterator();
-            checkOperationExpiration(now, it);
-        }
-
-        Iterator<Operation> it = this.pendingOperationsForRetry.iterator();
-        while (it.hasNext()) {
-            Operation o = it.next();
-            if (isStopping()) {
-                o.fail(new CancellationException());
-                return;
-            }
-            it.remove();
-            handleRequest(null, o);
-        }
-    }
-
     private void performNodeSelectorChangeMaintenance() {
 
         Iterator<String> it = this.pendingNodeSelectorsForFactorySynch.iterator();
@@ -3795,15 +4108,11 @@ public class ServiceHost {
     }
 
     private void performNodeSelectorChangeMaintenance(String nodeSelectorPath) {
-        for (Service s : this.attachedServices.values()) {
+        for (Service s : this.attachedServices.getFactories()) {
             if (isStopping()) {
                 return;
             }
 
-            if (!s.hasOption(ServiceOption.FACTORY)) {
-                continue;
-            }
-
             if (!s.hasOption(ServiceOption.REPLICATION)) {
                 continue;
             }
@@ -3841,22 +4150,10 @@ public class ServiceHost {
         }
     }
 
-    private void checkOperationExpiration(long now, Iterator<Operation> iterator) {
-        while (iterator.hasNext()) {
-            Operation op = iterator.next();
-            if (op == null || op.getExpirationMicrosUtc() > now) {
-                // not expired, and since we walk in ascending order, no other operations
-                // are expired
-                break;
-            }
-            iterator.remove();
-            run(() -> op.fail(new TimeoutException(op.toString())));
-        }
-    }
-
     /**
      * Estimates how much memory is used by host caches, queues and based on the memory limits
-     * takes appropriate action: clears cached service state, temporarily stops services
+     * takes appropriate action: temporarily stops services. Cached service state is bounded
+     * separately, see {@link ServiceStateCache}
      */
     private void applyMemoryLimit(long deadlineMicros) {
         long memoryLimitLowMB = getServiceMemoryLimitMB(ROOT_PATH,
@@ -3870,9 +4167,34 @@ public class ServiceHost {
         }
 
         int pauseServiceCount = 0;
-        for (Service service : this.attachedServices.values()) {
-            ServiceDocument s = this.cachedServiceStates.get(service.getSelfLink());
+        for (Service factory : this.attachedServices.getFactories()) {
+            // only factory children can be paused, walk them through the registry path index
+            pauseServiceCount += pauseIdleFactoryChildren(factory, deadlineMicros);
+            if (deadlineMicros < Utils.getSystemNowMicrosUtc()) {
+                break;
+            }
+        }
+
+        if (pauseServiceCount == 0) {
+            return;
+        }
+
+        // Make sure our service count matches the list contents, they could drift. Using size()
+        // on a concurrent data structure is costly so we do this only when pausing services
+        synchronized (this.state) {
+            this.state.serviceCount = this.attachedServices.size();
+        }
+
+        // schedule a task to actually stop the services. If a request arrives in the mean time,
+        // it will remove the service from the pendingStopService map (since its active).
+        schedule(() -> {
+            pauseServices();
+        } , getMaintenanceIntervalMicros(), TimeUnit.MICROSECONDS);
+    }
 
+    private int pauseIdleFactoryChildren(Service factory, long deadlineMicros) {
+        int pauseServiceCount = 0;
+        for (Service service : this.attachedServices.getChildren(factory.getSelfLink())) {
             // explicitly check if its a factory since a factory service will inherit service options from its
             // child services, and will appears as indexed
             if (service.hasOption(ServiceOption.FACTORY)) {
@@ -3880,25 +4202,10 @@ public class ServiceHost {
             }
 
             if (!isServiceIndexed(service)) {
-                // we do not clear cache or stop in memory services
+                // we do not stop in memory services
                 continue;
             }
 
-            // TODO Optimize with a sorted set based on last update time.
-            // Skip services and state documents that have been active within the last maintenance interval
-            if (s != null
-                    && this.state.lastMaintenanceTimeUtcMicros
-                            - s.documentUpdateTimeMicros < service
-                                    .getMaintenanceIntervalMicros() * 2) {
-                continue;
-            }
-
-            // remove cached state
-            if (s != null) {
-                clearCachedServiceState(service.getSelfLink());
-            }
-
-            // we still want to clear a cache for periodic services, so check here, after the cache clear
             if (service.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
                 // Services with periodic maintenance stay resident, for now. We might stop them in the future
                 // if they have long periods
@@ -3909,6 +4216,16 @@ public class ServiceHost {
                 continue;
             }
 
+            // Skip services and state documents that have been active within the last maintenance interval.
+            // Cached state is bounded and evicted as it is updated, so it is only consulted here
+            ServiceDocument s = this.cachedServiceStates.peek(service.getSelfLink());
+            if (s != null
+                    && this.state.lastMaintenanceTimeUtcMicros
+                            - s.documentUpdateTimeMicros < service
+                                    .getMaintenanceIntervalMicros() * 2) {
+                continue;
+            }
+
             if (isServiceStarting(service, service.getSelfLink())) {
                 continue;
             }
@@ -3918,31 +4235,15 @@ public class ServiceHost {
                 pauseServiceCount++;
             }
 
-            String factoryPath = UriUtils.getParentPath(service.getSelfLink());
-            if (factoryPath != null) {
-                this.serviceFactoriesUnderMemoryPressure.add(factoryPath);
+            if (!service.hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+                this.serviceFactoriesUnderMemoryPressure.add(factory.getSelfLink());
             }
 
-            if (deadlineMicros < Utils.getNowMicrosUtc()) {
+            if (deadlineMicros < Utils.getSystemNowMicrosUtc()) {
                 break;
             }
         }
-
-        if (pauseServiceCount == 0) {
-            return;
-        }
-
-        // Make sure our service count matches the list contents, they could drift. Using size()
-        // on a concurrent data structure is costly so we do this only when pausing services
-        synchronized (this.state) {
-            this.state.serviceCount = this.attachedServices.size();
-        }
-
-        // schedule a task to actually stop the services. If a request arrives in the mean time,
-        // it will remove the service from the pendingStopService map (since its active).
-        schedule(() -> {
-            pauseServices();
-        } , getMaintenanceIntervalMicros(), TimeUnit.MICROSECONDS);
+        return pauseServiceCount;
     }
 
     boolean checkAndResumePausedService(Operation inboundOp) {
@@ -3974,7 +4275,7 @@ public class ServiceHost {
                 return false;
             }
 
-            if (inboundOp.getExpirationMicrosUtc() < Utils.getNowMicrosUtc()) {
+            if (inboundOp.getExpirationMicrosUtc() < Utils.getSystemNowMicrosUtc()) {
                 log(Level.WARNING, "Request to %s has expired", path);
                 return false;
             }
@@ -4033,6 +4334,64 @@ public class ServiceHost {
         return true;
     }
 
+    /**
+     * Starts a factory child with the {@link ServiceOption#ON_DEMAND_LOAD} option, if its state is
+     * in the index, then dispatches the request to it. Returns false if the index was already
+     * checked for this request and the service is not present
+     */
+    private boolean checkAndStartOnDemandService(Operation inboundOp, Service factoryService,
+            String path) {
+        if (inboundOp.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK)) {
+            inboundOp.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK);
+            return false;
+        }
+
+        if (isStopping() || !(factoryService instanceof FactoryService)) {
+            return false;
+        }
+
+        inboundOp.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK);
+        URI u = UriUtils.buildDocumentQueryUri(this, path, false, false,
+                ServiceOption.PERSISTENCE);
+        Operation get = Operation.createGet(u).setCompletion((o, e) -> {
+            if (e != null) {
+                log(Level.WARNING, "Failure loading state of %s: %s", path, e.toString());
+                handleRequest(null, inboundOp);
+                return;
+            }
+
+            if (!o.hasBody()) {
+                // not indexed, or deleted
+                handleRequest(null, inboundOp);
+                return;
+            }
+
+            Service child;
+            try {
+                child = ((FactoryService) factoryService).createChildService();
+            } catch (Throwable ex) {
+                inboundOp.fail(ex);
+                return;
+            }
+
+            // the start request has no body, so the state is loaded from the index
+            Operation post = Operation.createPost(UriUtils.buildUri(this, path))
+                    .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_VERSION_CHECK)
+                    .setReferer(factoryService.getUri())
+                    .setCompletion((so, se) -> {
+                        if (se != null && !(se instanceof ServiceAlreadyStartedException)) {
+                            inboundOp.fail(se);
+                            return;
+                        }
+                        inboundOp.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK);
+                        handleRequest(null, inboundOp);
+                    });
+            startService(post, child);
+        });
+        sendRequest(get.setReferer(getUri()));
+        return true;
+    }
+
     private void resumeService(String path, Service resumedService) {
         if (isStopping()) {
             return;
@@ -4040,8 +4399,7 @@ public class ServiceHost {
         resumedService.setHost(this);
         resumedService.setProcessingStage(ProcessingStage.AVAILABLE);
         synchronized (this.state) {
-            if (!this.attachedServices.containsKey(path)) {
-                this.attachedServices.put(path, resumedService);
+            if (this.attachedServices.putIfAbsent(path, resumedService) == null) {
                 this.state.serviceCount++;
             }
         }
@@ -4058,9 +4416,25 @@ public class ServiceHost {
                 continue;
             }
 
+            String path = s.getSelfLink();
+            if (s.hasOption(ServiceOption.ON_DEMAND_LOAD)) {
+                // state is in the document index, the service is started again on demand
+                if (this.pendingPauseServices.remove(path) == null) {
+                    continue;
+                }
+                synchronized (this.state) {
+                    if (null != this.attachedServices.remove(path)) {
+                        this.state.serviceCount--;
+                    }
+                }
+                s.setProcessingStage(ProcessingStage.PAUSED);
+                clearCachedServiceState(path);
+                servicePauseCount++;
+                continue;
+            }
+
             s.setProcessingStage(ProcessingStage.PAUSED);
             servicePauseCount++;
-            String path = s.getSelfLink();
 
             // ask object index to store service object. It should be tiny since services
             // should hold no instanced fields. We avoid service stop/start by doing this
@@ -4088,6 +4462,7 @@ public class ServiceHost {
                                 this.state.serviceCount--;
                             }
                         }
+                        clearCachedServiceState(path);
                     }));
         }
         log(Level.INFO, "Paused %d services, attached: %d", servicePauseCount,
@@ -4102,7 +4477,7 @@ public class ServiceHost {
 
         // Check if this is expired and, if so, remove it from cache.
         if (state.documentExpirationTimeMicros > 0 &&
-                state.documentExpirationTimeMicros < Utils.getNowMicrosUtc()) {
+                state.documentExpirationTimeMicros < Utils.getSystemNowMicrosUtc()) {
             clearCachedServiceState(servicePath);
             return null;
         }
@@ -4114,6 +4489,149 @@ public class ServiceHost {
         this.cachedServiceStates.remove(servicePath);
     }
 
+    /**
+     * Reports the state cache hit, miss and eviction counts for the children of each
+     * instrumented factory, as factory statistics
+     */
+    private void updateServiceStateCacheStats() {
+        for (Entry<String, ServiceStateCache.CacheStats> e : this.cachedServiceStates
+                .getStatsPerFactory().entrySet()) {
+            Service factory = this.attachedServices.get(e.getKey());
+            if (factory == null || !factory.hasOption(ServiceOption.INSTRUMENTATION)) {
+                continue;
+            }
+            ServiceStateCache.CacheStats stats = e.getValue();
+            factory.setStat(FactoryService.STAT_NAME_CHILD_CACHE_HIT_COUNT,
+                    stats.hitCount.sum());
+            factory.setStat(FactoryService.STAT_NAME_CHILD_CACHE_MISS_COUNT,
+                    stats.missCount.sum());
+            factory.setStat(FactoryService.STAT_NAME_CHILD_CACHE_EVICTION_COUNT,
+                    stats.evictionCount.sum());
+        }
+    }
+
+    ServiceStateCache getServiceStateCache() {
+        return this.cachedServiceStates;
+    }
+
+    /**
+     * Reports dispatch counts and queue wait times of each executor priority
+     */
+    private void updatePriorityExecutorStats() {
+        Service m = this.attachedServices.get(ServiceHostManagementService.SELF_LINK);
+        if (m == null) {
+            return;
+        }
+        for (Priority p : Priority.values()) {
+            PriorityExecutor.WaitStats stats = this.priorityExecutor.resetWaitStats(p);
+            String name = p.name();
+            m.adjustStat(ServiceHostManagementService.STAT_NAME_PREFIX_EXECUTOR_DISPATCH_COUNT
+                    + name, stats.count);
+            m.setStat(ServiceHostManagementService.STAT_NAME_PREFIX_EXECUTOR_WAIT_AVG + name,
+                    stats.count == 0 ? 0 : stats.totalWaitMicros / stats.count);
+            m.setStat(ServiceHostManagementService.STAT_NAME_PREFIX_EXECUTOR_WAIT_MAX + name,
+                    stats.maxWaitMicros);
+        }
+    }
+
+    /**
+     * Reports shed counts and queueing delay percentiles of the host and of each service queue
+     */
+    private void updateAdmissionControlStats() {
+        Service m = this.attachedServices.get(ServiceHostManagementService.SELF_LINK);
+        if (m != null) {
+            AdmissionController ac = this.hostAdmissionController;
+            m.adjustStat(ServiceHostManagementService.STAT_NAME_EXECUTOR_SHED_COUNT,
+                    ac.resetShedCount());
+            m.setStat(ServiceHostManagementService.STAT_NAME_EXECUTOR_QUEUE_DELAY_P50,
+                    ac.getDelayPercentileMicros(0.5));
+            m.setStat(ServiceHostManagementService.STAT_NAME_EXECUTOR_QUEUE_DELAY_P99,
+                    ac.getDelayPercentileMicros(0.99));
+            ac.resetDelayHistogram();
+        }
+
+        for (Entry<String, AdmissionController> e : this.serviceAdmissionControllers.entrySet()) {
+            AdmissionController ac = e.getValue();
+            Service s = this.attachedServices.get(e.getKey());
+            if (s == null) {
+                this.serviceAdmissionControllers.remove(e.getKey());
+                continue;
+            }
+            s.adjustStat(Service.STAT_NAME_OPERATION_SHED_COUNT, ac.resetShedCount());
+            s.setStat(Service.STAT_NAME_OPERATION_QUEUE_DELAY_P50,
+                    ac.getDelayPercentileMicros(0.5));
+            s.setStat(Service.STAT_NAME_OPERATION_QUEUE_DELAY_P99,
+                    ac.getDelayPercentileMicros(0.99));
+            // a controller for a service that stopped queueing is created again when needed
+            if (ac.resetDelayHistogram() == 0
+                    && !ac.isOverloaded(Utils.getSystemNowMicrosUtc())) {
+                this.serviceAdmissionControllers.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Reports throttled request counts per rate limit key and path prefix
+     */
+    private void updateRequestRateLimitStats() {
+        if (this.state.requestRateLimits.isEmpty()
+                && this.state.requestRateLimitsByPath.isEmpty()) {
+            return;
+        }
+        Service m = this.attachedServices.get(ServiceHostManagementService.SELF_LINK);
+        if (m == null) {
+            return;
+        }
+        for (Entry<String, RequestRateInfo> e : this.state.requestRateLimits.entrySet()) {
+            m.setStat(ServiceHostManagementService.STAT_NAME_PREFIX_REQUEST_THROTTLED_COUNT
+                    + e.getKey(), e.getValue().throttledCount.get());
+        }
+        for (Entry<String, RequestRateInfo> e : this.state.requestRateLimitsByPath.entrySet()) {
+            m.setStat(ServiceHostManagementService.STAT_NAME_PREFIX_PATH_REQUEST_THROTTLED_COUNT
+                    + e.getKey(), e.getValue().throttledCount.get());
+        }
+    }
+
+    /**
+     * Reports timing wheel lag and occupancy as management service statistics
+     */
+    private void updateTimingWheelStats() {
+        Service m = this.attachedServices.get(ServiceHostManagementService.SELF_LINK);
+        if (m == null) {
+            return;
+        }
+        m.setStat(ServiceHostManagementService.STAT_NAME_TIMER_LAG_MICROS,
+                this.timingWheel.getMaxLagMicros());
+        m.setStat(ServiceHostManagementService.STAT_NAME_TIMER_PENDING_COUNT,
+                this.timingWheel.size());
+        m.setStat(ServiceHostManagementService.STAT_NAME_TIMER_MAX_BUCKET_OCCUPANCY,
+                this.timingWheel.getMaxBucketOccupancy());
+    }
+
+    TimingWheel getTimingWheel() {
+        return this.timingWheel;
+    }
+
+    /**
+     * Sets the admission control targets for the time operations wait in a service queue, and
+     * for an executor thread, and the interval the delay must stay above a target before
+     * requests from remote clients are shed. A target of zero disables admission control for
+     * that queue, which is the default
+     */
+    public ServiceHost setQueueDelayTargets(long serviceTargetMicros, long hostTargetMicros,
+            long intervalMicros) {
+        if (serviceTargetMicros < 0 || hostTargetMicros < 0) {
+            throw new IllegalArgumentException("targets must not be negative");
+        }
+        if (intervalMicros <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.state.serviceQueueDelayTargetMicros = serviceTargetMicros;
+        this.state.hostQueueDelayTargetMicros = hostTargetMicros;
+        this.state.queueDelayIntervalMicros = intervalMicros;
+        return this;
+    }
+
     public ServiceHost setOperationTimeOutMicros(long timeoutMicros) {
         this.state.operationTimeoutMicros = timeoutMicros;
         return this;
@@ -4374,35 +4892,30 @@ public class ServiceHost {
      * self link
      */
     public void queryServiceUris(String servicePath, Operation get) {
-        // TODO Use Radix trees for efficient prefix searches. This is not
-        // urgent since we consider queries directly on the host instead of the
-        // document index, to be rare
-
         ServiceDocumentQueryResult r = new ServiceDocumentQueryResult();
 
         boolean doPrefixMatch = servicePath.endsWith(UriUtils.URI_WILDCARD_CHAR);
         servicePath = servicePath.replace(UriUtils.URI_WILDCARD_CHAR, "");
 
-        for (Service s : this.attachedServices.values()) {
+        List<Service> matches;
+        if (doPrefixMatch) {
+            matches = this.attachedServices.findByPrefix(servicePath);
+        } else {
+            Service s = this.attachedServices.get(servicePath);
+            matches = s == null ? Collections.emptyList() : Collections.singletonList(s);
+        }
+
+        for (Service s : matches) {
             if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
                 continue;
             }
             if (s.hasOption(ServiceOption.UTILITY)) {
                 continue;
             }
-            String path = s.getSelfLink();
-            if (doPrefixMatch) {
-                if (!path.startsWith(servicePath)) {
-                    continue;
-                }
-            } else {
-                if (!path.equals(servicePath)) {
-                    continue;
-                }
-            }
-
-            r.documentLinks.add(path);
+            r.documentLinks.add(s.getSelfLink());
         }
+        // the index is not ordered, keep links sorted by path
+        Collections.sort(r.documentLinks);
         r.documentOwner = getId();
         get.setBodyNoCloning(r).complete();
     }
@@ -4573,6 +5086,21 @@ public class ServiceHost {
         return this.authorizationContextCache.get(token);
     }
 
+    /**
+     * Infrastructure use only. Resolves the authorization context of an inbound request and
+     * returns true if the request is authenticated as the system user, the identity peer nodes
+     * use for node to node requests
+     */
+    public boolean isSystemUserRequest(Operation op) {
+        if (!isAuthorizationEnabled()) {
+            return false;
+        }
+        if (op.getAuthorizationContext() == null) {
+            populateAuthorizationContext(op);
+        }
+        return op.getAuthorizationContext().isSystemUser();
+    }
+
     private void populateAuthorizationContext(Operation op) {
         AuthorizationContext ctx = getAuthorizationContext(op);
         if (ctx == null) {
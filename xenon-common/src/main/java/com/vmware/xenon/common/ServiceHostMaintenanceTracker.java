@@ -13,11 +13,6 @@
 
 package com.vmware.xenon.common;
 
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.Service.ProcessingStage;
@@ -25,7 +20,10 @@ import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceMaintenanceRequest.MaintenanceReason;
 
 /**
- * Sequences service periodic maintenance
+ * Sequences service periodic maintenance. Each service with periodic maintenance has a single
+ * pending timer on the host timing wheel, re-armed when its maintenance completes. The next
+ * deadline is one interval after the previous deadline, not after the completion, so a service
+ * with the host maintenance interval is due on every host maintenance pass
  */
 class ServiceHostMaintenanceTracker {
     public static ServiceHostMaintenanceTracker create(ServiceHost host) {
@@ -35,73 +33,58 @@ class ServiceHostMaintenanceTracker {
     }
 
     private ServiceHost host;
-    private ConcurrentSkipListMap<Long, Set<String>> nextExpiration = new ConcurrentSkipListMap<>();
 
+    /**
+     * Schedules the next periodic maintenance for the service on the host timing wheel
+     */
     public void schedule(Service s) {
+        schedule(s, Utils.getSystemNowMicrosUtc());
+    }
+
+    private void schedule(Service s, long lastDeadlineMicros) {
         long interval = s.getMaintenanceIntervalMicros();
         if (interval == 0) {
             interval = this.host.getMaintenanceIntervalMicros();
         }
 
-        long nextExpirationMicros = Utils.getNowMicrosUtc() + interval;
-        synchronized (this) {
-            Set<String> services = this.nextExpiration.get(nextExpirationMicros);
-            if (services == null) {
-                services = new HashSet<>();
-                this.nextExpiration.put(nextExpirationMicros, services);
-            }
-            services.add(s.getSelfLink());
-        }
+        // a service that fell behind is due on the next pass, without catching up on the
+        // intervals it missed
+        long deadlineMicros = Math.max(lastDeadlineMicros + interval,
+                Utils.getSystemNowMicrosUtc());
+        String servicePath = s.getSelfLink();
+        this.host.getTimingWheel().schedule(deadlineMicros,
+                () -> performMaintenance(servicePath, deadlineMicros));
     }
 
-    public void performMaintenance(Operation op, long deadline) {
-        while (Utils.getNowMicrosUtc() < deadline) {
-            if (this.host.isStopping()) {
-                op.fail(new CancellationException("Host is stopping"));
-                return;
-            }
-
-            Set<String> services = null;
-
-            // the nextExpiration map is a concurrent data structure, but since each value is a Set, we want
-            // to make sure modifications to that Set are not lost if a concurrent add() is happening
-            synchronized (this) {
-                // get any services set to expire within the current maintenance interval
-                Entry<Long, Set<String>> e = this.nextExpiration.firstEntry();
-                if (e == null || e.getKey() > deadline) {
-                    // no service requires maintenance, yet
-                    return;
-                }
-                services = e.getValue();
-                this.nextExpiration.remove(e.getKey());
-            }
-
-            for (String servicePath : services) {
-                Service s = this.host.findService(servicePath);
+    private void performMaintenance(String servicePath, long deadlineMicros) {
+        if (this.host.isStopping()) {
+            return;
+        }
 
-                if (s == null) {
-                    continue;
-                }
-                if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
-                    continue;
-                }
+        Service s = this.host.findService(servicePath);
 
-                if (!s.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
-                    // maintenance was disabled on this service
-                    continue;
-                }
+        if (s == null) {
+            return;
+        }
+        if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
+            return;
+        }
 
-                if (s.hasOption(ServiceOption.OWNER_SELECTION)
-                        && !s.hasOption(ServiceOption.DOCUMENT_OWNER)) {
-                    continue;
-                }
+        if (!s.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
+            // maintenance was disabled on this service
+            return;
+        }
 
-                performServiceMaintenance(servicePath, s);
-            }
+        if (s.hasOption(ServiceOption.OWNER_SELECTION)
+                && !s.hasOption(ServiceOption.DOCUMENT_OWNER)) {
+            return;
         }
+
+        performServiceMaintenance(servicePath, s, deadlineMicros);
     }
 
-    private void performServiceMaintenance(String servicePath, Service s) {
+    private void performServiceMaintenance(String servicePath, Service s,
+            long deadlineMicros) {
         long[] start = new long[1];
         ServiceMaintenanceRequest body = ServiceMaintenanceRequest.create();
         body.reasons.add(MaintenanceReason.PERIODIC_SCHEDULE);
@@ -112,7 +95,7 @@ class ServiceHostMaintenanceTracker {
                 .setCompletion(
                         (o, ex) -> {
 
-                            long actual = Utils.getNowMicrosUtc() - start[0];
+                            long actual = Utils.getSystemNowMicrosUtc() - start[0];
                             long limit = Math.max(this.host.getMaintenanceIntervalMicros(),
                                     s.getMaintenanceIntervalMicros());
 
@@ -125,7 +108,7 @@ class ServiceHostMaintenanceTracker {
                             }
 
                             // schedule again, for next maintenance interval
-                            schedule(s);
+                            schedule(s, deadlineMicros);
                             if (ex != null) {
                                 this.host.log(Level.WARNING, "Service %s failed maintenance: %s",
                                         servicePath, Utils.toString(ex));
@@ -138,15 +121,11 @@ class ServiceHostMaintenanceTracker {
                 if (s.hasOption(Service.ServiceOption.INSTRUMENTATION)) {
                     s.adjustStat(Service.STAT_NAME_MAINTENANCE_COUNT, 1);
                 }
-                start[0] = Utils.getNowMicrosUtc();
+                start[0] = Utils.getSystemNowMicrosUtc();
                 s.handleMaintenance(servicePost);
             } catch (Throwable ex) {
                 servicePost.fail(ex);
             }
         });
     }
-
-    public synchronized void close() {
-        this.nextExpiration.clear();
-    }
 }
\ No newline at end of file
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.xenon.common.Service.ServiceOption;
+
+/**
+ * Registry of attached services. Exact lookups, performed on every request, use a concurrent
+ * hash map. A concurrent tree keyed by path segment indexes the same services by path, for
+ * prefix queries and enumeration of factory children without scanning every attached service.
+ *
+ * Tree nodes are created and pruned while holding the monitor of their parent. A node pruned
+ * concurrently with an insertion below it is marked removed, and the insertion restarts from
+ * the root
+ */
+class ServiceRegistry {
+
+    private static final class Node {
+        final String segment;
+        volatile ConcurrentHashMap<String, Node> children;
+        volatile Service service;
+
+        /**
+         * Set, while holding the parent monitor, when the node is pruned from the tree
+         */
+        boolean isRemoved;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+
+        boolean isEmpty() {
+            ConcurrentHashMap<String, Node> c = this.children;
+            return this.service == null && (c == null || c.isEmpty());
+        }
+    }
+
+    private final ConcurrentHashMap<String, Service> services = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Service> factories = new ConcurrentHashMap<>();
+    private final Node root = new Node(null);
+
+    public Service get(String path) {
+        return this.services.get(path);
+    }
+
+    public boolean containsKey(String path) {
+        return this.services.containsKey(path);
+    }
+
+    public int size() {
+        return this.services.size();
+    }
+
+    public Collection<Service> values() {
+        return this.services.values();
+    }
+
+    public Set<String> keySet() {
+        return this.services.keySet();
+    }
+
+    /**
+     * Attached factory services
+     */
+    public Collection<Service> getFactories() {
+        return this.factories.values();
+    }
+
+    /**
+     * Attaches the service, unless a service is already attached at the path. Returns the
+     * existing service, or null if the service was attached
+     */
+    public Service putIfAbsent(String path, Service service) {
+        Service existing = this.services.putIfAbsent(path, service);
+        if (existing != null) {
+            return existing;
+        }
+        if (service.hasOption(ServiceOption.FACTORY)) {
+            this.factories.put(path, service);
+        }
+        addToIndex(path, service);
+        if (this.services.get(path) != service) {
+            // removed concurrently, before the index was updated
+            removeFromIndex(path, service);
+            this.factories.remove(path, service);
+        }
+        return null;
+    }
+
+    public Service remove(String path) {
+        Service existing = this.services.remove(path);
+        if (existing == null) {
+            return null;
+        }
+        this.factories.remove(path, existing);
+        removeFromIndex(path, existing);
+        return existing;
+    }
+
+    public void clear() {
+        for (String path : this.services.keySet()) {
+            remove(path);
+        }
+    }
+
+    /**
+     * Returns the services directly below the given path, for example the children of a
+     * factory. The returned collection reflects concurrent updates
+     */
+    public Iterable<Service> getChildren(String parentPath) {
+        Node parent = findNode(parentPath);
+        if (parent == null || parent.children == null) {
+            return Collections.emptyList();
+        }
+        Collection<Node> nodes = parent.children.values();
+        return () -> new ServiceIterator(nodes.iterator());
+    }
+
+    /**
+     * Returns the services with a path starting with the given prefix. The prefix does not need
+     * to end on a path segment boundary
+     */
+    public List<Service> findByPrefix(String prefix) {
+        List<Service> result = new ArrayList<>();
+        String[] segments = split(prefix);
+        Node n = this.root;
+        for (int i = 0; i < segments.length - 1 && n != null; i++) {
+            ConcurrentHashMap<String, Node> c = n.children;
+            n = c == null ? null : c.get(segments[i]);
+        }
+        if (n == null || n.children == null) {
+            return result;
+        }
+
+        String partialSegment = segments[segments.length - 1];
+        for (Node child : n.children.values()) {
+            if (child.segment.startsWith(partialSegment)) {
+                collect(child, result);
+            }
+        }
+        return result;
+    }
+
+    private void collect(Node n, List<Service> result) {
+        Service s = n.service;
+        if (s != null) {
+            result.add(s);
+        }
+        ConcurrentHashMap<String, Node> c = n.children;
+        if (c == null) {
+            return;
+        }
+        for (Node child : c.values()) {
+            collect(child, result);
+        }
+    }
+
+    private Node findNode(String path) {
+        Node n = this.root;
+        for (String segment : split(path)) {
+            ConcurrentHashMap<String, Node> c = n.children;
+            if (c == null) {
+                return null;
+            }
+            n = c.get(segment);
+            if (n == null) {
+                return null;
+            }
+        }
+        return n;
+    }
+
+    private void addToIndex(String path, Service service) {
+        String[] segments = split(path);
+        while (!tryAddToIndex(segments, service)) {
+            // a node on the path was pruned concurrently, retry
+        }
+    }
+
+    private boolean tryAddToIndex(String[] segments, Service service) {
+        Node n = this.root;
+        for (int i = 0; i < segments.length; i++) {
+            synchronized (n) {
+                if (n.isRemoved) {
+                    return false;
+                }
+                ConcurrentHashMap<String, Node> c = n.children;
+                if (c == null) {
+                    c = new ConcurrentHashMap<>();
+                    n.children = c;
+                }
+                Node child = c.get(segments[i]);
+                if (child == null) {
+                    child = new Node(segments[i]);
+                    c.put(segments[i], child);
+                }
+                if (i == segments.length - 1) {
+                    child.service = service;
+                }
+                n = child;
+            }
+        }
+        return true;
+    }
+
+    private void removeFromIndex(String path, Service service) {
+        String[] segments = split(path);
+        Node[] nodes = new Node[segments.length + 1];
+        nodes[0] = this.root;
+        for (int i = 0; i < segments.length; i++) {
+            ConcurrentHashMap<String, Node> c = nodes[i].children;
+            nodes[i + 1] = c == null ? null : c.get(segments[i]);
+            if (nodes[i + 1] == null) {
+                return;
+            }
+        }
+
+        Node leaf = nodes[segments.length];
+        synchronized (nodes[segments.length - 1]) {
+            if (leaf.service != service) {
+                return;
+            }
+            leaf.service = null;
+        }
+
+        // prune empty nodes, bottom up
+        for (int i = segments.length; i > 0; i--) {
+            Node parent = nodes[i - 1];
+            Node n = nodes[i];
+            synchronized (parent) {
+                synchronized (n) {
+                    if (n.isRemoved || !n.isEmpty()) {
+                        return;
+                    }
+                    n.isRemoved = true;
+                    parent.children.remove(n.segment, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a path into its segments, ignoring the leading separator
+     */
+    private static String[] split(String path) {
+        int start = path.startsWith(UriUtils.URI_PATH_CHAR) ? 1 : 0;
+        return path.substring(start).split(UriUtils.URI_PATH_CHAR, -1);
+    }
+
+    private static class ServiceIterator implements Iterator<Service> {
+        private final Iterator<Node> nodes;
+        private Service next;
+
+        ServiceIterator(Iterator<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && this.nodes.hasNext()) {
+                this.next = this.nodes.next().service;
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Service next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Service s = this.next;
+            this.next = null;
+            return s;
+        }
+    }
+}
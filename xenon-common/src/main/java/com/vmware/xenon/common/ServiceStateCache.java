@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service state cache, bounded by the estimated size of the cached documents. Eviction follows a
+ * segmented LRU policy: new entries are placed in a probation segment and promoted to a
+ * protected segment when read again, so states accessed once do not displace frequently accessed
+ * ones. Entries are evicted when an entry is added or updated, never by a periodic scan.
+ *
+ * Lookups do not block: recency is updated only if the policy lock is available, otherwise the
+ * access is not recorded. Updates replace the state in the map directly and buffer the policy
+ * change, which is applied by whichever thread next acquires the policy lock, so writers only
+ * wait for the lock when the buffer is full. State for services that are not indexed can not be
+ * reloaded, so it is pinned: never evicted and not counted against the limit
+ */
+class ServiceStateCache {
+
+    /**
+     * Hit, miss and eviction counts for the children of a factory, along with the running
+     * estimate of their serialized state size
+     */
+    public static class CacheStats {
+        public final LongAdder hitCount = new LongAdder();
+        public final LongAdder missCount = new LongAdder();
+        public final LongAdder evictionCount = new LongAdder();
+        private volatile int averageStateSizeBytes;
+        private final AtomicInteger updateCount = new AtomicInteger();
+
+        public int getAverageStateSizeBytes() {
+            return this.averageStateSizeBytes;
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final CacheStats stats;
+        volatile ServiceDocument state;
+        int weight;
+        boolean isPinned;
+        boolean isProtected;
+        Entry previous;
+        Entry next;
+
+        Entry(String key, CacheStats stats) {
+            this.key = key;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * The serialized size of one in this many updates, per factory, is sampled to estimate the
+     * size of the factory children state
+     */
+    private static final int SIZE_SAMPLING_INTERVAL = 16;
+
+    /**
+     * Percentage of the weight limit available to the protected segment
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Number of buffered policy updates after which writers wait for the policy lock to apply
+     * them, instead of leaving them to the current lock holder
+     */
+    private static final int MAX_PENDING_WRITES = 1024;
+
+    public static ServiceStateCache create(long maxWeightBytes) {
+        ServiceStateCache c = new ServiceStateCache();
+        c.maxWeight = maxWeightBytes;
+        return c;
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CacheStats> statsPerFactory = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWriteCount = new AtomicInteger();
+
+    /**
+     * Sentinels for the circular lists of each segment. The entry after the sentinel is the most
+     * recently used, the entry before it the least recently used
+     */
+    private final Entry probation = createSentinel();
+    private final Entry protectedSegment = createSentinel();
+
+    private long probationWeight;
+    private long protectedWeight;
+    private volatile long maxWeight;
+
+    private ServiceStateCache() {
+    }
+
+    private static Entry createSentinel() {
+        Entry sentinel = new Entry(null, null);
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        return sentinel;
+    }
+
+    public long getMaxWeight() {
+        return this.maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeightBytes) {
+        this.maxWeight = maxWeightBytes;
+        this.lock.lock();
+        try {
+            applyPendingWrites();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Total estimated size of the evictable entries
+     */
+    public long getWeight() {
+        this.lock.lock();
+        try {
+            applyPendingWrites();
+            return this.probationWeight + this.protectedWeight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public Map<String, CacheStats> getStatsPerFactory() {
+        return this.statsPerFactory;
+    }
+
+    /**
+     * Returns the cached state, recording the hit or miss and the access
+     */
+    public ServiceDocument get(String servicePath) {
+        Entry e = this.entries.get(servicePath);
+        if (e == null) {
+            getStats(servicePath).missCount.increment();
+            return null;
+        }
+        e.stats.hitCount.increment();
+        if (this.lock.tryLock()) {
+            try {
+                applyPendingWrites();
+                onAccess(e);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        return e.state;
+    }
+
+    /**
+     * Returns the cached state without recording the access
+     */
+    public ServiceDocument peek(String servicePath) {
+        Entry e = this.entries.get(servicePath);
+        return e == null ? null : e.state;
+    }
+
+    /**
+     * Adds or replaces the cached state, unless the cached state has a higher version. The size
+     * of the state is estimated before the policy lock is taken, and entries are evicted when the
+     * update is applied to the policy
+     */
+    public void put(String servicePath, ServiceDocument state, boolean isPinned) {
+        CacheStats stats = getStats(servicePath);
+        int weight = isPinned ? 0 : estimateWeight(stats, state);
+        boolean[] isUpdated = new boolean[1];
+        Entry e = this.entries.compute(servicePath, (k, current) -> {
+            if (current != null && current.state.documentVersion > state.documentVersion) {
+                return current;
+            }
+            Entry updated = current != null ? current : new Entry(k, stats);
+            updated.state = state;
+            isUpdated[0] = true;
+            return updated;
+        });
+        if (!isUpdated[0]) {
+            return;
+        }
+        scheduleWrite(() -> onWrite(e, weight, isPinned));
+    }
+
+    public void remove(String servicePath) {
+        Entry e = this.entries.remove(servicePath);
+        if (e == null) {
+            return;
+        }
+        scheduleWrite(() -> unlink(e));
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    private CacheStats getStats(String servicePath) {
+        String factoryPath = UriUtils.getParentPath(servicePath);
+        if (factoryPath == null) {
+            factoryPath = UriUtils.URI_PATH_CHAR;
+        }
+        CacheStats stats = this.statsPerFactory.get(factoryPath);
+        if (stats != null) {
+            return stats;
+        }
+        return this.statsPerFactory.computeIfAbsent(factoryPath, (k) -> new CacheStats());
+    }
+
+    private int estimateWeight(CacheStats stats, ServiceDocument state) {
+        if (stats.updateCount.getAndIncrement() % SIZE_SAMPLING_INTERVAL == 0) {
+            int size = Utils.getSerializedSize(state);
+            int average = stats.averageStateSizeBytes;
+            stats.averageStateSizeBytes = average == 0 ? size : (average * 3 + size) / 4;
+        }
+        return stats.averageStateSizeBytes;
+    }
+
+    /**
+     * Buffers a policy update and applies the buffered updates if the policy lock is available.
+     * A thread that fails to acquire the lock leaves its update to the holder, which checks the
+     * buffer again after releasing the lock
+     */
+    private void scheduleWrite(Runnable write) {
+        this.writeBuffer.add(write);
+        this.pendingWriteCount.incrementAndGet();
+        while (!this.writeBuffer.isEmpty()) {
+            if (this.pendingWriteCount.get() < MAX_PENDING_WRITES) {
+                if (!this.lock.tryLock()) {
+                    return;
+                }
+            } else {
+                this.lock.lock();
+            }
+            try {
+                applyPendingWrites();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private void applyPendingWrites() {
+        // called with the lock held
+        Runnable write;
+        while ((write = this.writeBuffer.poll()) != null) {
+            this.pendingWriteCount.decrementAndGet();
+            write.run();
+        }
+        evict();
+    }
+
+    private void onWrite(Entry e, int weight, boolean isPinned) {
+        // called with the lock held
+        unlink(e);
+        if (this.entries.get(e.key) != e) {
+            // removed or evicted after the update
+            return;
+        }
+        e.isPinned = isPinned;
+        if (isPinned) {
+            return;
+        }
+        e.weight = weight;
+        e.isProtected = false;
+        link(this.probation, e);
+        this.probationWeight += e.weight;
+    }
+
+    private void onAccess(Entry e) {
+        // called with the lock held
+        if (e.isPinned || e.next == null) {
+            return;
+        }
+        unlink(e);
+        e.isProtected = true;
+        link(this.protectedSegment, e);
+        this.protectedWeight += e.weight;
+
+        long maxProtectedWeight = this.maxWeight / 100 * PROTECTED_PERCENT;
+        while (this.protectedWeight > maxProtectedWeight
+                && this.protectedSegment.previous != this.protectedSegment) {
+            // demote the least recently used protected entry
+            Entry demoted = this.protectedSegment.previous;
+            unlink(demoted);
+            demoted.isProtected = false;
+            link(this.probation, demoted);
+            this.probationWeight += demoted.weight;
+        }
+    }
+
+    private void evict() {
+        // called with the lock held
+        while (this.probationWeight + this.protectedWeight > this.maxWeight) {
+            Entry victim = this.probation.previous;
+            if (victim == this.probation) {
+                victim = this.protectedSegment.previous;
+                if (victim == this.protectedSegment) {
+                    return;
+                }
+            }
+            unlink(victim);
+            this.entries.remove(victim.key, victim);
+            victim.stats.evictionCount.increment();
+        }
+    }
+
+    private void link(Entry head, Entry e) {
+        e.previous = head;
+        e.next = head.next;
+        head.next.previous = e;
+        head.next = e;
+    }
+
+    private void unlink(Entry e) {
+        if (e.next == null) {
+            // pinned, or already evicted
+            return;
+        }
+        e.previous.next = e.next;
+        e.next.previous = e.previous;
+        e.previous = null;
+        e.next = null;
+        if (e.isProtected) {
+            this.protectedWeight -= e.weight;
+        } else {
+            this.probationWeight -= e.weight;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,8 +53,13 @@ public class StatefulService implements Service {
         public Class<? extends ServiceDocument> stateType;
         public long maintenanceInterval;
         public OperationQueue operationQueue;
-        public boolean isUpdateActive;
-        public int getActiveCount;
+
+        /**
+         * Synchronization state for serialized request processing: {@code SYNCH_STATE_IDLE}, {@code
+         * SYNCH_STATE_UPDATE_ACTIVE} while an update owns the service, or the count of active
+         * GETs. Only modified through {@code synchStateUpdater}
+         */
+        public volatile int synchState;
 
         public transient ServiceHost host;
         public transient OperationProcessingChain opProcessingChain;
@@ -64,6 +70,12 @@ public class StatefulService implements Service {
         public Set<String> txCoordinatorLinks;
     }
 
+    private static final int SYNCH_STATE_IDLE = 0;
+    private static final int SYNCH_STATE_UPDATE_ACTIVE = -1;
+
+    private static final AtomicIntegerFieldUpdater<RuntimeContext> synchStateUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(RuntimeContext.class, "synchState");
+
     private static boolean isCommitRequest(Operation op) {
         String phase = op.getRequestHeader(Operation.REPLICATION_PHASE_HEADER);
         return Operation.REPLICATION_PHASE_COMMIT.equals(phase);
@@ -138,7 +150,7 @@ public class StatefulService implements Service {
         }
 
         if (hasOption(Service.ServiceOption.INSTRUMENTATION)) {
-            op.setEnqueueTime(Utils.getNowMicrosUtc());
+            op.setEnqueueTime(Utils.getSystemNowMicrosUtc());
         }
 
         URI referer = op.getReferer();
@@ -172,11 +184,9 @@ public class StatefulService implements Service {
 
         // even if service is stopped, check the pending queue for operations
         setProcessingStage(Service.ProcessingStage.STOPPED);
-        Collection<Operation> opsToCancel = null;
+        Collection<Operation> opsToCancel = this.context.operationQueue.drain();
         Set<String> txCoordinators = null;
         synchronized (this.context) {
-            opsToCancel = this.context.operationQueue.toCollection();
-            this.context.operationQueue.clear();
             if (hasPendingTransactions()) {
                 txCoordinators = new HashSet<>(this.context.txCoordinatorLinks);
                 txCoordinators.clear();
@@ -185,6 +195,13 @@ public class StatefulService implements Service {
 
         abortTransactions(this, txCoordinators);
 
+        cancelQueuedOperations(opsToCancel);
+
+        // return true only if service was stopped before we tried to stop it
+        return isAlreadyStopped;
+    }
+
+    private void cancelQueuedOperations(Collection<Operation> opsToCancel) {
         for (Operation o : opsToCancel) {
             if (o.isFromReplication() && o.getAction() == Action.DELETE) {
                 o.complete();
@@ -192,47 +209,42 @@ public class StatefulService implements Service {
                 o.fail(new CancellationException(getSelfLink()));
             }
         }
-
-        // return true only if service was stopped before we tried to stop it
-        return isAlreadyStopped;
     }
 
     /**
-     * Returns true if a request was handled (caller should not attempt to dispatch it)
+     * Returns true if a request was handled (caller should not attempt to dispatch it).
+     * Updates acquire the service exclusively, GETs share it with each other. Operations that
+     * can not acquire the service are placed in the operation queue, which is drained by
+     * {@link #processPending(Operation)} as active operations complete. No lock is taken
      */
     private boolean queueSynchronizedRequest(final Operation op) {
+        boolean isUpdate = op.getAction() != Action.GET;
 
-        if (op.getAction() != Action.GET) {
-            // serialize updates
-            synchronized (this.context) {
-                if (this.context.processingStage == ProcessingStage.STOPPED) {
-                    // skip queuing
-                } else if ((this.context.isUpdateActive || this.context.getActiveCount != 0)) {
-                    if (!this.context.operationQueue.offer(op)) {
-                        getHost().failRequestLimitExceeded(op);
-                        return true;
-                    }
-                    return true;
-                }
-                this.context.isUpdateActive = true;
-            }
-        } else {
-            // Indexed services serve GET directly from document store so they
-            // can run in parallel with updates and each other
-            if (isIndexed()) {
-                return false;
+        // Indexed services serve GET directly from document store so they
+        // can run in parallel with updates and each other
+        if (!isUpdate && isIndexed()) {
+            return false;
+        }
+
+        RuntimeContext ctx = this.context;
+        if (ctx.processingStage != ProcessingStage.STOPPED
+                && !tryAcquireSynchState(ctx, isUpdate)) {
+            // the host measures queueing delay, for admission control, from the queue time
+            op.setQueueTime(Utils.getSystemNowMicrosUtc());
+            if (!ctx.operationQueue.offer(op)) {
+                getHost().failRequestLimitExceeded(op);
+                return true;
             }
 
-            // queue GETs, if updates are pending
-            synchronized (this.context) {
-                if (this.context.processingStage == ProcessingStage.STOPPED) {
-                    // skip queuing
-                } else if (this.context.isUpdateActive) {
-                    this.context.operationQueue.offer(op);
-                    return true;
-                }
-                this.context.getActiveCount++;
+            // the operation that owned the service might have completed between the failed
+            // acquire and the offer, and polled an empty queue. Re-check, so a queued operation
+            // is never left behind without an active operation to drain it
+            if (ctx.processingStage == ProcessingStage.STOPPED) {
+                cancelQueuedOperations(ctx.operationQueue.drain());
+            } else if (ctx.synchState == SYNCH_STATE_IDLE) {
+                ctx.host.handleRequest(this, null);
             }
+            return true;
         }
 
         // ask to stop service, even if it might be stopped, so we can drain any pending queues
@@ -243,6 +255,23 @@ public class StatefulService implements Service {
         return false;
     }
 
+    private static boolean tryAcquireSynchState(RuntimeContext ctx, boolean isUpdate) {
+        if (isUpdate) {
+            return synchStateUpdater.compareAndSet(ctx, SYNCH_STATE_IDLE,
+                    SYNCH_STATE_UPDATE_ACTIVE);
+        }
+
+        while (true) {
+            int state = ctx.synchState;
+            if (state == SYNCH_STATE_UPDATE_ACTIVE) {
+                return false;
+            }
+            if (synchStateUpdater.compareAndSet(ctx, state, state + 1)) {
+                return true;
+            }
+        }
+    }
+
     @Override
     public void handleRequest(Operation request) {
         handleRequest(request, OperationProcessingStage.LOADING_STATE);
@@ -347,7 +376,7 @@ public class StatefulService implements Service {
      */
     private boolean handleRequestLoadingAndLinkingState(Operation request) {
         if (hasOption(Service.ServiceOption.INSTRUMENTATION)) {
-            request.setHandlerInvokeTime(Utils.getNowMicrosUtc());
+            request.setHandlerInvokeTime(Utils.getSystemNowMicrosUtc());
             adjustStat(request.getAction() + Service.STAT_NAME_REQUEST_COUNT, 1.0);
         }
 
@@ -646,7 +675,7 @@ public class StatefulService implements Service {
      */
     private void handleRequestCompletion(Operation op, Throwable e) {
         if (hasOption(Service.ServiceOption.INSTRUMENTATION)) {
-            op.setHandlerCompletionTime(Utils.getNowMicrosUtc());
+            op.setHandlerCompletionTime(Utils.getSystemNowMicrosUtc());
         }
 
         ServiceDocument linkedState = null;
@@ -867,10 +896,8 @@ public class StatefulService implements Service {
         // will be behind. Here we re-issue the current state (committed) when we notice the
         // pending operation queue is empty
 
-        synchronized (this.context) {
-            if (!this.context.operationQueue.isEmpty()) {
-                return;
-            }
+        if (!this.context.operationQueue.isEmpty()) {
+            return;
         }
 
         ServiceDocument latestState = op.getLinkedState();
@@ -880,7 +907,7 @@ public class StatefulService implements Service {
                 .addRequestHeader(Operation.REPLICATION_PHASE_HEADER,
                         Operation.REPLICATION_PHASE_COMMIT)
                 .setReferer(u)
-                .setExpiration(getHost().getOperationTimeoutMicros() + Utils.getNowMicrosUtc());
+                .setExpiration(getHost().getOperationTimeoutMicros() + Utils.getSystemNowMicrosUtc());
 
         if (op.getAction() == Action.DELETE) {
             commitOp.setAction(op.getAction());
@@ -918,7 +945,7 @@ public class StatefulService implements Service {
     }
 
     private void updatePerOperationStats(Operation op) {
-        op.setCompletionTime(Utils.getNowMicrosUtc());
+        op.setCompletionTime(Utils.getSystemNowMicrosUtc());
         InstrumentationContext ctx = op.getInstrumentationContext();
         long queueLatency = ctx.handleInvokeTimeMicrosUtc - ctx.enqueueTimeMicrosUtc;
         long handlerLatency = ctx.handlerCompletionTime - ctx.handleInvokeTimeMicrosUtc;
@@ -976,9 +1003,8 @@ public class StatefulService implements Service {
         }
 
         if (op.getAction() != Action.GET) {
-            synchronized (this.context) {
-                this.context.isUpdateActive = false;
-            }
+            synchStateUpdater.compareAndSet(this.context, SYNCH_STATE_UPDATE_ACTIVE,
+                    SYNCH_STATE_IDLE);
             scheduleCommitRequest(op);
         }
 
@@ -988,12 +1014,15 @@ public class StatefulService implements Service {
                 return;
             }
 
-            synchronized (this.context) {
-                this.context.getActiveCount--;
-                if (this.context.getActiveCount < 0) {
+            while (true) {
+                int state = this.context.synchState;
+                if (state <= SYNCH_STATE_IDLE) {
                     logSevere(new IllegalStateException(
                             "Synchronization state is invalid: Negative pending gets"));
-                    this.context.getActiveCount = 0;
+                    break;
+                }
+                if (synchStateUpdater.compareAndSet(this.context, state, state - 1)) {
+                    break;
                 }
             }
         }
@@ -1003,9 +1032,7 @@ public class StatefulService implements Service {
 
     @Override
     public Operation dequeueRequest() {
-        synchronized (this.context) {
-            return this.context.operationQueue.poll();
-        }
+        return this.context.operationQueue.poll();
     }
 
     private boolean applyUpdate(Operation op) throws Throwable {
@@ -1329,7 +1356,8 @@ public class StatefulService implements Service {
                 } else if (this.context.processingStage == ProcessingStage.PAUSED
                         && stage == ProcessingStage.AVAILABLE) {
                     statName = STAT_NAME_RESUME_COUNT;
-                    this.context.isUpdateActive = false;
+                    synchStateUpdater.compareAndSet(this.context, SYNCH_STATE_UPDATE_ACTIVE,
+                            SYNCH_STATE_IDLE);
                 } else if (this.context.processingStage.ordinal() > stage.ordinal()) {
                     throw new IllegalArgumentException(this.context.processingStage
                             + " can not move to "
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel for coarse, host wide timers: operation deadlines, periodic service
+ * maintenance and document expirations. Timers are hashed into buckets by deadline tick, so
+ * scheduling and cancellation are O(1) and neither takes a lock: new and cancelled timers are
+ * queued and applied to the buckets by the thread advancing the wheel. The wheel does not own a
+ * thread, it is advanced by host maintenance
+ */
+class TimingWheel {
+
+    public static final long DEFAULT_TICK_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
+
+    public static final int DEFAULT_BUCKET_COUNT = 4096;
+
+    /**
+     * A scheduled task. Cancelling a timer that has not fired yet guarantees its task will not run
+     */
+    public static final class Timer {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timer> stateUpdater = AtomicIntegerFieldUpdater
+                .newUpdater(Timer.class, "state");
+
+        private final TimingWheel wheel;
+        private final long deadlineMicros;
+        private final Runnable task;
+        private volatile int state;
+
+        // bucket membership, only accessed by the thread advancing the wheel
+        private Bucket bucket;
+        private Timer prev;
+        private Timer next;
+
+        private Timer(TimingWheel wheel, long deadlineMicros, Runnable task) {
+            this.wheel = wheel;
+            this.deadlineMicros = deadlineMicros;
+            this.task = task;
+        }
+
+        public long getDeadlineMicros() {
+            return this.deadlineMicros;
+        }
+
+        public boolean isCancelled() {
+            return this.state == STATE_CANCELLED;
+        }
+
+        /**
+         * Returns false if the timer already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!stateUpdater.compareAndSet(this, STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+            this.wheel.timerCount.decrementAndGet();
+            this.wheel.cancelledTimers.offer(this);
+            return true;
+        }
+
+        private boolean expire() {
+            if (!stateUpdater.compareAndSet(this, STATE_PENDING, STATE_EXPIRED)) {
+                return false;
+            }
+            this.wheel.timerCount.decrementAndGet();
+            return true;
+        }
+    }
+
+    private static final class Bucket {
+        private Timer head;
+        private Timer tail;
+        private int count;
+
+        void add(Timer t) {
+            t.bucket = this;
+            t.prev = this.tail;
+            if (this.tail == null) {
+                this.head = t;
+            } else {
+                this.tail.next = t;
+            }
+            this.tail = t;
+            this.count++;
+        }
+
+        void remove(Timer t) {
+            if (t.prev == null) {
+                this.head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next == null) {
+                this.tail = t.prev;
+            } else {
+                t.next.prev = t.prev;
+            }
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+            this.count--;
+        }
+    }
+
+    public static TimingWheel create(long tickMicros, int bucketCount) {
+        if (tickMicros <= 0) {
+            throw new IllegalArgumentException("tickMicros must be positive");
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("bucketCount must be positive");
+        }
+        int size = Integer.highestOneBit(bucketCount);
+        if (size < bucketCount) {
+            size <<= 1;
+        }
+        TimingWheel tw = new TimingWheel();
+        tw.tickMicros = tickMicros;
+        tw.mask = size - 1;
+        tw.buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            tw.buckets[i] = new Bucket();
+        }
+        tw.lastTick = Utils.getSystemNowMicrosUtc() / tickMicros;
+        return tw;
+    }
+
+    private long tickMicros;
+    private int mask;
+    private Bucket[] buckets;
+
+    /**
+     * Tick of the first bucket visited by the next advance. Buckets for earlier ticks hold only
+     * timers for later revolutions
+     */
+    private long lastTick;
+
+    private final Queue<Timer> pendingTimers = new ConcurrentLinkedQueue<>();
+    private final Queue<Timer> cancelledTimers = new ConcurrentLinkedQueue<>();
+    private final AtomicLong timerCount = new AtomicLong();
+
+    private volatile long maxLagMicros;
+    private volatile int maxBucketOccupancy;
+
+    private TimingWheel() {
+    }
+
+    /**
+     * Schedules the task to run when the wheel is advanced past the given deadline
+     */
+    public Timer schedule(long deadlineMicros, Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("task is required");
+        }
+        Timer t = new Timer(this, deadlineMicros, task);
+        this.timerCount.incrementAndGet();
+        this.pendingTimers.offer(t);
+        return t;
+    }
+
+    /**
+     * Runs, on the calling thread, the tasks of all timers with a deadline at or before the given
+     * time. Returns the number of timers that fired
+     */
+    public synchronized int advance(long untilMicros) {
+        long now = Utils.getSystemNowMicrosUtc();
+        removeCancelledTimers();
+        addPendingTimers();
+
+        long untilTick = untilMicros / this.tickMicros;
+        if (untilTick < this.lastTick) {
+            return 0;
+        }
+
+        long lag = 0;
+        int expiredCount = 0;
+        // visit every bucket at most once, even if we are behind by more than a revolution
+        long ticks = Math.min(untilTick - this.lastTick + 1, this.buckets.length);
+        for (long tick = this.lastTick; tick < this.lastTick + ticks; tick++) {
+            Bucket b = this.buckets[(int) (tick & this.mask)];
+            Timer t = b.head;
+            while (t != null) {
+                Timer next = t.next;
+                if (t.deadlineMicros <= untilMicros) {
+                    b.remove(t);
+                    if (t.expire()) {
+                        lag = Math.max(lag, now - t.deadlineMicros);
+                        expiredCount++;
+                        run(t);
+                    }
+                }
+                t = next;
+            }
+        }
+
+        // the bucket for the current tick is visited again on the next advance, since timers
+        // with a deadline later in this tick have not fired yet
+        this.lastTick = untilTick;
+        this.maxLagMicros = lag;
+
+        int maxCount = 0;
+        for (Bucket b : this.buckets) {
+            maxCount = Math.max(maxCount, b.count);
+        }
+        this.maxBucketOccupancy = maxCount;
+        return expiredCount;
+    }
+
+    private void run(Timer t) {
+        try {
+            t.task.run();
+        } catch (Throwable e) {
+            Logger.getAnonymousLogger().log(Level.WARNING,
+                    "Timer task failed: " + Utils.toString(e));
+        }
+    }
+
+    private void removeCancelledTimers() {
+        Timer t;
+        while ((t = this.cancelledTimers.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void addPendingTimers() {
+        Timer t;
+        while ((t = this.pendingTimers.poll()) != null) {
+            if (t.isCancelled()) {
+                continue;
+            }
+            // timers already due are placed in the first bucket visited by the next advance
+            long tick = Math.max(t.deadlineMicros / this.tickMicros, this.lastTick);
+            this.buckets[(int) (tick & this.mask)].add(t);
+        }
+    }
+
+    /**
+     * Number of timers that have neither fired nor been cancelled
+     */
+    public long size() {
+        return this.timerCount.get();
+    }
+
+    /**
+     * Largest delay, between deadline and the time its task ran, for timers fired by the most
+     * recent advance
+     */
+    public long getMaxLagMicros() {
+        return this.maxLagMicros;
+    }
+
+    /**
+     * Largest number of timers held by a single bucket, after the most recent advance
+     */
+    public int getMaxBucketOccupancy() {
+        return this.maxBucketOccupancy;
+    }
+
+    /**
+     * Discards all timers without running their tasks
+     */
+    public synchronized void clear() {
+        Timer t;
+        while ((t = this.pendingTimers.poll()) != null) {
+            t.expire();
+        }
+        this.cancelledTimers.clear();
+        for (Bucket b : this.buckets) {
+            while (b.head != null) {
+                t = b.head;
+                b.remove(t);
+                t.expire();
+            }
+        }
+        this.maxBucketOccupancy = 0;
+    }
+}
@@ -155,7 +155,7 @@ public class UtilityService implements Service {
                 return;
             }
 
-            long now = Utils.getNowMicrosUtc();
+            long now = Utils.getSystemNowMicrosUtc();
 
             Operation clone = op.clone();
             clone.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION);
@@ -485,7 +485,7 @@ public class UtilityService implements Service {
                 }
             }
         }
-        stat.lastUpdateMicrosUtc = Utils.getNowMicrosUtc();
+        stat.lastUpdateMicrosUtc = Utils.getSystemNowMicrosUtc();
     }
 
     @Override
@@ -505,7 +505,7 @@ public class UtilityService implements Service {
                 }
             }
         }
-        stat.lastUpdateMicrosUtc = Utils.getNowMicrosUtc();
+        stat.lastUpdateMicrosUtc = Utils.getSystemNowMicrosUtc();
     }
 
     @Override
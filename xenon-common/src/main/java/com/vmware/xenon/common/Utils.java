@@ -15,6 +15,7 @@ package com.vmware.xenon.common;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.ParameterizedType;
@@ -22,8 +23,11 @@ import java.lang.reflect.Type;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
@@ -34,6 +38,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -44,12 +49,17 @@ import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
 
 import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ServiceOption;
@@ -57,11 +67,15 @@ import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.SystemHostInfo.OsFamily;
 import com.vmware.xenon.common.serialization.BufferThreadLocal;
+import com.vmware.xenon.common.serialization.ByteBufWriter;
 import com.vmware.xenon.common.serialization.JsonMapper;
+import com.vmware.xenon.common.serialization.KryoSerializers.KryoForBinaryBodyThreadLocal;
 import com.vmware.xenon.common.serialization.KryoSerializers.KryoForDocumentThreadLocal;
 import com.vmware.xenon.common.serialization.KryoSerializers.KryoForObjectThreadLocal;
+import com.vmware.xenon.common.serialization.OutputThreadLocal;
 import com.vmware.xenon.services.common.ServiceUriPaths;
 
 class DigestThreadLocal extends ThreadLocal<MessageDigest> {
@@ -71,6 +85,13 @@ class DigestThreadLocal extends ThreadLocal<MessageDigest> {
     }
 }
 
+class DecoderThreadLocal extends ThreadLocal<CharsetDecoder> {
+    @Override
+    protected CharsetDecoder initialValue() {
+        return Charset.forName(Utils.CHARSET).newDecoder();
+    }
+}
+
 /**
  * Runtime utility functions
  */
@@ -96,8 +117,12 @@ public class Utils {
 
     private static final KryoForObjectThreadLocal kryoForObjectPerThread = new KryoForObjectThreadLocal();
     private static final KryoForDocumentThreadLocal kryoForDocumentPerThread = new KryoForDocumentThreadLocal();
+    private static final KryoForBinaryBodyThreadLocal kryoForBinaryBodyPerThread = new KryoForBinaryBodyThreadLocal();
     private static final DigestThreadLocal digestPerThread = new DigestThreadLocal();
     private static final BufferThreadLocal bufferPerThread = new BufferThreadLocal();
+    private static final OutputThreadLocal outputPerThread = new OutputThreadLocal();
+    private static final DecoderThreadLocal decoderPerThread = new DecoderThreadLocal();
+    private static final ThreadLocal<CharBuffer> charBufferPerThread = new ThreadLocal<>();
 
     private static final JsonMapper JSON = new JsonMapper();
     private static final ConcurrentMap<Class<?>, JsonMapper> CUSTOM_JSON = new ConcurrentHashMap<>();
@@ -146,10 +171,21 @@ public class Utils {
         CUSTOM_JSON.putIfAbsent(clazz, mapper);
     }
 
+    /**
+     * Returns a deep copy, through generated field accessors for document and PODO classes, and
+     * Kryo for other types. Object graphs with duplicate or recursive references are not
+     * supported, use {@link #cloneObject(Object)} instead
+     */
     public static <T> T clone(T t) {
+        return DocumentAccessor.copy(t);
+    }
+
+    /**
+     * Returns a deep copy through Kryo, for types the generated accessors do not copy
+     */
+    static <T> T cloneWithKryo(T t) {
         Kryo k = kryoForDocumentPerThread.get();
-        T clone = k.copy(t);
-        return clone;
+        return k.copy(t);
     }
 
     public static <T> T cloneObject(T t) {
@@ -235,6 +271,69 @@ public class Utils {
         return k.readClassAndObject(in);
     }
 
+    /**
+     * Encodes a body as {@link Operation#MEDIA_TYPE_APPLICATION_KRYO}, using the document
+     * serializer. The returned array is sized to the encoded content
+     */
+    public static byte[] toBinaryBody(Object body) {
+        Kryo k = kryoForDocumentPerThread.get();
+        Output out = outputPerThread.get();
+        out.clear();
+        k.writeClassAndObject(out, body);
+        byte[] data = out.toBytes();
+        if (out.getBuffer().length > ServiceHost.DEFAULT_SERVICE_STATE_COST_BYTES * 10) {
+            // do not hold on to the buffer grown for an unusually large body
+            outputPerThread.remove();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the size of the document serialized with the document serializer, without
+     * retaining the serialized form
+     */
+    public static int getSerializedSize(ServiceDocument document) {
+        Kryo k = kryoForDocumentPerThread.get();
+        Output out = outputPerThread.get();
+        out.clear();
+        k.writeClassAndObject(out, document);
+        int size = out.position();
+        if (out.getBuffer().length > ServiceHost.DEFAULT_SERVICE_STATE_COST_BYTES * 10) {
+            outputPerThread.remove();
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a body as {@link Operation#MEDIA_TYPE_APPLICATION_KRYO} to the stream. The per
+     * thread output buffer is used for staging and is flushed to the stream as it fills up
+     */
+    public static void toBinaryBody(Object body, OutputStream stream) {
+        Kryo k = kryoForDocumentPerThread.get();
+        Output out = outputPerThread.get();
+        out.setOutputStream(stream);
+        try {
+            k.writeClassAndObject(out, body);
+            out.flush();
+        } finally {
+            out.setOutputStream(null);
+        }
+    }
+
+    /**
+     * Decodes a {@link Operation#MEDIA_TYPE_APPLICATION_KRYO} body directly from the buffer.
+     * Only classes allowed by the binary body class resolver are decoded
+     */
+    public static Object fromBinaryBody(ByteBuffer buffer) {
+        Kryo k = kryoForBinaryBodyPerThread.get();
+        if (buffer.hasArray()) {
+            Input in = new Input(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            return k.readClassAndObject(in);
+        }
+        return k.readClassAndObject(new ByteBufferInput(buffer));
+    }
+
     public static void performMaintenance() {
 
     }
@@ -269,6 +368,22 @@ public class Utils {
         return getJsonMapperFor(body).toJsonHtml(body);
     }
 
+    /**
+     * Writes the compact JSON representation of the body to the appendable, without
+     * materializing it as a string
+     */
+    public static void toJson(Object body, Appendable out) {
+        appendJson(body, out);
+    }
+
+    /**
+     * Writes the pretty-printed JSON representation of the body to the appendable, without
+     * materializing it as a string
+     */
+    public static void toJsonHtml(Object body, Appendable out) {
+        getJsonMapperFor(body).toJsonHtml(body, out);
+    }
+
     public static <T> T fromJson(String json, Class<T> clazz) {
         return getJsonMapperFor(clazz).fromJson(json, clazz);
     }
@@ -373,22 +488,33 @@ public class Utils {
     /**
      * Return wall clock time, in microseconds since Unix Epoch (1/1/1970 UTC midnight). This
      * functions guarantees time always moves forward, but it does not guarantee it does so in fixed
-     * intervals.
+     * intervals. Values are unique across all threads, which requires an atomic update of shared
+     * state on every call: use it where the value identifies a change (document update time, index
+     * update time), and {@link #getSystemNowMicrosUtc()} for measurements and expiration checks
      *
      * @return
      */
     public static long getNowMicrosUtc() {
         long now = System.currentTimeMillis() * 1000;
-        long time = prevTime.getAndIncrement();
+        long time = prevTime.get();
 
-        // Only set time if current time is greater than our stored time.
-        if (now > time) {
-            // This CAS can fail; getAndIncrement() ensures no value is returned twice.
-            prevTime.compareAndSet(time + 1, now);
-            return prevTime.getAndIncrement();
+        // Only set time if current time is greater than our stored time. If the CAS fails, another
+        // thread moved time forward and incrementAndGet() returns a value past it
+        if (now > time && prevTime.compareAndSet(time, now)) {
+            return now;
         }
 
-        return time;
+        return prevTime.incrementAndGet();
+    }
+
+    /**
+     * Return wall clock time, in microseconds since Unix Epoch (1/1/1970 UTC midnight). Unlike
+     * {@link #getNowMicrosUtc()} the value is neither unique nor guaranteed to move forward, but
+     * reading it does not touch any shared state. Use it for latency measurement, statistics and
+     * expiration checks
+     */
+    public static long getSystemNowMicrosUtc() {
+        return System.currentTimeMillis() * 1000;
     }
 
     public static String buildKind(Class<?> type) {
@@ -532,6 +658,10 @@ public class Utils {
             break;
         case LIFO_QUEUE:
             break;
+        case ON_DEMAND_LOAD:
+            reqs = EnumSet.of(ServiceOption.PERSISTENCE);
+            antiReqs = EnumSet.of(ServiceOption.PERIODIC_MAINTENANCE, ServiceOption.REPLICATION);
+            break;
         case NONE:
             break;
         case UTILITY:
@@ -675,6 +805,10 @@ public class Utils {
         if (body instanceof String) {
             data = ((String) body).getBytes(Utils.CHARSET);
             op.setContentLength(data.length);
+            if (contentType != null && contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                // a response to a binary request, with a pre-serialized body
+                op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+            }
         } else if (body instanceof byte[]) {
             data = (byte[]) body;
             if (contentType == null) {
@@ -698,6 +832,9 @@ public class Utils {
                 }
                 data = encodedBody.getBytes(Utils.CHARSET);
                 op.setContentLength(data.length);
+            } else if (contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                data = toBinaryBody(body);
+                op.setContentLength(data.length);
             } else {
                 throw new IllegalArgumentException("Unrecognized content type: " + contentType);
             }
@@ -707,6 +844,75 @@ public class Utils {
         return data;
     }
 
+    /**
+     * Encodes the operation body directly into a buffer from the given allocator, without
+     * intermediate strings or arrays, and sets the content length. Returns null if the
+     * operation has no body. The caller owns the returned buffer and must release it, or pass it
+     * to a channel that will
+     */
+    public static ByteBuf encodeBody(Operation op, ByteBufAllocator allocator) throws Throwable {
+        String contentType = op.getContentType();
+
+        if (!op.hasBody()) {
+            op.setContentLength(0);
+            return null;
+        }
+
+        Object body = op.getBodyRaw();
+        if (body instanceof byte[]) {
+            byte[] data = (byte[]) body;
+            if (contentType == null) {
+                op.setContentType(Operation.MEDIA_TYPE_APPLICATION_OCTET_STREAM);
+            }
+            if (op.getContentLength() == 0 || op.getContentLength() > data.length) {
+                op.setContentLength(data.length);
+            }
+            return Unpooled.wrappedBuffer(data);
+        }
+
+        ByteBuf buffer = null;
+        try {
+            if (body instanceof String) {
+                String s = (String) body;
+                buffer = allocator.buffer(s.length());
+                ByteBufWriter writer = new ByteBufWriter(buffer);
+                writer.append(s);
+                writer.flush();
+                if (contentType != null
+                        && contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                    // a response to a binary request, with a pre-serialized body
+                    op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+                }
+            } else if (contentType == null
+                    || contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+                buffer = allocator.buffer(BUFFER_INITIAL_CAPACITY);
+                ByteBufWriter writer = new ByteBufWriter(buffer);
+                if (op.getAction() == Action.GET) {
+                    Utils.toJsonHtml(body, writer);
+                } else {
+                    Utils.toJson(body, writer);
+                    if (contentType == null) {
+                        op.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+                    }
+                }
+                writer.flush();
+            } else if (contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                buffer = allocator.buffer(BUFFER_INITIAL_CAPACITY);
+                toBinaryBody(body, new ByteBufOutputStream(buffer));
+            } else {
+                throw new IllegalArgumentException("Unrecognized content type: " + contentType);
+            }
+        } catch (Throwable e) {
+            if (buffer != null) {
+                buffer.release();
+            }
+            throw e;
+        }
+
+        op.setContentLength(buffer.readableBytes());
+        return buffer;
+    }
+
     public static void decodeBody(Operation op, ByteBuffer buffer) {
         Object body = null;
 
@@ -717,7 +923,12 @@ public class Utils {
 
         try {
             String contentType = op.getContentType();
-            body = decodeIfText(buffer, contentType);
+            if (contentType != null
+                    && contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                body = fromBinaryBody(buffer);
+            } else {
+                body = decodeIfText(buffer, contentType);
+            }
             if (body == null) {
                 // unrecognized or binary body, use the raw bytes
                 byte[] data = new byte[(int) op.getContentLength()];
@@ -751,12 +962,42 @@ public class Utils {
                 || contentType.contains("script")
                 || contentType.contains("html")
                 || contentType.contains("xml")) {
-            body = Charset.forName(Utils.CHARSET).newDecoder().decode(buffer).toString();
+            body = decodeText(buffer);
         }
 
         return body;
     }
 
+    /**
+     * Decodes UTF-8 text using a per thread decoder and character buffer, so the only
+     * allocation is the returned string
+     */
+    private static String decodeText(ByteBuffer buffer) throws CharacterCodingException {
+        int length = buffer.remaining();
+        CharBuffer chars = charBufferPerThread.get();
+        if (chars == null || chars.capacity() < length) {
+            // UTF-8 never decodes to more characters than bytes
+            chars = CharBuffer.allocate(Math.max(length, BUFFER_INITIAL_CAPACITY));
+            if (length <= ServiceHost.DEFAULT_SERVICE_STATE_COST_BYTES * 10) {
+                // do not hold on to a buffer sized for an unusually large body
+                charBufferPerThread.set(chars);
+            }
+        }
+        chars.clear();
+
+        CharsetDecoder decoder = decoderPerThread.get().reset();
+        CoderResult result = decoder.decode(buffer, chars, true);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        result = decoder.flush(chars);
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
     /**
      * Compute ui resource path for this service.
      * <p>
@@ -867,6 +1108,7 @@ public class Utils {
         ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();
         result.documents = new HashMap<>();
         result.documentCount = 0L;
+        result.aggregations = mergeAggregations(dataSources);
 
         // For each list of documents to be merged, a pointer is maintained to indicate which element
         // is to be merged. The initial values are 0s.
@@ -911,8 +1153,11 @@ public class Utils {
             if (documentLinkPicked != null) {
                 // Save the winner to the result.
                 result.documentLinks.add(documentLinkPicked);
-                result.documents.put(documentLinkPicked,
-                        dataSources.get(sourcesPicked.get(0)).documents.get(documentLinkPicked));
+                ServiceDocumentQueryResult source = dataSources.get(sourcesPicked.get(0));
+                if (source.documents != null) {
+                    result.documents.put(documentLinkPicked,
+                            source.documents.get(documentLinkPicked));
+                }
                 result.documentCount++;
 
                 // Move the pointer of the lists where the winners locate.
@@ -928,4 +1173,35 @@ public class Utils {
 
         return result;
     }
+
+    /**
+     * Merges the partial aggregates computed by each source, per group. The value of the group
+     * operation must be computed on the merged aggregates
+     */
+    private static Map<String, AggregationResult> mergeAggregations(
+            List<ServiceDocumentQueryResult> dataSources) {
+        Map<String, AggregationResult> merged = null;
+        for (ServiceDocumentQueryResult r : dataSources) {
+            if (r.aggregations == null) {
+                continue;
+            }
+            if (merged == null) {
+                merged = new HashMap<>();
+            }
+            for (Entry<String, AggregationResult> e : r.aggregations.entrySet()) {
+                AggregationResult source = e.getValue();
+                AggregationResult target = merged.computeIfAbsent(e.getKey(),
+                        (k) -> new AggregationResult());
+                target.count += source.count;
+                target.sum += source.sum;
+                if (source.min != null && (target.min == null || source.min < target.min)) {
+                    target.min = source.min;
+                }
+                if (source.max != null && (target.max == null || source.max > target.max)) {
+                    target.max = source.max;
+                }
+            }
+        }
+        return merged;
+    }
 }
@@ -113,7 +113,7 @@ public class HttpRequestCallbackService extends StatelessService {
     @Override
     public void handleMaintenance(Operation o) {
 
-        long now = Utils.getNowMicrosUtc();
+        long now = Utils.getSystemNowMicrosUtc();
         Iterator<Operation> it = this.pendingOperations.values().iterator();
         while (it.hasNext()) {
             Operation op = it.next();
@@ -13,16 +13,29 @@
 
 package com.vmware.xenon.common.http.netty;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.HttpUtil.ExtensionHeaderNames;
 import io.netty.util.AttributeKey;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.SocketContext;
+import com.vmware.xenon.common.UriUtils;
 
 public class NettyChannelContext extends SocketContext {
     static final AttributeKey<Operation> OPERATION_KEY = AttributeKey
             .<Operation> valueOf("operation");
+    static final AttributeKey<NettyChannelContext> CHANNEL_CONTEXT_KEY = AttributeKey
+            .<NettyChannelContext> valueOf("channelContext");
     public static final int BUFFER_SIZE = 4096 * 16;
 
     public static final int MAX_INITIAL_LINE_LENGTH = 4096;
@@ -40,28 +53,112 @@ public class NettyChannelContext extends SocketContext {
         return new PooledByteBufAllocator(true, 2, 2, 8192, maxOrder, 64, 32, 16);
     }
 
+    public enum Protocol {
+        HTTP11, HTTP2
+    }
+
     int port;
     String host;
     private Channel channel;
     private final String key;
+    private final Protocol protocol;
+
+    /**
+     * In flight HTTP/2 requests, indexed by stream id
+     */
+    private final Map<Integer, Operation> streams;
+
+    /**
+     * Number of HTTP/2 streams reserved by the channel pool. Guarded by the channel group
+     */
+    int reservedStreamCount;
+
+    /**
+     * Set once the remote peer acknowledged the HTTP/2 connection by sending its settings.
+     * Guarded by the channel group
+     */
+    boolean isHttp2Ready;
 
     public NettyChannelContext(String host, int port, String key) {
+        this(host, port, key, Protocol.HTTP11);
+    }
+
+    public NettyChannelContext(String host, int port, String key, Protocol protocol) {
         this.host = host;
         this.port = port;
         this.key = key;
+        this.protocol = protocol;
+        this.streams = protocol == Protocol.HTTP2 ? new ConcurrentHashMap<>() : null;
     }
 
     public NettyChannelContext setChannel(Channel c) {
         this.channel = c;
+        if (this.protocol == Protocol.HTTP2) {
+            c.attr(CHANNEL_CONTEXT_KEY).set(this);
+        }
         return this;
     }
 
     public NettyChannelContext setOperation(Operation request) {
-        this.channel.attr(OPERATION_KEY).set(request);
+        if (this.protocol == Protocol.HTTP11) {
+            this.channel.attr(OPERATION_KEY).set(request);
+        }
         request.setSocketContext(this);
         return this;
     }
 
+    public boolean isHttp2() {
+        return this.protocol == Protocol.HTTP2;
+    }
+
+    Operation removeStreamOperation(int streamId) {
+        return this.streams.remove(streamId);
+    }
+
+    /**
+     * Removes and returns all in flight HTTP/2 requests
+     */
+    List<Operation> removeStreamOperations() {
+        List<Operation> ops = new ArrayList<>();
+        for (Integer streamId : this.streams.keySet()) {
+            Operation op = this.streams.remove(streamId);
+            if (op != null) {
+                ops.add(op);
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Removes and returns in flight HTTP/2 requests that expired
+     */
+    List<Operation> removeExpiredStreamOperations(long now) {
+        List<Operation> ops = new ArrayList<>();
+        for (Entry<Integer, Operation> e : this.streams.entrySet()) {
+            if (e.getValue().getExpirationMicrosUtc() > now) {
+                continue;
+            }
+            if (this.streams.remove(e.getKey(), e.getValue())) {
+                ops.add(e.getValue());
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Removes the HTTP/2 extension headers added by the codec, and returns the stream id
+     */
+    static Integer removeHttp2ExtensionHeaders(HttpHeaders headers) {
+        Integer streamId = headers.getInt(ExtensionHeaderNames.STREAM_ID.text());
+        if (streamId == null) {
+            return null;
+        }
+        for (ExtensionHeaderNames name : ExtensionHeaderNames.values()) {
+            headers.remove(name.text());
+        }
+        return streamId;
+    }
+
     public Operation getOperation() {
         Channel ch = this.channel;
         if (ch == null) {
@@ -84,6 +181,35 @@ public class NettyChannelContext extends SocketContext {
         updateLastUseTime();
     }
 
+    /**
+     * Writes the request on a new HTTP/2 stream. Stream identifiers must be created in increasing
+     * order, so they are allocated on the channel event loop, just before the request is encoded
+     */
+    public void writeHttp2Request(Operation op, FullHttpRequest request) {
+        request.headers().set(ExtensionHeaderNames.SCHEME.text(), UriUtils.HTTP_SCHEME);
+
+        Channel ch = this.channel;
+        ch.eventLoop().execute(() -> {
+            HttpToHttp2ConnectionHandler handler = ch.pipeline().get(
+                    HttpToHttp2ConnectionHandler.class);
+            int streamId = handler == null ? -1 : handler.connection().local().nextStreamId();
+            if (streamId <= 0) {
+                // stream identifiers are exhausted, retire the connection
+                ch.close();
+                op.fail(new IllegalStateException("No HTTP/2 streams available on " + ch));
+                return;
+            }
+            request.headers().setInt(ExtensionHeaderNames.STREAM_ID.text(), streamId);
+            this.streams.put(streamId, op);
+            ch.writeAndFlush(request).addListener((f) -> {
+                if (!f.isSuccess() && this.streams.remove(streamId) != null) {
+                    op.fail(f.cause());
+                }
+            });
+        });
+        updateLastUseTime();
+    }
+
     @Override
     public void close() {
         Channel c = this.channel;
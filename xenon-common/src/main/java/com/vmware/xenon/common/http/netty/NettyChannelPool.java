@@ -19,6 +19,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -35,9 +36,11 @@ import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 
 import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.Priority;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyChannelContext.Protocol;
 
 /**
  * Asynchronous connection management pool
@@ -45,14 +48,102 @@ import com.vmware.xenon.common.Utils;
 public class NettyChannelPool {
 
     public static class NettyChannelGroup {
+        /**
+         * Number of consecutive times requests of a priority class can be passed over in favor
+         * of a higher class, before one of them is dispatched
+         */
+        private static final int PENDING_REQUEST_SKIP_LIMIT = 4;
+
         public List<NettyChannelContext> availableChannels = new ArrayList<>();
         public Set<NettyChannelContext> inUseChannels = new HashSet<>();
-        public List<Operation> pendingRequests = new ArrayList<>();
+
+        /**
+         * Requests waiting for a connection or stream, indexed by priority class
+         */
+        private final List<List<Operation>> pendingRequests = new ArrayList<>();
+        private final int[] pendingRequestSkipCounts = new int[Priority.values().length];
+
+        public NettyChannelGroup() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                this.pendingRequests.add(new ArrayList<>());
+            }
+        }
+
+        public void addPendingRequest(Operation request) {
+            this.pendingRequests.get(request.getPriority().ordinal()).add(request);
+        }
+
+        /**
+         * Removes the next request to dispatch: the most recent request of the highest priority
+         * class, unless a lower class was passed over too many times
+         */
+        public Operation removePendingRequest() {
+            int selected = -1;
+            for (int i = 0; i < this.pendingRequests.size(); i++) {
+                if (this.pendingRequests.get(i).isEmpty()) {
+                    this.pendingRequestSkipCounts[i] = 0;
+                    continue;
+                }
+                if (selected < 0
+                        || this.pendingRequestSkipCounts[i] >= PENDING_REQUEST_SKIP_LIMIT) {
+                    selected = i;
+                }
+            }
+
+            if (selected < 0) {
+                return null;
+            }
+
+            for (int i = 0; i < this.pendingRequests.size(); i++) {
+                if (i != selected && !this.pendingRequests.get(i).isEmpty()) {
+                    this.pendingRequestSkipCounts[i]++;
+                }
+            }
+            this.pendingRequestSkipCounts[selected] = 0;
+            List<Operation> requests = this.pendingRequests.get(selected);
+            return requests.remove(requests.size() - 1);
+        }
+
+        public boolean removePendingRequest(Operation request) {
+            return this.pendingRequests.get(request.getPriority().ordinal()).remove(request);
+        }
+
+        public List<Operation> removeAllPendingRequests() {
+            List<Operation> requests = new ArrayList<>();
+            for (List<Operation> l : this.pendingRequests) {
+                requests.addAll(l);
+                l.clear();
+            }
+            return requests;
+        }
+
+        public boolean hasPendingRequests() {
+            for (List<Operation> l : this.pendingRequests) {
+                if (!l.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int getPendingRequestCount() {
+            int count = 0;
+            for (List<Operation> l : this.pendingRequests) {
+                count += l.size();
+            }
+            return count;
+        }
     }
 
     private static final long CHANNEL_EXPIRATION_MICROS =
             ServiceHostState.DEFAULT_OPERATION_TIMEOUT_MICROS * 2;
 
+    /**
+     * Maximum number of concurrent HTTP/2 streams, multiplexed on a single connection
+     */
+    public static final int DEFAULT_HTTP2_STREAMS_PER_CONNECTION = Integer.getInteger(
+            "xenon.netty.http2.streams.per.connection", 256);
+
     public static String toConnectionKey(String host, int port) {
         return host + port;
     }
@@ -69,6 +160,11 @@ public class NettyChannelPool {
 
     private SSLContext sslContext;
 
+    private boolean isHttp2Only;
+    private int http2StreamLimit = DEFAULT_HTTP2_STREAMS_PER_CONNECTION;
+    private NettyChannelPool fallbackPool;
+    private final Set<String> http11OnlyKeys = ConcurrentHashMap.newKeySet();
+
 
     public NettyChannelPool(ExecutorService executor) {
         this.executor = executor;
@@ -112,7 +208,40 @@ public class NettyChannelPool {
         return this.connectionLimit;
     }
 
-    private NettyChannelGroup getChannelGroup(String key) {
+    /**
+     * Connections use HTTP/2, with prior knowledge. Requests are multiplexed as concurrent streams
+     * on the connections to a host, up to the stream limit per connection
+     */
+    public NettyChannelPool setHttp2Only(boolean isHttp2Only) {
+        if (isStarted()) {
+            throw new IllegalStateException("Already started");
+        }
+        this.isHttp2Only = isHttp2Only;
+        return this;
+    }
+
+    public boolean isHttp2Only() {
+        return this.isHttp2Only;
+    }
+
+    public NettyChannelPool setStreamLimitPerConnection(int limit) {
+        this.http2StreamLimit = limit;
+        return this;
+    }
+
+    public int getStreamLimitPerConnection() {
+        return this.http2StreamLimit;
+    }
+
+    /**
+     * Pool used for hosts that do not accept HTTP/2 connections
+     */
+    public NettyChannelPool setFallbackPool(NettyChannelPool pool) {
+        this.fallbackPool = pool;
+        return this;
+    }
+
+    NettyChannelGroup getChannelGroup(String key) {
         NettyChannelGroup group;
         synchronized (this.channelGroups) {
             group = this.channelGroups.get(key);
@@ -127,7 +256,7 @@ public class NettyChannelPool {
     public long getPendingRequestCount(Operation op) {
         String key = toConnectionKey(op.getUri().getHost(), op.getUri().getPort());
         NettyChannelGroup group = getChannelGroup(key);
-        return group.pendingRequests.size();
+        return group.getPendingRequestCount();
     }
 
     public void connectOrReuse(String host, int port, boolean doNotReUse,
@@ -146,6 +275,11 @@ public class NettyChannelPool {
             port = UriUtils.HTTP_DEFAULT_PORT;
         }
 
+        if (this.isHttp2Only) {
+            connectOrReuseHttp2(host, port, request);
+            return;
+        }
+
         try {
             String key = toConnectionKey(host, port);
             NettyChannelGroup group = getChannelGroup(key);
@@ -156,7 +290,7 @@ public class NettyChannelPool {
                     context = group.availableChannels.remove(group.availableChannels.size() - 1);
                     context.updateLastUseTime();
                 } else if (group.inUseChannels.size() >= this.connectionLimit) {
-                    group.pendingRequests.add(request);
+                    group.addPendingRequest(request);
                     return;
                 } else {
                     context = new NettyChannelContext(host, port, key);
@@ -204,6 +338,118 @@ public class NettyChannelPool {
         }
     }
 
+    private void connectOrReuseHttp2(String host, int port, Operation request) {
+        try {
+            String key = toConnectionKey(host, port);
+            if (this.fallbackPool != null && this.http11OnlyKeys.contains(key)) {
+                this.fallbackPool.connectOrReuse(host, port, false, request);
+                return;
+            }
+
+            NettyChannelGroup group = getChannelGroup(key);
+            NettyChannelContext context = null;
+
+            synchronized (group) {
+                // pick the least loaded connection with available streams
+                for (NettyChannelContext c : group.inUseChannels) {
+                    if (!c.isHttp2Ready || c.reservedStreamCount >= this.http2StreamLimit
+                            || !c.getChannel().isOpen()) {
+                        continue;
+                    }
+                    if (context == null || c.reservedStreamCount < context.reservedStreamCount) {
+                        context = c;
+                    }
+                }
+
+                if (context != null) {
+                    context.reservedStreamCount++;
+                    context.updateLastUseTime();
+                } else {
+                    // request is dispatched when a connection becomes ready, or streams are
+                    // released
+                    group.addPendingRequest(request);
+                    if (group.inUseChannels.size() >= this.connectionLimit) {
+                        return;
+                    }
+                    context = new NettyChannelContext(host, port, key, Protocol.HTTP2);
+                    group.inUseChannels.add(context);
+                }
+            }
+
+            if (context.getChannel() != null) {
+                context.setOperation(request);
+                request.complete();
+                return;
+            }
+
+            NettyChannelContext contextFinal = context;
+            ChannelFuture connectFuture = this.bootStrap.connect(context.host, context.port);
+            connectFuture.addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(ChannelFuture future)
+                        throws Exception {
+
+                    if (future.isSuccess()) {
+                        // pending requests are dispatched once the server settings are received
+                        contextFinal.setChannel(future.channel());
+                        return;
+                    }
+
+                    boolean isPending;
+                    synchronized (group) {
+                        isPending = group.removePendingRequest(request);
+                    }
+                    returnOrClose(contextFinal, true);
+                    if (isPending) {
+                        fail(request, future.cause());
+                    }
+                }
+
+            });
+        } catch (Throwable e) {
+            fail(request, e);
+        }
+    }
+
+    /**
+     * Invoked when the remote peer sent its HTTP/2 settings, confirming the connection can be used
+     * for requests
+     */
+    void handleHttp2Settings(NettyChannelContext context) {
+        ExecutorService e = this.executor;
+        if (e == null || e.isShutdown() || context == null) {
+            return;
+        }
+        e.execute(() -> {
+            NettyChannelGroup group = this.channelGroups.get(context.getKey());
+            if (group == null) {
+                return;
+            }
+            List<Operation> ops = new ArrayList<>();
+            synchronized (group) {
+                if (context.isHttp2Ready) {
+                    return;
+                }
+                context.isHttp2Ready = true;
+                reserveHttp2Streams(group, context, ops);
+            }
+            for (Operation op : ops) {
+                context.setOperation(op);
+                op.complete();
+            }
+        });
+    }
+
+    private void reserveHttp2Streams(NettyChannelGroup group, NettyChannelContext context,
+            List<Operation> ops) {
+        while (group.hasPendingRequests()
+                && context.reservedStreamCount < this.http2StreamLimit) {
+            ops.add(group.removePendingRequest());
+            context.reservedStreamCount++;
+        }
+    }
+
     private void fail(Operation request, Throwable e) {
         request.fail(e, Operation.STATUS_CODE_BAD_REQUEST);
     }
@@ -233,7 +479,78 @@ public class NettyChannelPool {
         return group != null && group.inUseChannels.contains(context);
     }
 
+    /**
+     * Invoked when a HTTP/2 connection is closed. Requests still in flight on the connection are
+     * failed by the caller
+     */
+    void closeHttp2Context(NettyChannelContext context) {
+        ExecutorService e = this.executor;
+        if (e == null || e.isShutdown()) {
+            return;
+        }
+        e.execute(() -> returnOrCloseHttp2Direct(context, false));
+    }
+
+    private void returnOrCloseHttp2Direct(NettyChannelContext context, boolean releaseStream) {
+        NettyChannelGroup group = this.channelGroups.get(context.getKey());
+        if (group == null) {
+            context.close();
+            return;
+        }
+
+        Channel ch = context.getChannel();
+        boolean isClosed = ch == null || !ch.isOpen();
+        List<Operation> ops = new ArrayList<>();
+        List<Operation> fallbackOps = null;
+        Operation reconnectOp = null;
+
+        synchronized (group) {
+            if (releaseStream && context.reservedStreamCount > 0) {
+                context.reservedStreamCount--;
+            }
+
+            if (!isClosed) {
+                if (context.isHttp2Ready) {
+                    reserveHttp2Streams(group, context, ops);
+                }
+            } else if (group.inUseChannels.remove(context)) {
+                if (ch != null && !context.isHttp2Ready && this.fallbackPool != null) {
+                    // the peer accepted the connection but closed it without sending its HTTP/2
+                    // settings: send current and future requests over HTTP/1.1
+                    this.http11OnlyKeys.add(context.getKey());
+                    fallbackOps = group.removeAllPendingRequests();
+                } else {
+                    reconnectOp = group.removePendingRequest();
+                }
+            }
+        }
+
+        if (isClosed) {
+            context.close();
+        }
+
+        for (Operation op : ops) {
+            context.setOperation(op);
+            op.complete();
+        }
+
+        if (fallbackOps != null) {
+            for (Operation op : fallbackOps) {
+                this.fallbackPool.connectOrReuse(context.host, context.port, false, op);
+            }
+        }
+
+        if (reconnectOp != null) {
+            connectOrReuseHttp2(context.host, context.port, reconnectOp);
+        }
+    }
+
     private void returnOrCloseDirect(NettyChannelContext context, boolean isClose) {
+        if (context.isHttp2()) {
+            // a single stream completed, the connection stays open for other streams
+            returnOrCloseHttp2Direct(context, true);
+            return;
+        }
         Operation pendingOp = null;
         Channel ch = context.getChannel();
         isClose = isClose || !ch.isWritable() || !ch.isOpen();
@@ -243,10 +560,7 @@ public class NettyChannelPool {
             return;
         }
         synchronized (group) {
-            if (!group.pendingRequests.isEmpty()) {
-                pendingOp = group.pendingRequests
-                        .remove(group.pendingRequests.size() - 1);
-            }
+            pendingOp = group.removePendingRequest();
 
             if (isClose) {
                 group.inUseChannels.remove(context);
@@ -306,8 +620,12 @@ public class NettyChannelPool {
     }
 
     private void closeExpiredInUseContext(Collection<NettyChannelContext> contexts) {
-        long now = Utils.getNowMicrosUtc();
+        long now = Utils.getSystemNowMicrosUtc();
         for (NettyChannelContext c : contexts) {
+            if (c.isHttp2()) {
+                closeExpiredHttp2Streams(c, now);
+                continue;
+            }
             Operation activeOp = c.getOperation();
             if (activeOp == null || activeOp.getExpirationMicrosUtc() > now) {
                 continue;
@@ -320,8 +638,27 @@ public class NettyChannelPool {
         }
     }
 
+    private void closeExpiredHttp2Streams(NettyChannelContext c, long now) {
+        if (c.getChannel() == null) {
+            return;
+        }
+
+        if (c.reservedStreamCount == 0 && now - c.getLastUseTimeMicros() > CHANNEL_EXPIRATION_MICROS) {
+            // idle connection, the response handler cleans up when the channel becomes inactive
+            c.close();
+            return;
+        }
+
+        for (Operation activeOp : c.removeExpiredStreamOperations(now)) {
+            this.executor.execute(() -> {
+                // client has nested completion on failure, and will release the stream
+                activeOp.fail(new TimeoutException(activeOp.toString()));
+            });
+        }
+    }
+
     private void closeContexts(Collection<NettyChannelContext> contexts, boolean forceClose) {
-        long now = Utils.getNowMicrosUtc();
+        long now = Utils.getSystemNowMicrosUtc();
         List<NettyChannelContext> items = new ArrayList<>();
         for (NettyChannelContext c : contexts) {
             try {
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2FrameListenerDecorator;
+import io.netty.handler.codec.http2.Http2FrameReader;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.handler.codec.http2.HttpToHttp2ConnectionHandler;
+import io.netty.handler.codec.http2.InboundHttp2ToHttpAdapter;
+
+/**
+ * Translates full HTTP messages to and from HTTP/2 streams.
+ *
+ * Flow control windows are bounded, independent of the maximum content length, so a peer can
+ * only send a window worth of data per stream, and a few streams worth per connection, ahead of
+ * the node reading it. Credit is returned as received data is consumed into the aggregated
+ * messages, so messages larger than the window still complete. Frames written while reading,
+ * such as window updates, are flushed once the read completes, otherwise a peer waiting for a
+ * window update stalls.
+ *
+ * The credit for the last frames of a message can reach the peer after it closed the stream.
+ * Window updates for streams the connection no longer tracks are ignored, instead of failing
+ * the connection
+ */
+public class NettyHttp2ConnectionHandler extends HttpToHttp2ConnectionHandler {
+
+    /**
+     * Flow control window of each stream, in bytes
+     */
+    public static final int STREAM_WINDOW_SIZE = Integer.getInteger(
+            "xenon.netty.http2.stream.window.size", 1024 * 1024);
+
+    /**
+     * Flow control window of each connection, in bytes, shared by its streams
+     */
+    public static final int CONNECTION_WINDOW_SIZE = Integer.getInteger(
+            "xenon.netty.http2.connection.window.size", STREAM_WINDOW_SIZE * 4);
+
+    public static NettyHttp2ConnectionHandler create(boolean isServer, int maxContentLength) {
+        Http2Connection connection = new DefaultHttp2Connection(isServer);
+        // the client is notified of server settings, so the channel pool knows the connection
+        // can be used for requests
+        InboundHttp2ToHttpAdapter adapter = new InboundHttp2ToHttpAdapter.Builder(connection)
+                .maxContentLength(maxContentLength)
+                .propagateSettings(!isServer)
+                .build();
+        return new NettyHttp2ConnectionHandler(connection, adapter,
+                Math.min(STREAM_WINDOW_SIZE, Http2CodecUtil.MAX_INITIAL_WINDOW_SIZE),
+                Math.min(CONNECTION_WINDOW_SIZE, Http2CodecUtil.MAX_INITIAL_WINDOW_SIZE));
+    }
+
+    private final int connectionWindowSize;
+
+    private NettyHttp2ConnectionHandler(Http2Connection connection,
+            InboundHttp2ToHttpAdapter adapter, int streamWindowSize, int connectionWindowSize) {
+        super(connection, new ClosedStreamFrameReader(connection),
+                new DefaultHttp2FrameWriter(), adapter);
+        this.connectionWindowSize = connectionWindowSize;
+        try {
+            // sent to the peer with the connection preface
+            decoder().localSettings(new Http2Settings()
+                    .initialWindowSize(Math.max(streamWindowSize,
+                            Http2CodecUtil.DEFAULT_WINDOW_SIZE)));
+        } catch (Http2Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        super.channelActive(ctx);
+        increaseConnectionWindow(ctx);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        super.handlerAdded(ctx);
+        if (ctx.channel().isActive()) {
+            increaseConnectionWindow(ctx);
+        }
+    }
+
+    private void increaseConnectionWindow(ChannelHandlerContext ctx) throws Http2Exception {
+        Http2Stream connectionStream = connection().connectionStream();
+        int delta = this.connectionWindowSize
+                - decoder().flowController().windowSize(connectionStream);
+        if (delta > 0) {
+            decoder().flowController().incrementWindowSize(ctx, connectionStream, delta);
+        }
+        ctx.flush();
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    /**
+     * Closes the stream once the given write completes. The end of a response can still be
+     * waiting for flow control credit when it is queued, and closing the stream right away
+     * would drop window updates for it, so the response would never complete
+     */
+    @Override
+    public void closeStream(Http2Stream stream, ChannelFuture future) {
+        if (future.isDone()) {
+            super.closeStream(stream, future);
+            return;
+        }
+        future.addListener((ChannelFutureListener) f -> {
+            if (stream.state() != Http2Stream.State.CLOSED) {
+                super.closeStream(stream, f);
+            }
+        });
+    }
+
+    private static class ClosedStreamFrameReader implements Http2FrameReader {
+        private final Http2FrameReader reader = new DefaultHttp2FrameReader();
+        private final Http2Connection connection;
+        private Http2FrameListener listener;
+        private Http2FrameListener decoratedListener;
+
+        ClosedStreamFrameReader(Http2Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void readFrame(ChannelHandlerContext ctx, ByteBuf input,
+                Http2FrameListener listener) throws Http2Exception {
+            if (listener != this.listener) {
+                this.listener = listener;
+                this.decoratedListener = new Http2FrameListenerDecorator(listener) {
+                    @Override
+                    public void onWindowUpdateRead(ChannelHandlerContext ctx, int streamId,
+                            int windowSizeIncrement) throws Http2Exception {
+                        if (streamId != Http2CodecUtil.CONNECTION_STREAM_ID
+                                && ClosedStreamFrameReader.this.connection
+                                        .stream(streamId) == null) {
+                            return;
+                        }
+                        super.onWindowUpdateRead(ctx, streamId, windowSizeIncrement);
+                    }
+                };
+            }
+            this.reader.readFrame(ctx, input, this.decoratedListener);
+        }
+
+        @Override
+        public Configuration configuration() {
+            return this.reader.configuration();
+        }
+
+        @Override
+        public void close() {
+            this.reader.close();
+        }
+    }
+}
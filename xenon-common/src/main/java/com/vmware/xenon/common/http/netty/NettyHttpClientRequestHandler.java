@@ -14,16 +14,24 @@
 package com.vmware.xenon.common.http.netty;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import javax.net.ssl.SSLSession;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -31,24 +39,31 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.AsciiString;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderUtil;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.HttpUtil.ExtensionHeaderNames;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
 import com.vmware.xenon.services.common.authn.AuthenticationConstants;
 
 /**
@@ -59,10 +74,22 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     private static final String ERROR_MSG_DECODING_FAILURE = "Failure decoding HTTP request";
 
+    /**
+     * Query results with at least this many expanded documents are encoded incrementally and
+     * streamed to the client as HTTP chunks, instead of being encoded into a single buffer
+     */
+    public static final int STREAMING_RESPONSE_DOCUMENT_COUNT_THRESHOLD = Integer.getInteger(
+            "xenon.netty.response.streaming.document.count.threshold", 100);
+
     private final ServiceHost host;
 
     private final SslHandler sslHandler;
 
+    /**
+     * HTTP/2 stream of each in flight request, so the response is sent on the same stream
+     */
+    private final Map<Operation, Integer> http2StreamIds = new ConcurrentHashMap<>();
+
     public NettyHttpClientRequestHandler(ServiceHost host, SslHandler sslHandler) {
         this.host = host;
         this.sslHandler = sslHandler;
@@ -81,11 +108,18 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         try {
             // Start of request processing, initialize in-bound operation
             FullHttpRequest nettyRequest = (FullHttpRequest) msg;
-            long expMicros = Utils.getNowMicrosUtc() + this.host.getOperationTimeoutMicros();
-            URI targetUri = new URI(nettyRequest.uri());
+            long expMicros = Utils.getSystemNowMicrosUtc() + this.host.getOperationTimeoutMicros();
             request = Operation.createGet(null);
+            Integer streamId = NettyChannelContext.removeHttp2ExtensionHeaders(
+                    nettyRequest.headers());
+            if (streamId != null) {
+                this.http2StreamIds.put(request, streamId);
+            }
+
+            URI targetUri = new URI(nettyRequest.uri());
             request.setAction(Action.valueOf(nettyRequest.method().toString()))
-                    .setExpiration(expMicros);
+                    .setExpiration(expMicros)
+                    .setFromRemoteClient(true);
             URI uri = new URI(UriUtils.HTTP_SCHEME, null, ServiceHost.LOCAL_HOST,
                     this.host.getPort(), targetUri.getPath(), targetUri.getQuery(), null);
             request.setUri(uri);
@@ -125,6 +159,19 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             return;
         }
 
+        String contentType = request.getContentType();
+        if (contentType != null && contentType.contains(Operation.MEDIA_TYPE_APPLICATION_KRYO)
+                && !this.host.isSystemUserRequest(request)) {
+            // binary bodies are only decoded for peers, other clients must send JSON
+            request.setStatusCode(Operation.STATUS_CODE_UNSUPPORTED_TYPE)
+                    .setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON)
+                    .setBodyNoCloning(ServiceErrorResponse.create(new IllegalArgumentException(
+                            "Unsupported content type: " + contentType),
+                            Operation.STATUS_CODE_UNSUPPORTED_TYPE));
+            sendResponse(ctx, request);
+            return;
+        }
+
         request.nestCompletion((o, e) -> {
             if (e != null) {
                 request.setStatusCode(Operation.STATUS_CODE_BAD_REQUEST);
@@ -174,12 +221,24 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             request.setCookies(CookieJar.decodeCookies(cookie));
         }
 
+        String priority = headers.getAndRemoveAndConvert(Operation.PRIORITY_HEADER);
+
         for (Entry<String, String> h : headers.entriesConverted()) {
             String key = h.getKey();
             String value = h.getValue();
             request.addRequestHeader(key, value);
         }
 
+        // only peers, authenticated as the system user, choose the class of a request. Other
+        // clients keep the default class, and are shed like any other client request
+        if (priority != null && this.host.isSystemUserRequest(request)) {
+            try {
+                request.setPriority(Operation.Priority.valueOf(priority));
+            } catch (IllegalArgumentException e) {
+                // unknown classes are ignored, the request keeps the default class
+            }
+        }
+
         if (this.sslHandler == null) {
             return;
         }
@@ -271,13 +330,14 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
     }
 
     private void writeResponseUnsafe(ChannelHandlerContext ctx, Operation request) {
+        if (isStreamingResponse(request) && writeStreamingResponse(ctx, request)) {
+            return;
+        }
+
         ByteBuf bodyBuffer = null;
         FullHttpResponse response;
         try {
-            byte[] data = Utils.encodeBody(request);
-            if (data != null) {
-                bodyBuffer = Unpooled.wrappedBuffer(data);
-            }
+            bodyBuffer = Utils.encodeBody(request, ctx.alloc());
         } catch (Throwable e1) {
             // Note that this is a program logic error - some service isn't properly checking or setting Content-Type
             this.host.log(Level.SEVERE, "Error encoding body: %s", Utils.toString(e1));
@@ -298,7 +358,12 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             return;
         }
 
-        if (bodyBuffer == null || request.getStatusCode() == Operation.STATUS_CODE_NOT_MODIFIED) {
+        if (bodyBuffer != null && request.getStatusCode() == Operation.STATUS_CODE_NOT_MODIFIED) {
+            bodyBuffer.release();
+            bodyBuffer = null;
+        }
+
+        if (bodyBuffer == null) {
             response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
                     HttpResponseStatus.valueOf(request.getStatusCode()), false, false);
         } else {
@@ -310,7 +375,82 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
                 request.getContentType());
         response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH,
                 response.content().readableBytes());
+        addResponseHeaders(request, response);
+        writeResponse(ctx, request, response);
+    }
+
+    private boolean isStreamingResponse(Operation request) {
+        // the HTTP/2 codec only encodes full responses
+        if (!request.hasBody() || this.http2StreamIds.containsKey(request)
+                || request.getStatusCode() == Operation.STATUS_CODE_NOT_MODIFIED) {
+            return false;
+        }
+
+        String contentType = request.getContentType();
+        if (contentType != null && !contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+            return false;
+        }
+
+        Object body = request.getBodyRaw();
+        ServiceDocumentQueryResult r = null;
+        if (body instanceof ServiceDocumentQueryResult) {
+            r = (ServiceDocumentQueryResult) body;
+        } else if (body instanceof QueryTask) {
+            r = ((QueryTask) body).results;
+        }
+        return r != null && r.documents != null
+                && r.documents.size() >= STREAMING_RESPONSE_DOCUMENT_COUNT_THRESHOLD;
+    }
+
+    /**
+     * Writes the response headers, then the body as HTTP chunks. Documents are encoded as the
+     * chunked write handler pulls chunks, which it only does while the channel is writable, so
+     * neither the encoded body nor a backlog of unsent chunks is held in memory. Returns false,
+     * with nothing written, if the body can not be streamed
+     */
+    private boolean writeStreamingResponse(ChannelHandlerContext ctx, Operation request) {
+        QueryResultChunkedInput input;
+        try {
+            input = new QueryResultChunkedInput(request.getBodyRaw(),
+                    request.getAction() == Action.GET);
+        } catch (Throwable e) {
+            this.host.log(Level.WARNING, "Error encoding streamed body: %s", Utils.toString(e));
+            return false;
+        }
+
+        if (request.getContentType() == null) {
+            request.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf(request.getStatusCode()), false);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, request.getContentType());
+        HttpHeaderUtil.setTransferEncodingChunked(response, true);
+        addResponseHeaders(request, response);
+
+        boolean isClose = !request.isKeepAlive();
+        response.headers().set(HttpHeaderNames.CONNECTION,
+                isClose ? HttpHeaderValues.CLOSE : HttpHeaderValues.KEEP_ALIVE);
+
+        ctx.channel().attr(NettyChannelContext.OPERATION_KEY).remove();
+        ctx.write(response);
+        ChannelFuture future = ctx.writeAndFlush(new HttpChunkedInput(input));
+        future.addListener((ChannelFutureListener) f -> {
+            if (!f.isSuccess()) {
+                // headers are already sent, the only option is to abort the response
+                this.host.log(Level.WARNING, "Error streaming body: %s",
+                        Utils.toString(f.cause()));
+                f.channel().close();
+            }
+        });
+
+        if (isClose) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        return true;
+    }
 
+    private void addResponseHeaders(Operation request, HttpResponse response) {
         // add any other custom headers associated with operation
         for (Entry<String, String> nameValue : request.getResponseHeaders().entrySet()) {
             response.headers().set(nameValue.getKey(), nameValue.getValue());
@@ -329,13 +469,11 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             // Add an Max-Age qualifier if an expiration is set in the Claims object
             if (authorizationContext.getClaims().getExpirationTime() != null) {
                 buf.append("; Max-Age=");
-                long maxAge = authorizationContext.getClaims().getExpirationTime() - Utils.getNowMicrosUtc();
+                long maxAge = authorizationContext.getClaims().getExpirationTime() - Utils.getSystemNowMicrosUtc();
                 buf.append(maxAge > 0 ? TimeUnit.MICROSECONDS.toSeconds(maxAge) : 0);
             }
             response.headers().add(Operation.SET_COOKIE_HEADER, buf.toString());
         }
-
-        writeResponse(ctx, request, response);
     }
 
     @Override
@@ -365,6 +503,14 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     private void writeResponse(ChannelHandlerContext ctx, Operation request,
             FullHttpResponse response) {
+        Integer streamId = this.http2StreamIds.remove(request);
+        if (streamId != null && response != null) {
+            // connection management headers do not apply to a single HTTP/2 stream
+            response.headers().setInt(ExtensionHeaderNames.STREAM_ID.text(), streamId);
+            ctx.writeAndFlush(response);
+            return;
+        }
+
         boolean isClose = !request.isKeepAlive() || response == null;
         Object rsp = Unpooled.EMPTY_BUFFER;
         if (response != null) {
@@ -380,4 +526,134 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             future.addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    /**
+     * Encodes a query result, or a query task with results, as chunks of about
+     * {@link NettyChannelContext#MAX_CHUNK_SIZE} bytes, one chunk per call. A shallow copy of
+     * the body is first encoded with a placeholder for its documents, then the documents are
+     * encoded one at a time in place of the placeholder, with the same JSON mapper and format.
+     * The body itself is never modified, since it can be shared, for example with the cached
+     * results of a direct query task
+     */
+    private static class QueryResultChunkedInput implements ChunkedInput<ByteBuf> {
+        private final boolean isHtml;
+        private final Iterator<Entry<String, Object>> documents;
+        private String prefix;
+        private String suffix;
+        private boolean isFirstDocument = true;
+        private long progress;
+
+        QueryResultChunkedInput(Object body, boolean isHtml) {
+            this.isHtml = isHtml;
+            ServiceDocumentQueryResult r;
+            if (body instanceof QueryTask) {
+                QueryTask task = copyFields((QueryTask) body);
+                task.results = copyFields(task.results);
+                r = task.results;
+                body = task;
+            } else {
+                r = copyFields((ServiceDocumentQueryResult) body);
+                body = r;
+            }
+
+            // the placeholder is unique to this response, so it can not collide with any
+            // other string in the body
+            String placeholder = UUID.randomUUID().toString();
+            Map<String, Object> documents = r.documents;
+            r.documents = Collections.singletonMap(placeholder, placeholder);
+            String encoded = encode(body);
+
+            String placeholderJson = '"' + placeholder + '"';
+            int start = encoded.indexOf(placeholderJson);
+            int end = encoded.indexOf(placeholderJson, start + placeholderJson.length())
+                    + placeholderJson.length();
+            this.prefix = encoded.substring(0, start);
+            this.suffix = encoded.substring(end);
+            this.documents = documents.entrySet().iterator();
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return this.suffix == null;
+        }
+
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) {
+            if (isEndOfInput()) {
+                return null;
+            }
+
+            ByteBuf chunk = ctx.alloc().buffer(NettyChannelContext.MAX_CHUNK_SIZE);
+            if (this.prefix != null) {
+                ByteBufUtil.writeUtf8(chunk, this.prefix);
+                this.prefix = null;
+            }
+
+            while (chunk.readableBytes() < NettyChannelContext.MAX_CHUNK_SIZE
+                    && this.documents.hasNext()) {
+                Entry<String, Object> e = this.documents.next();
+                // encoded as a single entry object, without its braces, so keys and values
+                // are escaped exactly as in a full encoding of the documents. Entries with null
+                // values encode to an empty object, and are skipped like in a full encoding
+                String entry = encode(Collections.singletonMap(e.getKey(), e.getValue())).trim();
+                entry = entry.substring(1, entry.length() - 1).trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                if (!this.isFirstDocument) {
+                    ByteBufUtil.writeUtf8(chunk, this.isHtml ? ",\n" : ",");
+                }
+                this.isFirstDocument = false;
+                ByteBufUtil.writeUtf8(chunk, entry);
+            }
+
+            if (!this.documents.hasNext()) {
+                ByteBufUtil.writeUtf8(chunk, this.suffix);
+                this.suffix = null;
+            }
+            this.progress += chunk.readableBytes();
+            return chunk;
+        }
+
+        @Override
+        public void close() {
+            this.suffix = null;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public long progress() {
+            return this.progress;
+        }
+
+        private String encode(Object body) {
+            return this.isHtml ? Utils.toJsonHtml(body) : Utils.toJson(body);
+        }
+
+        /**
+         * Returns a shallow copy of the given instance, sharing its field values
+         */
+        @SuppressWarnings("unchecked")
+        private static <T> T copyFields(T source) {
+            try {
+                T copy = (T) source.getClass().newInstance();
+                for (Class<?> c = source.getClass(); c != Object.class; c = c.getSuperclass()) {
+                    for (Field f : c.getDeclaredFields()) {
+                        if (Modifier.isStatic(f.getModifiers())) {
+                            continue;
+                        }
+                        f.setAccessible(true);
+                        f.set(copy, f.get(source));
+                    }
+                }
+                return copy;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
 }
@@ -31,6 +31,7 @@ public class NettyHttpClientRequestInitializer extends ChannelInitializer<Socket
     public static final String DCP_HANDLER = "dcp";
     public static final String DECODER_HANDLER = "decoder";
     public static final String ENCODER_HANDLER = "encoder";
+    public static final String HTTP2_HANDLER = "http2";
     public static final String SSL_HANDLER = "ssl";
 
     private final NettyChannelPool pool;
@@ -50,6 +51,12 @@ public class NettyHttpClientRequestInitializer extends ChannelInitializer<Socket
             engine.setUseClientMode(true);
             p.addLast(SSL_HANDLER, new SslHandler(engine));
         }
+        if (this.pool.isHttp2Only()) {
+            p.addLast(HTTP2_HANDLER, NettyHttp2ConnectionHandler.create(false,
+                    SocketContext.getMaxClientRequestSize()));
+            p.addLast(DCP_HANDLER, new NettyHttpServerResponseHandler(this.pool));
+            return;
+        }
         p.addLast(ENCODER_HANDLER, new HttpRequestEncoder());
         p.addLast(DECODER_HANDLER, new HttpResponseDecoder(
                 NettyChannelContext.MAX_INITIAL_LINE_LENGTH,
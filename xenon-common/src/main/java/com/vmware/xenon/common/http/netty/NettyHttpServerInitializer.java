@@ -13,14 +13,23 @@
 
 package com.vmware.xenon.common.http.netty;
 
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.SslClientAuthMode;
@@ -32,6 +41,9 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
     public static final String WEBSOCKET_HANDLER = "websocket-request-handler";
     public static final String DECODER_HANDLER = "decoder";
     public static final String ENCODER_HANDLER = "encoder";
+    public static final String CHUNKED_WRITE_HANDLER = "chunked-write";
+    public static final String HTTP2_HANDLER = "http2";
+    public static final String HTTP2_DETECTOR_HANDLER = "http2-detector";
     public static final String SSL_HANDLER = "ssl";
 
     private final SslContext sslContext;
@@ -66,6 +78,8 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
                 }
             }
             p.addLast(SSL_HANDLER, sslHandler);
+        } else {
+            p.addLast(HTTP2_DETECTOR_HANDLER, new Http2PrefaceDetector());
         }
 
         p.addLast(DECODER_HANDLER, new HttpRequestDecoder(
@@ -73,6 +87,7 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
                 NettyChannelContext.MAX_HEADER_SIZE,
                 NettyChannelContext.MAX_CHUNK_SIZE, false));
         p.addLast(ENCODER_HANDLER, new HttpResponseEncoder());
+        p.addLast(CHUNKED_WRITE_HANDLER, new ChunkedWriteHandler());
         p.addLast(AGGREGATOR_HANDLER,
                 new HttpObjectAggregator(NettyChannelContext.getMaxRequestSize()));
         p.addLast(WEBSOCKET_HANDLER, new NettyWebSocketRequestHandler(this.host,
@@ -80,4 +95,45 @@ public class NettyHttpServerInitializer extends ChannelInitializer<SocketChannel
                 ServiceUriPaths.WEB_SOCKET_SERVICE_PREFIX));
         p.addLast(HTTP_REQUEST_HANDLER, new NettyHttpClientRequestHandler(this.host, sslHandler));
     }
+
+    /**
+     * Replaces the HTTP/1.1 codecs with the HTTP/2 codec. Requests and responses are translated
+     * to and from full HTTP messages, so the request handler serves both protocols
+     */
+    private static void configureHttp2(ChannelPipeline p) {
+        p.remove(DECODER_HANDLER);
+        p.remove(ENCODER_HANDLER);
+        p.remove(CHUNKED_WRITE_HANDLER);
+        p.remove(AGGREGATOR_HANDLER);
+        p.remove(WEBSOCKET_HANDLER);
+        p.addBefore(HTTP_REQUEST_HANDLER, HTTP2_HANDLER, NettyHttp2ConnectionHandler.create(true,
+                NettyChannelContext.getMaxRequestSize()));
+    }
+
+    /**
+     * Inspects the first bytes sent on a plain text connection. Clients with prior knowledge of
+     * HTTP/2 start with the connection preface, all other connections keep the HTTP/1.1 pipeline
+     */
+    private static class Http2PrefaceDetector extends ByteToMessageDecoder {
+        private static final ByteBuf CONNECTION_PREFACE = Unpooled
+                .unreleasableBuffer(Http2CodecUtil.connectionPrefaceBuf());
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int prefaceLength = CONNECTION_PREFACE.readableBytes();
+            int length = Math.min(in.readableBytes(), prefaceLength);
+            boolean isPreface = ByteBufUtil.equals(in.slice(in.readerIndex(), length),
+                    CONNECTION_PREFACE.slice(CONNECTION_PREFACE.readerIndex(), length));
+            if (isPreface && length < prefaceLength) {
+                // wait for the rest of the preface
+                return;
+            }
+
+            if (isPreface) {
+                configureHttp2(ctx.pipeline());
+            }
+            // buffered bytes, including the preface, are passed on to the next handler
+            ctx.pipeline().remove(this);
+        }
+    }
 }
@@ -14,6 +14,7 @@
 package com.vmware.xenon.common.http.netty;
 
 import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
 import java.util.EnumSet;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
@@ -25,8 +26,8 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderUtil;
 import io.netty.handler.codec.http.HttpHeaders;
-import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http2.Http2Settings;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceErrorResponse;
@@ -35,9 +36,9 @@ import com.vmware.xenon.common.Utils;
 
 /**
  * Processes responses from a remote HTTP server and completes the request associated with the
- * channel
+ * channel, or with the HTTP/2 stream
  */
-public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<HttpObject> {
+public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<Object> {
 
     private NettyChannelPool pool;
 
@@ -46,16 +47,38 @@ public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<
     }
 
     @Override
-    public void messageReceived(ChannelHandlerContext ctx, HttpObject msg) {
-        Operation request = ctx.channel().attr(NettyChannelContext.OPERATION_KEY).get();
+    public void messageReceived(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Http2Settings) {
+            this.pool.handleHttp2Settings(
+                    ctx.channel().attr(NettyChannelContext.CHANNEL_CONTEXT_KEY).get());
+            return;
+        }
         if (msg instanceof FullHttpResponse) {
             FullHttpResponse response = (FullHttpResponse) msg;
+            Operation request = getRequest(ctx, response);
+            if (request == null) {
+                // HTTP/2 stream was already failed, or expired
+                return;
+            }
             request.setStatusCode(response.status().code());
             parseResponseHeaders(request, response);
             completeRequest(ctx, request, response.content());
         }
     }
 
+    private Operation getRequest(ChannelHandlerContext ctx, FullHttpResponse response) {
+        NettyChannelContext context = ctx.channel().attr(NettyChannelContext.CHANNEL_CONTEXT_KEY)
+                .get();
+        if (context == null) {
+            return ctx.channel().attr(NettyChannelContext.OPERATION_KEY).get();
+        }
+        Integer streamId = NettyChannelContext.removeHttp2ExtensionHeaders(response.headers());
+        if (streamId == null) {
+            return null;
+        }
+        return context.removeStreamOperation(streamId);
+    }
+
     private void parseResponseHeaders(Operation request, HttpResponse nettyResponse) {
         HttpHeaders headers = nettyResponse.headers();
         if (headers.isEmpty()) {
@@ -114,9 +137,28 @@ public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<
         request.complete();
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        NettyChannelContext context = ctx.channel().attr(NettyChannelContext.CHANNEL_CONTEXT_KEY)
+                .get();
+        if (context != null) {
+            this.pool.closeHttp2Context(context);
+            for (Operation request : context.removeStreamOperations()) {
+                failRequest(request, new ClosedChannelException());
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         Logger.getAnonymousLogger().warning(Utils.toString(cause));
+        if (ctx.channel().attr(NettyChannelContext.CHANNEL_CONTEXT_KEY).get() != null) {
+            // streams in flight are failed when the HTTP/2 connection becomes inactive
+            ctx.close();
+            return;
+        }
+
         Operation request = ctx.channel().attr(NettyChannelContext.OPERATION_KEY).get();
 
         if (request == null) {
@@ -124,6 +166,10 @@ public class NettyHttpServerResponseHandler extends SimpleChannelInboundHandler<
             return;
         }
 
+        failRequest(request, cause);
+    }
+
+    private void failRequest(Operation request, Throwable cause) {
         // I/O exception this code recommends retry since it never made it to the remote end
         request.setStatusCode(Operation.STATUS_CODE_BAD_REQUEST);
         request.setBody(ServiceErrorResponse.create(cause, request.getStatusCode(),
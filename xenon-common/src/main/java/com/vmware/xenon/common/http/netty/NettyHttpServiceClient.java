@@ -27,15 +27,16 @@ import java.util.logging.Logger;
 import javax.net.ssl.SSLContext;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.ClientCookieDecoder;
 import io.netty.handler.codec.http.Cookie;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.HttpUtil.ExtensionHeaderNames;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
@@ -60,6 +61,20 @@ public class NettyHttpServiceClient implements ServiceClient {
      */
     public static final int DEFAULT_CONNECTIONS_PER_HOST = 128;
 
+    /**
+     * Number of HTTP/2 connections to a remote host. Requests are multiplexed as concurrent streams
+     * so a few connections are enough to keep the network busy
+     */
+    public static final int DEFAULT_HTTP2_CONNECTIONS_PER_HOST = Integer.getInteger(
+            "xenon.netty.http2.connections.per.host", 2);
+
+    /**
+     * Requests to HTTP (not HTTPS) URIs are sent over HTTP/2 connections, falling back to
+     * HTTP/1.1 for hosts that do not accept HTTP/2
+     */
+    public static final boolean IS_HTTP2_ENABLED = Boolean.parseBoolean(System.getProperty(
+            "xenon.netty.http2.enabled", "false"));
+
     public static final Logger LOGGER = Logger.getLogger(ServiceClient.class
             .getName());
     private static final String ENV_VAR_NAME_HTTP_PROXY = "http_proxy";
@@ -71,6 +86,8 @@ public class NettyHttpServiceClient implements ServiceClient {
 
     private NettyChannelPool sslChannelPool;
     private NettyChannelPool channelPool;
+    private NettyChannelPool http2ChannelPool;
+    private boolean isHttp2Enabled = IS_HTTP2_ENABLED;
 
     private ScheduledExecutorService scheduledExecutor;
     private ExecutorService executor;
@@ -137,6 +154,16 @@ public class NettyHttpServiceClient implements ServiceClient {
             this.sslChannelPool.start();
         }
 
+        if (this.isHttp2Enabled) {
+            this.http2ChannelPool = new NettyChannelPool(this.executor);
+            this.http2ChannelPool.setThreadTag(buildThreadTag());
+            this.http2ChannelPool.setThreadCount(DEFAULT_EVENT_LOOP_THREAD_COUNT);
+            this.http2ChannelPool.setHttp2Only(true);
+            this.http2ChannelPool.setFallbackPool(this.channelPool);
+            this.http2ChannelPool.setConnectionLimitPerHost(DEFAULT_HTTP2_CONNECTIONS_PER_HOST);
+            this.http2ChannelPool.start();
+        }
+
         if (this.host != null) {
             Operation startCallbackPost = Operation
                     .createPost(UriUtils.buildUri(this.host, ServiceUriPaths.CORE_CALLBACKS))
@@ -158,6 +185,10 @@ public class NettyHttpServiceClient implements ServiceClient {
         if (this.sslChannelPool != null) {
             this.sslChannelPool.stop();
         }
+        if (this.http2ChannelPool != null) {
+            this.http2ChannelPool.stop();
+            this.http2ChannelPool = null;
+        }
         this.isStarted = false;
 
         if (this.host != null) {
@@ -165,6 +196,25 @@ public class NettyHttpServiceClient implements ServiceClient {
         }
     }
 
+    /**
+     * Enables HTTP/2 for requests to HTTP URIs. Must be set before the client is started
+     */
+    public NettyHttpServiceClient setHttp2Enabled(boolean enable) {
+        if (this.isStarted) {
+            throw new IllegalStateException("Already started");
+        }
+        this.isHttp2Enabled = enable;
+        return this;
+    }
+
+    public boolean isHttp2Enabled() {
+        return this.isHttp2Enabled;
+    }
+
+    NettyChannelPool getHttp2ChannelPool() {
+        return this.http2ChannelPool;
+    }
+
     public ServiceClient setHttpProxy(URI proxy) {
         this.httpProxy = proxy;
         return this;
@@ -235,7 +285,7 @@ public class NettyHttpServiceClient implements ServiceClient {
 
     private void sendWithCallbackSingleRequest(Operation req) {
         if (req.getExpirationMicrosUtc() == 0) {
-            req.setExpiration(Utils.getNowMicrosUtc()
+            req.setExpiration(Utils.getSystemNowMicrosUtc()
                     + this.host.getOperationTimeoutMicros());
         }
 
@@ -322,6 +372,10 @@ public class NettyHttpServiceClient implements ServiceClient {
             if (port == -1) {
                 port = UriUtils.HTTP_DEFAULT_PORT;
             }
+            // requests through a proxy stay on HTTP/1.1
+            if (this.http2ChannelPool != null && uri == op.getUri()) {
+                pool = this.http2ChannelPool;
+            }
         } else if (uri.getScheme().equals(UriUtils.HTTPS_SCHEME)) {
             if (port == -1) {
                 port = UriUtils.HTTPS_DEFAULT_PORT;
@@ -347,8 +401,13 @@ public class NettyHttpServiceClient implements ServiceClient {
     }
 
     private void sendRequest(Operation op) {
+        ByteBuf body = null;
         try {
-            byte[] body = Utils.encodeBody(op);
+            body = Utils.encodeBody(op, NettyChannelContext.ALLOCATOR);
+            if (body != null && !body.isReadable()) {
+                body.release();
+                body = null;
+            }
             String pathAndQuery;
             String path = op.getUri().getPath();
             String query = op.getUri().getQuery();
@@ -366,18 +425,26 @@ public class NettyHttpServiceClient implements ServiceClient {
             HttpRequest request = null;
             HttpMethod method = HttpMethod.valueOf(op.getAction().toString());
 
-            if (body == null || body.length == 0) {
+            if (body == null) {
                 request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, pathAndQuery);
             } else {
-                ByteBuf content = Unpooled.wrappedBuffer(body);
                 request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, pathAndQuery,
-                        content, false);
+                        body, false);
             }
 
             for (Entry<String, String> nameValue : op.getRequestHeaders().entrySet()) {
                 request.headers().set(nameValue.getKey(), nameValue.getValue());
             }
 
+            String pragmaHeader = op.getRequestHeader(Operation.PRAGMA_HEADER);
+            if (pragmaHeader != null) {
+                request.headers().set(Operation.PRAGMA_HEADER, pragmaHeader);
+            }
+
+            if (op.hasPriority()) {
+                request.headers().set(Operation.PRIORITY_HEADER, op.getPriority().name());
+            }
+
             request.headers().set(HttpHeaderNames.CONTENT_LENGTH,
                     Long.toString(op.getContentLength()));
             request.headers().set(HttpHeaderNames.CONTENT_TYPE, op.getContentType());
@@ -398,10 +465,14 @@ public class NettyHttpServiceClient implements ServiceClient {
 
             request.headers().set(HttpHeaderNames.USER_AGENT, this.userAgent);
             request.headers().set(HttpHeaderNames.ACCEPT, "*/*");
-            request.headers().set(
-                    HttpHeaderNames.HOST,
-                    op.getUri().getHost()
-                            + ((op.getUri().getPort() != -1) ? (":" + op.getUri().getPort()) : ""));
+            String authority = op.getUri().getHost()
+                    + ((op.getUri().getPort() != -1) ? (":" + op.getUri().getPort()) : "");
+            NettyChannelContext ctx = (NettyChannelContext) op.getSocketContext();
+            if (ctx.isHttp2()) {
+                request.headers().set(ExtensionHeaderNames.AUTHORITY.text(), authority);
+            } else {
+                request.headers().set(HttpHeaderNames.HOST, authority);
+            }
 
             op.nestCompletion((o, e) -> {
                 if (e != null) {
@@ -414,8 +485,17 @@ public class NettyHttpServiceClient implements ServiceClient {
                 op.complete();
             });
 
-            op.getSocketContext().writeHttpRequest(request);
+            // the channel owns the body buffer from here on, and releases it once written
+            body = null;
+            if (ctx.isHttp2()) {
+                ctx.writeHttp2Request(op, (FullHttpRequest) request);
+            } else {
+                ctx.writeHttpRequest(request);
+            }
         } catch (Throwable e) {
+            if (body != null) {
+                body.release();
+            }
             op.setBody(ServiceErrorResponse.create(e, Operation.STATUS_CODE_BAD_REQUEST,
                     EnumSet.of(ErrorDetail.SHOULD_RETRY)));
             fail(e, op);
@@ -430,6 +510,8 @@ public class NettyHttpServiceClient implements ServiceClient {
 
         if (this.sslChannelPool != null && this.sslChannelPool.isContextInUse(ctx)) {
             pool = this.sslChannelPool;
+        } else if (ctx != null && ctx.isHttp2() && this.http2ChannelPool != null) {
+            pool = this.http2ChannelPool;
         }
 
         op.setSocketContext(null);
@@ -510,6 +592,9 @@ public class NettyHttpServiceClient implements ServiceClient {
         if (this.sslChannelPool != null) {
             this.sslChannelPool.handleMaintenance(Operation.createPost(op.getUri()));
         }
+        if (this.http2ChannelPool != null) {
+            this.http2ChannelPool.handleMaintenance(Operation.createPost(op.getUri()));
+        }
         this.channelPool.handleMaintenance(op);
     }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import java.net.URI;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.google.gson.internal.LinkedTreeMap;
+
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
+import com.vmware.xenon.common.ServiceErrorResponse;
+import com.vmware.xenon.common.ServiceStats.ServiceStat;
+import com.vmware.xenon.common.ServiceStats.ServiceStatLogHistogram;
+import com.vmware.xenon.common.TaskState;
+import com.vmware.xenon.services.common.QueryTask.NumericRange;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification;
+import com.vmware.xenon.services.common.QueryTask.Query;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QueryTerm;
+
+/**
+ * Class resolver for binary bodies received from peers. Only classes that appear in documents
+ * and framework responses are resolved: primitives, boxed types and strings, enums, JDK value and
+ * collection types, documents and error responses, the framework classes used in their
+ * properties, and the property classes of documents described by this process. Any other class,
+ * including other framework classes, fails the decode before an instance of it is created
+ */
+public class BinaryBodyClassResolver extends DefaultClassResolver {
+
+    private static final Set<Class<?>> KNOWN_CLASSES = new HashSet<>(Arrays.asList(
+            Object.class, Boolean.class, Byte.class, Character.class, Short.class,
+            Integer.class, Long.class, Float.class, Double.class, String.class,
+            Date.class, UUID.class, URI.class, Instant.class, ZonedDateTime.class,
+            ArrayList.class, LinkedList.class, ArrayDeque.class, HashSet.class,
+            LinkedHashSet.class, TreeSet.class, HashMap.class, LinkedHashMap.class,
+            TreeMap.class, EnumMap.class, ConcurrentHashMap.class,
+            ConcurrentSkipListMap.class, ConcurrentSkipListSet.class,
+            ConcurrentLinkedQueue.class, CopyOnWriteArrayList.class,
+            // map implementation of documents deserialized from JSON
+            LinkedTreeMap.class));
+
+    /**
+     * Framework classes used in properties of framework documents, which are not documents
+     * themselves
+     */
+    private static final Set<Class<?>> FRAMEWORK_CLASSES = new HashSet<>(Arrays.asList(
+            ServiceDocumentDescription.class, PropertyDescription.class,
+            ServiceStat.class, ServiceStatLogHistogram.class, AggregationResult.class,
+            TaskState.class, QuerySpecification.class, PostProcessingSpecification.class,
+            Query.class, QueryTerm.class, NumericRange.class));
+
+    private static final Set<Class<?>> describedClasses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Allows a document, or a class of one of its properties, in binary bodies
+     */
+    public static void allowClass(Class<?> type) {
+        describedClasses.add(type);
+    }
+
+    public static boolean isAllowed(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive() || type.isEnum() || Enum.class.isAssignableFrom(type)) {
+            return true;
+        }
+        if (KNOWN_CLASSES.contains(type) || FRAMEWORK_CLASSES.contains(type)
+                || describedClasses.contains(type)) {
+            return true;
+        }
+        if (ServiceDocument.class.isAssignableFrom(type)
+                || ServiceErrorResponse.class.isAssignableFrom(type)) {
+            return true;
+        }
+        if (EnumSet.class.isAssignableFrom(type) || ZoneId.class.isAssignableFrom(type)) {
+            // JDK implementation classes of EnumSet and ZoneId
+            return type.getName().startsWith("java.");
+        }
+        return false;
+    }
+
+    @Override
+    protected Registration readName(Input input) {
+        Registration r = super.readName(input);
+        if (r != null && !isAllowed(r.getType())) {
+            throw new KryoException("Class not allowed in binary bodies: "
+                    + r.getType().getName());
+        }
+        return r;
+    }
+}
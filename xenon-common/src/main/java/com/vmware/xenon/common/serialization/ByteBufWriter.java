@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import java.io.Writer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writer encoding characters as UTF-8 directly into a {@link ByteBuf}, without an intermediate
+ * string or byte array. A high surrogate ending a write is held until the next write, so
+ * surrogate pairs split across writes are encoded as a single code point
+ */
+public class ByteBufWriter extends Writer {
+    private static final byte REPLACEMENT = '?';
+
+    private final ByteBuf buffer;
+    private char highSurrogate;
+
+    public ByteBufWriter(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuf getBuffer() {
+        return this.buffer;
+    }
+
+    @Override
+    public void write(int c) {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        this.buffer.ensureWritable(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+        append(str, offset, offset + length);
+    }
+
+    @Override
+    public Writer append(CharSequence chars) {
+        return append(chars, 0, chars.length());
+    }
+
+    @Override
+    public Writer append(CharSequence chars, int start, int end) {
+        this.buffer.ensureWritable(end - start);
+        for (int i = start; i < end; i++) {
+            writeChar(chars.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Writer append(char c) {
+        writeChar(c);
+        return this;
+    }
+
+    private void writeChar(char c) {
+        if (this.highSurrogate != 0) {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                this.buffer.writeByte(0xf0 | (codePoint >> 18));
+                this.buffer.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                this.buffer.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                this.buffer.writeByte(0x80 | (codePoint & 0x3f));
+                return;
+            }
+            this.buffer.writeByte(REPLACEMENT);
+        }
+
+        if (c < 0x80) {
+            this.buffer.writeByte(c);
+        } else if (c < 0x800) {
+            this.buffer.writeByte(0xc0 | (c >> 6));
+            this.buffer.writeByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            this.buffer.writeByte(REPLACEMENT);
+        } else {
+            this.buffer.writeByte(0xe0 | (c >> 12));
+            this.buffer.writeByte(0x80 | ((c >> 6) & 0x3f));
+            this.buffer.writeByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (this.highSurrogate != 0) {
+            // unpaired surrogate, replaced like String.getBytes does
+            this.highSurrogate = 0;
+            this.buffer.writeByte(REPLACEMENT);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -74,6 +74,7 @@ public class JsonMapper {
                 appendable.append(body.toString());
             } catch (IOException ignore) {
             }
+            return;
         }
         this.compact.toJson(body, appendable);
     }
@@ -85,6 +86,14 @@ public class JsonMapper {
         return this.pretty.toJson(body);
     }
 
+    /**
+     * Outputs a JSON representation of the given object in pretty-printed, HTML-friendly JSON
+     * to the given {@link Appendable}.
+     */
+    public void toJsonHtml(Object body, Appendable appendable) {
+        this.pretty.toJson(body, appendable);
+    }
+
     /**
      * Deserializes the given JSON to the target {@link Class}.
      */
@@ -102,8 +111,11 @@ public class JsonMapper {
     public <T> T fromJson(Object json, Type type) {
         if (json instanceof JsonElement) {
             return this.compact.fromJson((JsonElement) json, type);
+        } else if (json instanceof String) {
+            return this.compact.fromJson((String) json, type);
         } else {
-            return this.compact.fromJson(json.toString(), type);
+            // an object of a different type, for example a document in a query result
+            return this.compact.fromJson(this.compact.toJsonTree(json), type);
         }
     }
 
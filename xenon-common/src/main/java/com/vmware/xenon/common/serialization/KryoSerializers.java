@@ -19,8 +19,11 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.UUID;
 
+import com.esotericsoftware.kryo.ClassResolver;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
 
 public final class KryoSerializers {
 
@@ -38,11 +41,26 @@ public final class KryoSerializers {
         }
     }
 
+    /**
+     * Per thread Kryo for bodies received from peers, resolving only the classes allowed by
+     * {@link BinaryBodyClassResolver}
+     */
+    public static class KryoForBinaryBodyThreadLocal extends ThreadLocal<Kryo> {
+        @Override
+        protected Kryo initialValue() {
+            return KryoSerializers.create(false, new BinaryBodyClassResolver());
+        }
+    }
+
     private KryoSerializers() {
     }
 
     public static Kryo create(boolean isObjectSerializer) {
-        Kryo k = new Kryo();
+        return create(isObjectSerializer, new DefaultClassResolver());
+    }
+
+    private static Kryo create(boolean isObjectSerializer, ClassResolver classResolver) {
+        Kryo k = new Kryo(classResolver, new MapReferenceResolver());
         k.setDefaultSerializer(VersionFieldSerializer.class);
         // Custom serializers for Java 8 date/time
         k.addDefaultSerializer(ZonedDateTime.class, ZonedDateTimeSerializer.INSTANCE);
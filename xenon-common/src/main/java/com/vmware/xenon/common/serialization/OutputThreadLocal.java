@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.serialization;
+
+import com.esotericsoftware.kryo.io.Output;
+
+import com.vmware.xenon.common.ServiceHost;
+
+/**
+ * Per thread Kryo output, growing as needed, used to encode binary operation bodies
+ */
+public class OutputThreadLocal extends ThreadLocal<Output> {
+    @Override
+    protected Output initialValue() {
+        return new Output(ServiceHost.DEFAULT_SERVICE_STATE_COST_BYTES, Integer.MAX_VALUE);
+    }
+}
@@ -19,8 +19,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 
 import com.vmware.xenon.common.Claims;
 import com.vmware.xenon.common.Operation;
@@ -372,15 +374,18 @@ public class AuthorizationContextService extends StatelessService {
         builder.setToken(ctx.getToken());
 
         if (!roles.isEmpty()) {
+            Set<String> roleLinks = new HashSet<>();
             Query q = new Query();
             q.occurance = Occurance.MUST_OCCUR;
             for (Role role : roles) {
+                roleLinks.add(role.roleState.documentSelfLink);
                 Query resourceGroupQuery = role.resourceGroupState.query;
                 resourceGroupQuery.occurance = Occurance.SHOULD_OCCUR;
                 q.addBooleanClause(resourceGroupQuery);
             }
 
             builder.setResourceQuery(q);
+            builder.setRoleLinks(roleLinks);
 
             try {
                 builder.setResourceQueryFilter(QueryFilter.create(q));
@@ -284,9 +284,26 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
                     }
                     op.complete();
                 });
+        setPeerMediaType(fwdOp, closest);
         getHost().getClient().send(fwdOp.setUri(remoteService));
     }
 
+    /**
+     * Switches the body of a request to a peer to the media type negotiated with the peer.
+     * Bodies already serialized, or of other media types, are sent as is
+     */
+    private static void setPeerMediaType(Operation peerOp, NodeState peer) {
+        Object body = peerOp.getBodyRaw();
+        if (body == null || body instanceof String || body instanceof byte[]) {
+            return;
+        }
+        String contentType = peerOp.getContentType();
+        if (contentType != null && !contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+            return;
+        }
+        peerOp.setContentType(NodeState.getPeerMediaType(peer, peerOp));
+    }
+
     private SortedMap<BigInteger, NodeState> selectNodes(Operation op, String keyValue,
             NodeGroupState localState, MessageDigest digest, int quorum,
             int availableNodes) {
@@ -416,6 +433,10 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
                     .setReferer(op.getReferer())
                     .setExpiration(op.getExpirationMicrosUtc())
                     .setBody(op.getBodyRaw());
+            if (op.hasPriority()) {
+                remoteOp.setPriority(op.getPriority());
+            }
+            setPeerMediaType(remoteOp, m);
 
             rsp.receivers.add(remoteService);
             availableNodeCount.incrementAndGet();
@@ -439,7 +460,7 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             // operation has expired
             op.fail(new TimeoutException(String.format(
                     "Operation already expired, will not queue. Exp:%d, now:%d",
-                    op.getExpirationMicrosUtc(), Utils.getNowMicrosUtc())));
+                    op.getExpirationMicrosUtc(), Utils.getSystemNowMicrosUtc())));
             return true;
         }
 
@@ -487,6 +508,24 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
 
     }
 
+    /**
+     * Returns the state of the peer listening at the host and port of the URI, or null if the
+     * URI does not belong to a member of the node group
+     */
+    NodeState findPeer(URI peerUri) {
+        NodeGroupState groupState = this.cachedGroupState;
+        if (groupState == null) {
+            return null;
+        }
+        for (NodeState m : groupState.nodes.values()) {
+            if (m.groupReference.getPort() == peerUri.getPort()
+                    && m.groupReference.getHost().equals(peerUri.getHost())) {
+                return m;
+            }
+        }
+        return null;
+    }
+
     private void checkAndScheduleSynchronization() {
         if (getHost().isStopping()) {
             return;
@@ -525,7 +564,7 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             this.cachedGroupState = ngs;
             Operation op = Operation.createPost(null)
                     .setReferer(getUri())
-                    .setExpiration(Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros());
+                    .setExpiration(Utils.getSystemNowMicrosUtc() + getHost().getOperationTimeoutMicros());
             NodeGroupUtils.checkConvergence(getHost(), ngs, op.setCompletion((o1, e1) -> {
                 if (e1 != null) {
                     logWarning("Failed convergence check, will retry: %s", e1.getMessage());
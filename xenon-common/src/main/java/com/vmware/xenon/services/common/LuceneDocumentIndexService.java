@@ -20,67 +20,108 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.esotericsoftware.kryo.KryoException;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexUpgrader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.DocValuesRangeQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FieldValueQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSelector;
+import org.apache.lucene.search.SortedNumericSortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 
 import com.vmware.xenon.common.FileUtils;
@@ -96,6 +137,7 @@ import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.MemoryLimitType;
 import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.StatelessService;
@@ -104,6 +146,7 @@ import com.vmware.xenon.common.TaskState.TaskStage;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.LuceneQueryPageService.LuceneQueryPage;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 
@@ -121,6 +164,31 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private static final String LUCENE_FIELD_NAME_JSON_SERIALIZED_STATE = "jsonSerializedState";
 
+    /**
+     * Numeric doc values field set to 1 on documents superseded by a newer version of the same
+     * self link, and 0 on the latest version. Documents indexed before the field was introduced
+     * have no value, and their latest version is determined with a version lookup
+     */
+    private static final String LUCENE_FIELD_NAME_VERSION_SUPERSEDED = "versionSuperseded";
+
+    /**
+     * Numeric doc values field holding the indexing format of a document. Documents indexed
+     * before the field was introduced have no value: their {@link TypeName#DOUBLE} doc values
+     * hold the value truncated to a long and their owner is not indexed, so aggregations read
+     * both from the serialized state
+     */
+    private static final String LUCENE_FIELD_NAME_INDEXING_FORMAT = "indexingFormat";
+
+    private static final long INDEXING_FORMAT_VERSION = 1;
+
+    /**
+     * Suffix of the sorted numeric doc values field holding the values of a numeric property of
+     * collection items. The property name itself can have numeric doc values in other documents,
+     * for example a map entry named like a collection item, and Lucene allows a single doc values
+     * type per field
+     */
+    private static final String LUCENE_FIELD_NAME_SUFFIX_ITEM_VALUES = "#itemValues";
+
     public static final String STAT_NAME_ACTIVE_QUERY_FILTERS = "activeQueryFilters";
 
     public static final String STAT_NAME_COMMIT_COUNT = "commitCount";
@@ -145,8 +213,30 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_INDEXING_DURATION_MICROS = "indexingDurationMicros";
 
+    public static final String STAT_NAME_INDEXING_BATCH_SIZE = "indexingBatchSize";
+
+    public static final String STAT_NAME_INDEXING_BATCH_DURATION_MICROS = "indexingBatchDurationMicros";
+
+    public static final String STAT_NAME_INDEXING_BATCH_COUNT = "indexingBatchCount";
+
     public static final String STAT_NAME_SEARCHER_UPDATE_COUNT = "indexSearcherUpdateCount";
 
+    public static final String STAT_NAME_SEARCHER_AGE_MICROS = "indexSearcherAgeMicros";
+
+    public static final String STAT_NAME_QUERY_PAGE_SEARCHER_COUNT = "queryPageSearcherCount";
+
+    public static final String STAT_NAME_QUERY_PAGE_SEARCHER_MISS_COUNT = "queryPageSearcherMissCount";
+
+    public static final String STAT_NAME_QUERY_RESULT_CACHE_HIT_COUNT = "queryResultCacheHitCount";
+
+    public static final String STAT_NAME_QUERY_RESULT_CACHE_MISS_COUNT = "queryResultCacheMissCount";
+
+    public static final String STAT_NAME_QUERY_FILTER_CACHE_HIT_COUNT = "queryFilterCacheHitCount";
+
+    public static final String STAT_NAME_QUERY_FILTER_CACHE_MISS_COUNT = "queryFilterCacheMissCount";
+
+    public static final String STAT_NAME_QUERY_FILTER_CACHE_SIZE_BYTES = "queryFilterCacheSizeBytes";
+
     private static final String STAT_NAME_WRITER_ALREADY_CLOSED_EXCEPTION_COUNT = "indexWriterAlreadyClosedFailureCount";
 
     public static final String STAT_NAME_SERVICE_DELETE_COUNT = "serviceDeleteCount";
@@ -159,16 +249,132 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     protected static final int QUERY_THREAD_COUNT = 2;
 
+    /**
+     * Maximum number of index updates written to the index writer as a single group. A value of 1
+     * disables batching, every update is then indexed individually
+     */
+    public static final int UPDATE_BATCH_SIZE_LIMIT = Integer.getInteger(
+            "xenon.luceneindex.update.batch.size.limit", 64);
+
+    /**
+     * Maximum time an indexing thread waits for more updates once the pending updates are
+     * drained, before writing a batch that is under the size limit. A value of 0 writes the
+     * pending updates without waiting
+     */
+    public static final long UPDATE_BATCH_MAX_DELAY_MICROS = Long.getLong(
+            "xenon.luceneindex.update.batch.max.delay.micros", 0);
+
     private static final String DELETE_ACTION = Action.DELETE.toString().intern();
 
+    /**
+     * Interval for the background index searcher refresh. It bounds how stale the searcher used by
+     * {@link QueryOption#DO_NOT_REFRESH} queries can be. All other queries refresh the searcher on
+     * demand, if the index has changed since the last refresh
+     */
+    public static final long SEARCHER_REFRESH_INTERVAL_MICROS = Long.getLong(
+            "xenon.luceneindex.searcher.refresh.interval.micros", TimeUnit.SECONDS.toMicros(1));
+
+    /**
+     * Maximum number of index searchers kept for query pages. Pages of a paginated query are
+     * read from the searcher the query started with, while it is kept, so results stay
+     * consistent across pages. Pages resume from the current searcher otherwise
+     */
+    public static final int QUERY_PAGE_SEARCHER_LIMIT = Integer.getInteger(
+            "xenon.luceneindex.query.page.searcher.limit", 8);
+
+    /**
+     * Time after which an index searcher not used by any query page is released
+     */
+    public static final long QUERY_PAGE_SEARCHER_IDLE_MICROS = Long.getLong(
+            "xenon.luceneindex.query.page.searcher.idle.micros", TimeUnit.MINUTES.toMicros(1));
+
+    /**
+     * Maximum number of non paginated query results kept by the query result cache. Cached
+     * results are only returned while the index searcher they were computed with is current.
+     * Zero disables the cache
+     */
+    public static final int QUERY_RESULT_CACHE_LIMIT = Integer.getInteger(
+            "xenon.luceneindex.query.result.cache.limit", 64);
+
+    /**
+     * Query results with more document links are not cached
+     */
+    public static final int QUERY_RESULT_CACHE_RESULT_COUNT_LIMIT = Integer.getInteger(
+            "xenon.luceneindex.query.result.cache.result.count.limit", 10000);
+
+    /**
+     * Maximum estimated size of the results kept by the query result cache
+     */
+    public static final long QUERY_RESULT_CACHE_SIZE_LIMIT_BYTES = Long.getLong(
+            "xenon.luceneindex.query.result.cache.size.limit.bytes", 32 * 1024 * 1024);
+
+    /**
+     * Maximum number of query clauses, such as document kind terms and self link prefixes,
+     * with per segment matching documents cached by the index searchers
+     */
+    public static final int QUERY_FILTER_CACHE_LIMIT = Integer.getInteger(
+            "xenon.luceneindex.query.filter.cache.limit", 256);
+
+    /**
+     * Maximum memory used by the per segment matching documents of cached query clauses
+     */
+    public static final long QUERY_FILTER_CACHE_SIZE_BYTES = Long.getLong(
+            "xenon.luceneindex.query.filter.cache.size.bytes", 32 * 1024 * 1024);
+
     protected final Object searchSync = new Object();
-    protected IndexSearcher searcher = null;
+    protected SearcherManager searcherManager = null;
+
+    /**
+     * Held shared while superseded versions are flagged and the new versions are added, and
+     * exclusively while the searcher is refreshed, so a searcher never observes a self link
+     * with all of its versions flagged as superseded
+     */
+    private final ReentrantReadWriteLock searcherRefreshLock = new ReentrantReadWriteLock();
+
+    /**
+     * Number of locks serializing the version updates of self links hashed to them
+     */
+    private static final int VERSION_UPDATE_LOCK_COUNT = 1024;
+
+    /**
+     * Serialize batches flagging superseded versions of the same self link, so that they compare
+     * against, and flag, each other's versions in order. A batch holds the locks of its self
+     * links, acquired in index order, so batches for unrelated links are written in parallel
+     */
+    private final ReentrantLock[] versionUpdateLocks =
+            new ReentrantLock[VERSION_UPDATE_LOCK_COUNT];
+
+    /**
+     * True once the index contains the superseded version doc values field. The writer rejects
+     * doc values updates for fields it has not seen
+     */
+    private volatile boolean hasVersionSupersededField;
+
+    /**
+     * True while every self link with indexed documents has an entry in {@link #selfLinks}:
+     * the index was empty when opened, and no entries have been pruned since. Links without
+     * an entry then have no indexed versions, and need no lookup in the index
+     */
+    private volatile boolean hasSelfLinkInfoForAllLinks;
+
     protected IndexWriter writer = null;
     protected final Semaphore writerAvailable = new Semaphore(
             UPDATE_THREAD_COUNT + QUERY_THREAD_COUNT);
 
     protected Map<String, QueryTask> activeQueries = new ConcurrentSkipListMap<>();
 
+    /**
+     * Index of the active continuous queries, to find the queries an updated document might
+     * match
+     */
+    private final QueryFilterIndex activeQueryIndex = new QueryFilterIndex();
+
+    /**
+     * Index update requests waiting for an indexing thread. Updates are drained in batches so
+     * the writer semaphore, writer calls and completions are amortized across many requests
+     */
+    protected final LinkedBlockingQueue<Operation> pendingUpdates = new LinkedBlockingQueue<>();
+
     static class SelfLinkInfo {
         // Estimate of the memory cost per instance:
         // 16 bytes for Object overhead
@@ -188,8 +394,14 @@ public class LuceneDocumentIndexService extends StatelessService {
      */
     private final ConcurrentSkipListMap<String, SelfLinkInfo> selfLinks = new ConcurrentSkipListMap<>();
 
+    /**
+     * Time before the most recent searcher refresh started. All index updates before this time
+     * are visible to the current searcher
+     */
     private long searcherUpdateTimeMicros;
 
+    private long searcherCreationTimeMicros;
+
     private long indexUpdateTimeMicros;
 
     private long indexWriterCreationTimeMicros;
@@ -198,15 +410,34 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private Sort versionSort;
 
+    private static class PageSearcher {
+        IndexSearcher searcher;
+        long lastUseMicros;
+    }
+
+    /**
+     * Index searchers used by query pages, by reader version, in least recently used order
+     */
+    private final LinkedHashMap<Long, PageSearcher> pageSearchers = new LinkedHashMap<>(16,
+            0.75f, true);
+
+    private final LuceneQueryResultCache queryResultCache = new LuceneQueryResultCache(
+            QUERY_RESULT_CACHE_LIMIT, QUERY_RESULT_CACHE_RESULT_COUNT_LIMIT,
+            QUERY_RESULT_CACHE_SIZE_LIMIT_BYTES);
+
+    private final LRUQueryCache queryFilterCache = new LRUQueryCache(QUERY_FILTER_CACHE_LIMIT,
+            QUERY_FILTER_CACHE_SIZE_BYTES);
+
     private ExecutorService privateIndexingExecutor;
 
     private ExecutorService privateQueryExecutor;
 
     private final FieldType longStoredField = numericDocType(FieldType.NumericType.LONG, true);
     private final FieldType longUnStoredField = numericDocType(FieldType.NumericType.LONG, false);
-    private final FieldType doubleStoredField = numericDocType(FieldType.NumericType.DOUBLE, true);
-    private final FieldType doubleUnStoredField = numericDocType(FieldType.NumericType.DOUBLE,
-            false);
+    private final FieldType doubleStoredField = doubleDocType(true);
+    private final FieldType doubleUnStoredField = doubleDocType(false);
+    private final FieldType longMultiValuedField = multiValuedNumericDocType(
+            FieldType.NumericType.LONG);
 
     private Set<String> fieldsToLoadNoExpand;
     private Set<String> fieldsToLoadWithExpand;
@@ -231,6 +462,9 @@ public class LuceneDocumentIndexService extends StatelessService {
         super(ServiceDocument.class);
         super.toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
         this.indexDirectory = indexDirectory;
+        for (int i = 0; i < this.versionUpdateLocks.length; i++) {
+            this.versionUpdateLocks[i] = new ReentrantLock();
+        }
     }
 
     @Override
@@ -278,6 +512,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             }
         }
 
+        scheduleSearcherRefresh();
         post.complete();
     }
 
@@ -305,9 +540,119 @@ public class LuceneDocumentIndexService extends StatelessService {
         this.writer.commit();
         this.indexUpdateTimeMicros = Utils.getNowMicrosUtc();
         this.indexWriterCreationTimeMicros = this.indexUpdateTimeMicros;
+        createSearcherManager(this.writer);
         return this.writer;
     }
 
+    /**
+     * Replaces the searcher manager with one bound to the new writer. Searchers already
+     * acquired from the previous manager remain valid until released. Page searchers are
+     * released, since reader versions are only comparable within one manager
+     */
+    private void createSearcherManager(IndexWriter w) throws IOException {
+        SearcherManager sm = new SearcherManager(w, true, new QueryCachingSearcherFactory());
+        sm.addListener(new SearcherRefreshListener());
+        IndexSearcher s = sm.acquire();
+        try {
+            this.hasVersionSupersededField = MultiFields.getMergedFieldInfos(s.getIndexReader())
+                    .fieldInfo(LUCENE_FIELD_NAME_VERSION_SUPERSEDED) != null;
+            if (s.getIndexReader().maxDoc() == 0) {
+                this.hasSelfLinkInfoForAllLinks = true;
+            }
+        } finally {
+            sm.release(s);
+        }
+        SearcherManager oldManager;
+        synchronized (this.searchSync) {
+            oldManager = this.searcherManager;
+            this.searcherManager = sm;
+            this.searcherCreationTimeMicros = Utils.getNowMicrosUtc();
+            this.searcherUpdateTimeMicros = this.indexUpdateTimeMicros;
+        }
+        releasePageSearchers(Long.MAX_VALUE);
+        this.queryResultCache.clear();
+        close(oldManager);
+    }
+
+    /**
+     * Creates searchers sharing the query filter cache. Matching documents of clauses that do not
+     * contribute to scores are cached per segment, so they survive searcher refreshes for all
+     * segments that did not change
+     */
+    private class QueryCachingSearcherFactory extends SearcherFactory {
+        private final QueryCachingPolicy policy = new FilterClauseCachingPolicy();
+
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader)
+                throws IOException {
+            IndexSearcher s = new IndexSearcher(reader);
+            s.setQueryCache(LuceneDocumentIndexService.this.queryFilterCache);
+            s.setQueryCachingPolicy(this.policy);
+            return s;
+        }
+    }
+
+    /**
+     * Caches frequently used clauses on large segments, as decided by the Lucene usage tracking
+     * policy. Term clauses, which are cheap to evaluate, are only cached for the document kind,
+     * which most queries include
+     */
+    private static class FilterClauseCachingPolicy implements QueryCachingPolicy {
+        private final QueryCachingPolicy usagePolicy = new UsageTrackingQueryCachingPolicy();
+
+        @Override
+        public void onUse(Query query) {
+            this.usagePolicy.onUse(query);
+        }
+
+        @Override
+        public boolean shouldCache(Query query, LeafReaderContext context) throws IOException {
+            if (query instanceof TermQuery && !ServiceDocument.FIELD_NAME_KIND
+                    .equals(((TermQuery) query).getTerm().field())) {
+                return false;
+            }
+            return this.usagePolicy.shouldCache(query, context);
+        }
+    }
+
+    /**
+     * Tracks the time of the last searcher refresh and reports searcher reopen count and the age
+     * of the searcher being replaced. The searcher manager serializes refreshes so the listener
+     * is never invoked concurrently
+     */
+    private class SearcherRefreshListener implements ReferenceManager.RefreshListener {
+        private long refreshStartMicros;
+
+        @Override
+        public void beforeRefresh() throws IOException {
+            this.refreshStartMicros = Utils.getNowMicrosUtc();
+        }
+
+        @Override
+        public void afterRefresh(boolean didRefresh) throws IOException {
+            long now = Utils.getNowMicrosUtc();
+            long ageMicros;
+            synchronized (LuceneDocumentIndexService.this.searchSync) {
+                // even if nothing changed, the current searcher reflects all updates made before
+                // the refresh started
+                if (LuceneDocumentIndexService.this.searcherUpdateTimeMicros < this.refreshStartMicros) {
+                    LuceneDocumentIndexService.this.searcherUpdateTimeMicros = this.refreshStartMicros;
+                }
+                if (!didRefresh) {
+                    return;
+                }
+                ageMicros = now - LuceneDocumentIndexService.this.searcherCreationTimeMicros;
+                LuceneDocumentIndexService.this.searcherCreationTimeMicros = now;
+            }
+
+            if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                adjustStat(STAT_NAME_SEARCHER_UPDATE_COUNT, 1);
+                ServiceStat st = getHistogramStat(STAT_NAME_SEARCHER_AGE_MICROS);
+                setStat(st, ageMicros);
+            }
+        }
+    }
+
     private void upgradeIndex(Directory dir) throws IOException {
         boolean doUpgrade = false;
         IndexWriterConfig iwc = new IndexWriterConfig(null);
@@ -349,11 +694,14 @@ public class LuceneDocumentIndexService extends StatelessService {
     private void doSelfValidationQuery() throws Throwable {
         TermQuery tq = new TermQuery(new Term(ServiceDocument.FIELD_NAME_SELF_LINK, getSelfLink()));
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
-        queryIndexWithWriter(Operation.createGet(getUri()), EnumSet
-                .of(QueryOption.INCLUDE_ALL_VERSIONS), tq,
-                null, null, Integer.MAX_VALUE, 0, null, rsp, ServiceOption.PERSISTENCE,
-                new IndexSearcher(
-                        DirectoryReader.open(this.writer, true)));
+        IndexSearcher s = acquireSearcher(null, Integer.MAX_VALUE, true);
+        try {
+            queryIndexWithWriter(Operation.createGet(getUri()), EnumSet
+                    .of(QueryOption.INCLUDE_ALL_VERSIONS), tq,
+                    null, null, Integer.MAX_VALUE, 0, null, rsp, ServiceOption.PERSISTENCE, s);
+        } finally {
+            releaseSearcher(s);
+        }
     }
 
     private void handleBackup(Operation op, BackupRequest req) throws Throwable {
@@ -446,6 +794,15 @@ public class LuceneDocumentIndexService extends StatelessService {
             op.fail(new CancellationException());
             return;
         }
+
+        if (a == Action.POST) {
+            // the indexing thread that picks this task up drains as many pending updates as
+            // allowed by the batch limits, so under load most tasks find an empty queue
+            this.pendingUpdates.offer(op);
+            exec.execute(this::processPendingUpdates);
+            return;
+        }
+
         exec.execute(() -> {
             try {
                 this.writerAvailable.acquire();
@@ -478,9 +835,6 @@ public class LuceneDocumentIndexService extends StatelessService {
 
                     getHost().failRequestActionNotSupported(op);
                     break;
-                case POST:
-                    updateIndex(op);
-                    break;
                 default:
                     getHost().failRequestActionNotSupported(op);
                     break;
@@ -501,7 +855,6 @@ public class LuceneDocumentIndexService extends StatelessService {
             Query luceneQuery = (Query) qs.context.nativeQuery;
             Sort luceneSort = (Sort) qs.context.nativeSort;
             LuceneQueryPage lucenePage = (LuceneQueryPage) qs.context.nativePage;
-            IndexSearcher s = (IndexSearcher) qs.context.nativeSearcher;
             ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
 
             if (qs.options.contains(QueryOption.CONTINUOUS)) {
@@ -516,6 +869,7 @@ public class LuceneDocumentIndexService extends StatelessService {
                     clonedTask.querySpec = task.querySpec;
                     clonedTask.querySpec.context.filter = QueryFilter.create(qs.query);
                     this.activeQueries.put(task.documentSelfLink, clonedTask);
+                    this.activeQueryIndex.add(clonedTask);
                     this.setStat(STAT_NAME_ACTIVE_QUERY_FILTERS, this.activeQueries.size());
                     logInfo("Activated continuous query task: %s", task.documentSelfLink);
                     break;
@@ -523,6 +877,7 @@ public class LuceneDocumentIndexService extends StatelessService {
                 case FAILED:
                 case FINISHED:
                     this.activeQueries.remove(task.documentSelfLink);
+                    this.activeQueryIndex.remove(task.documentSelfLink);
                     this.setStat(STAT_NAME_ACTIVE_QUERY_FILTERS, this.activeQueries.size());
                     op.complete();
                     return;
@@ -532,7 +887,12 @@ public class LuceneDocumentIndexService extends StatelessService {
                 }
             }
 
-            if (!queryIndex(s, op, null, qs.options, luceneQuery, luceneSort, lucenePage,
+            if (task.postProcessingSpec != null && lucenePage == null) {
+                aggregateIndex(op, task.postProcessingSpec, luceneQuery,
+                        qs.options.contains(QueryOption.OWNER_SELECTION), rsp);
+            }
+
+            if (!queryIndex(op, null, qs.options, luceneQuery, luceneSort, lucenePage,
                     qs.resultLimit,
                     task.documentExpirationTimeMicros, task.indexLink, rsp)) {
                 op.setBodyNoCloning(rsp).complete();
@@ -588,7 +948,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
         rsp.documentLinks = new ArrayList<>();
-        if (queryIndex(null, get, selfLink, options, tq, null, null, resultLimit, 0, null, rsp)) {
+        if (queryIndex(get, selfLink, options, tq, null, null, resultLimit, 0, null, rsp)) {
             return;
         }
 
@@ -603,7 +963,6 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private boolean queryIndex(
-            IndexSearcher s,
             Operation op,
             String selfLinkPrefix,
             EnumSet<QueryOption> options,
@@ -645,176 +1004,582 @@ public class LuceneDocumentIndexService extends StatelessService {
             sort = this.versionSort;
         }
 
-        if (s == null) {
-            // If DO_NOT_REFRESH is set use the existing searcher.
-            if (options.contains(QueryOption.DO_NOT_REFRESH) && this.searcher != null) {
-                s = this.searcher;
-            } else {
-                s = updateSearcher(selfLinkPrefix, count, w);
-            }
+        boolean isPaginatedQuery = count != Integer.MAX_VALUE
+                && !options.contains(QueryOption.TOP_RESULTS);
+        if (isPaginatedQuery && page == null) {
+            // A query page re-uses the sort order the query was created with
+            sort = createPaginatedSort(sort);
         }
 
         tq = updateQuery(op, tq);
-
         if (tq == null) {
             return false;
-        } else if (queryIndexWithWriter(op, options, tq, sort, page, count, expiration, indexLink,
-                rsp,
-                ServiceOption.PERSISTENCE, s)) {
-            // target index had results or request failed
-            return true;
-        }
-
-        return false;
-    }
-
-    private void queryIndexSingle(String selfLink, EnumSet<QueryOption> options, Operation op, Long version)
-            throws Throwable {
-        IndexWriter w = this.writer;
-        if (w == null) {
-            op.fail(new CancellationException());
-            return;
         }
 
-        IndexSearcher s = updateSearcher(selfLink, 1, w);
-        long start = Utils.getNowMicrosUtc();
-        TopDocs hits = searchByVersion(selfLink, s, version);
-        long end = Utils.getNowMicrosUtc();
-        if (hits.totalHits == 0) {
-            op.complete();
-            return;
+        if (page == null && !options.contains(QueryOption.INCLUDE_ALL_VERSIONS)) {
+            // exclude superseded versions in the index, instead of filtering them out while
+            // processing results. A query page re-uses the query it was created with
+            tq = excludeSupersededVersions(tq);
         }
 
-        if (hasOption(ServiceOption.INSTRUMENTATION)) {
-            ServiceStat st = getHistogramStat(STAT_NAME_QUERY_SINGLE_DURATION_MICROS);
-            setStat(st, end - start);
+        IndexSearcher s;
+        if (page != null) {
+            s = acquirePageSearcher(LuceneQueryPageCursor.decode(page.cursor)
+                    .getReaderVersion());
+        } else {
+            // If DO_NOT_REFRESH is set use the current searcher, even if the index has changed
+            s = acquireSearcher(selfLinkPrefix, count,
+                    !options.contains(QueryOption.DO_NOT_REFRESH));
         }
 
-        Document doc = s.getIndexReader().document(hits.scoreDocs[0].doc,
-                this.fieldsToLoadWithExpand);
-
-        if (checkAndDeleteExpiratedDocuments(selfLink, s, hits.scoreDocs[0].doc, doc,
-                Utils.getNowMicrosUtc())) {
-            op.complete();
-            return;
+        try {
+            if (queryIndexWithWriter(op, options, tq, sort, page, count, expiration, indexLink,
+                    rsp,
+                    ServiceOption.PERSISTENCE, s)) {
+                // target index had results or request failed
+                return true;
+            }
+        } finally {
+            releaseSearcher(s);
         }
 
-        BytesRef binaryState = doc.getBinaryValue(LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE);
-
-        if (binaryState != null) {
-            ServiceDocument state = (ServiceDocument) Utils.fromDocumentBytes(binaryState.bytes,
-                    binaryState.offset,
-                    binaryState.length);
-            op.setBodyNoCloning(state);
-        }
-        op.complete();
+        return false;
     }
 
     /**
-     * Find the document given a self link and version number.
-     *
-     * This function is used for two purposes; find given version to...
-     * 1) load state if the service state is not yet cached
-     * 2) filter query results to only include the given version
-     *
-     * In case (1), authorization is applied in the service host (either against
-     * the cached state or freshly loaded state).
-     * In case (2), authorization should NOT be applied because the original query
-     * already included the resource group query per the authorization context.
-     * Query results will be filtered given the REAL latest version, not the latest
-     * version subject to the resource group query. This means older versions of
-     * a document will NOT appear in the query result if the user is not authorized
-     * to see the newer version.
-     *
-     * If given version is null then function returns the latest version.
-     * And if given version is not found then no document is returned.
+     * Appends the document self link and version to the sort order, unless already present, so
+     * that every result of a paginated query has a unique position that a page cursor can refer
+     * to, independent of the index reader
      */
-    private TopDocs searchByVersion(String selfLink, IndexSearcher s, Long version) throws IOException {
-        Query tqSelfLink = new TermQuery(new Term(ServiceDocument.FIELD_NAME_SELF_LINK, selfLink));
+    private Sort createPaginatedSort(Sort sort) {
+        List<SortField> fields = new ArrayList<>(Arrays.asList(sort.getSort()));
+        boolean hasSelfLink = false;
+        boolean hasVersion = false;
+        for (SortField f : fields) {
+            hasSelfLink |= ServiceDocument.FIELD_NAME_SELF_LINK.equals(f.getField());
+            hasVersion |= ServiceDocument.FIELD_NAME_VERSION.equals(f.getField());
+        }
+        if (!hasSelfLink) {
+            fields.add(new SortField(ServiceDocument.FIELD_NAME_SELF_LINK,
+                    SortField.Type.STRING, false));
+        }
+        if (!hasVersion) {
+            fields.add(new SortField(ServiceDocument.FIELD_NAME_VERSION, SortField.Type.LONG,
+                    true));
+        }
+        return new Sort(fields.toArray(new SortField[fields.size()]));
+    }
 
+    private BooleanQuery excludeSupersededVersions(Query tq) {
         BooleanQuery bq = new BooleanQuery();
-        bq.add(tqSelfLink, Occur.MUST);
-
-        if (version != null) {
-            NumericRangeQuery<Long> versionQuery = NumericRangeQuery.newLongRange(
-                    ServiceDocument.FIELD_NAME_VERSION, version, version,
-                    true,
-                    true);
-
-            bq.add(versionQuery, Occur.MUST);
-        }
-
-        TopDocs hits = s.search(bq, 1, this.versionSort, false, false);
-        return hits;
+        bq.add(tq, Occur.MUST);
+        bq.add(DocValuesRangeQuery.newLongRange(LUCENE_FIELD_NAME_VERSION_SUPERSEDED, 1L, 1L,
+                true, true), Occur.MUST_NOT);
+        return bq;
     }
 
-    private void queryServiceHost(String selfLink, EnumSet<QueryOption> options, Operation op) {
-        if (options.contains(QueryOption.EXPAND_CONTENT)) {
-            // the index writers had no results, ask the host a simple prefix query
-            // for the services, and do a manual expand
-            op.nestCompletion(o -> {
-                expandLinks(o, op);
-            });
+    /**
+     * Computes the group operation of the post processing specification over the latest,
+     * not deleted, versions of all matching documents, independent of the result limit.
+     * With owner selection, only documents owned by this node are aggregated. Only doc values
+     * are read, except for documents indexed before the current indexing format
+     */
+    private void aggregateIndex(Operation op, PostProcessingSpecification spec, Query tq,
+            boolean ownerSelection, ServiceDocumentQueryResult rsp) throws Throwable {
+        tq = updateQuery(op, tq);
+        if (tq == null) {
+            return;
         }
-        getHost().queryServiceUris(selfLink, op);
-    }
-
-    boolean queryIndexWithWriter(Operation op,
-            EnumSet<QueryOption> options,
-            Query tq,
-            Sort sort,
-            LuceneQueryPage page,
-            int count,
-            long expiration,
-            String indexLink,
-            ServiceDocumentQueryResult rsp,
-            ServiceOption targetIndex,
-            IndexSearcher s) throws Throwable {
-        Object resultBody;
 
-        resultBody = queryIndex(op, targetIndex, options, s, tq, sort, page, count, expiration,
-                indexLink, rsp);
-        if (count == 1 && resultBody instanceof String) {
-            op.setBodyNoCloning(resultBody).complete();
-            return true;
+        BooleanQuery bq = excludeSupersededVersions(tq);
+        bq.add(new TermQuery(new Term(ServiceDocument.FIELD_NAME_UPDATE_ACTION, DELETE_ACTION)),
+                Occur.MUST_NOT);
+        if (ownerSelection) {
+            // the owner of documents in the legacy format is checked by the collector
+            BooleanQuery legacyDocs = new BooleanQuery();
+            legacyDocs.add(new MatchAllDocsQuery(), Occur.MUST);
+            legacyDocs.add(new FieldValueQuery(LUCENE_FIELD_NAME_INDEXING_FORMAT),
+                    Occur.MUST_NOT);
+            BooleanQuery ownerQuery = new BooleanQuery();
+            ownerQuery.add(new TermQuery(new Term(ServiceDocument.FIELD_NAME_OWNER,
+                    getHost().getId())), Occur.SHOULD);
+            ownerQuery.add(legacyDocs, Occur.SHOULD);
+            bq.add(ownerQuery, Occur.FILTER);
         }
 
-        ServiceDocumentQueryResult result = (ServiceDocumentQueryResult) resultBody;
-        if (result != null) {
-            result.documentOwner = getHost().getId();
-
-            if (!options.contains(QueryOption.COUNT) && result.documentLinks.isEmpty()) {
-                return false;
+        IndexSearcher s = acquireSearcher(null, Integer.MAX_VALUE, true);
+        try {
+            FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(s.getIndexReader());
+            if (spec.selectionTerm != null) {
+                validateAggregationField(fieldInfos, spec.selectionTerm.propertyName,
+                        DocValuesType.NUMERIC, "postProcessingSpec.selectionTerm");
+            }
+            if (spec.groupByTerm != null) {
+                validateAggregationField(fieldInfos, spec.groupByTerm.propertyName,
+                        DocValuesType.SORTED, "postProcessingSpec.groupByTerm");
             }
 
-            op.setBodyNoCloning(result).complete();
-            return true;
+            AggregationCollector collector = new AggregationCollector(s, spec,
+                    ownerSelection ? getHost().getId() : null);
+            s.search(bq, collector);
+            for (AggregationResult r : collector.results.values()) {
+                r.value = spec.groupOperation.getValue(r);
+            }
+            rsp.aggregations = collector.results;
+        } finally {
+            releaseSearcher(s);
         }
-
-        return false;
     }
 
     /**
-     * Augment the query argument with the resource group query specified
-     * by the operation's authorization context.
-     *
-     * If the operation was executed by the system user, the query argument
-     * is returned unmodified.
-     *
-     * If no query needs to be executed return null
-     *
-     * @return Augmented query.
+     * Fails aggregations over properties indexed without doc values of the expected type,
+     * which would otherwise silently match no values. Properties not present in the index are
+     * accepted, since no document has a value for them
      */
-    private Query updateQuery(Operation op, Query tq) {
-        Query rq = null;
-        AuthorizationContext ctx = op.getAuthorizationContext();
+    private static void validateAggregationField(FieldInfos fieldInfos, String fieldName,
+            DocValuesType expectedType, String termName) {
+        FieldInfo info = fieldInfos.fieldInfo(fieldName);
+        if (info == null || info.getDocValuesType() == expectedType) {
+            return;
+        }
 
-        // Allow operation if isAuthorizationEnabled is set to false
-        if (!this.getHost().isAuthorizationEnabled()) {
-            return tq;
+        if (expectedType == DocValuesType.SORTED) {
+            throw new IllegalArgumentException(termName + " property " + fieldName
+                    + " must be a STRING or BOOLEAN property indexed with "
+                    + PropertyIndexingOption.SORT);
         }
+        throw new IllegalArgumentException(termName + " property " + fieldName
+                + " must be a LONG or DOUBLE property that is not a collection");
+    }
 
-        if (ctx == null) {
+    /**
+     * Accumulates count, sum, min and max of the numeric doc values of the selection property,
+     * per value of the sorted doc values of the group by property
+     */
+    private class AggregationCollector extends SimpleCollector {
+        private final IndexSearcher searcher;
+        private final String selectionField;
+        private final boolean isDouble;
+        private final String groupByField;
+        private final String ownerId;
+        private final Map<String, AggregationResult> results = new HashMap<>();
+
+        private int docBase;
+        private NumericDocValues values;
+        private Bits docsWithValue;
+        private SortedDocValues groups;
+        private AggregationResult[] resultsByOrd;
+        private NumericDocValues supersededValues;
+        private Bits docsWithSupersededValue;
+        private Bits docsWithIndexingFormat;
+
+        AggregationCollector(IndexSearcher searcher, PostProcessingSpecification spec,
+                String ownerId) {
+            this.searcher = searcher;
+            this.selectionField = spec.selectionTerm == null ? null
+                    : spec.selectionTerm.propertyName;
+            this.isDouble = spec.selectionTerm != null
+                    && spec.selectionTerm.propertyType == TypeName.DOUBLE;
+            this.groupByField = spec.groupByTerm == null ? null : spec.groupByTerm.propertyName;
+            this.ownerId = ownerId;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            LeafReader reader = context.reader();
+            this.docBase = context.docBase;
+            if (this.selectionField != null) {
+                this.values = DocValues.getNumeric(reader, this.selectionField);
+                this.docsWithValue = DocValues.getDocsWithField(reader, this.selectionField);
+            }
+            if (this.groupByField != null) {
+                this.groups = DocValues.getSorted(reader, this.groupByField);
+                this.resultsByOrd = new AggregationResult[this.groups.getValueCount()];
+            }
+            this.supersededValues = DocValues.getNumeric(reader,
+                    LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+            this.docsWithSupersededValue = DocValues.getDocsWithField(reader,
+                    LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+            this.docsWithIndexingFormat = DocValues.getDocsWithField(reader,
+                    LUCENE_FIELD_NAME_INDEXING_FORMAT);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (this.selectionField != null && !this.docsWithValue.get(doc)) {
+                return;
+            }
+
+            AggregationResult r = getResult(doc);
+            if (r == null || !isLatestVersion(doc)) {
+                return;
+            }
+
+            Double value = null;
+            if (this.selectionField != null) {
+                long rawValue = this.values.get(doc);
+                value = this.isDouble ? Double.longBitsToDouble(rawValue) : rawValue;
+            }
+
+            if (!this.docsWithIndexingFormat.get(doc)
+                    && (this.ownerId != null || this.isDouble)) {
+                ServiceDocument state = loadLegacyState(doc);
+                if (state == null) {
+                    return;
+                }
+                if (this.ownerId != null && !this.ownerId.equals(state.documentOwner)) {
+                    return;
+                }
+                if (this.isDouble) {
+                    value = getLegacyValue(state);
+                    if (value == null) {
+                        return;
+                    }
+                }
+            }
+
+            r.count++;
+            if (value == null) {
+                return;
+            }
+
+            r.sum += value;
+            if (r.min == null || value < r.min) {
+                r.min = value;
+            }
+            if (r.max == null || value > r.max) {
+                r.max = value;
+            }
+        }
+
+        private ServiceDocument loadLegacyState(int doc) throws IOException {
+            Document d = this.searcher.doc(this.docBase + doc,
+                    LuceneDocumentIndexService.this.fieldsToLoadWithExpand);
+            return getStateFromLuceneDocument(d,
+                    d.get(ServiceDocument.FIELD_NAME_SELF_LINK));
+        }
+
+        /**
+         * Reads the selection property from the document state, since the doc values of
+         * documents in the legacy format hold the value truncated to a long
+         */
+        private Double getLegacyValue(ServiceDocument state) {
+            JsonElement e = new JsonParser().parse(Utils.toJson(state));
+            for (String name : this.selectionField.split(QuerySpecification.FIELD_NAME_REGEXP)) {
+                if (!e.isJsonObject()) {
+                    return null;
+                }
+                e = e.getAsJsonObject().get(name);
+                if (e == null) {
+                    return null;
+                }
+            }
+            if (!e.isJsonPrimitive() || !e.getAsJsonPrimitive().isNumber()) {
+                return null;
+            }
+            return e.getAsDouble();
+        }
+
+        private AggregationResult getResult(int doc) {
+            if (this.groupByField == null) {
+                return this.results.computeIfAbsent(
+                        ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL,
+                        (k) -> new AggregationResult());
+            }
+
+            int ord = this.groups.getOrd(doc);
+            if (ord < 0) {
+                return null;
+            }
+            AggregationResult r = this.resultsByOrd[ord];
+            if (r == null) {
+                r = this.results.computeIfAbsent(this.groups.lookupOrd(ord).utf8ToString(),
+                        (k) -> new AggregationResult());
+                this.resultsByOrd[ord] = r;
+            }
+            return r;
+        }
+
+        private boolean isLatestVersion(int doc) throws IOException {
+            if (this.docsWithSupersededValue.get(doc)) {
+                // superseded and deleted versions are already excluded by the query
+                return true;
+            }
+
+            // document indexed before versions were flagged
+            Document d = this.searcher.doc(this.docBase + doc,
+                    LuceneDocumentIndexService.this.fieldsToLoadNoExpand);
+            if (DELETE_ACTION.equals(d.get(ServiceDocument.FIELD_NAME_UPDATE_ACTION))) {
+                return false;
+            }
+            return isLatestUnflaggedVersion(this.searcher, d);
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the results of a COUNT query inside the index, instead of loading every hit.
+     * Deleted and expired documents are excluded by the query, superseded versions by the
+     * query or, for documents indexed before versions were flagged, by the collector. Returns
+     * the earliest expiration time of the counted documents
+     */
+    private long countIndex(EnumSet<QueryOption> options,
+            IndexSearcher s, Query tq, int count, ServiceDocumentQueryResult rsp)
+            throws Throwable {
+        long start = Utils.getSystemNowMicrosUtc();
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(tq, Occur.MUST);
+        if (!options.contains(QueryOption.INCLUDE_DELETED)) {
+            bq.add(new TermQuery(new Term(ServiceDocument.FIELD_NAME_UPDATE_ACTION,
+                    DELETE_ACTION)), Occur.MUST_NOT);
+        }
+        bq.add(NumericRangeQuery.newLongRange(ServiceDocument.FIELD_NAME_EXPIRATION_TIME_MICROS,
+                1L, start, true, true), Occur.MUST_NOT);
+
+        CountCollector collector = new CountCollector(s,
+                !options.contains(QueryOption.INCLUDE_ALL_VERSIONS));
+        s.search(bq, collector);
+        long queryTime = Utils.getSystemNowMicrosUtc() - start;
+
+        rsp.queryTimeMicros = queryTime;
+        rsp.documentCount = Math.min(collector.count, (long) count);
+        updateQueryStats(options, queryTime, 0);
+        return collector.expirationMicros;
+    }
+
+    /**
+     * Counts matching documents, and tracks the earliest expiration time of the counted ones.
+     * Only documents without a superseded flag are loaded, to check if they are the latest
+     * version of their self link
+     */
+    private class CountCollector extends SimpleCollector {
+        private final IndexSearcher searcher;
+        private final boolean isLatestVersionOnly;
+        private long count;
+        private long expirationMicros = Long.MAX_VALUE;
+
+        private int docBase;
+        private Bits docsWithSupersededValue;
+        private NumericDocValues expirationValues;
+        private Bits docsWithExpirationValue;
+
+        CountCollector(IndexSearcher searcher, boolean isLatestVersionOnly) {
+            this.searcher = searcher;
+            this.isLatestVersionOnly = isLatestVersionOnly;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            this.docBase = context.docBase;
+            this.docsWithSupersededValue = DocValues.getDocsWithField(context.reader(),
+                    LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+            this.expirationValues = DocValues.getNumeric(context.reader(),
+                    ServiceDocument.FIELD_NAME_EXPIRATION_TIME_MICROS);
+            this.docsWithExpirationValue = DocValues.getDocsWithField(context.reader(),
+                    ServiceDocument.FIELD_NAME_EXPIRATION_TIME_MICROS);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (this.isLatestVersionOnly && !this.docsWithSupersededValue.get(doc)) {
+                // document indexed before versions were flagged
+                Document d = this.searcher.doc(this.docBase + doc,
+                        LuceneDocumentIndexService.this.fieldsToLoadNoExpand);
+                if (!isLatestUnflaggedVersion(this.searcher, d)) {
+                    return;
+                }
+            }
+            if (this.docsWithExpirationValue.get(doc)) {
+                this.expirationMicros = Math.min(this.expirationMicros,
+                        this.expirationValues.get(doc));
+            }
+            this.count++;
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the given document, indexed before versions were flagged, is the latest
+     * version of its self link
+     */
+    private boolean isLatestUnflaggedVersion(IndexSearcher s, Document d) throws IOException {
+        long version = d.getField(ServiceDocument.FIELD_NAME_VERSION).numericValue()
+                .longValue();
+        return version >= getLatestVersion(s, d.get(ServiceDocument.FIELD_NAME_SELF_LINK));
+    }
+
+    private void queryIndexSingle(String selfLink, EnumSet<QueryOption> options, Operation op, Long version)
+            throws Throwable {
+        IndexWriter w = this.writer;
+        if (w == null) {
+            op.fail(new CancellationException());
+            return;
+        }
+
+        IndexSearcher s = acquireSearcher(selfLink, 1, true);
+        try {
+            long start = Utils.getSystemNowMicrosUtc();
+            TopDocs hits = searchByVersion(selfLink, s, version);
+            long end = Utils.getSystemNowMicrosUtc();
+            if (hits.totalHits == 0) {
+                op.complete();
+                return;
+            }
+
+            if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                ServiceStat st = getHistogramStat(STAT_NAME_QUERY_SINGLE_DURATION_MICROS);
+                setStat(st, end - start);
+            }
+
+            Document doc = s.getIndexReader().document(hits.scoreDocs[0].doc,
+                    this.fieldsToLoadWithExpand);
+
+            if (checkAndDeleteExpiratedDocuments(selfLink, s, hits.scoreDocs[0].doc, doc,
+                    Utils.getSystemNowMicrosUtc())) {
+                op.complete();
+                return;
+            }
+
+            BytesRef binaryState = doc.getBinaryValue(LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE);
+
+            if (binaryState != null) {
+                ServiceDocument state = (ServiceDocument) Utils.fromDocumentBytes(binaryState.bytes,
+                        binaryState.offset,
+                        binaryState.length);
+                op.setBodyNoCloning(state);
+            }
+        } finally {
+            releaseSearcher(s);
+        }
+        op.complete();
+    }
+
+    /**
+     * Find the document given a self link and version number.
+     *
+     * This function is used for two purposes; find given version to...
+     * 1) load state if the service state is not yet cached
+     * 2) filter query results to only include the given version
+     *
+     * In case (1), authorization is applied in the service host (either against
+     * the cached state or freshly loaded state).
+     * In case (2), authorization should NOT be applied because the original query
+     * already included the resource group query per the authorization context.
+     * Query results will be filtered given the REAL latest version, not the latest
+     * version subject to the resource group query. This means older versions of
+     * a document will NOT appear in the query result if the user is not authorized
+     * to see the newer version.
+     *
+     * If given version is null then function returns the latest version.
+     * And if given version is not found then no document is returned.
+     */
+    private TopDocs searchByVersion(String selfLink, IndexSearcher s, Long version) throws IOException {
+        // walk the documents of the self link, reading versions from doc values, instead of
+        // sorting hits and loading documents. Ties resolve to the lowest document id
+        Term selfLinkTerm = new Term(ServiceDocument.FIELD_NAME_SELF_LINK, selfLink);
+        int topDoc = -1;
+        long topVersion = -1;
+        for (LeafReaderContext leaf : s.getIndexReader().leaves()) {
+            PostingsEnum postings = leaf.reader().postings(selfLinkTerm, PostingsEnum.NONE);
+            if (postings == null) {
+                continue;
+            }
+            NumericDocValues versions = DocValues.getNumeric(leaf.reader(),
+                    ServiceDocument.FIELD_NAME_VERSION);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = postings.nextDoc()) {
+                long v = versions.get(doc);
+                boolean isMatch = version == null ? topDoc < 0 || v > topVersion
+                        : topDoc < 0 && v == version;
+                if (isMatch) {
+                    topDoc = leaf.docBase + doc;
+                    topVersion = v;
+                }
+            }
+        }
+
+        if (topDoc < 0) {
+            return new TopDocs(0, new ScoreDoc[0], Float.NaN);
+        }
+        ScoreDoc hit = new FieldDoc(topDoc, Float.NaN, new Object[] { topVersion });
+        return new TopDocs(1, new ScoreDoc[] { hit }, Float.NaN);
+    }
+
+    private void queryServiceHost(String selfLink, EnumSet<QueryOption> options, Operation op) {
+        if (options.contains(QueryOption.EXPAND_CONTENT)) {
+            // the index writers had no results, ask the host a simple prefix query
+            // for the services, and do a manual expand
+            op.nestCompletion(o -> {
+                expandLinks(o, op);
+            });
+        }
+        getHost().queryServiceUris(selfLink, op);
+    }
+
+    boolean queryIndexWithWriter(Operation op,
+            EnumSet<QueryOption> options,
+            Query tq,
+            Sort sort,
+            LuceneQueryPage page,
+            int count,
+            long expiration,
+            String indexLink,
+            ServiceDocumentQueryResult rsp,
+            ServiceOption targetIndex,
+            IndexSearcher s) throws Throwable {
+        Object resultBody;
+
+        resultBody = queryIndex(op, targetIndex, options, s, tq, sort, page, count, expiration,
+                indexLink, rsp);
+        if (count == 1 && resultBody instanceof String) {
+            op.setBodyNoCloning(resultBody).complete();
+            return true;
+        }
+
+        ServiceDocumentQueryResult result = (ServiceDocumentQueryResult) resultBody;
+        if (result != null) {
+            result.documentOwner = getHost().getId();
+
+            if (!options.contains(QueryOption.COUNT) && result.documentLinks.isEmpty()) {
+                return false;
+            }
+
+            op.setBodyNoCloning(result).complete();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Augment the query argument with the resource group query specified
+     * by the operation's authorization context.
+     *
+     * If the operation was executed by the system user, the query argument
+     * is returned unmodified.
+     *
+     * If no query needs to be executed return null
+     *
+     * @return Augmented query.
+     */
+    private Query updateQuery(Operation op, Query tq) {
+        Query rq = null;
+        AuthorizationContext ctx = op.getAuthorizationContext();
+
+        // Allow operation if isAuthorizationEnabled is set to false
+        if (!this.getHost().isAuthorizationEnabled()) {
+            return tq;
+        }
+
+        if (ctx == null) {
             // Don't allow operation if no authorization context and auth is enabled
             return null;
         }
@@ -849,19 +1614,33 @@ public class LuceneDocumentIndexService extends StatelessService {
             long expiration,
             String indexLink,
             ServiceDocumentQueryResult rsp) throws Throwable {
+        if (page != null) {
+            // For example, via GET of QueryTask.nextPageLink
+            return queryPage(targetIndex, options, s, tq, sort, page, count, rsp);
+        }
+
         ScoreDoc[] hits;
         ScoreDoc after = null;
         boolean isPaginatedQuery = count != Integer.MAX_VALUE
                 && !options.contains(QueryOption.TOP_RESULTS);
-        boolean hasPage = page != null;
         boolean shouldProcessResults = true;
         int resultLimit = count;
 
-        if (hasPage) {
-            // For example, via GET of QueryTask.nextPageLink
-            after = page.after;
-            rsp.prevPageLink = page.link;
-        } else if (isPaginatedQuery) {
+        LuceneQueryResultCache.Key cacheKey = null;
+        if (!isPaginatedQuery) {
+            cacheKey = new LuceneQueryResultCache.Key(tq, sort, options, count);
+            if (getCachedQueryResult(cacheKey, options, s, rsp)) {
+                return rsp;
+            }
+        }
+
+        if (!isPaginatedQuery && options.contains(QueryOption.COUNT)) {
+            long expirationMicros = countIndex(options, s, tq, count, rsp);
+            cacheQueryResult(cacheKey, s, expirationMicros, rsp);
+            return rsp;
+        }
+
+        if (isPaginatedQuery) {
             // QueryTask.resultLimit was set, but we don't have a page param yet,
             // which means this is the initial POST to create the QueryTask.
             // Since we are going to throw away TopDocs.hits in this case,
@@ -873,16 +1652,18 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         TopDocs results = null;
         rsp.queryTimeMicros = 0L;
-        long queryStartTimeMicros = Utils.getNowMicrosUtc();
+        long queryStartTimeMicros = Utils.getSystemNowMicrosUtc();
         long start = queryStartTimeMicros;
+        long expirationMicros = Long.MAX_VALUE;
 
         do {
             if (sort == null) {
                 results = s.searchAfter(after, tq, resultLimit);
             } else {
-                results = s.searchAfter(after, tq, resultLimit, sort, false, false);
+                results = s.searchAfter(after, tq, resultLimit, createMultiValuedSort(s, sort),
+                        false, false);
             }
-            long end = Utils.getNowMicrosUtc();
+            long end = Utils.getSystemNowMicrosUtc();
             if (results == null) {
                 return null;
             }
@@ -895,20 +1676,11 @@ public class LuceneDocumentIndexService extends StatelessService {
             rsp.queryTimeMicros += queryTime;
 
             if (shouldProcessResults) {
-                start = Utils.getNowMicrosUtc();
-                processQueryResults(targetIndex, options, s, rsp, hits, queryStartTimeMicros);
-                end = Utils.getNowMicrosUtc();
-
-                if (hasOption(ServiceOption.INSTRUMENTATION)) {
-                    String statName = options.contains(QueryOption.INCLUDE_ALL_VERSIONS)
-                            ? STAT_NAME_QUERY_ALL_VERSIONS_DURATION_MICROS
-                            : STAT_NAME_QUERY_DURATION_MICROS;
-                    ServiceStat st = getHistogramStat(statName);
-                    setStat(st, queryTime);
-
-                    st = getHistogramStat(STAT_NAME_RESULT_PROCESSING_DURATION_MICROS);
-                    setStat(st, end - start);
-                }
+                start = Utils.getSystemNowMicrosUtc();
+                expirationMicros = Math.min(expirationMicros, processQueryResults(targetIndex,
+                        options, s, rsp, hits, queryStartTimeMicros));
+                end = Utils.getSystemNowMicrosUtc();
+                updateQueryStats(options, queryTime, end - start);
             }
 
             if (!isPaginatedQuery && !options.contains(QueryOption.TOP_RESULTS)) {
@@ -920,76 +1692,270 @@ public class LuceneDocumentIndexService extends StatelessService {
                 break;
             }
 
-            ScoreDoc bottom = null;
             if (isPaginatedQuery) {
-                if (hasPage) {
-                    bottom = hits[hits.length - 1];
-                }
-
-                if (!hasPage || rsp.documentLinks.size() >= count
-                        || hits.length < resultLimit) {
-                    // query had less results then per page limit or page is full of results
-                    expiration += queryTime;
-                    rsp.nextPageLink = createNextPage(op, s, options, tq, sort, bottom, count,
-                            expiration,
-                            indexLink,
-                            hasPage);
-                    break;
-                }
+                expiration += queryTime;
+                rsp.nextPageLink = createQueryPageService(op, s, options, tq, sort, count,
+                        expiration, indexLink);
+                break;
             }
 
-            after = bottom;
             resultLimit = count - rsp.documentLinks.size();
         } while (true && resultLimit > 0);
 
+        if (cacheKey != null) {
+            cacheQueryResult(cacheKey, s, expirationMicros, rsp);
+        }
         return rsp;
     }
 
-    private String createNextPage(Operation op, IndexSearcher s, EnumSet<QueryOption> options,
+    /**
+     * Adds the query result to the result cache, unless the index changed after the searcher was
+     * opened: the next refresh replaces the searcher, so the result would never be returned
+     */
+    private void cacheQueryResult(LuceneQueryResultCache.Key cacheKey, IndexSearcher s,
+            long expirationMicros, ServiceDocumentQueryResult rsp) throws IOException {
+        IndexReader r = s.getIndexReader();
+        if (r instanceof DirectoryReader && !((DirectoryReader) r).isCurrent()) {
+            return;
+        }
+        this.queryResultCache.put(cacheKey, getReaderVersion(s), expirationMicros, rsp);
+    }
+
+    /**
+     * Completes the response with the cached result of the query, if the result was computed
+     * with the same index reader
+     */
+    private boolean getCachedQueryResult(LuceneQueryResultCache.Key cacheKey,
+            EnumSet<QueryOption> options, IndexSearcher s, ServiceDocumentQueryResult rsp) {
+        long start = Utils.getSystemNowMicrosUtc();
+        boolean isHit = this.queryResultCache.get(cacheKey, getReaderVersion(s), start, rsp);
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            adjustStat(isHit ? STAT_NAME_QUERY_RESULT_CACHE_HIT_COUNT
+                    : STAT_NAME_QUERY_RESULT_CACHE_MISS_COUNT, 1);
+        }
+        if (!isHit) {
+            return false;
+        }
+
+        long queryTime = Utils.getSystemNowMicrosUtc() - start;
+        rsp.queryTimeMicros = queryTime;
+        updateQueryStats(options, queryTime, 0);
+        return true;
+    }
+
+    private void updateQueryStats(EnumSet<QueryOption> options, long queryTime,
+            long processingTime) {
+        if (!hasOption(ServiceOption.INSTRUMENTATION)) {
+            return;
+        }
+        String statName = options.contains(QueryOption.INCLUDE_ALL_VERSIONS)
+                ? STAT_NAME_QUERY_ALL_VERSIONS_DURATION_MICROS
+                : STAT_NAME_QUERY_DURATION_MICROS;
+        ServiceStat st = getHistogramStat(statName);
+        setStat(st, queryTime);
+
+        st = getHistogramStat(STAT_NAME_RESULT_PROCESSING_DURATION_MICROS);
+        setStat(st, processingTime);
+    }
+
+    /**
+     * Returns a page of a paginated query: the next resultLimit results after the page cursor.
+     * Hits that are not results, such as older versions or deleted documents, do not count
+     * towards the page, so hits are collected in batches until the page is full. The previous
+     * page is found by collecting the results of the previous page, and the last result of the
+     * page before it, in reverse sort order, so neither page link needs to be kept by the index
+     */
+    private ServiceDocumentQueryResult queryPage(ServiceOption targetIndex,
+            EnumSet<QueryOption> options,
+            IndexSearcher s,
             Query tq,
             Sort sort,
-            ScoreDoc after,
+            LuceneQueryPage page,
             int count,
-            long expiration,
-            String indexLink,
-            boolean hasPage) {
+            ServiceDocumentQueryResult rsp) throws Throwable {
+        LuceneQueryPageCursor cursor = LuceneQueryPageCursor.decode(page.cursor);
+        long readerVersion = getReaderVersion(s);
+        FieldDoc after = cursor.getAfter();
+        if (after != null && cursor.getReaderVersion() != readerVersion) {
+            // document ids are specific to a reader. Resume after the sort values only, which
+            // are unique per document
+            after = new FieldDoc(Integer.MAX_VALUE, after.score, after.fields);
+        }
+
+        // the first batch of the page and of the hits preceding it, for the previous page link,
+        // are collected in a single pass over the query results
+        long queryStartTimeMicros = Utils.getSystemNowMicrosUtc();
+        long start = queryStartTimeMicros;
+        Sort pageSort = createMultiValuedSort(s, sort);
+        Sort prevPageSort = createMultiValuedSort(s, reverse(sort));
+        TopFieldCollector pageCollector = TopFieldCollector.create(pageSort, count, after, true,
+                false, false);
+        TopFieldCollector prevPageCollector = null;
+        int prevResultLimit = cursor.getResultCount() + 1;
+        if (after != null) {
+            // the previous page ends with the cursor hit, so the reverse search includes it
+            FieldDoc prevAfter = new FieldDoc(-1, after.score, after.fields);
+            prevPageCollector = TopFieldCollector.create(prevPageSort, prevResultLimit,
+                    prevAfter, true, false, false);
+            s.search(tq, MultiCollector.wrap(pageCollector, prevPageCollector));
+        } else {
+            s.search(tq, pageCollector);
+        }
+        ScoreDoc[] hits = pageCollector.topDocs().scoreDocs;
+        rsp.queryTimeMicros = 0L;
 
-        URI u = UriUtils.buildUri(getHost(), UriUtils.buildUriPath(
-                ServiceUriPaths.CORE,
-                "query-page",
-                Utils.getNowMicrosUtc() + ""));
+        FieldDoc bottom = null;
+        int resultLimit = count;
+        while (true) {
+            long end = Utils.getSystemNowMicrosUtc();
+            long queryTime = end - start;
+            rsp.queryTimeMicros += queryTime;
+            rsp.documentCount = 0L;
 
-        // the page link must point to this node, since the index searcher and results have been
-        // computed locally. Transform the link to a forwarder link, which will transparently
-        // forward requests to this node
-        URI forwarderUri = UriUtils.buildForwardToPeerUri(u, getHost().getId(),
-                ServiceUriPaths.DEFAULT_NODE_SELECTOR, EnumSet.noneOf(ServiceOption.class));
-        String nextLink = forwarderUri.getPath() + UriUtils.URI_QUERY_CHAR
-                + forwarderUri.getQuery();
+            processQueryResults(targetIndex, options, s, rsp, hits, queryStartTimeMicros);
+            updateQueryStats(options, queryTime, Utils.getSystemNowMicrosUtc() - end);
 
-        URI forwarderUriOfPrevLinkForNewPage = UriUtils.buildForwardToPeerUri(op.getReferer(),
-                getHost().getId(),
-                ServiceUriPaths.DEFAULT_NODE_SELECTOR, EnumSet.noneOf(ServiceOption.class));
-        String prevLinkForNewPage = forwarderUriOfPrevLinkForNewPage.getPath()
-                + UriUtils.URI_QUERY_CHAR + forwarderUriOfPrevLinkForNewPage.getQuery();
+            if (hits.length == 0) {
+                break;
+            }
 
-        // Requests to core/query-page are forwarded to document-index (this service) and
-        // referer of that forwarded request is set to original query-page request.
-        // This method is called when query-page wants to create new page for a paginated query.
-        // If a new page is going to be created then it is safe to use query-page link
-        // from referer as previous page link of this new page being created.
-        LuceneQueryPage page = new LuceneQueryPage(hasPage ? prevLinkForNewPage : null, after);
+            if (rsp.documentLinks.size() >= count || hits.length < resultLimit) {
+                bottom = (FieldDoc) hits[hits.length - 1];
+                break;
+            }
+
+            resultLimit = count - rsp.documentLinks.size();
+            start = Utils.getSystemNowMicrosUtc();
+            hits = s.searchAfter(hits[hits.length - 1], tq, resultLimit, pageSort, false, false)
+                    .scoreDocs;
+        }
+
+        if (prevPageCollector != null) {
+            // pages before the last one are full
+            FieldDoc prevAfter = findPreviousPageCursor(targetIndex, options, s, tq, prevPageSort,
+                    prevPageCollector.topDocs().scoreDocs, prevResultLimit);
+            rsp.prevPageLink = buildPageLink(page.link,
+                    LuceneQueryPageCursor.create(readerVersion, prevAfter,
+                            prevAfter == null ? 0 : count));
+        }
+
+        if (bottom != null) {
+            rsp.nextPageLink = buildPageLink(page.link,
+                    LuceneQueryPageCursor.create(readerVersion, bottom,
+                            rsp.documentLinks.size()));
+        }
+        return rsp;
+    }
+
+    /**
+     * Collects results from the given hits, in the given reverse sort order, and returns the hit
+     * of the count-th result, where the previous page starts. Returns null, for the first page,
+     * when there are fewer results
+     */
+    private FieldDoc findPreviousPageCursor(ServiceOption targetIndex,
+            EnumSet<QueryOption> options, IndexSearcher s, Query tq, Sort reverseSort,
+            ScoreDoc[] hits, int count) throws Throwable {
+        // only the result links are needed to count results
+        EnumSet<QueryOption> countOptions = EnumSet.copyOf(options);
+        countOptions.remove(QueryOption.EXPAND_CONTENT);
+        countOptions.remove(QueryOption.COUNT);
+
+        ServiceDocumentQueryResult results = new ServiceDocumentQueryResult();
+        results.documentLinks = new ArrayList<>();
+        int resultLimit = count;
+        long queryStartTimeMicros = Utils.getSystemNowMicrosUtc();
+        while (hits.length > 0) {
+            processQueryResults(targetIndex, countOptions, s, results, hits,
+                    queryStartTimeMicros);
+            if (results.documentLinks.size() >= count) {
+                return (FieldDoc) hits[hits.length - 1];
+            }
+            if (hits.length < resultLimit) {
+                break;
+            }
+            resultLimit = count - results.documentLinks.size();
+            hits = s.searchAfter(hits[hits.length - 1], tq, resultLimit, reverseSort, false,
+                    false).scoreDocs;
+        }
+        return null;
+    }
+
+    private static Sort reverse(Sort sort) {
+        SortField[] fields = sort.getSort();
+        SortField[] reverseFields = new SortField[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            reverseFields[i] = new SortField(fields[i].getField(), fields[i].getType(),
+                    !fields[i].getReverse());
+        }
+        return new Sort(reverseFields);
+    }
+
+    /**
+     * Numeric properties of collection items have sorted numeric doc values, with a value per
+     * item, in their own field. Documents are sorted by their minimum value of such fields, or by
+     * their maximum value in descending order. Query pages keep the sort order as created from
+     * the query specification, so this is applied to each search
+     */
+    private static Sort createMultiValuedSort(IndexSearcher s, Sort sort) {
+        SortField[] fields = sort.getSort();
+        SortField[] multiValuedFields = null;
+        for (int i = 0; i < fields.length; i++) {
+            SortField f = fields[i];
+            if (f.getType() != SortField.Type.LONG && f.getType() != SortField.Type.DOUBLE) {
+                continue;
+            }
+            String itemValuesField = buildItemValuesFieldName(f.getField());
+            if (getDocValuesType(s, itemValuesField) != DocValuesType.SORTED_NUMERIC) {
+                continue;
+            }
+            if (multiValuedFields == null) {
+                multiValuedFields = fields.clone();
+            }
+            multiValuedFields[i] = new SortedNumericSortField(itemValuesField, f.getType(),
+                    f.getReverse(), f.getReverse() ? SortedNumericSelector.Type.MAX
+                            : SortedNumericSelector.Type.MIN);
+        }
+        return multiValuedFields == null ? sort : new Sort(multiValuedFields);
+    }
+
+    private static String buildItemValuesFieldName(String fieldName) {
+        return fieldName + LUCENE_FIELD_NAME_SUFFIX_ITEM_VALUES;
+    }
+
+    private static DocValuesType getDocValuesType(IndexSearcher s, String field) {
+        for (LeafReaderContext leaf : s.getIndexReader().leaves()) {
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+            if (info != null) {
+                return info.getDocValuesType();
+            }
+        }
+        return DocValuesType.NONE;
+    }
+
+    /**
+     * Starts the page service of a paginated query, holding the query, and returns the link to
+     * its first page. The searcher the query started with is kept for the pages, as long as
+     * it is one of the most recently used page searchers
+     */
+    private String createQueryPageService(Operation op, IndexSearcher s,
+            EnumSet<QueryOption> options,
+            Query tq,
+            Sort sort,
+            int count,
+            long expiration,
+            String indexLink) {
+        String pageServiceLink = UriUtils.buildUriPath(ServiceUriPaths.CORE_QUERY_PAGE,
+                Utils.getNowMicrosUtc() + "");
+        addPageSearcher(s);
 
         QuerySpecification spec = new QuerySpecification();
         spec.options = options;
         spec.context.nativeQuery = tq;
-        spec.context.nativePage = page;
-        spec.context.nativeSearcher = s;
         spec.context.nativeSort = sort;
         spec.resultLimit = count;
 
         ServiceDocument body = new ServiceDocument();
-        body.documentSelfLink = u.getPath();
+        body.documentSelfLink = pageServiceLink;
         body.documentExpirationTimeMicros = expiration;
 
         AuthorizationContext ctx = op.getAuthorizationContext();
@@ -998,11 +1964,11 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
 
         Operation startPost = Operation
-                .createPost(u)
+                .createPost(UriUtils.buildUri(getHost(), pageServiceLink))
                 .setBody(body)
                 .setCompletion((o, e) -> {
                     if (e != null) {
-                        logWarning("Unable to start next page service: %s", e.toString());
+                        logWarning("Unable to start query page service: %s", e.toString());
                     }
                 });
 
@@ -1011,10 +1977,28 @@ public class LuceneDocumentIndexService extends StatelessService {
         }
 
         getHost().startService(startPost, new LuceneQueryPageService(spec, indexLink));
-        return nextLink;
+        return buildPageLink(pageServiceLink,
+                LuceneQueryPageCursor.create(getReaderVersion(s), null, 0));
+    }
+
+    private String buildPageLink(String pageServiceLink, LuceneQueryPageCursor cursor) {
+        URI u = UriUtils.buildUri(getHost(), pageServiceLink,
+                LuceneQueryPageService.URI_PARAM_CURSOR + UriUtils.URI_QUERY_PARAM_KV_CHAR
+                        + cursor.encode());
+
+        // the page link must point to this node, since the query is held by the page service
+        // on this node. Transform the link to a forwarder link, which will transparently
+        // forward requests to this node
+        URI forwarderUri = UriUtils.buildForwardToPeerUri(u, getHost().getId(),
+                ServiceUriPaths.DEFAULT_NODE_SELECTOR, EnumSet.noneOf(ServiceOption.class));
+        return forwarderUri.getPath() + UriUtils.URI_QUERY_CHAR + forwarderUri.getQuery();
     }
 
-    private void processQueryResults(ServiceOption targetIndex, EnumSet<QueryOption> options,
+    /**
+     * Adds the results among the hits to the response and returns the earliest expiration time
+     * of the result documents, or Long.MAX_VALUE if none of them expires
+     */
+    private long processQueryResults(ServiceOption targetIndex, EnumSet<QueryOption> options,
             IndexSearcher s, ServiceDocumentQueryResult rsp, ScoreDoc[] hits,
             long queryStartTimeMicros) throws Throwable {
 
@@ -1027,19 +2011,33 @@ public class LuceneDocumentIndexService extends StatelessService {
         Set<String> uniques = new LinkedHashSet<>(rsp.documentLinks);
         final boolean hasCountOption = options.contains(QueryOption.COUNT);
 
+        NumericDocValues supersededValues = MultiDocValues.getNumericValues(s.getIndexReader(),
+                LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+        Bits docsWithSupersededValue = MultiDocValues.getDocsWithField(s.getIndexReader(),
+                LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+
         Map<String, Long> latestVersions = new HashMap<>();
+        long expirationMicros = Long.MAX_VALUE;
         for (ScoreDoc sd : hits) {
             Document d = s.getIndexReader().document(sd.doc, fieldsToLoad);
             String link = d.get(ServiceDocument.FIELD_NAME_SELF_LINK);
             IndexableField versionField = d.getField(ServiceDocument.FIELD_NAME_VERSION);
             Long documentVersion = versionField.numericValue().longValue();
 
-            // We first determine what is the latest document version.
-            // We then use the latest version to determine if the current document result is relevant.
+            // We first determine if the document is the latest version, using the superseded
+            // flag in the index when present, or a lookup of the latest version otherwise.
+            // We then use it to determine if the current document result is relevant.
             Long latestVersion = latestVersions.get(link);
-            if (latestVersion == null) {
-                latestVersion = getLatestVersion(s, link);
-                latestVersions.put(link, latestVersion);
+            boolean isLatestVersion;
+            if (latestVersion == null && docsWithSupersededValue != null
+                    && docsWithSupersededValue.get(sd.doc)) {
+                isLatestVersion = supersededValues.get(sd.doc) == 0;
+            } else {
+                if (latestVersion == null) {
+                    latestVersion = getLatestVersion(s, link);
+                    latestVersions.put(link, latestVersion);
+                }
+                isLatestVersion = documentVersion >= latestVersion;
             }
 
             boolean isDeleted = DELETE_ACTION.equals(d
@@ -1047,14 +2045,14 @@ public class LuceneDocumentIndexService extends StatelessService {
 
             if (isDeleted && !options.contains(QueryOption.INCLUDE_DELETED)) {
                 // ignore a document if its marked deleted and it has the latest version
-                if (documentVersion >= latestVersion) {
+                if (isLatestVersion) {
                     uniques.remove(link);
                 }
                 continue;
             }
 
             if (!options.contains(QueryOption.INCLUDE_ALL_VERSIONS)) {
-                if (documentVersion < latestVersion) {
+                if (!isLatestVersion) {
                     continue;
                 }
             } else {
@@ -1068,6 +2066,13 @@ public class LuceneDocumentIndexService extends StatelessService {
                 continue;
             }
 
+            IndexableField expirationField = d
+                    .getField(ServiceDocument.FIELD_NAME_EXPIRATION_TIME_MICROS);
+            if (expirationField != null) {
+                expirationMicros = Math.min(expirationMicros,
+                        expirationField.numericValue().longValue());
+            }
+
             if (hasCountOption) {
                 // count unique instances of this link
                 uniques.add(link);
@@ -1077,19 +2082,18 @@ public class LuceneDocumentIndexService extends StatelessService {
             }
 
             if (options.contains(QueryOption.EXPAND_CONTENT)) {
-                String json = null;
-                ServiceDocument state = getStateFromLuceneDocument(d, link);
+                // the deserialized state is added as is, and only encoded to JSON when the
+                // result is serialized, possibly streamed, to a remote client
+                Object state = getStateFromLuceneDocument(d, link);
                 if (state == null) {
                     // support reading JSON serialized state for backwards compatibility
-                    json = d.get(LUCENE_FIELD_NAME_JSON_SERIALIZED_STATE);
-                    if (json == null) {
+                    state = d.get(LUCENE_FIELD_NAME_JSON_SERIALIZED_STATE);
+                    if (state == null) {
                         continue;
                     }
-                } else {
-                    json = Utils.toJson(state);
                 }
                 if (!rsp.documents.containsKey(link)) {
-                    rsp.documents.put(link, new JsonParser().parse(json).getAsJsonObject());
+                    rsp.documents.put(link, state);
                 }
             }
             uniques.add(link);
@@ -1102,6 +2106,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             rsp.documentLinks.addAll(uniques);
             rsp.documentCount = Long.valueOf(rsp.documentLinks.size());
         }
+        return expirationMicros;
     }
 
     private ServiceDocument getStateFromLuceneDocument(Document doc, String link) {
@@ -1118,14 +2123,8 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private long getLatestVersion(IndexSearcher s, String link) throws IOException {
-        IndexableField versionField;
-        long latestVersion;
         TopDocs td = searchByVersion(link, s, null);
-        Document latestVersionDoc = s.getIndexReader().document(td.scoreDocs[0].doc,
-                this.fieldsToLoadNoExpand);
-        versionField = latestVersionDoc.getField(ServiceDocument.FIELD_NAME_VERSION);
-        latestVersion = versionField.numericValue().longValue();
-        return latestVersion;
+        return (Long) ((FieldDoc) td.scoreDocs[0]).fields[0];
     }
 
     private void expandLinks(Operation o, Operation get) {
@@ -1135,107 +2134,259 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        r.documents = new HashMap<>();
+        r.documents = new HashMap<>();
+
+        AtomicInteger i = new AtomicInteger(r.documentLinks.size());
+        CompletionHandler c = (op, e) -> {
+            try {
+                if (e != null) {
+                    logWarning("failure expanding %s: %s", op.getUri().getPath(), e.getMessage());
+                    return;
+                }
+                synchronized (r.documents) {
+                    r.documents.put(op.getUri().getPath(), op.getBodyRaw());
+                }
+            } finally {
+                if (i.decrementAndGet() == 0) {
+                    get.setBodyNoCloning(r).complete();
+                }
+            }
+        };
+
+        for (String selfLink : r.documentLinks) {
+            sendRequest(Operation.createGet(this, selfLink)
+                    .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+                    .setCompletion(c));
+        }
+    }
+
+    public void handleDeleteImpl(Operation delete) throws Throwable {
+        setProcessingStage(ProcessingStage.STOPPED);
+
+        this.privateIndexingExecutor.shutdown();
+        this.privateQueryExecutor.shutdown();
+        Operation pending;
+        while ((pending = this.pendingUpdates.poll()) != null) {
+            pending.fail(new CancellationException());
+        }
+        IndexWriter w = this.writer;
+        this.writer = null;
+        releasePageSearchers(Long.MAX_VALUE);
+        close(this.searcherManager);
+        close(w);
+        this.getHost().stopService(this);
+        delete.complete();
+    }
+
+    private void close(SearcherManager sm) {
+        if (sm == null) {
+            return;
+        }
+        try {
+            sm.close();
+        } catch (Throwable e) {
+        }
+    }
+
+    private void close(IndexWriter wr) {
+        try {
+            if (wr == null) {
+                return;
+            }
+            logInfo("Document count: %d ", wr.maxDoc());
+            wr.commit();
+            wr.close();
+        } catch (Throwable e) {
+
+        }
+    }
+
+    public static FieldType numericDocType(FieldType.NumericType type, boolean store) {
+        FieldType t = new FieldType();
+        t.setStored(store);
+        t.setDocValuesType(DocValuesType.NUMERIC);
+        t.setIndexOptions(IndexOptions.DOCS);
+        t.setNumericType(type);
+        t.setNumericPrecisionStep(QueryTask.DEFAULT_PRECISION_STEP);
+        return t;
+    }
+
+    /**
+     * Doubles are indexed without doc values on the numeric field: a separate
+     * {@link DoubleDocValuesField} encodes the value bits, since numeric doc values on the
+     * {@link DoubleField} itself would hold the value truncated to a long
+     */
+    private static FieldType doubleDocType(boolean store) {
+        FieldType t = numericDocType(FieldType.NumericType.DOUBLE, store);
+        t.setDocValuesType(DocValuesType.NONE);
+        return t;
+    }
+
+    /**
+     * Numeric properties of collection items have a value per item, so they are indexed
+     * without doc values on the numeric field: a {@link SortedNumericDocValuesField} per item,
+     * in a field of its own, holds the values
+     */
+    private static FieldType multiValuedNumericDocType(FieldType.NumericType type) {
+        FieldType t = numericDocType(type, false);
+        t.setDocValuesType(DocValuesType.NONE);
+        return t;
+    }
+
+    private void processPendingUpdates() {
+        if (this.pendingUpdates.isEmpty()) {
+            return;
+        }
+
+        try {
+            this.writerAvailable.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        boolean isInterrupted = false;
+        try {
+            List<Operation> batch = new ArrayList<>();
+            long deadline = Utils.getSystemNowMicrosUtc() + UPDATE_BATCH_MAX_DELAY_MICROS;
+            while (batch.size() < UPDATE_BATCH_SIZE_LIMIT) {
+                Operation op = this.pendingUpdates.poll();
+                long remaining = deadline - Utils.getSystemNowMicrosUtc();
+                if (op == null && !batch.isEmpty() && remaining > 0) {
+                    try {
+                        op = this.pendingUpdates.poll(remaining, TimeUnit.MICROSECONDS);
+                    } catch (InterruptedException e) {
+                        // index the operations already taken from the queue, and restore the
+                        // interrupt once the index writer is done, since an interrupt during
+                        // I/O closes the index files
+                        isInterrupted = true;
+                        break;
+                    }
+                }
+                if (op == null) {
+                    break;
+                }
+                batch.add(op);
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            updateIndex(batch);
+        } finally {
+            this.writerAvailable.release();
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected void updateIndex(Operation updateOp) throws Throwable {
+        updateIndex(Collections.singletonList(updateOp));
+    }
+
+    /**
+     * Indexes a group of update requests with a single index writer call. Requests that fail
+     * validation are failed individually and excluded from the group. Every operation is
+     * completed or failed exactly once
+     */
+    protected void updateIndex(List<Operation> updateOps) {
+        List<Operation> ops = new ArrayList<>(updateOps.size());
+        List<UpdateIndexRequest> requests = new ArrayList<>(updateOps.size());
+        List<Document> docs = new ArrayList<>(updateOps.size());
 
-        AtomicInteger i = new AtomicInteger(r.documentLinks.size());
-        CompletionHandler c = (op, e) -> {
+        for (Operation updateOp : updateOps) {
             try {
-                if (e != null) {
-                    logWarning("failure expanding %s: %s", op.getUri().getPath(), e.getMessage());
-                    return;
-                }
-                synchronized (r.documents) {
-                    r.documents.put(op.getUri().getPath(), op.getBodyRaw());
-                }
-            } finally {
-                if (i.decrementAndGet() == 0) {
-                    get.setBodyNoCloning(r).complete();
+                UpdateIndexRequest r = updateOp.getBody(UpdateIndexRequest.class);
+                Document doc = createIndexDocument(updateOp, r);
+                if (doc == null) {
+                    continue;
                 }
+                ops.add(updateOp);
+                requests.add(r);
+                docs.add(doc);
+            } catch (Throwable e) {
+                checkFailureAndRecover(e);
+                updateOp.fail(e);
             }
-        };
+        }
 
-        for (String selfLink : r.documentLinks) {
-            sendRequest(Operation.createGet(this, selfLink)
-                    .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
-                    .setCompletion(c));
+        if (docs.isEmpty()) {
+            return;
         }
-    }
 
-    public void handleDeleteImpl(Operation delete) throws Throwable {
-        setProcessingStage(ProcessingStage.STOPPED);
+        try {
+            addDocumentsToIndex(requests, docs);
+        } catch (Throwable e) {
+            checkFailureAndRecover(e);
+            for (Operation failedOp : ops) {
+                failedOp.fail(e);
+            }
+            return;
+        }
 
-        this.privateIndexingExecutor.shutdown();
-        this.privateQueryExecutor.shutdown();
-        IndexWriter w = this.writer;
-        this.writer = null;
-        close(w);
-        this.getHost().stopService(this);
-        delete.complete();
-    }
+        for (Operation op : ops) {
+            op.setBody(null).complete();
+        }
 
-    private void close(IndexWriter wr) {
+        // operations are complete, failures past this point are only logged
         try {
-            if (wr == null) {
-                return;
+            for (UpdateIndexRequest r : requests) {
+                checkDocumentRetentionLimit(r.document, r.description);
             }
-            logInfo("Document count: %d ", wr.maxDoc());
-            wr.commit();
-            wr.close();
+            applyActiveQueries(requests);
         } catch (Throwable e) {
-
+            checkFailureAndRecover(e);
+            logWarning("Post indexing processing failed: %s", e.toString());
         }
     }
 
-    public static FieldType numericDocType(FieldType.NumericType type, boolean store) {
-        FieldType t = new FieldType();
-        t.setStored(store);
-        t.setDocValuesType(DocValuesType.NUMERIC);
-        t.setIndexOptions(IndexOptions.DOCS);
-        t.setNumericType(type);
-        t.setNumericPrecisionStep(QueryTask.DEFAULT_PRECISION_STEP);
-        return t;
-    }
-
-    protected void updateIndex(Operation updateOp) throws Throwable {
-        UpdateIndexRequest r = updateOp.getBody(UpdateIndexRequest.class);
+    /**
+     * Builds the Lucene document for an update request. Returns null, after failing the
+     * operation, if the request is not valid
+     */
+    private Document createIndexDocument(Operation updateOp, UpdateIndexRequest r) {
         ServiceDocument s = r.document;
         ServiceDocumentDescription desc = r.description;
 
         if (updateOp.isRemote()) {
             updateOp.fail(new IllegalStateException("Remote requests not allowed"));
-            return;
+            return null;
         }
 
         if (s == null) {
             updateOp.fail(new IllegalArgumentException("document is required"));
-            return;
+            return null;
         }
 
         String link = s.documentSelfLink;
         if (link == null) {
             updateOp.fail(new IllegalArgumentException(
                     "documentSelfLink is required"));
-            return;
+            return null;
         }
 
         if (s.documentUpdateAction == null) {
             updateOp.fail(new IllegalArgumentException(
                     "documentUpdateAction is required"));
-            return;
+            return null;
         }
 
         if (desc == null) {
             updateOp.fail(new IllegalArgumentException("description is required"));
-            return;
+            return null;
         }
 
         s.documentDescription = null;
 
         Document doc = new Document();
 
-        Field updateActionField = new StoredField(ServiceDocument.FIELD_NAME_UPDATE_ACTION,
-                s.documentUpdateAction);
+        Field updateActionField = new StringField(ServiceDocument.FIELD_NAME_UPDATE_ACTION,
+                s.documentUpdateAction, Field.Store.YES);
         doc.add(updateActionField);
+        doc.add(new NumericDocValuesField(LUCENE_FIELD_NAME_INDEXING_FORMAT,
+                INDEXING_FORMAT_VERSION));
 
         addBinaryStateFieldToDocument(s, desc, doc);
 
@@ -1254,6 +2405,13 @@ public class LuceneDocumentIndexService extends StatelessService {
             doc.add(kindField);
         }
 
+        if (s.documentOwner != null) {
+            Field ownerField = new StringField(ServiceDocument.FIELD_NAME_OWNER,
+                    s.documentOwner,
+                    Field.Store.NO);
+            doc.add(ownerField);
+        }
+
         if (s.documentAuthPrincipalLink != null) {
             Field principalField = new StringField(ServiceDocument.FIELD_NAME_AUTH_PRINCIPAL_LINK,
                     s.documentAuthPrincipalLink,
@@ -1288,12 +2446,10 @@ public class LuceneDocumentIndexService extends StatelessService {
                 || desc.propertyDescriptions.isEmpty()) {
             // no additional property type information, so we will add the
             // document with common fields indexed plus the full body
-            addDocumentToIndex(updateOp, doc, s, desc);
-            return;
+            return doc;
         }
 
         addIndexableFieldsToDocument(doc, s, desc);
-        addDocumentToIndex(updateOp, doc, s, desc);
 
         if (hasOption(ServiceOption.INSTRUMENTATION)) {
             int fieldCount = doc.getFields().size();
@@ -1302,6 +2458,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             st = getHistogramStat(STAT_NAME_FIELD_COUNT_PER_DOCUMENT);
             setStat(st, fieldCount);
         }
+        return doc;
     }
 
     private void addBinaryStateFieldToDocument(ServiceDocument s,
@@ -1309,8 +2466,10 @@ public class LuceneDocumentIndexService extends StatelessService {
         try {
             byte[] content = Utils.getBuffer(desc.serializedStateSizeLimit);
             int count = Utils.toBytes(s, content, 0);
+            // the serialization buffer is per thread and gets re-used for the next document in
+            // the batch, before this document is handed to the index writer, so copy the bytes
             Field bodyField = new StoredField(LUCENE_FIELD_NAME_BINARY_SERIALIZED_STATE,
-                    content, 0, count);
+                    Arrays.copyOf(content, count));
             doc.add(bodyField);
         } catch (KryoException ke) {
             throw new IllegalArgumentException(
@@ -1332,16 +2491,18 @@ public class LuceneDocumentIndexService extends StatelessService {
                 continue;
             }
             Object v = ReflectionUtils.getPropertyValue(pd, podo);
-            addIndexableFieldToDocument(doc, v, pd, name);
+            addIndexableFieldToDocument(doc, v, pd, name, false);
         }
     }
 
     /**
      * Add single indexable field to the Lucene {@link Document}.
      * This function recurses if the field value is a PODO, map, array, or collection.
+     * Fields of collection items can have more than one value per document, so numeric
+     * values of collection items are added as sorted numeric doc values
      */
     private void addIndexableFieldToDocument(Document doc, Object podo, PropertyDescription pd,
-            String fieldName) {
+            String fieldName, boolean isCollectionItem) {
         Field luceneField = null;
         Field luceneDocValuesField = null;
         Field.Store fsv = Field.Store.NO;
@@ -1389,16 +2550,38 @@ public class LuceneDocumentIndexService extends StatelessService {
                 int i = (int) v;
                 v = i * 1L;
             }
-            luceneField = new LongField(fieldName, (long) v,
-                    fsv == Store.NO ? this.longUnStoredField : this.longStoredField);
+            if (isCollectionItem) {
+                luceneField = new LongField(fieldName, (long) v, this.longMultiValuedField);
+                luceneDocValuesField = new SortedNumericDocValuesField(
+                        buildItemValuesFieldName(fieldName), (long) v);
+            } else {
+                luceneField = new LongField(fieldName, (long) v,
+                        fsv == Store.NO ? this.longUnStoredField : this.longStoredField);
+            }
         } else if (pd.typeName.equals(TypeName.DATE)) {
             // Index as microseconds since UNIX epoch
             Date dt = (Date) v;
-            luceneField = new LongField(fieldName, dt.getTime() * 1000,
-                    fsv == Store.NO ? this.longUnStoredField : this.longStoredField);
+            if (isCollectionItem) {
+                luceneField = new LongField(fieldName, dt.getTime() * 1000,
+                        this.longMultiValuedField);
+                luceneDocValuesField = new SortedNumericDocValuesField(
+                        buildItemValuesFieldName(fieldName), dt.getTime() * 1000);
+            } else {
+                luceneField = new LongField(fieldName, dt.getTime() * 1000,
+                        fsv == Store.NO ? this.longUnStoredField : this.longStoredField);
+            }
         } else if (pd.typeName.equals(TypeName.DOUBLE)) {
             luceneField = new DoubleField(fieldName, (double) v,
                     fsv == Store.NO ? this.doubleUnStoredField : this.doubleStoredField);
+            if (isCollectionItem) {
+                luceneDocValuesField = new SortedNumericDocValuesField(
+                        buildItemValuesFieldName(fieldName),
+                        NumericUtils.doubleToSortableLong((double) v));
+            } else {
+                // doc values hold the raw bits of the double, so sorting and aggregations
+                // read back the exact value
+                luceneDocValuesField = new DoubleDocValuesField(fieldName, (double) v);
+            }
         } else if (pd.typeName.equals(TypeName.BOOLEAN)) {
             String booleanValue = QuerySpecification.toMatchValue((boolean) v);
             luceneField = new StringField(fieldName, booleanValue, fsv);
@@ -1415,10 +2598,10 @@ public class LuceneDocumentIndexService extends StatelessService {
             if (!(v instanceof TaskState) && !expandField) {
                 return;
             }
-            addObjectIndexableFieldToDocument(doc, v, pd, fieldName);
+            addObjectIndexableFieldToDocument(doc, v, pd, fieldName, isCollectionItem);
             return;
         } else if (expandField && pd.typeName.equals(TypeName.MAP)) {
-            addMapIndexableFieldToDocument(doc, v, pd, fieldName);
+            addMapIndexableFieldToDocument(doc, v, pd, fieldName, isCollectionItem);
             return;
         } else if (expandField && (pd.typeName.equals(TypeName.COLLECTION) ||
                 pd.typeName.equals(TypeName.ARRAY))) {
@@ -1442,7 +2625,7 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private void addObjectIndexableFieldToDocument(Document doc, Object v, PropertyDescription pd,
-            String fieldNamePrefix) {
+            String fieldNamePrefix, boolean isCollectionItem) {
         for (Entry<String, PropertyDescription> e : pd.fieldDescriptions.entrySet()) {
             PropertyDescription fieldDescription = e.getValue();
             if (pd.indexingOptions.contains(PropertyIndexingOption.SORT)) {
@@ -1451,13 +2634,14 @@ public class LuceneDocumentIndexService extends StatelessService {
             Object fieldValue = ReflectionUtils.getPropertyValue(fieldDescription, v);
             String fieldName = QuerySpecification.buildCompositeFieldName(fieldNamePrefix,
                     e.getKey());
-            addIndexableFieldToDocument(doc, fieldValue, fieldDescription, fieldName);
+            addIndexableFieldToDocument(doc, fieldValue, fieldDescription, fieldName,
+                    isCollectionItem);
         }
     }
 
     @SuppressWarnings({ "rawtypes" })
     private void addMapIndexableFieldToDocument(Document doc, Object v, PropertyDescription pd,
-            String fieldNamePrefix) {
+            String fieldNamePrefix, boolean isCollectionItem) {
         final String errorMsg = "Field not supported. Map keys must be of type String.";
 
         Map m = (Map) v;
@@ -1473,7 +2657,8 @@ public class LuceneDocumentIndexService extends StatelessService {
             addIndexableFieldToDocument(doc,
                     entry.getValue(),
                     pd.elementDescription,
-                    QuerySpecification.buildCompositeFieldName(fieldNamePrefix, (String) mapKey));
+                    QuerySpecification.buildCompositeFieldName(fieldNamePrefix, (String) mapKey),
+                    isCollectionItem);
         }
     }
 
@@ -1496,7 +2681,7 @@ public class LuceneDocumentIndexService extends StatelessService {
                 continue;
             }
 
-            addIndexableFieldToDocument(doc, cv, pd.elementDescription, fieldNamePrefix);
+            addIndexableFieldToDocument(doc, cv, pd.elementDescription, fieldNamePrefix, true);
         }
     }
 
@@ -1617,12 +2802,17 @@ public class LuceneDocumentIndexService extends StatelessService {
         Query linkQuery = new TermQuery(new Term(ServiceDocument.FIELD_NAME_SELF_LINK,
                 link));
 
-        IndexSearcher s = updateSearcher(link, Integer.MAX_VALUE, wr);
-        if (s == null) {
-            delete.fail(new CancellationException());
-            return;
+        IndexSearcher s = acquireSearcher(link, Integer.MAX_VALUE, true);
+        try {
+            deleteDocumentsFromIndex(delete, wr, s, linkQuery, link, info, versionsToKeep);
+        } finally {
+            releaseSearcher(s);
         }
+    }
 
+    private void deleteDocumentsFromIndex(Operation delete, IndexWriter wr, IndexSearcher s,
+            Query linkQuery, String link, SelfLinkInfo info, long versionsToKeep)
+            throws Throwable {
         TopDocs results;
 
         results = s.search(linkQuery, Integer.MAX_VALUE, this.versionSort, false, false);
@@ -1639,8 +2829,13 @@ public class LuceneDocumentIndexService extends StatelessService {
         Document hitDoc = s.doc(hits[0].doc);
 
         if (versionsToKeep == 0) {
-            // we are asked to delete everything, no need to sort or query
-            this.selfLinks.remove(link);
+            // we are asked to delete everything, no need to sort or query. The link keeps an
+            // entry without a version, so a recreated document is not compared against deleted
+            // versions a stale searcher still returns
+            SelfLinkInfo deletedInfo = new SelfLinkInfo();
+            deletedInfo.version = -1;
+            deletedInfo.updateMicros = Utils.getNowMicrosUtc();
+            this.selfLinks.put(link, deletedInfo);
             wr.deleteDocuments(linkQuery);
             this.indexUpdateTimeMicros = Utils.getNowMicrosUtc();
             delete.complete();
@@ -1680,79 +2875,328 @@ public class LuceneDocumentIndexService extends StatelessService {
         delete.complete();
     }
 
-    private void addDocumentToIndex(Operation op, Document doc, ServiceDocument sd,
-            ServiceDocumentDescription desc) throws IOException {
+    private void addDocumentsToIndex(List<UpdateIndexRequest> requests, List<Document> docs)
+            throws IOException {
         IndexWriter wr = this.writer;
         if (wr == null) {
-            op.fail(new CancellationException());
-            return;
+            throw new CancellationException();
         }
 
-        long start = Utils.getNowMicrosUtc();
-        wr.addDocument(doc);
-        updateSelfLinkInfo(sd);
+        long start = Utils.getSystemNowMicrosUtc();
+        writeDocuments(wr, requests, docs);
 
-        long end = Utils.getNowMicrosUtc();
+        long end = Utils.getSystemNowMicrosUtc();
         if (hasOption(ServiceOption.INSTRUMENTATION)) {
             ServiceStat s = getHistogramStat(STAT_NAME_INDEXING_DURATION_MICROS);
+            setStat(s, (end - start) / docs.size());
+            s = getHistogramStat(STAT_NAME_INDEXING_BATCH_DURATION_MICROS);
             setStat(s, end - start);
+            s = getHistogramStat(STAT_NAME_INDEXING_BATCH_SIZE);
+            setStat(s, docs.size());
+            adjustStat(STAT_NAME_INDEXING_BATCH_COUNT, 1);
+        }
+    }
+
+    /**
+     * Adds the documents, flagging all previously indexed versions of their self links as
+     * superseded. Versions of a self link are expected to be indexed in order: a document
+     * older than the latest version in the batch, or the latest indexed version, is added
+     * already flagged as superseded. The latest indexed version of each self link is updated
+     * before another batch is written
+     */
+    private void writeDocuments(IndexWriter wr, List<UpdateIndexRequest> requests,
+            List<Document> docs) throws IOException {
+        Map<String, Long> latestVersions = new HashMap<>();
+        for (UpdateIndexRequest r : requests) {
+            latestVersions.merge(r.document.documentSelfLink, r.document.documentVersion,
+                    Math::max);
+        }
+
+        Set<Integer> lockIndexes = new TreeSet<>();
+        for (String link : latestVersions.keySet()) {
+            lockIndexes.add(getVersionUpdateLockIndex(link));
         }
 
-        op.setBody(null).complete();
+        List<ReentrantLock> locks = new ArrayList<>(lockIndexes.size());
+        try {
+            for (int i : lockIndexes) {
+                ReentrantLock l = this.versionUpdateLocks[i];
+                l.lock();
+                locks.add(l);
+            }
+            Map<String, Long> indexedVersions = getIndexedVersions(latestVersions.keySet());
+            writeDocuments(wr, requests, docs, latestVersions, indexedVersions);
+            for (UpdateIndexRequest r : requests) {
+                updateSelfLinkInfo(r.document);
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+    }
 
-        checkDocumentRetentionLimit(sd, desc);
-        applyActiveQueries(sd, desc);
+    private static int getVersionUpdateLockIndex(String link) {
+        return (link.hashCode() & Integer.MAX_VALUE) % VERSION_UPDATE_LOCK_COUNT;
     }
 
-    private IndexSearcher updateSearcher(String selfLink, int resultLimit, IndexWriter w)
-            throws IOException {
+    private void writeDocuments(IndexWriter wr, List<UpdateIndexRequest> requests,
+            List<Document> docs, Map<String, Long> latestVersions,
+            Map<String, Long> indexedVersions) throws IOException {
+        for (int i = 0; i < docs.size(); i++) {
+            ServiceDocument sd = requests.get(i).document;
+            boolean isSuperseded = sd.documentVersion < latestVersions.get(sd.documentSelfLink)
+                    || sd.documentVersion < indexedVersions.get(sd.documentSelfLink);
+            docs.get(i).add(new NumericDocValuesField(LUCENE_FIELD_NAME_VERSION_SUPERSEDED,
+                    isSuperseded ? 1L : 0L));
+        }
+
+        Lock l = this.searcherRefreshLock.readLock();
+        l.lock();
+        try {
+            if (this.hasVersionSupersededField) {
+                // Lucene updates doc values by term only, so links without indexed versions,
+                // such as new services, are skipped to keep the updates to a minimum
+                for (Entry<String, Long> e : latestVersions.entrySet()) {
+                    long indexedVersion = indexedVersions.get(e.getKey());
+                    if (indexedVersion < 0 || e.getValue() < indexedVersion) {
+                        continue;
+                    }
+                    wr.updateNumericDocValue(
+                            new Term(ServiceDocument.FIELD_NAME_SELF_LINK, e.getKey()),
+                            LUCENE_FIELD_NAME_VERSION_SUPERSEDED, 1L);
+                }
+            }
 
-        // We want avoid creating a new IndexSearcher, per query. So we create one in one of
-        // following conditions:
-        // 1) no searcher for this index exists
-        // 2) the query is across many links or multiple version, not a specific one and index was
-        // changed
-        // 3) the query is for a specific self link AND the self link has seen an update after the
-        // last query executed
+            if (docs.size() == 1) {
+                wr.addDocument(docs.get(0));
+            } else {
+                wr.addDocuments(docs);
+            }
+            this.hasVersionSupersededField = true;
+        } finally {
+            l.unlock();
+        }
+    }
 
+    /**
+     * Returns the latest indexed version of each self link, or -1 for links without indexed
+     * versions. Versions are read from the self link info, or from the index for links without
+     * an entry, since entries are pruned under memory pressure
+     */
+    private Map<String, Long> getIndexedVersions(Collection<String> links) throws IOException {
+        Map<String, Long> versions = new HashMap<>();
         IndexSearcher s = null;
-        boolean needNewSearcher = false;
-        long now = Utils.getNowMicrosUtc();
-        synchronized (this.searchSync) {
-            s = this.searcher;
-
-            if (s == null) {
-                needNewSearcher = true;
-            } else if (resultLimit > 1
-                    && this.searcherUpdateTimeMicros < this.indexUpdateTimeMicros) {
-                needNewSearcher = true;
-            } else if (selfLink != null) {
-                SelfLinkInfo sli = this.selfLinks.get(selfLink);
-                if (sli != null) {
-                    needNewSearcher = sli.updateMicros > this.searcherUpdateTimeMicros;
+        try {
+            for (String link : links) {
+                SelfLinkInfo info = this.selfLinks.get(link);
+                if (info != null) {
+                    versions.put(link, info.version);
+                    continue;
+                }
+                if (this.hasSelfLinkInfoForAllLinks) {
+                    versions.put(link, -1L);
+                    continue;
                 }
+                if (s == null) {
+                    s = acquireSearcher(link, 1, false);
+                }
+                TopDocs td = searchByVersion(link, s, null);
+                versions.put(link, td.scoreDocs.length == 0 ? -1L
+                        : (Long) ((FieldDoc) td.scoreDocs[0]).fields[0]);
+            }
+        } finally {
+            if (s != null) {
+                releaseSearcher(s);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Acquires a reference counted searcher from the searcher manager. If the caller requires
+     * a current view of the index, the searcher is refreshed first, in one of following conditions:
+     * 1) the query is across many links or multiple versions, not a specific one, and the index
+     * was changed after the last refresh
+     * 2) the query is for a specific self link AND the self link has seen an update after the
+     * last refresh
+     * Concurrent refresh requests are coalesced by the searcher manager into a single reopen.
+     * The searcher must be released with {@link #releaseSearcher(IndexSearcher)}
+     */
+    private IndexSearcher acquireSearcher(String selfLink, int resultLimit, boolean doRefresh)
+            throws IOException {
+        SearcherManager sm = this.searcherManager;
+        if (sm == null) {
+            throw new CancellationException();
+        }
+
+        if (doRefresh && isSearcherRefreshRequired(selfLink, resultLimit)) {
+            Lock l = this.searcherRefreshLock.writeLock();
+            l.lock();
+            try {
+                sm.maybeRefreshBlocking();
+            } finally {
+                l.unlock();
+            }
+        }
+        return sm.acquire();
+    }
+
+    private boolean isSearcherRefreshRequired(String selfLink, int resultLimit) {
+        synchronized (this.searchSync) {
+            if (resultLimit > 1) {
+                return this.searcherUpdateTimeMicros < this.indexUpdateTimeMicros;
+            }
+            if (selfLink == null) {
+                return false;
             }
+            SelfLinkInfo sli = this.selfLinks.get(selfLink);
+            return sli != null && sli.updateMicros >= this.searcherUpdateTimeMicros;
+        }
+    }
+
+    /**
+     * Releases a searcher acquired through {@link #acquireSearcher(String, int, boolean)}. The
+     * searcher might belong to a searcher manager that has since been replaced, so the reader
+     * reference is released directly
+     */
+    private void releaseSearcher(IndexSearcher s) {
+        try {
+            s.getIndexReader().decRef();
+        } catch (Throwable e) {
+            logWarning("Failure releasing index searcher: %s", e.toString());
+        }
+    }
 
-            if (!needNewSearcher) {
-                return this.searcher;
+    /**
+     * Acquires the searcher for a query page, given the reader version in the page cursor: the
+     * page searcher with that version if it is still kept, the current searcher otherwise.
+     * The current searcher is then kept for the following pages of the query
+     */
+    private IndexSearcher acquirePageSearcher(long readerVersion) throws IOException {
+        synchronized (this.pageSearchers) {
+            PageSearcher ps = this.pageSearchers.get(readerVersion);
+            if (ps != null && ps.searcher.getIndexReader().tryIncRef()) {
+                ps.lastUseMicros = Utils.getNowMicrosUtc();
+                return ps.searcher;
             }
         }
 
-        // outside the lock create a new searcher. Another thread might race us and also create a
-        // searcher, but that is OK, we will use the most recent one
-        s = new IndexSearcher(DirectoryReader.open(w, true));
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            adjustStat(STAT_NAME_QUERY_PAGE_SEARCHER_MISS_COUNT, 1);
+        }
+        IndexSearcher s = acquireSearcher(null, Integer.MAX_VALUE, false);
+        addPageSearcher(s);
+        return s;
+    }
+
+    /**
+     * Keeps a reference to the searcher for query pages, releasing the least recently used page
+     * searcher when more than {@link #QUERY_PAGE_SEARCHER_LIMIT} are kept
+     */
+    private void addPageSearcher(IndexSearcher s) {
+        long readerVersion = getReaderVersion(s);
+        List<IndexSearcher> evicted = new ArrayList<>();
+        int size;
+        synchronized (this.pageSearchers) {
+            PageSearcher ps = this.pageSearchers.get(readerVersion);
+            if (ps == null) {
+                s.getIndexReader().incRef();
+                ps = new PageSearcher();
+                ps.searcher = s;
+                this.pageSearchers.put(readerVersion, ps);
+            }
+            ps.lastUseMicros = Utils.getNowMicrosUtc();
+
+            Iterator<PageSearcher> it = this.pageSearchers.values().iterator();
+            while (this.pageSearchers.size() > QUERY_PAGE_SEARCHER_LIMIT) {
+                evicted.add(it.next().searcher);
+                it.remove();
+            }
+            size = this.pageSearchers.size();
+        }
 
+        for (IndexSearcher e : evicted) {
+            releaseSearcher(e);
+        }
         if (hasOption(ServiceOption.INSTRUMENTATION)) {
-            ServiceStat st = getStat(STAT_NAME_SEARCHER_UPDATE_COUNT);
-            adjustStat(st, 1);
+            setStat(STAT_NAME_QUERY_PAGE_SEARCHER_COUNT, size);
         }
+    }
 
-        synchronized (this.searchSync) {
-            if (this.searcherUpdateTimeMicros < now) {
-                this.searcher = s;
-                this.searcherUpdateTimeMicros = now;
+    /**
+     * Releases page searchers not used since the given time
+     */
+    private void releasePageSearchers(long lastUseMicros) {
+        List<IndexSearcher> evicted = new ArrayList<>();
+        synchronized (this.pageSearchers) {
+            Iterator<PageSearcher> it = this.pageSearchers.values().iterator();
+            while (it.hasNext()) {
+                PageSearcher ps = it.next();
+                if (ps.lastUseMicros < lastUseMicros) {
+                    evicted.add(ps.searcher);
+                    it.remove();
+                }
+            }
+        }
+        for (IndexSearcher e : evicted) {
+            releaseSearcher(e);
+        }
+    }
+
+    private static long getReaderVersion(IndexSearcher s) {
+        IndexReader r = s.getIndexReader();
+        return r instanceof DirectoryReader ? ((DirectoryReader) r).getVersion() : 0;
+    }
+
+    private void scheduleSearcherRefresh() {
+        if (getHost().isStopping() || getProcessingStage() == ProcessingStage.STOPPED) {
+            return;
+        }
+        try {
+            getHost().schedule(() -> {
+                ExecutorService exec = this.privateQueryExecutor;
+                if (exec.isShutdown()) {
+                    return;
+                }
+                exec.execute(this::refreshSearcher);
+            }, SEARCHER_REFRESH_INTERVAL_MICROS, TimeUnit.MICROSECONDS);
+        } catch (IllegalStateException e) {
+            // host is stopping
+        }
+    }
+
+    /**
+     * Background searcher refresh, so queries that tolerate stale results see updates within
+     * {@link #SEARCHER_REFRESH_INTERVAL_MICROS}, and most queries requiring a current view find
+     * an already refreshed searcher
+     */
+    private void refreshSearcher() {
+        try {
+            if (!isSearcherRefreshRequired(null, Integer.MAX_VALUE)) {
+                return;
+            }
+            if (!this.writerAvailable.tryAcquire()) {
+                // writer is being re-opened, try again on the next interval
+                return;
+            }
+            try {
+                SearcherManager sm = this.searcherManager;
+                Lock l = this.searcherRefreshLock.writeLock();
+                if (sm != null && l.tryLock()) {
+                    try {
+                        sm.maybeRefresh();
+                    } finally {
+                        l.unlock();
+                    }
+                }
+            } finally {
+                this.writerAvailable.release();
             }
-            return this.searcher;
+        } catch (Throwable e) {
+            logWarning("Failure refreshing index searcher: %s", e.toString());
+        } finally {
+            scheduleSearcherRefresh();
         }
     }
 
@@ -1781,7 +3225,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         int count = 0;
         try {
-            long start = Utils.getNowMicrosUtc();
+            long start = Utils.getSystemNowMicrosUtc();
 
             IndexWriter w = this.writer;
             if (w == null) {
@@ -1791,9 +3235,18 @@ public class LuceneDocumentIndexService extends StatelessService {
             setStat(STAT_NAME_INDEXED_DOCUMENT_COUNT, w.maxDoc());
 
             adjustStat(STAT_NAME_COMMIT_COUNT, 1.0);
-            long end = Utils.getNowMicrosUtc();
+            long end = Utils.getSystemNowMicrosUtc();
             setStat(STAT_NAME_COMMIT_DURATION_MICROS, end - start);
 
+            releasePageSearchers(Utils.getNowMicrosUtc() - QUERY_PAGE_SEARCHER_IDLE_MICROS);
+            if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                setStat(STAT_NAME_QUERY_FILTER_CACHE_HIT_COUNT,
+                        this.queryFilterCache.getHitCount());
+                setStat(STAT_NAME_QUERY_FILTER_CACHE_MISS_COUNT,
+                        this.queryFilterCache.getMissCount());
+                setStat(STAT_NAME_QUERY_FILTER_CACHE_SIZE_BYTES,
+                        this.queryFilterCache.ramBytesUsed());
+            }
             applyDocumentExpirationPolicy(w);
             applyDocumentVersionRetentionPolicy(w);
             w.commit();
@@ -1829,7 +3282,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
             IndexWriter w = this.writer;
 
-            long now = Utils.getNowMicrosUtc();
+            long now = Utils.getSystemNowMicrosUtc();
             if (now - this.indexWriterCreationTimeMicros < getHost()
                     .getMaintenanceIntervalMicros()) {
                 logInfo("Skipping writer re-open, it was created recently");
@@ -1881,7 +3334,13 @@ public class LuceneDocumentIndexService extends StatelessService {
             Entry<String, Long> e = it.next();
             Query linkQuery = new TermQuery(new Term(ServiceDocument.FIELD_NAME_SELF_LINK,
                     e.getKey()));
-            int documentCount = this.searcher.count(linkQuery);
+            int documentCount;
+            IndexSearcher s = acquireSearcher(null, Integer.MAX_VALUE, false);
+            try {
+                documentCount = s.count(linkQuery);
+            } finally {
+                releaseSearcher(s);
+            }
             int pastRetentionLimitVersions = (int) (documentCount - e.getValue());
             if (pastRetentionLimitVersions <= 0) {
                 continue;
@@ -1901,12 +3360,16 @@ public class LuceneDocumentIndexService extends StatelessService {
     }
 
     private void applyDocumentExpirationPolicy(IndexWriter w) throws Throwable {
-        IndexSearcher s = updateSearcher(null, Integer.MAX_VALUE, w);
-        if (s == null) {
-            return;
+        IndexSearcher s = acquireSearcher(null, Integer.MAX_VALUE, true);
+        try {
+            applyDocumentExpirationPolicy(s);
+        } finally {
+            releaseSearcher(s);
         }
+    }
 
-        long expirationUpperBound = Utils.getNowMicrosUtc();
+    private void applyDocumentExpirationPolicy(IndexSearcher s) throws Throwable {
+        long expirationUpperBound = Utils.getSystemNowMicrosUtc();
 
         NumericRangeQuery<Long> versionQuery = NumericRangeQuery.newLongRange(
                 ServiceDocument.FIELD_NAME_EXPIRATION_TIME_MICROS, 1L, expirationUpperBound,
@@ -1920,15 +3383,25 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         // The expiration query will return all versions for a link. Use a set so we only delete once per link
         Set<String> links = new HashSet<>();
-        long now = Utils.getNowMicrosUtc();
+        long now = Utils.getSystemNowMicrosUtc();
+        NumericDocValues supersededValues = MultiDocValues.getNumericValues(s.getIndexReader(),
+                LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
+        Bits docsWithSupersededValue = MultiDocValues.getDocsWithField(s.getIndexReader(),
+                LUCENE_FIELD_NAME_VERSION_SUPERSEDED);
         for (ScoreDoc sd : results.scoreDocs) {
             Document d = s.getIndexReader().document(sd.doc, this.fieldsToLoadNoExpand);
             String link = d.get(ServiceDocument.FIELD_NAME_SELF_LINK);
-            IndexableField versionField = d.getField(ServiceDocument.FIELD_NAME_VERSION);
-            long versionExpired = versionField.numericValue().longValue();
-            long latestVersion = this.getLatestVersion(s, link);
-            if (versionExpired < latestVersion) {
-                continue;
+            if (docsWithSupersededValue != null && docsWithSupersededValue.get(sd.doc)) {
+                if (supersededValues.get(sd.doc) != 0) {
+                    continue;
+                }
+            } else {
+                IndexableField versionField = d.getField(ServiceDocument.FIELD_NAME_VERSION);
+                long versionExpired = versionField.numericValue().longValue();
+                long latestVersion = this.getLatestVersion(s, link);
+                if (versionExpired < latestVersion) {
+                    continue;
+                }
             }
             if (!links.add(link)) {
                 continue;
@@ -1967,55 +3440,110 @@ public class LuceneDocumentIndexService extends StatelessService {
         logInfo("Removing %d self link info entries", linksToClear);
         this.adjustStat(STAT_NAME_SERVICE_LINK_INFO_CLEAR_COUNT, linksToClear);
 
-        for (long i = 0; i < linksToClear; i++) {
-            String link = itemsByLastUpdateTime.remove(itemsByLastUpdateTime.firstKey());
-            this.selfLinks.remove(link);
+        // versions of the pruned links are looked up in the index from now on, so the
+        // searcher is refreshed to include their latest versions before another batch is
+        // written
+        for (ReentrantLock l : this.versionUpdateLocks) {
+            l.lock();
+        }
+        try {
+            this.hasSelfLinkInfoForAllLinks = false;
+            for (long i = 0; i < linksToClear; i++) {
+                String link = itemsByLastUpdateTime.remove(itemsByLastUpdateTime.firstKey());
+                this.selfLinks.remove(link);
+
+                if (itemsByLastUpdateTime.isEmpty()) {
+                    break;
+                }
+            }
 
-            if (itemsByLastUpdateTime.isEmpty()) {
-                break;
+            try {
+                releaseSearcher(acquireSearcher(null, Integer.MAX_VALUE, true));
+            } catch (Throwable e) {
+                logWarning("Failure refreshing index searcher: %s", e.toString());
+            }
+        } finally {
+            for (int i = this.versionUpdateLocks.length - 1; i >= 0; i--) {
+                this.versionUpdateLocks[i].unlock();
             }
         }
     }
 
     private void applyActiveQueries(ServiceDocument latestState, ServiceDocumentDescription desc) {
+        UpdateIndexRequest r = new UpdateIndexRequest();
+        r.document = latestState;
+        r.description = desc;
+        applyActiveQueries(Collections.singletonList(r));
+    }
+
+    /**
+     * Notifies the continuous query tasks matching the indexed documents. Only the tasks found
+     * through the active query index are evaluated. Each task receives the documents of the
+     * batch it matched in one PATCH, or in one PATCH per version when a batch holds more than
+     * one version of a self link
+     */
+    private void applyActiveQueries(List<UpdateIndexRequest> requests) {
         if (this.activeQueries.isEmpty()) {
             return;
         }
 
-        // TODO Optimize. We currently traverse each query independently. We can collapse the queries
-        // and evaluate clauses keeping track which clauses applied, then skip any queries accordingly.
-
-        for (Entry<String, QueryTask> taskEntry : this.activeQueries.entrySet()) {
+        Map<QueryTask, QueryTask> patchBodies = new LinkedHashMap<>();
+        for (UpdateIndexRequest r : requests) {
             if (getHost().isStopping()) {
-                continue;
+                return;
             }
 
-            QueryTask activeTask = taskEntry.getValue();
-            QueryFilter filter = activeTask.querySpec.context.filter;
+            ServiceDocument latestState = r.document;
+            ServiceDocumentDescription desc = r.description;
             if (desc == null) {
-                if (!QueryFilterUtils.evaluate(filter, latestState, getHost())) {
+                desc = QueryFilterUtils.getDocumentDescription(latestState, getHost());
+                if (desc == null) {
                     continue;
                 }
-            } else {
+            }
+
+            for (QueryTask activeTask : this.activeQueryIndex.getCandidates(latestState, desc)) {
+                QueryFilter filter = activeTask.querySpec.context.filter;
                 if (!filter.evaluate(latestState, desc)) {
                     continue;
                 }
-            }
 
-            QueryTask patchBody = new QueryTask();
-            patchBody.taskInfo.stage = TaskStage.STARTED;
-            patchBody.querySpec = null;
-            patchBody.results = new ServiceDocumentQueryResult();
-            patchBody.results.documentLinks.add(latestState.documentSelfLink);
-            if (activeTask.querySpec.options.contains(QueryOption.EXPAND_CONTENT)) {
-                patchBody.results.documents = new HashMap<>();
-                patchBody.results.documents.put(latestState.documentSelfLink, latestState);
+                QueryTask patchBody = patchBodies.get(activeTask);
+                if (patchBody != null && patchBody.results.documentLinks
+                        .contains(latestState.documentSelfLink)) {
+                    sendActiveQueryPatch(activeTask, patchBodies.remove(activeTask));
+                    patchBody = null;
+                }
+
+                if (patchBody == null) {
+                    patchBody = new QueryTask();
+                    patchBody.taskInfo.stage = TaskStage.STARTED;
+                    patchBody.querySpec = null;
+                    patchBody.results = new ServiceDocumentQueryResult();
+                    if (activeTask.querySpec.options.contains(QueryOption.EXPAND_CONTENT)) {
+                        patchBody.results.documents = new HashMap<>();
+                    }
+                    patchBodies.put(activeTask, patchBody);
+                }
+
+                patchBody.results.documentLinks.add(latestState.documentSelfLink);
+                if (patchBody.results.documents != null) {
+                    patchBody.results.documents.put(latestState.documentSelfLink, latestState);
+                }
             }
+        }
 
-            // Send PATCH to continuous query task with document that passed the query filter.
-            // Any subscribers will get notified with the body containing just this document
-            sendRequest(Operation.createPatch(this, activeTask.documentSelfLink).setBodyNoCloning(
-                    patchBody));
+        for (Entry<QueryTask, QueryTask> e : patchBodies.entrySet()) {
+            sendActiveQueryPatch(e.getKey(), e.getValue());
         }
     }
+
+    /**
+     * Sends a PATCH to the continuous query task with the documents that passed the query
+     * filter. Any subscribers will get notified with the body containing just these documents
+     */
+    private void sendActiveQueryPatch(QueryTask activeTask, QueryTask patchBody) {
+        sendRequest(Operation.createPatch(this, activeTask.documentSelfLink).setBodyNoCloning(
+                patchBody));
+    }
 }
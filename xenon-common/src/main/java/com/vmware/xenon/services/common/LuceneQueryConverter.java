@@ -189,6 +189,9 @@ class LuceneQueryConverter {
             return SortField.Type.CUSTOM;
         case LONG:
             return SortField.Type.LONG;
+        case DATE:
+            // dates are indexed as microseconds since the UNIX epoch
+            return SortField.Type.LONG;
 
         default:
             return SortField.Type.STRING;
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Position of a query page in the results of a paginated query, encoded as an opaque, URL safe
+ * token. The cursor holds the version of the index reader the previous page was read from, and
+ * the sort values and document id of the last hit of the previous page, and the number of results
+ * in the previous page, which is less than the result limit for the last page. Sort orders of
+ * paginated queries end with the document self link and version, so the sort values identify the
+ * last hit, and the page can be resumed from any index reader. The document id is only valid
+ * for the reader version in the cursor.
+ *
+ * A cursor without sort values is the position of the first page
+ */
+class LuceneQueryPageCursor {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BYTES = 5;
+
+    public static LuceneQueryPageCursor create(long readerVersion, FieldDoc after,
+            int resultCount) {
+        LuceneQueryPageCursor c = new LuceneQueryPageCursor();
+        c.readerVersion = readerVersion;
+        c.after = after;
+        c.resultCount = resultCount;
+        return c;
+    }
+
+    /**
+     * Decodes a cursor token. A null token is the first page on an unknown reader
+     */
+    public static LuceneQueryPageCursor decode(String token) {
+        if (token == null) {
+            return create(-1, null, 0);
+        }
+
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported cursor format");
+            }
+
+            long readerVersion = in.readLong();
+            int fieldCount = in.readUnsignedByte();
+            if (fieldCount == 0) {
+                return create(readerVersion, null, 0);
+            }
+
+            int doc = in.readInt();
+            int resultCount = in.readInt();
+            Object[] fields = new Object[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = readValue(in);
+            }
+            return create(readerVersion, new FieldDoc(doc, Float.NaN, fields), resultCount);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid query page cursor: " + token, e);
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_INT:
+            return in.readInt();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_FLOAT:
+            return in.readFloat();
+        case TYPE_BYTES:
+            // the token comes from the client, so the length is checked before allocating
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IllegalArgumentException("Invalid sort value length: " + length);
+            }
+            byte[] b = new byte[length];
+            in.readFully(b);
+            return new BytesRef(b);
+        default:
+            throw new IllegalArgumentException("Unknown sort value type: " + type);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof BytesRef) {
+            BytesRef b = (BytesRef) value;
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(b.length);
+            out.write(b.bytes, b.offset, b.length);
+        } else {
+            throw new IllegalArgumentException("Unsupported sort value type: "
+                    + value.getClass());
+        }
+    }
+
+    private long readerVersion;
+    private FieldDoc after;
+    private int resultCount;
+
+    private LuceneQueryPageCursor() {
+    }
+
+    public long getReaderVersion() {
+        return this.readerVersion;
+    }
+
+    /**
+     * Returns the last hit of the previous page, or null for the first page
+     */
+    public FieldDoc getAfter() {
+        return this.after;
+    }
+
+    /**
+     * Returns the number of results in the previous page
+     */
+    public int getResultCount() {
+        return this.resultCount;
+    }
+
+    public String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(this.readerVersion);
+            if (this.after == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(this.after.fields.length);
+                out.writeInt(this.after.doc);
+                out.writeInt(this.resultCount);
+                for (Object value : this.after.fields) {
+                    writeValue(out, value);
+                }
+            }
+            out.flush();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
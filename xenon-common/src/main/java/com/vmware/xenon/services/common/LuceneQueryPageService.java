@@ -15,8 +15,6 @@ package com.vmware.xenon.services.common;
 
 import java.util.concurrent.TimeUnit;
 
-import org.apache.lucene.search.ScoreDoc;
-
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
@@ -26,9 +24,22 @@ import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 
+/**
+ * Serves the pages of a paginated query. A single instance is started per query and holds the
+ * query until it expires. Page links address this service with a cursor parameter, which
+ * the index uses to resume the query after the last hit of the previous page. Pages hold no
+ * index resources.
+ *
+ * The service stops at the expiration of the original query task, and all page links of the
+ * query stop with it. Reading a page does not extend the expiration, so clients that page
+ * through results slowly set an expiration on the query task that covers the whole traversal.
+ * A malformed cursor fails the request with status 400
+ */
 public class LuceneQueryPageService extends StatelessService {
     public static final String KIND = Utils.buildKind(QueryTask.class);
 
+    public static final String URI_PARAM_CURSOR = "cursor";
+
     private QuerySpecification spec;
     private String documentSelfLink;
     private String indexLink;
@@ -40,12 +51,19 @@ public class LuceneQueryPageService extends StatelessService {
     }
 
     public static class LuceneQueryPage {
+        /**
+         * Link of the page service of the query
+         */
         public String link;
-        public ScoreDoc after;
 
-        public LuceneQueryPage(String link, ScoreDoc after) {
+        /**
+         * Encoded position of the page in the query results
+         */
+        public String cursor;
+
+        public LuceneQueryPage(String link, String cursor) {
             this.link = link;
-            this.after = after;
+            this.cursor = cursor;
         }
     }
 
@@ -69,9 +87,21 @@ public class LuceneQueryPageService extends StatelessService {
 
     @Override
     public void handleGet(Operation get) {
-        QueryTask task = QueryTask.create(this.spec);
+        String cursor = UriUtils.parseUriQueryParams(get.getUri()).get(URI_PARAM_CURSOR);
+
+        // the query is shared by all pages, the page position is specific to this request
+        QuerySpecification pageSpec = new QuerySpecification();
+        pageSpec.options = this.spec.options;
+        pageSpec.resultLimit = this.spec.resultLimit;
+        pageSpec.context.nativeQuery = this.spec.context.nativeQuery;
+        pageSpec.context.nativeSort = this.spec.context.nativeSort;
+        pageSpec.context.nativePage = new LuceneQueryPage(this.documentSelfLink, cursor);
+
+        QueryTask task = QueryTask.create(pageSpec);
         task.documentKind = KIND;
-        task.documentSelfLink = this.documentSelfLink;
+        task.documentSelfLink = cursor == null ? this.documentSelfLink
+                : this.documentSelfLink + UriUtils.URI_QUERY_CHAR + URI_PARAM_CURSOR
+                        + UriUtils.URI_QUERY_PARAM_KV_CHAR + cursor;
         task.documentExpirationTimeMicros =
                 getMaintenanceIntervalMicros() + Utils.getNowMicrosUtc();
         task.taskInfo.stage = TaskStage.CREATED;
@@ -89,6 +119,15 @@ public class LuceneQueryPageService extends StatelessService {
         getHost().stopService(this);
     }
 
+    /**
+     * A page holds no resources, and the other pages of the query remain valid, so a DELETE
+     * of a page link does not stop the service
+     */
+    @Override
+    protected void handleDeleteCompletion(Operation delete) {
+        delete.complete();
+    }
+
     private void forwardToLucene(QueryTask task, Operation get) {
         try {
             Operation localPatch = Operation.createPatch(UriUtils.buildUri(getHost(),
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
+
+/**
+ * Results of recently executed, non paginated queries, keyed by the Lucene query, sort, options
+ * and result limit. Each entry is tagged with the version of the index reader it was computed
+ * from, and is only returned to queries searching a reader with the same version, so entries
+ * become invalid as soon as a searcher refresh makes index changes visible. Entries of older
+ * reader versions are dropped when a result of a newer version is added.
+ *
+ * A result is only added once its query has missed the cache twice for the same reader version,
+ * so queries that are not repeated are neither copied nor kept. The cache is bounded both by
+ * entry count and by the estimated size of the cached results, least recently used entries are
+ * evicted first.
+ *
+ * Results are copied in and out of the cache, since the documents of expanded results are
+ * handed to the caller as is
+ */
+class LuceneQueryResultCache {
+
+    static class Key {
+        private final Query query;
+        private final Sort sort;
+        private final EnumSet<QueryOption> options;
+        private final int resultLimit;
+        private final int hashCode;
+
+        Key(Query query, Sort sort, EnumSet<QueryOption> options, int resultLimit) {
+            this.query = query;
+            this.sort = sort;
+            // the searcher is already chosen, the refresh option has no effect on results
+            this.options = EnumSet.copyOf(options);
+            this.options.remove(QueryOption.DO_NOT_REFRESH);
+            this.resultLimit = resultLimit;
+            this.hashCode = Objects.hash(query, sort, this.options, resultLimit);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.resultLimit == other.resultLimit
+                    && this.options.equals(other.options)
+                    && Objects.equals(this.sort, other.sort)
+                    && this.query.equals(other.query);
+        }
+    }
+
+    private static class Entry {
+        long readerVersion;
+        long expirationMicros;
+        Long documentCount;
+        List<String> documentLinks;
+        Map<String, Object> documents;
+        long sizeBytes;
+    }
+
+    /**
+     * Estimated size of a document link, or of a cached object other than a document
+     */
+    private static final int LINK_SIZE_BYTES = 128;
+
+    /**
+     * The serialized size of one in this many documents of a result is sampled to estimate the
+     * size of the result
+     */
+    private static final int SIZE_SAMPLING_INTERVAL = 16;
+
+    private final int limit;
+    private final int resultCountLimit;
+    private final long sizeLimitBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Boolean> missedKeys = new LinkedHashMap<>(16, 0.75f, true);
+    private long readerVersion = -1;
+    private long sizeBytes;
+
+    /**
+     * Creates a cache of at most limit query results, each with at most resultCountLimit
+     * document links, with an estimated total size of at most sizeLimitBytes
+     */
+    LuceneQueryResultCache(int limit, int resultCountLimit, long sizeLimitBytes) {
+        this.limit = limit;
+        this.resultCountLimit = resultCountLimit;
+        this.sizeLimitBytes = sizeLimitBytes;
+    }
+
+    /**
+     * Copies the cached result for the query into the response, if the result was computed from
+     * an index reader with the given version and none of its documents has expired since.
+     * Returns false otherwise
+     */
+    synchronized boolean get(Key key, long readerVersion, long nowMicros,
+            ServiceDocumentQueryResult rsp) {
+        Entry e = this.entries.get(key);
+        if (e == null || e.readerVersion != readerVersion) {
+            return false;
+        }
+
+        if (e.expirationMicros <= nowMicros) {
+            removeEntry(key);
+            return false;
+        }
+
+        rsp.documentCount = e.documentCount;
+        if (e.documentLinks != null) {
+            rsp.documentLinks = new ArrayList<>(e.documentLinks);
+        }
+        if (e.documents != null) {
+            rsp.documents = copyDocuments(e.documents);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the result of a query searching an index reader with the given version, if the query
+     * already missed the cache for that version. The expiration is the earliest expiration time
+     * of the documents in the result, after which the result is no longer valid
+     */
+    synchronized void put(Key key, long readerVersion, long expirationMicros,
+            ServiceDocumentQueryResult rsp) {
+        if (this.limit <= 0 || readerVersion < this.readerVersion) {
+            return;
+        }
+
+        if (rsp.documentLinks != null && rsp.documentLinks.size() > this.resultCountLimit) {
+            return;
+        }
+
+        if (readerVersion > this.readerVersion) {
+            this.entries.clear();
+            this.missedKeys.clear();
+            this.sizeBytes = 0;
+            this.readerVersion = readerVersion;
+        }
+
+        if (this.missedKeys.remove(key) == null) {
+            // first miss, the result is cached if the query is repeated
+            this.missedKeys.put(key, Boolean.TRUE);
+            if (this.missedKeys.size() > this.limit) {
+                this.missedKeys.remove(this.missedKeys.keySet().iterator().next());
+            }
+            return;
+        }
+
+        Entry e = new Entry();
+        e.readerVersion = readerVersion;
+        e.expirationMicros = expirationMicros;
+        e.documentCount = rsp.documentCount;
+        if (rsp.documentLinks != null) {
+            e.documentLinks = new ArrayList<>(rsp.documentLinks);
+            e.sizeBytes += (long) e.documentLinks.size() * LINK_SIZE_BYTES;
+        }
+        if (rsp.documents != null) {
+            e.documents = copyDocuments(rsp.documents);
+            e.sizeBytes += estimateSize(e.documents);
+        }
+        if (e.sizeBytes > this.sizeLimitBytes) {
+            return;
+        }
+
+        removeEntry(key);
+        this.entries.put(key, e);
+        this.sizeBytes += e.sizeBytes;
+
+        while (this.entries.size() > this.limit || this.sizeBytes > this.sizeLimitBytes) {
+            removeEntry(this.entries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Removes all entries. Reader versions are only comparable for readers opened from the same
+     * index writer, so the cache is cleared when the writer is replaced
+     */
+    synchronized void clear() {
+        this.entries.clear();
+        this.missedKeys.clear();
+        this.sizeBytes = 0;
+        this.readerVersion = -1;
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Estimated total size of the cached results
+     */
+    synchronized long getSizeBytes() {
+        return this.sizeBytes;
+    }
+
+    private void removeEntry(Key key) {
+        Entry e = this.entries.remove(key);
+        if (e != null) {
+            this.sizeBytes -= e.sizeBytes;
+        }
+    }
+
+    private static long estimateSize(Map<String, Object> documents) {
+        long sampledBytes = 0;
+        int sampleCount = 0;
+        int i = 0;
+        for (Object state : documents.values()) {
+            if (i++ % SIZE_SAMPLING_INTERVAL != 0) {
+                continue;
+            }
+            if (state instanceof ServiceDocument) {
+                sampledBytes += Utils.getSerializedSize((ServiceDocument) state);
+            } else if (state instanceof String) {
+                sampledBytes += ((String) state).length() * 2;
+            } else {
+                sampledBytes += LINK_SIZE_BYTES;
+            }
+            sampleCount++;
+        }
+        if (sampleCount == 0) {
+            return 0;
+        }
+        return sampledBytes / sampleCount * documents.size();
+    }
+
+    private static Map<String, Object> copyDocuments(Map<String, Object> documents) {
+        Map<String, Object> copy = new HashMap<>(documents.size());
+        for (Map.Entry<String, Object> en : documents.entrySet()) {
+            Object state = en.getValue();
+            if (state instanceof ServiceDocument) {
+                state = Utils.clone(state);
+            }
+            copy.put(en.getKey(), state);
+        }
+        return copy;
+    }
+}
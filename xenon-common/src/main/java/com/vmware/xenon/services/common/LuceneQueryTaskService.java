@@ -28,13 +28,17 @@ import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.TaskState;
 import com.vmware.xenon.common.TaskState.TaskStage;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification.GroupOperation;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
@@ -83,6 +87,7 @@ public class LuceneQueryTaskService extends StatefulService {
             patchBody.taskInfo = new TaskState();
             patchBody.taskInfo.stage = TaskStage.STARTED;
             patchBody.querySpec = initState.querySpec;
+            patchBody.postProcessingSpec = initState.postProcessingSpec;
             sendRequest(Operation.createPatch(getUri()).setBody(patchBody));
         } else {
             // Complete POST when we have results
@@ -127,6 +132,51 @@ public class LuceneQueryTaskService extends StatefulService {
                     + QueryOption.BROADCAST));
         }
 
+        if (initState.postProcessingSpec != null) {
+            return validatePostProcessingSpec(initState, startPost);
+        }
+
+        return true;
+    }
+
+    private boolean validatePostProcessingSpec(QueryTask initState, Operation startPost) {
+        PostProcessingSpecification spec = initState.postProcessingSpec;
+        if (spec.groupOperation == null) {
+            startPost.fail(new IllegalArgumentException(
+                    "postProcessingSpec.groupOperation is required"));
+            return false;
+        }
+
+        if (spec.selectionTerm == null) {
+            if (spec.groupOperation != GroupOperation.COUNT) {
+                startPost.fail(new IllegalArgumentException(
+                        "postProcessingSpec.selectionTerm is required"));
+                return false;
+            }
+        } else if (spec.selectionTerm.propertyName == null
+                || (spec.selectionTerm.propertyType != TypeName.LONG
+                && spec.selectionTerm.propertyType != TypeName.DOUBLE)) {
+            startPost.fail(new IllegalArgumentException(
+                    "postProcessingSpec.selectionTerm requires a LONG or DOUBLE property"));
+            return false;
+        }
+
+        if (spec.groupByTerm != null && spec.groupByTerm.propertyName == null) {
+            startPost.fail(new IllegalArgumentException(
+                    "postProcessingSpec.groupByTerm.propertyName is required"));
+            return false;
+        }
+
+        if (initState.querySpec.options != null
+                && initState.querySpec.options.contains(QueryOption.BROADCAST)
+                && initState.querySpec.resultLimit != null
+                && initState.querySpec.resultLimit < Integer.MAX_VALUE) {
+            startPost.fail(new IllegalArgumentException(
+                    "postProcessingSpec is not supported with paginated "
+                            + QueryOption.BROADCAST + " queries"));
+            return false;
+        }
+
         return true;
     }
 
@@ -135,6 +185,10 @@ public class LuceneQueryTaskService extends StatefulService {
         queryTask.setDirect(true);
 
         queryTask.querySpec.options.remove(QueryOption.BROADCAST);
+        if (queryTask.postProcessingSpec != null) {
+            // replicated documents are indexed on every node, but must be aggregated once
+            queryTask.querySpec.options.add(QueryOption.OWNER_SELECTION);
+        }
 
         if (!queryTask.querySpec.options.contains(QueryOption.SORT)) {
             queryTask.querySpec.options.add(QueryOption.SORT);
@@ -173,7 +227,7 @@ public class LuceneQueryTaskService extends StatefulService {
     }
 
     private void collectBroadcastQueryResults(Map<URI, String> jsonResponses, QueryTask queryTask) {
-        long startTime = Utils.getNowMicrosUtc();
+        long startTime = Utils.getSystemNowMicrosUtc();
 
         List<ServiceDocumentQueryResult> queryResults = new ArrayList<>();
         for (Map.Entry<URI, String> entry : jsonResponses.entrySet()) {
@@ -189,6 +243,12 @@ public class LuceneQueryTaskService extends StatefulService {
             boolean isAscOrder = queryTask.querySpec.sortOrder == null
                     || queryTask.querySpec.sortOrder == QuerySpecification.SortOrder.ASC;
             queryTask.results = Utils.mergeQueryResults(queryResults, isAscOrder);
+            if (queryTask.postProcessingSpec != null && queryTask.results.aggregations != null) {
+                // only partial aggregates were merged, compute the result of each group
+                for (AggregationResult r : queryTask.results.aggregations.values()) {
+                    r.value = queryTask.postProcessingSpec.groupOperation.getValue(r);
+                }
+            }
         } else {
             URI broadcastPageServiceUri = UriUtils.buildUri(this.getHost(), UriUtils.buildUriPath(ServiceUriPaths.CORE,
                     BroadcastQueryPageService.SELF_LINK_PREFIX, String.valueOf(Utils.getNowMicrosUtc())));
@@ -230,7 +290,7 @@ public class LuceneQueryTaskService extends StatefulService {
             }
         }
 
-        long timeElapsed = Utils.getNowMicrosUtc() - startTime;
+        long timeElapsed = Utils.getSystemNowMicrosUtc() - startTime;
         queryTask.taskInfo.durationMicros = timeElapsed + Collections.max(queryResults.stream().map(r -> r
                 .queryTimeMicros).collect(Collectors.toList()));
     }
@@ -262,6 +322,9 @@ public class LuceneQueryTaskService extends StatefulService {
         if (r.documents != null) {
             currentState.results.documents = new HashMap<>(r.documents);
         }
+        if (r.aggregations != null) {
+            currentState.results.aggregations = new HashMap<>(r.aggregations);
+        }
 
         get.setBodyNoCloning(currentState).complete();
     }
@@ -412,14 +475,12 @@ public class LuceneQueryTaskService extends StatefulService {
         }
 
         Operation delete = Operation.createDelete(getUri()).setBody(new ServiceDocument());
-        long delta = task.documentExpirationTimeMicros - Utils.getNowMicrosUtc();
-        delta = Math.max(1, delta);
-        getHost().schedule(() -> {
+        getHost().scheduleExpiration(() -> {
             if (task.querySpec.options.contains(QueryOption.CONTINUOUS)) {
                 cancelContinuousQueryOnIndex(task);
             }
             sendRequest(delete);
-        }, delta, TimeUnit.MICROSECONDS);
+        }, task.documentExpirationTimeMicros);
     }
 
     private void cancelContinuousQueryOnIndex(QueryTask task) {
@@ -460,7 +521,7 @@ public class LuceneQueryTaskService extends StatefulService {
         // Otherwise self patch can fail if the document has expired and clients
         // need a chance to GET the FAILED state.
         long exp = task.documentExpirationTimeMicros - getHost().getMaintenanceIntervalMicros();
-        if (exp < Utils.getNowMicrosUtc()) {
+        if (exp < Utils.getSystemNowMicrosUtc()) {
             failTask(new TimeoutException(), directOp, (o, e) -> {
                 scheduleTaskExpiration(task);
             });
@@ -479,11 +540,6 @@ public class LuceneQueryTaskService extends StatefulService {
 
         try {
             task.querySpec.context.nativeQuery = null;
-            if (task.postProcessingSpec != null) {
-                e = new IllegalArgumentException(
-                        "Post processing is not currently supported");
-            }
-
             if (e != null) {
                 failTask(e, directOp, null);
                 return;
@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Operation.Priority;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.UriUtils;
@@ -288,6 +289,7 @@ public class NodeGroupService extends StatefulService {
             Operation p = Operation
                     .createPatch(node.groupReference)
                     .setBody(bd)
+                    .setPriority(Priority.CONTROL)
                     .setCompletion(c);
             sendRequest(p);
         }
@@ -400,6 +402,7 @@ public class NodeGroupService extends StatefulService {
         if (remotePeerState == null) {
             // Pass 1, get existing member state
             sendRequest(Operation.createGet(joinBody.memberGroupReference)
+                    .setPriority(Priority.CONTROL)
                     .setCompletion(
                             (o, e) -> {
                                 if (e != null) {
@@ -415,7 +418,8 @@ public class NodeGroupService extends StatefulService {
         }
 
         // Pass 2, merge remote group state with ours, send self to peer
-        sendRequest(Operation.createPatch(getUri()).setBody(remotePeerState));
+        sendRequest(Operation.createPatch(getUri()).setBody(remotePeerState)
+                .setPriority(Priority.CONTROL));
 
         logInfo("Synch quorum: %d. Sending POST to insert self (%s) to peer %s",
                 self.synchQuorum,
@@ -425,6 +429,7 @@ public class NodeGroupService extends StatefulService {
         Operation insertSelfToPeer = Operation
                 .createPost(joinBody.memberGroupReference)
                 .setBody(self)
+                .setPriority(Priority.CONTROL)
                 .setCompletion(
                         (o, e) -> {
                             if (e != null) {
@@ -464,7 +469,7 @@ public class NodeGroupService extends StatefulService {
         body.nodes.put(local.id, local);
 
         sendRequest(Operation.createPatch(getUri()).setBody(
-                body));
+                body).setPriority(Priority.CONTROL));
     }
 
     private NodeState buildLocalNodeState(NodeState body) {
@@ -477,6 +482,9 @@ public class NodeGroupService extends StatefulService {
         body.documentSelfLink = UriUtils.buildUriPath(getSelfLink(), body.id);
         body.documentKind = Utils.buildKind(NodeState.class);
         body.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+        // binary bodies are only accepted from peers authenticated as the system user
+        body.peerMediaType = getHost().isAuthorizationEnabled()
+                ? Operation.MEDIA_TYPE_APPLICATION_KRYO : null;
         return body;
     }
 
@@ -568,8 +576,10 @@ public class NodeGroupService extends StatefulService {
                     .setRetryCount(0)
                     .setExpiration(
                             Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros() / 2)
+                    .setPriority(Priority.CONTROL)
                     .forceRemote()
                     .setCompletion(ch);
+            patch.setContentType(NodeState.getPeerMediaType(peer, patch));
 
             if (peer.groupReference.equals(localNode.groupReference)
                     && peer.status != NodeStatus.REPLACED) {
@@ -647,7 +657,8 @@ public class NodeGroupService extends StatefulService {
             // to merge updated state, issue a self PATCH. It contains NodeState entries for every
             // peer node we just talked to
             sendRequest(Operation.createPatch(getUri())
-                    .setBody(patchBody));
+                    .setBody(patchBody)
+                    .setPriority(Priority.CONTROL));
 
             maint.complete();
         }
@@ -118,11 +118,8 @@ public class NodeSelectorReplicationService extends StatelessService {
             }
         };
 
-        String jsonBody = Utils.toJson(req.linkedState);
-
         Operation update = Operation.createPost(null)
                 .setAction(outboundOp.getAction())
-                .setBodyNoCloning(jsonBody)
                 .setCompletion(c)
                 .setRetryCount(1)
                 .setExpiration(outboundOp.getExpirationMicrosUtc())
@@ -138,15 +135,34 @@ public class NodeSelectorReplicationService extends StatelessService {
         ServiceClient cl = getHost().getClient();
         String selfId = getHost().getId();
 
-        rsp.selectedNodes.forEach((m) -> {
+        // each encoding of the body is computed once, and shared by the requests to all peers
+        // negotiating it
+        String jsonBody = null;
+        byte[] binaryBody = null;
+        for (NodeState m : rsp.selectedNodes) {
             if (m.id.equals(selfId)) {
                 c.handle(null, null);
-                return;
+                continue;
             }
 
             if (m.options.contains(NodeOption.OBSERVER)) {
-                return;
+                continue;
+            }
+
+            String contentType = req.linkedState == null ? Operation.MEDIA_TYPE_APPLICATION_JSON
+                    : NodeState.getPeerMediaType(m, update);
+            if (contentType.equals(Operation.MEDIA_TYPE_APPLICATION_KRYO)) {
+                if (binaryBody == null) {
+                    binaryBody = Utils.toBinaryBody(req.linkedState);
+                }
+                update.setBodyNoCloning(binaryBody);
+            } else {
+                if (jsonBody == null) {
+                    jsonBody = Utils.toJson(req.linkedState);
+                }
+                update.setBodyNoCloning(jsonBody);
             }
+            update.setContentType(contentType);
 
             try {
                 URI remotePeerService = new URI(m.groupReference.getScheme(),
@@ -158,10 +174,10 @@ public class NodeSelectorReplicationService extends StatelessService {
 
             if (NodeState.isUnAvailable(m)) {
                 c.handle(update, new IllegalStateException("node is not available"));
-                return;
+                continue;
             }
             cl.send(update);
-        });
+        }
     }
 
     @Override
@@ -29,7 +29,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
-import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.Operation.Priority;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocument.DocumentRelationship;
 import com.vmware.xenon.common.ServiceDocumentDescription;
@@ -65,9 +65,9 @@ public class NodeSelectorSynchronizationService extends StatelessService {
         public String kind;
     }
 
-    private Service parent;
+    private ConsistentHashingNodeSelectorService parent;
 
-    public NodeSelectorSynchronizationService(Service parent) {
+    public NodeSelectorSynchronizationService(ConsistentHashingNodeSelectorService parent) {
         super(NodeGroupSynchronizationState.class);
         super.toggleOption(ServiceOption.UTILITY, true);
         this.parent = parent;
@@ -136,6 +136,7 @@ public class NodeSelectorSynchronizationService extends StatelessService {
 
         Operation remoteGet = Operation.createGet(localQueryUri)
                 .setReferer(getUri())
+                .setPriority(Priority.REPLICATION)
                 .setCompletion((o, e) -> {
                     if (e != null) {
                         post.fail(e);
@@ -403,6 +404,9 @@ public class NodeSelectorSynchronizationService extends StatelessService {
 
                 // Mark it as replicated so the remote factories do not try to replicate it again
                 peerOp.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED);
+                peerOp.setPriority(Priority.REPLICATION);
+                peerOp.setContentType(NodeState.getPeerMediaType(this.parent.findPeer(peer),
+                        peerOp));
                 sendRequest(peerOp);
             }
         } catch (Throwable e) {
@@ -16,6 +16,8 @@ package com.vmware.xenon.services.common;
 import java.net.URI;
 import java.util.EnumSet;
 
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.ServiceDocument;
 
 public class NodeState extends ServiceDocument {
@@ -85,11 +87,33 @@ public class NodeState extends ServiceDocument {
      */
     public int synchQuorum = 1;
 
+    /**
+     * Media type the node accepts for request bodies from peers, in addition to JSON. Only set by
+     * nodes that authenticate peers. Nodes from earlier releases leave it unset and are sent JSON
+     */
+    public String peerMediaType;
+
     public static boolean isUnAvailable(NodeState ns) {
         return ns.status == NodeStatus.UNAVAILABLE || ns.status == NodeStatus.REPLACED
                 || ns.options.contains(NodeOption.OBSERVER);
     }
 
+    /**
+     * Returns the media type for the body of a request to the peer: binary if the peer accepts
+     * it and the request is authenticated as the system user, JSON otherwise
+     */
+    public static String getPeerMediaType(NodeState peer, Operation op) {
+        if (peer == null
+                || !Operation.MEDIA_TYPE_APPLICATION_KRYO.equals(peer.peerMediaType)) {
+            return Operation.MEDIA_TYPE_APPLICATION_JSON;
+        }
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        if (ctx == null || !ctx.isSystemUser()) {
+            return Operation.MEDIA_TYPE_APPLICATION_JSON;
+        }
+        return Operation.MEDIA_TYPE_APPLICATION_KRYO;
+    }
+
     public static boolean isAvailable(NodeState m, String hostId, boolean excludeThisHost) {
         if (m.status != NodeStatus.AVAILABLE) {
             return false;
@@ -738,7 +738,7 @@ public class QueryFilter {
         return term.propertyParts.size() > 1;
     }
 
-    private static boolean isTermEligibleForDispatch(Term term) {
+    static boolean isTermEligibleForDispatch(Term term) {
         // Ignore negations
         if (term.negate) {
             return false;
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.xenon.common.ReflectionUtils;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
+import com.vmware.xenon.services.common.QueryFilter.Conjunction;
+import com.vmware.xenon.services.common.QueryFilter.Term;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+
+/**
+ * Index of the queries of active continuous query tasks, used to find the tasks a document
+ * might match without evaluating the filter of every task.
+ *
+ * Each conjunction of a task query, in disjunctive normal form, is indexed under one of its
+ * terms requiring a property to equal a value, the same terms a {@link QueryFilter} dispatches
+ * on. A document can then only match the tasks indexed under one of its property values.
+ * Document kind terms are only used for conjunctions without other such terms, since many
+ * tasks share them. Tasks with a conjunction that has no such term are candidates for every
+ * document.
+ *
+ * Candidates must still be evaluated against the task query filter. Lookups do not block,
+ * and can run concurrently with tasks being added and removed
+ */
+class QueryFilterIndex {
+
+    private static class Registration {
+        QueryTask task;
+        List<String[]> keys;
+    }
+
+    /**
+     * Tasks by indexed property name and value
+     */
+    private final Map<String, Map<String, Set<QueryTask>>> tasksByPropertyValue =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Tasks that are candidates for every document
+     */
+    private final Set<QueryTask> unindexedTasks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Tasks and the property name and value pairs they are indexed under, by task self link
+     */
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * Adds the task, indexed by its query, replacing a task with the same self link
+     */
+    synchronized void add(QueryTask task) {
+        remove(task.documentSelfLink);
+
+        List<String[]> keys = new ArrayList<>();
+        boolean isIndexed = true;
+        for (Conjunction conjunction : QueryFilter
+                .createDisjunctiveNormalForm(task.querySpec.query)) {
+            String[] key = selectKey(conjunction);
+            if (key == null) {
+                isIndexed = false;
+                break;
+            }
+            keys.add(key);
+        }
+
+        if (!isIndexed || keys.isEmpty()) {
+            keys.clear();
+            this.unindexedTasks.add(task);
+        }
+
+        for (String[] key : keys) {
+            this.tasksByPropertyValue
+                    .computeIfAbsent(key[0], (k) -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(key[1], (k) -> ConcurrentHashMap.newKeySet())
+                    .add(task);
+        }
+
+        Registration r = new Registration();
+        r.task = task;
+        r.keys = keys;
+        this.registrations.put(task.documentSelfLink, r);
+    }
+
+    /**
+     * Removes the task with the given self link
+     */
+    synchronized void remove(String taskLink) {
+        Registration r = this.registrations.remove(taskLink);
+        if (r == null) {
+            return;
+        }
+
+        this.unindexedTasks.remove(r.task);
+        for (String[] key : r.keys) {
+            Map<String, Set<QueryTask>> tasksByValue = this.tasksByPropertyValue.get(key[0]);
+            if (tasksByValue == null) {
+                continue;
+            }
+            Set<QueryTask> tasks = tasksByValue.get(key[1]);
+            if (tasks == null) {
+                continue;
+            }
+            tasks.remove(r.task);
+            if (tasks.isEmpty()) {
+                tasksByValue.remove(key[1]);
+            }
+            if (tasksByValue.isEmpty()) {
+                this.tasksByPropertyValue.remove(key[0]);
+            }
+        }
+    }
+
+    /**
+     * Returns the tasks with a query the document might match
+     */
+    Collection<QueryTask> getCandidates(ServiceDocument document,
+            ServiceDocumentDescription description) {
+        Set<QueryTask> candidates = new LinkedHashSet<>(this.unindexedTasks);
+        for (Entry<String, Map<String, Set<QueryTask>>> e : this.tasksByPropertyValue
+                .entrySet()) {
+            PropertyDescription pd = description.propertyDescriptions.get(e.getKey());
+            if (pd == null) {
+                continue;
+            }
+
+            String matchAs = QuerySpecification.toMatchValue(
+                    ReflectionUtils.getPropertyValue(pd, document));
+            if (matchAs == null) {
+                continue;
+            }
+
+            Set<QueryTask> tasks = e.getValue().get(matchAs);
+            if (tasks != null) {
+                candidates.addAll(tasks);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Returns the property name and value of the term the conjunction is indexed under, or
+     * null if the conjunction has no term requiring a property to equal a value
+     */
+    private static String[] selectKey(Conjunction conjunction) {
+        Term kindTerm = null;
+        for (Term term : conjunction) {
+            if (!QueryFilter.isTermEligibleForDispatch(term)) {
+                continue;
+            }
+            if (ServiceDocument.FIELD_NAME_KIND.equals(term.term.propertyName)) {
+                kindTerm = term;
+                continue;
+            }
+            return new String[] { term.term.propertyName, term.term.matchValue };
+        }
+
+        if (kindTerm == null) {
+            return null;
+        }
+        return new String[] { kindTerm.term.propertyName, kindTerm.term.matchValue };
+    }
+}
@@ -23,6 +23,7 @@ import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.TaskState;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
@@ -117,6 +118,13 @@ public class QueryTask extends ServiceDocument {
              * Need to broadcast this task to all nodes
              */
             BROADCAST,
+
+            /**
+             * Aggregations only include documents owned by the local node. Used by
+             * {@link #BROADCAST} queries with a post processing specification, so each replicated
+             * document contributes to the merged aggregates exactly once
+             */
+            OWNER_SELECTION,
         }
 
         public enum SortOrder {
@@ -239,13 +247,49 @@ public class QueryTask extends ServiceDocument {
 
     public static class PostProcessingSpecification {
         public enum GroupOperation {
-            SUM, AVG, MIN
+            SUM, AVG, MIN, MAX, COUNT;
+
+            /**
+             * Returns the result of the operation, given the partial aggregate of a group
+             */
+            public Double getValue(AggregationResult r) {
+                switch (this) {
+                case SUM:
+                    return r.sum;
+                case AVG:
+                    return r.count == 0 ? null : r.sum / r.count;
+                case MIN:
+                    return r.min;
+                case MAX:
+                    return r.max;
+                case COUNT:
+                    return (double) r.count;
+                default:
+                    return null;
+                }
+            }
         }
 
         /**
-         * Query term that picks the property that the group operation will run over its values
+         * Group operation computed over the query results
+         */
+        public GroupOperation groupOperation;
+
+        /**
+         * Query term that picks the property that the group operation will run over its values.
+         * The property must be of type {@link TypeName#LONG} or {@link TypeName#DOUBLE}. Required
+         * for all operations except {@link GroupOperation#COUNT}, which counts all documents when
+         * no selection term is set
          */
         public QueryTerm selectionTerm;
+
+        /**
+         * Optional query term that picks the property the results are grouped by. The property
+         * must be indexed with
+         * {@link com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption#SORT}.
+         * Documents without a value for the property are not part of any group
+         */
+        public QueryTerm groupByTerm;
     }
 
     public static class NumericRange<T extends Number & Comparable<? super T>> {
@@ -33,6 +33,20 @@ import com.vmware.xenon.common.Utils;
 public class ServiceHostManagementService extends StatefulService {
     public static final String SELF_LINK = UriUtils.buildUriPath(ServiceUriPaths.CORE_MANAGEMENT);
 
+    public static final String STAT_NAME_TIMER_LAG_MICROS = "timerLagMicros";
+    public static final String STAT_NAME_TIMER_PENDING_COUNT = "timerPendingCount";
+    public static final String STAT_NAME_TIMER_MAX_BUCKET_OCCUPANCY = "timerMaxBucketOccupancy";
+    public static final String STAT_NAME_EXECUTOR_SHED_COUNT = "executorShedCount";
+    public static final String STAT_NAME_EXECUTOR_QUEUE_DELAY_P50 = "executorQueueDelayP50Micros";
+    public static final String STAT_NAME_EXECUTOR_QUEUE_DELAY_P99 = "executorQueueDelayP99Micros";
+    public static final String STAT_NAME_PREFIX_REQUEST_THROTTLED_COUNT = "requestThrottledCount:";
+    public static final String STAT_NAME_PREFIX_PATH_REQUEST_THROTTLED_COUNT =
+            "pathRequestThrottledCount:";
+    public static final String STAT_NAME_PREFIX_EXECUTOR_DISPATCH_COUNT = "executorDispatchCount:";
+    public static final String STAT_NAME_PREFIX_EXECUTOR_WAIT_AVG =
+            "executorWaitAverageMicros:";
+    public static final String STAT_NAME_PREFIX_EXECUTOR_WAIT_MAX = "executorWaitMaxMicros:";
+
     public ServiceHostManagementService() {
         super(ServiceHostState.class);
         super.toggleOption(ServiceOption.INSTRUMENTATION, true);
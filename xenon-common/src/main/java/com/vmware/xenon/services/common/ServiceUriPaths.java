@@ -67,6 +67,8 @@ public class ServiceUriPaths {
 
     public static final String CORE_LOCAL_QUERY_TASKS = UriUtils.buildUriPath(ServiceUriPaths.CORE,
             "local-query-tasks");
+    public static final String CORE_QUERY_PAGE = UriUtils.buildUriPath(ServiceUriPaths.CORE,
+            "query-page");
 
     public static final String CORE_AUTHZ = UriUtils.buildUriPath(ServiceUriPaths.CORE, "authz");
     public static final String CORE_AUTHZ_USER_GROUPS = UriUtils.buildUriPath(
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestAdmissionController {
+
+    private static final long TARGET_MICROS = 1000;
+    private static final long INTERVAL_MICROS = 10000;
+
+    @Test
+    public void overloadAfterInterval() {
+        AdmissionController ac = AdmissionController.create();
+        long now = Utils.getSystemNowMicrosUtc();
+
+        // delay above target, but not for a full interval yet
+        assertFalse(ac.onDequeue(TARGET_MICROS * 2, now, TARGET_MICROS, INTERVAL_MICROS));
+        assertFalse(ac.onDequeue(TARGET_MICROS * 2, now + INTERVAL_MICROS / 2, TARGET_MICROS,
+                INTERVAL_MICROS));
+        assertFalse(ac.isOverloaded(now + INTERVAL_MICROS / 2));
+
+        // delay stayed above target for the interval
+        now += INTERVAL_MICROS;
+        assertTrue(ac.onDequeue(TARGET_MICROS * 2, now, TARGET_MICROS, INTERVAL_MICROS));
+        assertTrue(ac.isOverloaded(now));
+
+        // an operation below target ends the overload
+        assertFalse(ac.onDequeue(TARGET_MICROS / 2, now, TARGET_MICROS, INTERVAL_MICROS));
+        assertFalse(ac.isOverloaded(now));
+
+        // the interval starts over
+        assertFalse(ac.onDequeue(TARGET_MICROS * 2, now, TARGET_MICROS, INTERVAL_MICROS));
+        assertFalse(ac.isOverloaded(now));
+    }
+
+    @Test
+    public void overloadExpires() {
+        AdmissionController ac = AdmissionController.create();
+        long now = Utils.getSystemNowMicrosUtc();
+
+        ac.onDequeue(TARGET_MICROS, now, TARGET_MICROS, INTERVAL_MICROS);
+        now += INTERVAL_MICROS;
+        assertTrue(ac.onDequeue(TARGET_MICROS, now, TARGET_MICROS, INTERVAL_MICROS));
+        assertTrue(ac.isOverloaded(now + INTERVAL_MICROS - 1));
+
+        // no operation left the queue for an interval
+        assertFalse(ac.isOverloaded(now + INTERVAL_MICROS));
+    }
+
+    @Test
+    public void disabledTarget() {
+        AdmissionController ac = AdmissionController.create();
+        long now = Utils.getSystemNowMicrosUtc();
+
+        assertFalse(ac.onDequeue(Long.MAX_VALUE, now, 0, INTERVAL_MICROS));
+        now += INTERVAL_MICROS;
+        assertFalse(ac.onDequeue(Long.MAX_VALUE, now, 0, INTERVAL_MICROS));
+        assertFalse(ac.isOverloaded(now));
+        assertEquals(2, ac.resetDelayHistogram());
+    }
+
+    @Test
+    public void shedCount() {
+        AdmissionController ac = AdmissionController.create();
+        ac.onShed();
+        ac.onShed();
+        assertEquals(2, ac.resetShedCount());
+        assertEquals(0, ac.resetShedCount());
+    }
+
+    @Test
+    public void delayPercentiles() {
+        AdmissionController ac = AdmissionController.create();
+        long now = Utils.getSystemNowMicrosUtc();
+        long target = Long.MAX_VALUE;
+        assertEquals(0, ac.getDelayPercentileMicros(0.5));
+
+        // 98 operations with no delay, one at 100 and one at 5000 micros
+        for (int i = 0; i < 98; i++) {
+            ac.onDequeue(0, now, target, INTERVAL_MICROS);
+        }
+        ac.onDequeue(100, now, target, INTERVAL_MICROS);
+        ac.onDequeue(5000, now, target, INTERVAL_MICROS);
+
+        assertEquals(0, ac.getDelayPercentileMicros(0.5));
+        assertEquals(127, ac.getDelayPercentileMicros(0.99));
+        assertEquals(8191, ac.getDelayPercentileMicros(1.0));
+
+        assertEquals(100, ac.resetDelayHistogram());
+        assertEquals(0, ac.getDelayPercentileMicros(0.99));
+
+        ac.onDequeue(Long.MAX_VALUE, now, target, INTERVAL_MICROS);
+        assertEquals(Long.MAX_VALUE, ac.getDelayPercentileMicros(0.5));
+    }
+}
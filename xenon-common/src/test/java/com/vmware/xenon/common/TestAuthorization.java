@@ -110,6 +110,38 @@ public class TestAuthorization extends BasicTestCase {
         this.host.testWait();
     }
 
+    @Test
+    public void binaryBodyOnlyFromSystemUser() throws Throwable {
+        OperationContext.setAuthorizationContext(this.host.getSystemAuthorizationContext());
+        URI serviceUri = createExampleServices("jane").keySet().iterator().next();
+        ExampleServiceState patchBody = new ExampleServiceState();
+        patchBody.name = "binary";
+
+        // peers authenticate as the system user and may send binary bodies
+        this.host.testStart(1);
+        this.host.send(Operation.createPatch(serviceUri)
+                .forceRemote()
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO)
+                .setBody(patchBody)
+                .setCompletion(this.host.getCompletion()));
+        this.host.testWait();
+
+        // any other identity is rejected before the body is decoded
+        this.host.assumeIdentity(this.userServicePath, null);
+        int[] statusCode = new int[1];
+        this.host.testStart(1);
+        this.host.send(Operation.createPatch(serviceUri)
+                .forceRemote()
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO)
+                .setBody(patchBody)
+                .setCompletion((o, e) -> {
+                    statusCode[0] = o.getStatusCode();
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+        assertEquals(Operation.STATUS_CODE_UNSUPPORTED_TYPE, statusCode[0]);
+    }
+
     @Test
     public void testGuestAuthorization() throws Throwable {
         OperationContext.setAuthorizationContext(this.host.getSystemAuthorizationContext());
@@ -168,6 +200,38 @@ public class TestAuthorization extends BasicTestCase {
         assertAuthorizedServicesInResult("guest", exampleServices, factoryGetResult[0]);
     }
 
+    @Test
+    public void requestRateLimitByRole() throws Throwable {
+        // limit one of the roles that apply to jane to a single request, no refill in the test
+        OperationContext.setAuthorizationContext(this.host.getSystemAuthorizationContext());
+        ServiceDocumentQueryResult roles = this.host.getServiceState(null,
+                ServiceDocumentQueryResult.class,
+                UriUtils.buildUri(this.host, ServiceUriPaths.CORE_AUTHZ_ROLES));
+        assertFalse(roles.documentLinks.isEmpty());
+        this.host.setRequestRateLimit(roles.documentLinks.get(0), 0.001, 1);
+        OperationContext.setAuthorizationContext(null);
+
+        this.host.assumeIdentity(this.userServicePath, null);
+        int count = 10;
+        int[] throttledCount = new int[1];
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            this.host.send(Operation
+                    .createGet(UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK))
+                    .setCompletion((o, e) -> {
+                        if (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE
+                                && o.getResponseHeader(Operation.RETRY_AFTER_HEADER) != null) {
+                            synchronized (throttledCount) {
+                                throttledCount[0]++;
+                            }
+                        }
+                        this.host.completeIteration();
+                    }));
+        }
+        this.host.testWait();
+        assertTrue(throttledCount[0] >= count - 1);
+    }
+
     @Test
     public void exampleAuthorization() throws Throwable {
         // Create example services not accessible by jane (as the system user)
@@ -27,10 +27,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
 import com.vmware.xenon.common.test.TestProperty;
+import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.MinimalFactoryTestService;
 import com.vmware.xenon.services.common.MinimalTestService;
@@ -139,6 +142,122 @@ public class TestFactoryService extends BasicReusableHostTestCase {
                 factoryService.getUri());
     }
 
+    @Test
+    public void onDemandLoadRestart() throws Throwable {
+        // restart time is logged for both modes, use -Dxenon.serviceCount to benchmark
+        EnumSet<ServiceOption> caps = EnumSet.of(ServiceOption.PERSISTENCE);
+        doFactoryRestartWithChildServices(caps, FactoryService.SELF_QUERY_RESULT_LIMIT);
+        caps.add(ServiceOption.ON_DEMAND_LOAD);
+        doFactoryRestartWithChildServices(caps, FactoryService.SELF_QUERY_RESULT_LIMIT);
+    }
+
+    @Test
+    public void restartWithChildQueryPages() throws Throwable {
+        // a small result limit splits children across query pages, and bounds the window of
+        // child synchronizations
+        doFactoryRestartWithChildServices(EnumSet.of(ServiceOption.PERSISTENCE), 3);
+    }
+
+    private void doFactoryRestartWithChildServices(EnumSet<ServiceOption> caps,
+            int queryResultLimit) throws Throwable {
+        TemporaryFolder tmpFolder = new TemporaryFolder();
+        tmpFolder.create();
+        VerificationHost h = null;
+        try {
+            ServiceHost.Arguments args = new ServiceHost.Arguments();
+            args.port = 0;
+            args.sandbox = tmpFolder.getRoot().toPath();
+            args.bindAddress = ServiceHost.LOOPBACK_ADDRESS;
+            h = VerificationHost.create(args);
+            h.start();
+
+            String factoryLink = UUID.randomUUID().toString();
+            MinimalFactoryTestService f = new MinimalFactoryTestService();
+            f.setChildServiceCaps(caps);
+            f = (MinimalFactoryTestService) h.startServiceAndWait(f, factoryLink, null);
+
+            Map<URI, MinimalTestServiceState> states = h.doFactoryChildServiceStart(null,
+                    this.serviceCount, MinimalTestServiceState.class, (o) -> {
+                        MinimalTestServiceState body = new MinimalTestServiceState();
+                        body.id = UUID.randomUUID().toString();
+                        o.setBody(body);
+                    }, f.getUri());
+            h.stop();
+
+            args.port = 0;
+            h = VerificationHost.create(args);
+            h.start();
+
+            long startTime = Utils.getNowMicrosUtc();
+            f = new MinimalFactoryTestService();
+            f.setChildServiceCaps(caps);
+            f.setSelfQueryResultLimit(queryResultLimit);
+            f.toggleOption(ServiceOption.INSTRUMENTATION, true);
+            f = (MinimalFactoryTestService) h.startServiceAndWait(f, factoryLink, null);
+            long elapsed = Utils.getNowMicrosUtc() - startTime;
+
+            Map<URI, MinimalTestServiceState> statesBeforeRestart = new HashMap<>();
+            int startedCount = 0;
+            for (MinimalTestServiceState st : states.values()) {
+                if (h.getServiceStage(st.documentSelfLink) != null) {
+                    startedCount++;
+                }
+                statesBeforeRestart.put(UriUtils.buildUri(h, st.documentSelfLink), st);
+            }
+            this.host.log("Factory restart with %d children, options %s: %d micros,"
+                    + " children started: %d", states.size(), caps, elapsed, startedCount);
+
+            boolean isOnDemand = caps.contains(ServiceOption.ON_DEMAND_LOAD);
+            assertEquals(isOnDemand ? 0 : states.size(), startedCount);
+            if (!isOnDemand) {
+                assertEquals(states.size(), (long) f.getStat(
+                        FactoryService.STAT_NAME_CHILD_SYNC_COMPLETED_COUNT).latestValue);
+                assertEquals(0, (long) f.getStat(
+                        FactoryService.STAT_NAME_CHILD_SYNC_REMAINING_COUNT).latestValue);
+                assertTrue(f.getStat(FactoryService.STAT_NAME_CHILD_SYNC_WINDOW).latestValue
+                        <= queryResultLimit);
+            }
+
+            // children are started on their first request, with the indexed state
+            Map<URI, MinimalTestServiceState> statesAfterRestart = h.getServiceState(null,
+                    MinimalTestServiceState.class, statesBeforeRestart.keySet());
+            for (Entry<URI, MinimalTestServiceState> e : statesBeforeRestart.entrySet()) {
+                MinimalTestServiceState after = statesAfterRestart.get(e.getKey());
+                assertEquals(e.getValue().id, after.id);
+                assertEquals(e.getValue().documentVersion, after.documentVersion);
+                assertEquals(ProcessingStage.AVAILABLE,
+                        h.getServiceStage(after.documentSelfLink));
+            }
+
+            if (!isOnDemand) {
+                return;
+            }
+
+            // a POST for a child that is indexed, but not started, conflicts with the child
+            h.stopService(h.findService(statesBeforeRestart.values().iterator().next()
+                    .documentSelfLink));
+            MinimalTestServiceState body = statesBeforeRestart.values().iterator().next();
+            VerificationHost restartedHost = h;
+            restartedHost.testStart(1);
+            restartedHost.send(Operation.createPost(f.getUri())
+                    .setBody(body)
+                    .setCompletion((o, e) -> {
+                        if (o.getStatusCode() != Operation.STATUS_CODE_CONFLICT) {
+                            restartedHost.failIteration(new IllegalStateException(
+                                    "Expected conflict, got " + o.getStatusCode()));
+                            return;
+                        }
+                        restartedHost.completeIteration();
+                    }));
+            restartedHost.testWait();
+        } finally {
+            if (h != null) {
+                h.stop();
+            }
+            tmpFolder.delete();
+        }
+    }
+
     @Test
     public void factoryDurableServicePostNoCaching()
             throws Throwable {
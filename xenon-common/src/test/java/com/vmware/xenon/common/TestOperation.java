@@ -14,13 +14,19 @@
 package com.vmware.xenon.common;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.sun.management.ThreadMXBean;
 
 import org.junit.Test;
 
@@ -175,6 +181,90 @@ public class TestOperation extends BasicReusableHostTestCase {
         this.host.testWait();
     }
 
+    @Test
+    public void priority() {
+        Operation op = Operation.createGet(this.host.getUri());
+        assertEquals(Operation.Priority.USER, op.getPriority());
+        assertFalse(op.hasPriority());
+
+        op.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED);
+        assertEquals(Operation.Priority.REPLICATION, op.getPriority());
+
+        op.setPriority(Operation.Priority.CONTROL);
+        assertTrue(op.hasPriority());
+        assertEquals(Operation.Priority.CONTROL, op.getPriority());
+        assertEquals(Operation.Priority.CONTROL, op.clone().getPriority());
+    }
+
+    @Test
+    public void pragmaDirectives() {
+        Operation op = Operation.createPost(null);
+        assertNull(op.getRequestHeader(Operation.PRAGMA_HEADER));
+
+        op.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS);
+        assertTrue(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS));
+        assertFalse(op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION));
+        assertFalse(op.isNotification());
+        assertTrue(op.getRequestHeaders().isEmpty());
+
+        String custom = UUID.randomUUID().toString();
+        op.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION);
+        op.addPragmaDirective(custom);
+        assertTrue(op.isNotification());
+        assertTrue(op.hasPragmaDirective(custom));
+        assertEquals(Operation.PRAGMA_DIRECTIVE_NOTIFICATION + ";"
+                + Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS + ";" + custom,
+                op.getRequestHeader(Operation.PRAGMA_HEADER));
+
+        // the header received from, or sent to, a remote peer carries all directives
+        Operation remote = Operation.createPost(null).addRequestHeader("Pragma",
+                op.getRequestHeader(Operation.PRAGMA_HEADER));
+        assertTrue(remote.isNotification());
+        assertTrue(remote.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS));
+        assertTrue(remote.hasPragmaDirective(custom));
+        assertFalse(remote.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORWARDED));
+
+        Operation transferred = Operation.createPost(null)
+                .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORWARDED)
+                .transferRequestHeadersFrom(op);
+        assertEquals(op.getRequestHeader(Operation.PRAGMA_HEADER),
+                transferred.getRequestHeader(Operation.PRAGMA_HEADER));
+        assertEquals(op.getRequestHeader(Operation.PRAGMA_HEADER),
+                op.clone().getRequestHeader(Operation.PRAGMA_HEADER));
+
+        op.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_NOTIFICATION);
+        op.removePragmaDirective(Operation.PRAGMA_DIRECTIVE_SKIPPED_NOTIFICATIONS);
+        assertFalse(op.isNotification());
+        assertEquals(custom, op.getRequestHeader(Operation.PRAGMA_HEADER));
+        op.removePragmaDirective(custom);
+        assertFalse(op.hasPragmaDirective(custom));
+    }
+
+    @Test
+    public void pragmaDirectiveAllocation() {
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int count = 100000;
+        for (int iteration = 0; iteration < 3; iteration++) {
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long directiveCount = 0;
+            for (int i = 0; i < count; i++) {
+                Operation op = Operation.createPatch(null)
+                        .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORWARDED)
+                        .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING);
+                if (op.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+                        && !op.isNotification()) {
+                    directiveCount++;
+                }
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            assertEquals(count, directiveCount);
+            Logger.getAnonymousLogger().info(String.format(
+                    "Bytes allocated per operation with pragma directives: %d",
+                    allocated / count));
+        }
+    }
+
     @Test
     public void testSendWithOnHost() throws Throwable {
         testSendWith((o) -> o.sendWith(this.host));
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.Operation.Priority;
+
+public class TestPriorityExecutor {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void dispatchByPriority() throws Throwable {
+        PriorityExecutor pe = PriorityExecutor.create(this.executor);
+        List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+
+        // block the single executor thread, so all tasks below are queued
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        pe.execute(Priority.USER, () -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        int countPerClass = 10;
+        CountDownLatch done = new CountDownLatch(countPerClass * Priority.values().length);
+        for (int i = 0; i < countPerClass; i++) {
+            for (Priority p : new Priority[] { Priority.BACKGROUND, Priority.USER,
+                    Priority.REPLICATION, Priority.CONTROL }) {
+                pe.execute(p, () -> {
+                    order.add(p);
+                    done.countDown();
+                });
+            }
+        }
+        // the clock has millisecond resolution, wait for it to move past the submissions so
+        // queued tasks register a wait
+        long submittedMicros = Utils.getSystemNowMicrosUtc();
+        while (Utils.getSystemNowMicrosUtc() <= submittedMicros) {
+            Thread.yield();
+        }
+        blocked.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // control tasks run first, background tasks last
+        assertEquals(Priority.CONTROL, order.get(0));
+        assertEquals(Priority.BACKGROUND, order.get(order.size() - 1));
+        assertTrue(order.indexOf(Priority.CONTROL) < order.indexOf(Priority.USER));
+        assertTrue(order.indexOf(Priority.REPLICATION) < order.indexOf(Priority.USER));
+
+        PriorityExecutor.WaitStats stats = pe.resetWaitStats(Priority.CONTROL);
+        assertEquals(countPerClass, stats.count);
+        assertTrue(stats.maxWaitMicros > 0);
+        assertTrue(stats.totalWaitMicros >= stats.maxWaitMicros);
+        assertEquals(countPerClass + 1, pe.resetWaitStats(Priority.USER).count);
+        assertEquals(0, pe.resetWaitStats(Priority.CONTROL).count);
+    }
+
+    @Test
+    public void lowerClassNotStarved() throws Throwable {
+        PriorityExecutor pe = PriorityExecutor.create(this.executor);
+        CountDownLatch blocked = new CountDownLatch(1);
+        pe.execute(Priority.CONTROL, () -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+            }
+        });
+
+        // a background task waits while control tasks keep arriving
+        CountDownLatch backgroundDone = new CountDownLatch(1);
+        pe.execute(Priority.BACKGROUND, backgroundDone::countDown);
+        blocked.countDown();
+
+        long deadline = Utils.getSystemNowMicrosUtc() + TimeUnit.SECONDS.toMicros(10);
+        while (backgroundDone.getCount() > 0) {
+            assertTrue(Utils.getSystemNowMicrosUtc() < deadline);
+            CountDownLatch controlDone = new CountDownLatch(1);
+            pe.execute(Priority.CONTROL, controlDone::countDown);
+            controlDone.await();
+        }
+    }
+}
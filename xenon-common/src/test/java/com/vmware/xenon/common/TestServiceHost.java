@@ -44,6 +44,7 @@ import org.junit.rules.TemporaryFolder;
 
 import com.vmware.xenon.common.Operation.CompletionHandler;
 import com.vmware.xenon.common.Service.ServiceOption;
+import com.vmware.xenon.common.ServiceHost.RequestRateInfo;
 import com.vmware.xenon.common.ServiceHost.ServiceAlreadyStartedException;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.MemoryLimitType;
@@ -110,6 +111,69 @@ public class TestServiceHost {
         this.host.testWait();
     }
 
+    @Test
+    public void scheduleExpiration() throws Throwable {
+        setUp(false);
+        long intervalMicros = TimeUnit.MILLISECONDS.toMicros(MAINTENANCE_INTERVAL_MILLIS);
+        long expirationMicros = Utils.getSystemNowMicrosUtc() + intervalMicros * 3;
+        long[] runTimeMicros = new long[1];
+        this.host.testStart(1);
+        this.host.scheduleExpiration(() -> {
+            runTimeMicros[0] = Utils.getSystemNowMicrosUtc();
+            this.host.completeIteration();
+        }, expirationMicros);
+        this.host.testWait();
+
+        // the task runs at the first maintenance after its expiration, never before
+        assertTrue(runTimeMicros[0] >= expirationMicros);
+    }
+
+    @Test
+    public void maintenanceRunsEveryInterval() throws Throwable {
+        setUp(false);
+        long intervalMicros = TimeUnit.MILLISECONDS.toMicros(MAINTENANCE_INTERVAL_MILLIS);
+        this.host.setMaintenanceIntervalMicros(intervalMicros);
+        MinimalTestService ts = new SlowMaintenanceService();
+        ts.toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
+        ts.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        MinimalTestServiceState body = new MinimalTestServiceState();
+        body.id = UUID.randomUUID().toString();
+        ts = (MinimalTestService) this.host.startServiceAndWait(ts, UUID.randomUUID().toString(),
+                body);
+
+        // a service with the host maintenance interval is due on every host maintenance pass,
+        // even if its maintenance completes after the pass
+        Thread.sleep(MAINTENANCE_INTERVAL_MILLIS * 2);
+        long startCount = getMaintenanceCount(ts);
+        long start = Utils.getSystemNowMicrosUtc();
+        Thread.sleep(MAINTENANCE_INTERVAL_MILLIS * 20);
+        long count = getMaintenanceCount(ts) - startCount;
+        long intervalCount = (Utils.getSystemNowMicrosUtc() - start) / intervalMicros;
+        this.host.log("Maintenance count: %d, intervals: %d", count, intervalCount);
+        assertTrue(count >= intervalCount * 3 / 4);
+        assertTrue(count <= intervalCount + 1);
+    }
+
+    public static class SlowMaintenanceService extends MinimalTestService {
+        @Override
+        public void handleMaintenance(Operation op) {
+            try {
+                Thread.sleep(MAINTENANCE_INTERVAL_MILLIS / 10);
+            } catch (InterruptedException e) {
+                op.fail(e);
+                return;
+            }
+            super.handleMaintenance(op);
+        }
+    }
+
+    private long getMaintenanceCount(Service s) throws Throwable {
+        ServiceStats stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(s.getUri()));
+        ServiceStat st = stats.entries.get(Service.STAT_NAME_MAINTENANCE_COUNT);
+        return st == null ? 0 : (long) st.latestValue;
+    }
+
     @Test
     public void requestRateLimits() throws Throwable {
         setUp(true);
@@ -131,7 +195,8 @@ public class TestServiceHost {
         AtomicInteger failureCount = new AtomicInteger();
         CompletionHandler c = (o, e) -> {
             if (e != null) {
-                if (o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                if (o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE
+                        && o.getResponseHeader(Operation.RETRY_AFTER_HEADER) != null) {
                     failureCount.incrementAndGet();
                 }
             }
@@ -162,6 +227,203 @@ public class TestServiceHost {
         assertTrue(failureCount.get() > 0);
     }
 
+    @Test
+    public void requestRateLimitsByPath() throws Throwable {
+        setUp(false);
+        String prefix = "/rate-limited";
+        Service s = this.host.startServiceAndWait(MinimalTestService.class,
+                UriUtils.buildUriPath(prefix, UUID.randomUUID().toString()));
+        Service other = this.host.startServiceAndWait(MinimalTestService.class,
+                UUID.randomUUID().toString());
+
+        int burst = 10;
+        this.host.setRequestRateLimitByPath(prefix, 1.0, burst);
+
+        AtomicInteger failureCount = new AtomicInteger();
+        AtomicInteger retryAfterCount = new AtomicInteger();
+        CompletionHandler c = (o, e) -> {
+            if (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                failureCount.incrementAndGet();
+                if (o.getResponseHeader(Operation.RETRY_AFTER_HEADER) != null) {
+                    retryAfterCount.incrementAndGet();
+                }
+            }
+            this.host.completeIteration();
+        };
+
+        // requests to services outside the prefix are not limited
+        int count = this.requestCount;
+        long start = Utils.getSystemNowMicrosUtc();
+        this.host.testStart(count * 2);
+        for (int i = 0; i < count; i++) {
+            this.host.send(Operation.createPatch(s.getUri())
+                    .setBody(this.host.buildMinimalTestState())
+                    .setCompletion(c));
+            this.host.send(Operation.createPatch(other.getUri())
+                    .setBody(this.host.buildMinimalTestState())
+                    .setCompletion(c));
+        }
+        this.host.testWait();
+        long elapsedSeconds = TimeUnit.MICROSECONDS.toSeconds(
+                Utils.getSystemNowMicrosUtc() - start);
+
+        // the bucket admits a burst, then refills at one request per second
+        assertTrue(count - failureCount.get() >= burst);
+        assertTrue(count - failureCount.get() <= burst + elapsedSeconds + 1);
+        assertEquals(failureCount.get(), retryAfterCount.get());
+
+        // the throttled count is reported by the management service
+        URI statsUri = UriUtils.buildStatsUri(
+                UriUtils.buildUri(this.host, ServiceHostManagementService.SELF_LINK));
+        String statName = ServiceHostManagementService.STAT_NAME_PREFIX_PATH_REQUEST_THROTTLED_COUNT
+                + prefix;
+        Date exp = this.host.getTestExpiration();
+        while (new Date().before(exp)) {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            ServiceStat throttledStat = stats.entries.get(statName);
+            if (throttledStat != null && throttledStat.latestValue == failureCount.get()) {
+                return;
+            }
+            Thread.sleep(MAINTENANCE_INTERVAL_MILLIS);
+        }
+        throw new TimeoutException("Request throttled count never reported");
+    }
+
+    @Test
+    public void queueDelayLoadShedding() throws Throwable {
+        setUp(false);
+        MinimalTestService ts = new MinimalTestService();
+        ts.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        MinimalTestServiceState body = new MinimalTestServiceState();
+        body.id = UUID.randomUUID().toString();
+        ts = (MinimalTestService) this.host.startServiceAndWait(ts, UUID.randomUUID().toString(),
+                body);
+
+        // every patch takes a few milliseconds, so queued patches wait longer than the target
+        long targetMicros = TimeUnit.MILLISECONDS.toMicros(1);
+        this.host.setQueueDelayTargets(targetMicros, TimeUnit.SECONDS.toMicros(10), targetMicros);
+
+        AtomicInteger failureCount = new AtomicInteger();
+        AtomicInteger retryAfterCount = new AtomicInteger();
+        CompletionHandler c = (o, e) -> {
+            if (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                failureCount.incrementAndGet();
+                if (o.getResponseHeader(Operation.RETRY_AFTER_HEADER) != null) {
+                    retryAfterCount.incrementAndGet();
+                }
+            }
+            this.host.completeIteration();
+        };
+
+        int count = 20;
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            MinimalTestServiceState patchBody = new MinimalTestServiceState();
+            patchBody.id = MinimalTestService.STRING_MARKER_DELAY_COMPLETION;
+            this.host.send(Operation.createPatch(ts.getUri())
+                    .setBody(patchBody)
+                    .setFromRemoteClient(true)
+                    .setCompletion(c));
+        }
+        this.host.testWait();
+        assertTrue(failureCount.get() > 0);
+        assertEquals(failureCount.get(), retryAfterCount.get());
+        int shedCount = failureCount.get();
+
+        // operations issued on this host are queued, not shed
+        failureCount.set(0);
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            MinimalTestServiceState patchBody = new MinimalTestServiceState();
+            patchBody.id = MinimalTestService.STRING_MARKER_DELAY_COMPLETION;
+            this.host.send(Operation.createPatch(ts.getUri())
+                    .setBody(patchBody)
+                    .setCompletion(c));
+        }
+        this.host.testWait();
+        assertEquals(0, failureCount.get());
+
+        // the shed count is reported as a service stat
+        Date exp = this.host.getTestExpiration();
+        while (new Date().before(exp)) {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(ts.getUri()));
+            ServiceStat shedStat = stats.entries.get(Service.STAT_NAME_OPERATION_SHED_COUNT);
+            if (shedStat != null && shedStat.latestValue == shedCount) {
+                return;
+            }
+            Thread.sleep(MAINTENANCE_INTERVAL_MILLIS);
+        }
+        throw new TimeoutException("Operation shed count never reported");
+    }
+
+    @Test
+    public void queueDelayPercentilesWithoutTarget() throws Throwable {
+        setUp(false);
+        MinimalTestService ts = new MinimalTestService();
+        ts.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        MinimalTestServiceState body = new MinimalTestServiceState();
+        body.id = UUID.randomUUID().toString();
+        ts = (MinimalTestService) this.host.startServiceAndWait(ts, UUID.randomUUID().toString(),
+                body);
+
+        // no queue delay target is set, so patches queue behind each other without being shed
+        int count = 20;
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            MinimalTestServiceState patchBody = new MinimalTestServiceState();
+            patchBody.id = MinimalTestService.STRING_MARKER_DELAY_COMPLETION;
+            this.host.send(Operation.createPatch(ts.getUri())
+                    .setBody(patchBody)
+                    .setFromRemoteClient(true)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        // the queueing delay percentiles are still reported as service stats
+        Date exp = this.host.getTestExpiration();
+        while (new Date().before(exp)) {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(ts.getUri()));
+            ServiceStat p99Stat = stats.entries.get(Service.STAT_NAME_OPERATION_QUEUE_DELAY_P99);
+            if (p99Stat != null && p99Stat.latestValue > 0) {
+                assertTrue(stats.entries.containsKey(Service.STAT_NAME_OPERATION_QUEUE_DELAY_P50));
+                return;
+            }
+            Thread.sleep(MAINTENANCE_INTERVAL_MILLIS);
+        }
+        throw new TimeoutException("Operation queue delay percentiles never reported");
+    }
+
+    @Test
+    public void requestRateInfoTokenBucket() {
+        RequestRateInfo ri = new RequestRateInfo();
+        ri.limit = 10;
+        ri.burst = 5;
+        long now = Utils.getSystemNowMicrosUtc();
+        ri.bucketFullTimeMicros.set(now);
+
+        for (int i = 0; i < ri.burst; i++) {
+            assertEquals(0, ri.acquire(now));
+        }
+        long waitMicros = ri.acquire(now);
+        assertTrue(waitMicros > 0);
+        assertTrue(waitMicros <= TimeUnit.MILLISECONDS.toMicros(100));
+        assertEquals(1, ri.throttledCount.get());
+
+        // a token is added every 100ms
+        assertEquals(0, ri.acquire(now + waitMicros));
+        assertTrue(ri.acquire(now + waitMicros) > 0);
+
+        // an idle bucket fills up to the burst, not beyond
+        long later = now + TimeUnit.MINUTES.toMicros(1);
+        for (int i = 0; i < ri.burst; i++) {
+            assertEquals(0, ri.acquire(later));
+        }
+        assertTrue(ri.acquire(later) > 0);
+        assertEquals(3, ri.throttledCount.get());
+    }
+
     @Test
     public void postFailureOnAlreadyStarted() throws Throwable {
         setUp(false);
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.services.common.ExampleFactoryService;
+import com.vmware.xenon.services.common.ExampleService;
+
+public class TestServiceRegistry {
+
+    /**
+     * Number of attached services for the lookup throughput comparison. Set to 1000000
+     * (with -DtestHeapSizeMb=2048) to measure request dispatch at a million services
+     */
+    public int serviceCount = 100000;
+
+    public int lookupCount = 1000000;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void putGetRemove() {
+        ServiceRegistry r = new ServiceRegistry();
+        Service factory = new ExampleFactoryService();
+        Service child = new ExampleService();
+
+        assertNull(r.putIfAbsent("/core/examples", factory));
+        assertNull(r.putIfAbsent("/core/examples/one", child));
+        assertSame(child, r.putIfAbsent("/core/examples/one", new ExampleService()));
+        assertSame(child, r.get("/core/examples/one"));
+        assertEquals(2, r.size());
+        assertEquals(1, r.getFactories().size());
+        assertSame(factory, r.getFactories().iterator().next());
+
+        assertSame(factory, r.remove("/core/examples"));
+        assertTrue(r.getFactories().isEmpty());
+        // the child is still indexed after its parent is removed
+        assertEquals(1, countChildren(r, "/core/examples"));
+        assertSame(child, r.remove("/core/examples/one"));
+        assertNull(r.remove("/core/examples/one"));
+        assertEquals(0, r.size());
+        assertEquals(0, countChildren(r, "/core/examples"));
+        assertTrue(r.findByPrefix("/").isEmpty());
+    }
+
+    @Test
+    public void prefixAndChildren() {
+        ServiceRegistry r = new ServiceRegistry();
+        Service s = new ExampleService();
+        String[] paths = { "/core/examples", "/core/examples/a", "/core/examples/ab",
+                "/core/examples/b", "/core/examples/a/nested", "/core/examples2/c", "/other" };
+        for (String path : paths) {
+            r.putIfAbsent(path, s);
+        }
+
+        assertEquals(paths.length, r.findByPrefix("/").size());
+        assertEquals(6, r.findByPrefix("/core/").size());
+        assertEquals(6, r.findByPrefix("/core/examples").size());
+        assertEquals(4, r.findByPrefix("/core/examples/").size());
+        assertEquals(3, r.findByPrefix("/core/examples/a").size());
+        assertEquals(1, r.findByPrefix("/core/examples/a/").size());
+        assertEquals(0, r.findByPrefix("/core/examples/c").size());
+        assertEquals(0, r.findByPrefix("/missing/path").size());
+
+        // direct children only
+        assertEquals(3, countChildren(r, "/core/examples"));
+        assertEquals(0, countChildren(r, "/core/examples/b"));
+        assertEquals(0, countChildren(r, "/missing"));
+
+        for (String path : paths) {
+            r.remove(path);
+        }
+        assertTrue(r.findByPrefix("/").isEmpty());
+    }
+
+    @Test
+    public void concurrentPutAndRemove() throws Throwable {
+        ServiceRegistry r = new ServiceRegistry();
+        Service s = new ExampleService();
+        int threadCount = Utils.DEFAULT_THREAD_COUNT;
+        int count = 10000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            executor.execute(() -> {
+                // threads add and remove the same paths, pruning and re-creating tree nodes
+                for (int i = 0; i < count; i++) {
+                    String path = "/factory-" + (i % 8) + "/child-" + (i % 64);
+                    r.putIfAbsent(path, s);
+                    r.remove(path);
+                }
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        executor.shutdown();
+
+        assertEquals(0, r.size());
+        assertTrue(r.findByPrefix("/").isEmpty());
+
+        for (int i = 0; i < 64; i++) {
+            r.putIfAbsent("/factory/child-" + i, s);
+        }
+        assertEquals(64, countChildren(r, "/factory"));
+        assertEquals(64, r.findByPrefix("/factory/").size());
+        assertFalse(r.findByPrefix("/factory-").size() > 0);
+    }
+
+    @Test
+    public void lookupThroughput() {
+        ServiceRegistry r = new ServiceRegistry();
+        ConcurrentSkipListMap<String, Service> skipList = new ConcurrentSkipListMap<>();
+        Service s = new ExampleService();
+        List<String> paths = new ArrayList<>(this.serviceCount);
+        for (int i = 0; i < this.serviceCount; i++) {
+            String path = UriUtils.buildUriPath(ExampleFactoryService.SELF_LINK,
+                    Utils.getNowMicrosUtc() + "-" + i);
+            paths.add(path);
+            r.putIfAbsent(path, s);
+            skipList.put(path, s);
+        }
+
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < this.lookupCount; i++) {
+                assertSame(s, r.get(paths.get((i * 31) % this.serviceCount)));
+            }
+            double registryThpt = this.lookupCount
+                    / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+
+            start = System.nanoTime();
+            for (int i = 0; i < this.lookupCount; i++) {
+                assertSame(s, skipList.get(paths.get((i * 31) % this.serviceCount)));
+            }
+            double skipListThpt = this.lookupCount
+                    / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+
+            Logger.getAnonymousLogger().info(String.format(
+                    "Service count: %d, lookups per second, registry: %f, skip list: %f",
+                    this.serviceCount, registryThpt, skipListThpt));
+        }
+
+        long start = System.nanoTime();
+        int childCount = countChildren(r, ExampleFactoryService.SELF_LINK);
+        assertEquals(this.serviceCount, childCount);
+        Logger.getAnonymousLogger().info(String.format(
+                "Factory children enumerated in %d micros",
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+    }
+
+    private int countChildren(ServiceRegistry r, String path) {
+        int count = 0;
+        for (Service child : r.getChildren(path)) {
+            if (child != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
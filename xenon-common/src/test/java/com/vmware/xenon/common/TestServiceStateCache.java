@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.xenon.common.ServiceStateCache.CacheStats;
+import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+
+public class TestServiceStateCache {
+
+    private static final String FACTORY_PATH = "/factory";
+
+    public int count = 1000;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void evictionBoundedBySize() {
+        ServiceStateCache cache = ServiceStateCache.create(Long.MAX_VALUE);
+        cache.put(buildPath(0), buildState(0), false);
+        int stateSize = cache.getStatsPerFactory().get(FACTORY_PATH).getAverageStateSizeBytes();
+        assertTrue(stateSize > 0);
+
+        int capacity = this.count / 10;
+        cache.setMaxWeight((long) stateSize * capacity);
+        for (int i = 0; i < this.count; i++) {
+            cache.put(buildPath(i), buildState(i), false);
+            assertTrue(cache.getWeight() <= cache.getMaxWeight());
+        }
+        assertEquals(capacity, cache.size());
+
+        // least recently added entries are evicted first
+        for (int i = 0; i < this.count; i++) {
+            ServiceDocument st = cache.peek(buildPath(i));
+            if (i < this.count - capacity) {
+                assertNull(st);
+            } else {
+                assertNotNull(st);
+            }
+        }
+
+        CacheStats stats = cache.getStatsPerFactory().get(FACTORY_PATH);
+        assertEquals(this.count - capacity, stats.evictionCount.sum());
+
+        // shrinking the limit evicts immediately
+        cache.setMaxWeight(0);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void frequentlyAccessedEntriesRetained() {
+        ServiceStateCache cache = ServiceStateCache.create(Long.MAX_VALUE);
+        cache.put(buildPath(0), buildState(0), false);
+        int stateSize = cache.getStatsPerFactory().get(FACTORY_PATH).getAverageStateSizeBytes();
+        int capacity = 10;
+        cache.setMaxWeight((long) stateSize * capacity);
+
+        // a read promotes the entry, so a scan of entries accessed once does not evict it
+        assertNotNull(cache.get(buildPath(0)));
+        for (int i = 1; i < this.count; i++) {
+            cache.put(buildPath(i), buildState(i), false);
+        }
+        assertNotNull(cache.peek(buildPath(0)));
+        assertEquals(capacity, cache.size());
+
+        CacheStats stats = cache.getStatsPerFactory().get(FACTORY_PATH);
+        assertEquals(1, stats.hitCount.sum());
+        assertNull(cache.get(buildPath(1)));
+        assertEquals(1, stats.missCount.sum());
+    }
+
+    @Test
+    public void pinnedEntriesNotEvicted() {
+        ServiceStateCache cache = ServiceStateCache.create(0);
+        for (int i = 0; i < this.count; i++) {
+            cache.put(buildPath(i), buildState(i), true);
+        }
+        assertEquals(this.count, cache.size());
+        assertEquals(0, cache.getWeight());
+
+        cache.put(buildPath(this.count), buildState(this.count), false);
+        assertEquals(this.count, cache.size());
+        assertNull(cache.peek(buildPath(this.count)));
+
+        cache.remove(buildPath(0));
+        assertNull(cache.get(buildPath(0)));
+        assertEquals(this.count - 1, cache.size());
+    }
+
+    @Test
+    public void olderVersionDiscarded() {
+        ServiceStateCache cache = ServiceStateCache.create(Long.MAX_VALUE);
+        ExampleServiceState st = buildState(0);
+        st.documentVersion = 2;
+        cache.put(buildPath(0), st, false);
+
+        ExampleServiceState older = buildState(0);
+        older.documentVersion = 1;
+        cache.put(buildPath(0), older, false);
+        assertEquals(2, cache.get(buildPath(0)).documentVersion);
+
+        ExampleServiceState newer = buildState(0);
+        newer.documentVersion = 3;
+        cache.put(buildPath(0), newer, false);
+        assertEquals(3, cache.get(buildPath(0)).documentVersion);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void concurrentUpdates() throws Throwable {
+        ServiceStateCache cache = ServiceStateCache.create(Long.MAX_VALUE);
+        cache.put(buildPath(0), buildState(0), false);
+        int stateSize = cache.getStatsPerFactory().get(FACTORY_PATH).getAverageStateSizeBytes();
+        int capacity = this.count / 10;
+        cache.setMaxWeight((long) stateSize * capacity);
+
+        // writers update, read and remove overlapping entries, so policy updates are buffered
+        // while another thread holds the policy lock
+        int threadCount = 4;
+        CountDownLatch done = new CountDownLatch(threadCount);
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int offset = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < this.count; i++) {
+                        int index = (i + offset * this.count / threadCount) % this.count;
+                        cache.put(buildPath(index), buildState(index), false);
+                        cache.get(buildPath(i));
+                        if (i % 10 == offset) {
+                            cache.remove(buildPath(index));
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(failures.isEmpty());
+
+        // applying the buffered updates brings the cache within its limit, and every cached
+        // entry is accounted for by the policy
+        long weight = cache.getWeight();
+        assertTrue(weight <= cache.getMaxWeight());
+        assertEquals(weight, (long) stateSize * cache.size());
+    }
+
+    private String buildPath(int i) {
+        // fixed length, so all states have the same serialized size
+        return UriUtils.buildUriPath(FACTORY_PATH, String.format("child-%06d", i));
+    }
+
+    private ExampleServiceState buildState(int i) {
+        ExampleServiceState st = new ExampleServiceState();
+        st.name = "name";
+        st.counter = 1L;
+        st.documentSelfLink = buildPath(i);
+        return st;
+    }
+}
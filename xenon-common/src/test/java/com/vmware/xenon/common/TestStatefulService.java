@@ -13,6 +13,8 @@
 
 package com.vmware.xenon.common;
 
+import static org.junit.Assert.assertEquals;
+
 import java.net.URI;
 import java.util.Date;
 import java.util.EnumSet;
@@ -21,6 +23,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -118,6 +124,58 @@ public class TestStatefulService extends BasicReusableHostTestCase {
         doThroughputPutTest(props, type, caps);
     }
 
+    /**
+     * Many concurrent writers updating a single service. All updates are serialized through the
+     * service operation queue, so this measures enqueue and dispatch contention
+     */
+    @Test
+    public void throughputInMemoryServicePutContention() throws Throwable {
+        int writerCount = 64;
+        int c = this.requestCount;
+        List<Service> services = this.host.doThroughputServiceStart(1,
+                MinimalTestService.class, this.host.buildMinimalTestState(),
+                EnumSet.noneOf(Service.ServiceOption.class), null);
+        URI serviceUri = services.get(0).getUri();
+        this.host.setOperationQueueLimit(serviceUri, writerCount * c);
+        MinimalTestServiceState before = this.host.getServiceState(null,
+                MinimalTestServiceState.class, serviceUri);
+
+        MinimalTestServiceState body = (MinimalTestServiceState) this.host
+                .buildMinimalTestState();
+        ExecutorService writers = Executors.newFixedThreadPool(writerCount);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        try {
+            this.host.testStart(writerCount * c);
+            for (int w = 0; w < writerCount; w++) {
+                writers.execute(() -> {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        this.host.failIteration(e);
+                        return;
+                    }
+                    for (int i = 0; i < c; i++) {
+                        this.host.send(Operation.createPut(serviceUri).setBody(body)
+                                .setCompletion(this.host.getCompletion()));
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            startLatch.countDown();
+            this.host.testWait();
+            long end = System.nanoTime();
+            double thpt = (writerCount * c) / ((end - start) / (double) TimeUnit.SECONDS.toNanos(1));
+            this.host.log("Writers: %d, updates: %d, updates per second: %f", writerCount,
+                    writerCount * c, thpt);
+        } finally {
+            writers.shutdownNow();
+        }
+
+        MinimalTestServiceState after = this.host.getServiceState(null,
+                MinimalTestServiceState.class, serviceUri);
+        assertEquals(before.documentVersion + writerCount * c, after.documentVersion);
+    }
+
     private void doThroughputPutTest(EnumSet<TestProperty> props,
             Class<? extends StatefulService> type,
             EnumSet<Service.ServiceOption> caps)
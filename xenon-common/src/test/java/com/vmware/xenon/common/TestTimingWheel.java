@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014-2015 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTimingWheel {
+
+    private static final long TICK_MICROS = 1000;
+    private static final int BUCKET_COUNT = 64;
+
+    public int count = 100000;
+
+    @Before
+    public void setUp() {
+        CommandLineArgumentParser.parseFromProperties(this);
+    }
+
+    @Test
+    public void scheduleAndAdvance() {
+        TimingWheel tw = TimingWheel.create(TICK_MICROS, BUCKET_COUNT);
+        long now = Utils.getNowMicrosUtc();
+        AtomicInteger fired = new AtomicInteger();
+
+        // deadlines spread over several revolutions, and one already in the past
+        int timerCount = BUCKET_COUNT * 4;
+        tw.schedule(now - TICK_MICROS * 10, fired::incrementAndGet);
+        for (int i = 1; i <= timerCount; i++) {
+            tw.schedule(now + i * TICK_MICROS, fired::incrementAndGet);
+        }
+        assertEquals(timerCount + 1, tw.size());
+
+        assertEquals(1, tw.advance(now));
+        assertEquals(1, fired.get());
+
+        // advance one revolution at a time, timers for later revolutions must not fire early
+        for (int r = 1; r <= 4; r++) {
+            long until = now + r * BUCKET_COUNT * TICK_MICROS;
+            tw.advance(until);
+            assertEquals(1 + r * BUCKET_COUNT, fired.get());
+        }
+        assertEquals(0, tw.size());
+        assertEquals(0, tw.getMaxBucketOccupancy());
+    }
+
+    @Test
+    public void advanceBehindByManyRevolutions() {
+        TimingWheel tw = TimingWheel.create(TICK_MICROS, BUCKET_COUNT);
+        long now = Utils.getNowMicrosUtc();
+        AtomicInteger fired = new AtomicInteger();
+        int timerCount = BUCKET_COUNT * 10;
+        for (int i = 0; i < timerCount; i++) {
+            tw.schedule(now + i * TICK_MICROS, fired::incrementAndGet);
+        }
+
+        assertEquals(timerCount, tw.advance(now + timerCount * TICK_MICROS));
+        assertEquals(timerCount, fired.get());
+        assertTrue(tw.getMaxLagMicros() >= 0);
+    }
+
+    @Test
+    public void lagReported() {
+        TimingWheel tw = TimingWheel.create(TICK_MICROS, BUCKET_COUNT);
+        long lagMicros = TICK_MICROS * 50;
+        long deadline = Utils.getSystemNowMicrosUtc() - lagMicros;
+        tw.schedule(deadline, () -> {
+        });
+        tw.schedule(deadline + lagMicros * 10, () -> {
+        });
+
+        // only the timer that is due fires, and its delay is reported
+        assertEquals(1, tw.advance(Utils.getSystemNowMicrosUtc()));
+        assertTrue(tw.getMaxLagMicros() >= lagMicros);
+        assertEquals(1, tw.size());
+    }
+
+    @Test
+    public void cancel() {
+        TimingWheel tw = TimingWheel.create(TICK_MICROS, BUCKET_COUNT);
+        long now = Utils.getNowMicrosUtc();
+        AtomicInteger fired = new AtomicInteger();
+
+        // cancel before the timer is placed in a bucket
+        TimingWheel.Timer t = tw.schedule(now, fired::incrementAndGet);
+        assertTrue(t.cancel());
+        assertFalse(t.cancel());
+        assertTrue(t.isCancelled());
+
+        // cancel after the timer is placed in a bucket
+        TimingWheel.Timer later = tw.schedule(now + TICK_MICROS * 10, fired::incrementAndGet);
+        tw.advance(now);
+        assertEquals(1, tw.getMaxBucketOccupancy());
+        assertTrue(later.cancel());
+
+        // a timer cancelled by a task fired in the same advance must not run
+        TimingWheel.Timer[] victim = new TimingWheel.Timer[1];
+        tw.schedule(now + TICK_MICROS, () -> victim[0].cancel());
+        victim[0] = tw.schedule(now + TICK_MICROS, fired::incrementAndGet);
+
+        assertEquals(1, tw.advance(now + TICK_MICROS * 20));
+        assertEquals(0, fired.get());
+        assertEquals(0, tw.size());
+
+        // a fired timer can not be cancelled
+        TimingWheel.Timer fire = tw.schedule(now, fired::incrementAndGet);
+        tw.advance(now + TICK_MICROS * 20);
+        assertFalse(fire.cancel());
+        assertEquals(1, fired.get());
+
+        tw.schedule(now, fired::incrementAndGet);
+        tw.clear();
+        assertEquals(0, tw.size());
+        tw.advance(now + TICK_MICROS * 20);
+        assertEquals(1, fired.get());
+    }
+
+    /**
+     * Compares the timing wheel with the skip list map previously used to sequence periodic
+     * service maintenance, for a large number of periodic services
+     */
+    @Test
+    public void throughput() {
+        long interval = TimeUnit.SECONDS.toMicros(1);
+        List<String> links = new ArrayList<>(this.count);
+        for (int i = 0; i < this.count; i++) {
+            links.add("/service/" + i);
+        }
+
+        for (int iteration = 0; iteration < 3; iteration++) {
+            // the wheel starts at the current tick, so deadlines are relative to its creation
+            long now = Utils.getSystemNowMicrosUtc();
+            TimingWheel tw = TimingWheel.create(TimingWheel.DEFAULT_TICK_MICROS,
+                    TimingWheel.DEFAULT_BUCKET_COUNT);
+            AtomicInteger fired = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.count; i++) {
+                String link = links.get(i);
+                tw.schedule(now + (i % interval), () -> {
+                    if (link != null) {
+                        fired.incrementAndGet();
+                    }
+                });
+            }
+            tw.advance(now + interval);
+            long wheelNanos = System.nanoTime() - start;
+            assertEquals(this.count, fired.get());
+
+            ConcurrentSkipListMap<Long, Set<String>> expirations = new ConcurrentSkipListMap<>();
+            fired.set(0);
+            start = System.nanoTime();
+            for (int i = 0; i < this.count; i++) {
+                long expiration = now + (i % interval);
+                synchronized (this) {
+                    Set<String> services = expirations.get(expiration);
+                    if (services == null) {
+                        services = new HashSet<>();
+                        expirations.put(expiration, services);
+                    }
+                    services.add(links.get(i));
+                }
+            }
+            while (true) {
+                Set<String> services;
+                synchronized (this) {
+                    Entry<Long, Set<String>> e = expirations.firstEntry();
+                    if (e == null) {
+                        break;
+                    }
+                    services = e.getValue();
+                    expirations.remove(e.getKey());
+                }
+                fired.addAndGet(services.size());
+            }
+            long skipListNanos = System.nanoTime() - start;
+            assertEquals(this.count, fired.get());
+
+            Logger.getAnonymousLogger().info(String.format(
+                    "Timers: %d, schedule and expire per second, wheel: %f, skip list: %f",
+                    this.count,
+                    this.count / (wheelNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                    this.count / (skipListNanos / (double) TimeUnit.SECONDS.toNanos(1))));
+        }
+    }
+}
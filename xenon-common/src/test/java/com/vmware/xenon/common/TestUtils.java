@@ -14,11 +14,15 @@
 package com.vmware.xenon.common;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
@@ -26,27 +30,40 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
 import java.util.logging.Logger;
 
+import com.esotericsoftware.kryo.KryoException;
 import com.google.gson.reflect.TypeToken;
+import com.sun.management.ThreadMXBean;
+import io.netty.buffer.ByteBuf;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.Builder;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.SystemHostInfo.OsFamily;
+import com.vmware.xenon.common.http.netty.NettyChannelContext;
+import com.vmware.xenon.common.serialization.BinaryBodyClassResolver;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.QueryValidationTestService.QueryValidationServiceState;
@@ -136,6 +153,92 @@ public class TestUtils {
                         thpt, count));
     }
 
+    @Test
+    public void cloneDocument() throws Throwable {
+        QueryValidationServiceState original = VerificationHost.buildQueryValidationState();
+        original.documentSelfLink = UUID.randomUUID().toString();
+        original.documentVersion = 5;
+        original.dateValue = new Date();
+
+        QueryValidationServiceState clone = Utils.clone(original);
+        compareDocumentFields(original, clone);
+        compareDocumentFields(Utils.cloneWithKryo(original), clone);
+
+        // nested values are copied, not shared
+        assertTrue(clone.exampleValue != original.exampleValue);
+        assertTrue(clone.nestedComplexValue != original.nestedComplexValue);
+        assertTrue(clone.listOfExampleValues.get(0) != original.listOfExampleValues.get(0));
+        assertTrue(clone.arrayOfExampleValues[0] != original.arrayOfExampleValues[0]);
+        assertTrue(clone.dateValue != original.dateValue);
+        clone.listOfStrings.clear();
+        assertEquals(10, original.listOfStrings.size());
+        clone.mapOfStrings.put(SOME_STRING_VALUE, SOME_OTHER_STRING_VALUE);
+        assertFalse(original.mapOfStrings.containsKey(SOME_STRING_VALUE));
+
+        assertNull(Utils.clone(null));
+        assertEquals(SOME_STRING_VALUE, Utils.clone(SOME_STRING_VALUE));
+    }
+
+    @Test
+    public void benchmarkCloneAndPropertyAccess() throws Throwable {
+        CommandLineArgumentParser.parseFromProperties(this);
+        int count = this.iterationCount * 100;
+        ServiceDocument[] documents = { buildCloneOrSerializationObject(),
+                VerificationHost.buildQueryValidationState() };
+        // the first pass warms up both paths
+        for (int i = 0; i < 2; i++) {
+            for (ServiceDocument d : documents) {
+                logCloneThroughput(count, d);
+                logPropertyReadThroughput(count, d);
+            }
+        }
+    }
+
+    private void logCloneThroughput(int count, ServiceDocument s) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Utils.cloneWithKryo(s);
+        }
+        double kryoThroughput = count / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Utils.clone(s);
+        }
+        double throughput = count / ((System.nanoTime() - start) / 1e9);
+
+        Logger.getAnonymousLogger().info(String.format(
+                "PODO: %s, clones per second, Kryo: %f, generated: %f",
+                s.getClass().getSimpleName(), kryoThroughput, throughput));
+    }
+
+    private void logPropertyReadThroughput(int count, ServiceDocument s) throws Throwable {
+        Collection<PropertyDescription> pds = Builder.create()
+                .buildDescription(s.getClass()).propertyDescriptions.values();
+        long nonNullCount = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (PropertyDescription pd : pds) {
+                nonNullCount += pd.accessor.get(s) != null ? 1 : 0;
+            }
+        }
+        double reflectionThroughput = count / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (PropertyDescription pd : pds) {
+                nonNullCount -= ReflectionUtils.getPropertyValue(pd, s) != null ? 1 : 0;
+            }
+        }
+        double throughput = count / ((System.nanoTime() - start) / 1e9);
+        assertEquals(0, nonNullCount);
+
+        Logger.getAnonymousLogger().info(String.format(
+                "PODO: %s, reads of all properties per second, reflection: %f, generated: %f",
+                s.getClass().getSimpleName(), reflectionThroughput, throughput));
+    }
+
     @Test
     public void fromBytes() {
         int count = 100000;
@@ -187,6 +290,132 @@ public class TestUtils {
 
     }
 
+    @Test
+    public void encodeDecodeBinaryBody() throws Throwable {
+        ExampleServiceState s = buildCloneOrSerializationObject();
+        s.documentSelfLink = "/some/link";
+        s.documentVersion = 10;
+
+        for (String contentType : Arrays.asList(Operation.MEDIA_TYPE_APPLICATION_KRYO,
+                Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+            Operation op = Operation.createPatch(null).setBody(s)
+                    .setContentType(contentType);
+            byte[] data = Utils.encodeBody(op);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data).flip();
+            Operation decoded = Operation.createPatch(null)
+                    .setContentType(contentType)
+                    .setContentLength(data.length);
+            Utils.decodeBody(decoded, buffer);
+            ExampleServiceState s1 = decoded.getBody(ExampleServiceState.class);
+            assertEquals(s.counter, s1.counter);
+            assertEquals(s.name, s1.name);
+            assertEquals(s.documentVersion, s1.documentVersion);
+            assertEquals(s.documentSelfLink, s1.documentSelfLink);
+            assertEquals(s.keyValues.get("1"), s1.keyValues.get("1"));
+        }
+
+        // a pre-serialized response body to a binary request is sent as JSON
+        Operation op = Operation.createPatch(null).setBody(Utils.toJson(s))
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO);
+        Utils.encodeBody(op);
+        assertEquals(Operation.MEDIA_TYPE_APPLICATION_JSON, op.getContentType());
+
+        // binary bodies with classes outside of documents and framework requests are rejected
+        Map<String, Object> body = new HashMap<>();
+        body.put("file", new File("/some/file"));
+        byte[] data = Utils.toBinaryBody(body);
+        Throwable[] failure = new Throwable[1];
+        Operation decoded = Operation.createPatch(null)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO)
+                .setContentLength(data.length)
+                .setCompletion((o, e) -> failure[0] = e);
+        Utils.decodeBody(decoded, ByteBuffer.wrap(data));
+        assertTrue(failure[0] instanceof KryoException);
+
+        // framework classes are only allowed when they are documents, error responses, or used
+        // in the properties of framework documents
+        assertTrue(BinaryBodyClassResolver.isAllowed(ExampleServiceState.class));
+        assertTrue(BinaryBodyClassResolver.isAllowed(ServiceErrorResponse.class));
+        assertTrue(BinaryBodyClassResolver.isAllowed(ServiceStats.ServiceStat.class));
+        assertFalse(BinaryBodyClassResolver.isAllowed(Operation.TransactionContext.class));
+        assertFalse(BinaryBodyClassResolver.isAllowed(Operation.class));
+
+        body.clear();
+        body.put("context", new Operation.TransactionContext());
+        data = Utils.toBinaryBody(body);
+        failure[0] = null;
+        decoded = Operation.createPatch(null)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO)
+                .setContentLength(data.length)
+                .setCompletion((o, e) -> failure[0] = e);
+        Utils.decodeBody(decoded, ByteBuffer.wrap(data));
+        assertTrue(failure[0] instanceof KryoException);
+    }
+
+    @Test
+    public void encodeDecodeBodyPooledBuffer() throws Throwable {
+        ExampleServiceState s = buildCloneOrSerializationObject();
+        s.documentSelfLink = "/some/link";
+        // multi byte characters, including a surrogate pair
+        s.name = "name \u00e9\u4e2d\ud83d\ude00";
+
+        for (String contentType : Arrays.asList(Operation.MEDIA_TYPE_APPLICATION_KRYO,
+                Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+            for (Object body : Arrays.asList(s, Utils.toJson(s))) {
+                Operation op = Operation.createPatch(null).setBody(body)
+                        .setContentType(contentType);
+                ByteBuf buffer = Utils.encodeBody(op, NettyChannelContext.ALLOCATOR);
+                try {
+                    assertEquals(buffer.readableBytes(), op.getContentLength());
+                    Operation decoded = Operation.createPatch(null)
+                            .setContentType(op.getContentType())
+                            .setContentLength(op.getContentLength());
+                    Utils.decodeBody(decoded, buffer.nioBuffer());
+                    ExampleServiceState s1 = decoded.getBody(ExampleServiceState.class);
+                    assertEquals(s.name, s1.name);
+                    assertEquals(s.counter, s1.counter);
+                    assertEquals(s.documentSelfLink, s1.documentSelfLink);
+                    assertEquals(s.keyValues.get("1"), s1.keyValues.get("1"));
+                } finally {
+                    buffer.release();
+                }
+            }
+        }
+
+        // allocation per body encoding and decoding, with an intermediate array and direct to
+        // a pooled buffer
+        ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int count = 100000;
+        for (String contentType : Arrays.asList(Operation.MEDIA_TYPE_APPLICATION_KRYO,
+                Operation.MEDIA_TYPE_APPLICATION_JSON)) {
+            for (boolean isPooled : new boolean[] { false, true }) {
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                for (int i = 0; i < count; i++) {
+                    Operation op = Operation.createPatch(null).setBody(s)
+                            .setContentType(contentType);
+                    Operation decoded = Operation.createPatch(null).setContentType(contentType);
+                    if (isPooled) {
+                        ByteBuf buffer = Utils.encodeBody(op, NettyChannelContext.ALLOCATOR);
+                        decoded.setContentLength(op.getContentLength());
+                        Utils.decodeBody(decoded, buffer.nioBuffer());
+                        buffer.release();
+                    } else {
+                        byte[] data = Utils.encodeBody(op);
+                        decoded.setContentLength(op.getContentLength());
+                        Utils.decodeBody(decoded, ByteBuffer.wrap(data));
+                    }
+                }
+                long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                Logger.getAnonymousLogger().info(String.format(
+                        "%s (pooled: %s) bytes allocated per body encoding and decoding: %d",
+                        contentType, isPooled, allocated / count));
+            }
+        }
+    }
+
     private ExampleServiceState buildCloneOrSerializationObject() {
         ExampleServiceState s = new ExampleServiceState();
         s.counter = 1L;
@@ -416,6 +645,94 @@ public class TestUtils {
                 TimeUnit.NANOSECONDS.toMillis(stop - start)));
     }
 
+    @Test
+    public void uniqueNowMicrosUtcAndOperationIds() throws Throwable {
+        int threadCount = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int count = this.iterationCount * 10;
+        long[][] times = new long[threadCount][count];
+        long[][] ids = new long[threadCount][count];
+        runConcurrently(threadCount, (t) -> {
+            for (int i = 0; i < count; i++) {
+                times[t][i] = Utils.getNowMicrosUtc();
+                ids[t][i] = Operation.generateId();
+            }
+        });
+
+        Set<Long> uniqueTimes = new HashSet<>();
+        Set<Long> uniqueIds = new HashSet<>();
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    // both move forward within a thread
+                    assertTrue(times[t][i] > times[t][i - 1]);
+                    assertTrue(ids[t][i] > ids[t][i - 1]);
+                }
+                assertTrue(uniqueTimes.add(times[t][i]));
+                assertTrue(uniqueIds.add(ids[t][i]));
+            }
+        }
+    }
+
+    /**
+     * Reports how the unique clock, the system clock and operation id generation scale with
+     * the number of calling threads
+     */
+    @Test
+    public void clockAndOperationIdScaling() throws Throwable {
+        int count = this.iterationCount * 100;
+        int maxThreadCount = Runtime.getRuntime().availableProcessors() * 2;
+        Map<String, LongSupplier> sources = new LinkedHashMap<>();
+        sources.put("getNowMicrosUtc", Utils::getNowMicrosUtc);
+        sources.put("getSystemNowMicrosUtc", Utils::getSystemNowMicrosUtc);
+        sources.put("Operation.generateId", Operation::generateId);
+
+        for (int threadCount = 1; threadCount <= maxThreadCount; threadCount *= 2) {
+            for (Entry<String, LongSupplier> e : sources.entrySet()) {
+                LongSupplier source = e.getValue();
+                long[] sink = new long[threadCount];
+                long start = System.nanoTime();
+                runConcurrently(threadCount, (t) -> {
+                    long sum = 0;
+                    for (int i = 0; i < count; i++) {
+                        sum += source.getAsLong();
+                    }
+                    sink[t] = sum;
+                });
+                long end = System.nanoTime();
+                double callsPerSecond = (threadCount * (double) count)
+                        / ((end - start) / (double) TimeUnit.SECONDS.toNanos(1));
+                Logger.getAnonymousLogger().info(String.format(
+                        "Threads: %d, %s calls per second: %f", threadCount, e.getKey(),
+                        callsPerSecond));
+            }
+        }
+    }
+
+    private static void runConcurrently(int threadCount, IntConsumer task) throws Throwable {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    task.accept(index);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
     @Test
     public void validateServiceOption() {
         // positive tests
@@ -14,9 +14,11 @@
 package com.vmware.xenon.common.http.netty;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -28,10 +30,12 @@ import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
+import com.sun.net.httpserver.HttpServer;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 
@@ -46,16 +50,22 @@ import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceClient;
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.http.netty.NettyChannelPool.NettyChannelGroup;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
 import com.vmware.xenon.common.test.TestProperty;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleFactoryService;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.MinimalTestService;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 
 public class NettyHttpServiceClientTest {
 
@@ -506,6 +516,333 @@ public class NettyHttpServiceClientTest {
                 services);
     }
 
+    @Test
+    public void getRemoteStreamedQueryResult() throws Throwable {
+        this.host.waitForServiceAvailable(ExampleFactoryService.SELF_LINK);
+        URI factoryUri = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        int count = NettyHttpClientRequestHandler.STREAMING_RESPONSE_DOCUMENT_COUNT_THRESHOLD * 2;
+        // characters escaped in JSON strings, to verify documents are encoded in place
+        String prefix = "\"{},\n" + UUID.randomUUID().toString();
+        this.host.doFactoryChildServiceStart(null, count, ExampleServiceState.class, (o) -> {
+            ExampleServiceState s = new ExampleServiceState();
+            s.name = prefix + UUID.randomUUID().toString();
+            o.setBody(s);
+        }, factoryUri);
+
+        // an expanded factory GET with enough documents is encoded as HTTP chunks, and
+        // aggregated back to a complete result by the client
+        ServiceDocumentQueryResult[] result = new ServiceDocumentQueryResult[1];
+        this.host.testStart(1);
+        Operation get = Operation.createGet(UriUtils.buildExpandLinksQueryUri(factoryUri))
+                .forceRemote()
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.failIteration(e);
+                        return;
+                    }
+                    result[0] = o.getBody(ServiceDocumentQueryResult.class);
+                    this.host.completeIteration();
+                });
+        this.host.send(get);
+        this.host.testWait();
+
+        int streamedCount = 0;
+        for (Object json : result[0].documents.values()) {
+            ExampleServiceState st = Utils.fromJson(json, ExampleServiceState.class);
+            if (st.name != null && st.name.startsWith(prefix)) {
+                streamedCount++;
+            }
+        }
+        assertEquals(count, streamedCount);
+        assertEquals(result[0].documentLinks.size(), result[0].documents.size());
+
+        // a direct query task is encoded as compact JSON, with the results nested in the task
+        QuerySpecification q = new QuerySpecification();
+        q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
+        q.options = EnumSet.of(QueryOption.EXPAND_CONTENT);
+        QueryTask task = QueryTask.create(q).setDirect(true);
+        this.host.createQueryTaskService(task, true, true, task, null);
+        streamedCount = 0;
+        for (Object json : task.results.documents.values()) {
+            ExampleServiceState st = Utils.fromJson(json, ExampleServiceState.class);
+            if (st.name != null && st.name.startsWith(prefix)) {
+                streamedCount++;
+            }
+        }
+        assertEquals(count, streamedCount);
+    }
+
+    @Test
+    public void streamedQueryResultBodyNotModified() throws Throwable {
+        ServiceDocumentQueryResult sharedResult = new ServiceDocumentQueryResult();
+        sharedResult.documents = new HashMap<>();
+        int documentCount = NettyHttpClientRequestHandler.STREAMING_RESPONSE_DOCUMENT_COUNT_THRESHOLD;
+        for (int i = 0; i < documentCount; i++) {
+            ExampleServiceState s = new ExampleServiceState();
+            s.name = UUID.randomUUID().toString();
+            sharedResult.documents.put(s.name, s);
+        }
+        Map<String, Object> documents = sharedResult.documents;
+        String targetPath = UUID.randomUUID().toString();
+        StatelessService sharedResultService = new StatelessService() {
+            @Override
+            public void handleRequest(Operation op) {
+                op.setBodyNoCloning(sharedResult).complete();
+            }
+        };
+        this.host.startServiceAndWait(sharedResultService, targetPath, null);
+
+        // the streamed result is shared, like the cached results of a direct query task, so
+        // encoding must never replace its documents, even temporarily
+        AtomicBoolean isModified = new AtomicBoolean();
+        AtomicBoolean isDone = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (!isDone.get()) {
+                if (sharedResult.documents != documents) {
+                    isModified.set(true);
+                }
+            }
+        });
+        reader.start();
+        try {
+            int count = 20;
+            this.host.testStart(count);
+            for (int i = 0; i < count; i++) {
+                this.host.send(Operation.createGet(UriUtils.buildUri(this.host, targetPath))
+                        .forceRemote()
+                        .setCompletion((o, e) -> {
+                            if (e != null) {
+                                this.host.failIteration(e);
+                                return;
+                            }
+                            ServiceDocumentQueryResult r = o
+                                    .getBody(ServiceDocumentQueryResult.class);
+                            if (r.documents.size() != documents.size()) {
+                                this.host.failIteration(new IllegalStateException(
+                                        "Unexpected document count: " + r.documents.size()));
+                                return;
+                            }
+                            this.host.completeIteration();
+                        }));
+            }
+            this.host.testWait();
+        } finally {
+            isDone.set(true);
+            reader.join();
+        }
+        assertFalse(isModified.get());
+    }
+
+    @Test
+    public void http2GetAndPatch() throws Throwable {
+        List<Service> services = this.host.doThroughputServiceStart(1, MinimalTestService.class,
+                this.host.buildMinimalTestState(), null, null);
+        URI u = services.get(0).getUri();
+
+        NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient.create(
+                NettyHttpServiceClientTest.class.getCanonicalName(),
+                Executors.newFixedThreadPool(4), Executors.newScheduledThreadPool(1));
+        client.setHttp2Enabled(true);
+        client.start();
+        try {
+            // some bodies are larger than the initial HTTP/2 flow control window
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 2048; i++) {
+                sb.append(UUID.randomUUID().toString());
+            }
+            String largeValue = sb.toString();
+
+            int count = this.requestCount * 64;
+            this.host.testStart(count);
+            for (int i = 0; i < count; i++) {
+                MinimalTestServiceState body = new MinimalTestServiceState();
+                body.id = UUID.randomUUID().toString();
+                body.stringValue = i % this.requestCount == 0 ? largeValue : body.id;
+                Operation patch = Operation.createPatch(u)
+                        .setBody(body)
+                        .setReferer(this.host.getReferer())
+                        .setCompletion((o, e) -> {
+                            if (e != null) {
+                                this.host.failIteration(e);
+                                return;
+                            }
+                            MinimalTestServiceState rsp = o.getBody(MinimalTestServiceState.class);
+                            if (!body.stringValue.equals(rsp.stringValue)) {
+                                this.host.failIteration(new IllegalStateException(
+                                        "unexpected response for " + body.id));
+                                return;
+                            }
+                            this.host.completeIteration();
+                        });
+                client.send(patch);
+            }
+            this.host.testWait();
+
+            // requests were multiplexed on a few HTTP/2 connections
+            NettyChannelGroup group = client.getHttp2ChannelPool().getChannelGroup(
+                    NettyChannelPool.toConnectionKey(u.getHost(), u.getPort()));
+            assertTrue(!group.inUseChannels.isEmpty());
+            assertTrue(group.inUseChannels.size()
+                    <= NettyHttpServiceClient.DEFAULT_HTTP2_CONNECTIONS_PER_HOST);
+            for (NettyChannelContext c : group.inUseChannels) {
+                assertTrue(c.isHttp2());
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void http2BodiesLargerThanFlowControlWindows() throws Throwable {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < NettyHttp2ConnectionHandler.STREAM_WINDOW_SIZE * 3) {
+            sb.append(UUID.randomUUID().toString());
+        }
+        String largeValue = sb.toString();
+        String targetPath = UUID.randomUUID().toString();
+        StatelessService largeBodyService = new StatelessService() {
+            @Override
+            public void handleRequest(Operation op) {
+                op.setBody(largeValue).complete();
+            }
+        };
+        this.host.startServiceAndWait(largeBodyService, targetPath, null);
+
+        NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient.create(
+                NettyHttpServiceClientTest.class.getCanonicalName(),
+                Executors.newFixedThreadPool(4), Executors.newScheduledThreadPool(1));
+        client.setHttp2Enabled(true);
+        client.start();
+        try {
+            // concurrent responses exceed both the stream and the connection windows, so they
+            // only complete if credit is returned as the bodies are received
+            int count = 4;
+            this.host.testStart(count);
+            for (int i = 0; i < count; i++) {
+                client.send(Operation.createGet(UriUtils.buildUri(this.host, targetPath))
+                        .setReferer(this.host.getReferer())
+                        .setCompletion((o, e) -> {
+                            if (e != null) {
+                                this.host.failIteration(e);
+                                return;
+                            }
+                            if (!largeValue.equals(o.getBody(String.class))) {
+                                this.host.failIteration(new IllegalStateException(
+                                        "unexpected response"));
+                                return;
+                            }
+                            this.host.completeIteration();
+                        }));
+            }
+            this.host.testWait();
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void http2FallbackToHttp11() throws Throwable {
+        // a server that only speaks HTTP/1.1
+        HttpServer server = HttpServer.create(new InetSocketAddress(ServiceHost.LOCAL_HOST, 0), 0);
+        server.createContext("/", (exchange) -> {
+            byte[] body = Utils.toJson(new ServiceDocument()).getBytes(Utils.CHARSET);
+            exchange.getResponseHeaders().set(Operation.CONTENT_TYPE_HEADER,
+                    Operation.MEDIA_TYPE_APPLICATION_JSON);
+            exchange.sendResponseHeaders(Operation.STATUS_CODE_OK, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        NettyHttpServiceClient client = (NettyHttpServiceClient) NettyHttpServiceClient.create(
+                NettyHttpServiceClientTest.class.getCanonicalName(),
+                Executors.newFixedThreadPool(4), Executors.newScheduledThreadPool(1));
+        client.setHttp2Enabled(true);
+        client.start();
+        try {
+            URI u = UriUtils.buildUri(ServiceHost.LOCAL_HOST, server.getAddress().getPort(),
+                    UUID.randomUUID().toString(), null);
+            // first requests are sent before HTTP/2 support is known, later ones go directly
+            // to the HTTP/1.1 pool
+            for (int i = 0; i < 2; i++) {
+                int count = this.requestCount;
+                this.host.testStart(count);
+                for (int j = 0; j < count; j++) {
+                    Operation get = Operation.createGet(u)
+                            .setReferer(this.host.getReferer())
+                            .setCompletion(this.host.getCompletion());
+                    client.send(get);
+                }
+                this.host.testWait();
+            }
+        } finally {
+            client.stop();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void pendingRequestPriority() throws Throwable {
+        NettyChannelGroup group = new NettyChannelGroup();
+        URI uri = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        Operation user = Operation.createGet(uri);
+        Operation replication = Operation.createGet(uri)
+                .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_REPLICATED);
+        Operation control = Operation.createGet(uri).setPriority(Operation.Priority.CONTROL);
+        group.addPendingRequest(user);
+        group.addPendingRequest(replication);
+        group.addPendingRequest(control);
+        assertEquals(3, group.getPendingRequestCount());
+
+        assertEquals(control, group.removePendingRequest());
+        assertEquals(replication, group.removePendingRequest());
+        assertEquals(user, group.removePendingRequest());
+        assertEquals(null, group.removePendingRequest());
+
+        // a lower class is dispatched after being passed over a few times
+        group.addPendingRequest(user);
+        int controlCount = 0;
+        while (true) {
+            group.addPendingRequest(Operation.createGet(uri)
+                    .setPriority(Operation.Priority.CONTROL));
+            if (group.removePendingRequest() == user) {
+                break;
+            }
+            controlCount++;
+            assertTrue(controlCount < 10);
+        }
+    }
+
+    @Test
+    public void priorityHeaderIgnoredFromClients() throws Throwable {
+        String targetPath = UUID.randomUUID().toString();
+        StatelessService priorityEchoService = new StatelessService() {
+            @Override
+            public void handleRequest(Operation op) {
+                op.setBody(op.getPriority().name()).complete();
+            }
+        };
+        this.host.startServiceAndWait(priorityEchoService, targetPath, null);
+
+        // the host runs without authorization, so the client is not a peer
+        String[] priority = new String[1];
+        this.host.testStart(1);
+        this.host.send(Operation.createGet(UriUtils.buildUri(this.host, targetPath))
+                .forceRemote()
+                .setPriority(Operation.Priority.CONTROL)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.failIteration(e);
+                        return;
+                    }
+                    priority[0] = o.getBody(String.class);
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+        assertEquals(Operation.Priority.USER.name(), priority[0]);
+    }
+
     @Test
     public void putOverMaxRequestLimit() throws Throwable {
         this.host.setOperationTimeOutMicros(TimeUnit.SECONDS.toMicros(1));
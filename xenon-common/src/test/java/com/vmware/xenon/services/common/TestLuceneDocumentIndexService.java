@@ -43,6 +43,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
@@ -103,6 +105,11 @@ public class TestLuceneDocumentIndexService extends BasicReportTestCase {
      */
     public int updateCount = 10;
 
+    /**
+     * Parameter that specifies number of query iterations, when measuring query latency
+     */
+    public int queryCount = 10;
+
     private final String EXAMPLES_BODIES_FILE = "example_bodies.json";
     private final String INDEX_DIR_NAME = "lucene510";
 
@@ -427,6 +434,16 @@ public class TestLuceneDocumentIndexService extends BasicReportTestCase {
                 throw new TimeoutException();
             }
 
+            // versions indexed without self link info entries still supersede the earlier
+            // versions, so queries, including count queries, return each service once
+            QueryTask task = createExampleQueryTask(EnumSet.noneOf(QueryOption.class));
+            URI queryFactoryUri = UriUtils.buildUri(h, ServiceUriPaths.CORE_QUERY_TASKS);
+            this.host.createQueryTaskService(queryFactoryUri, task, false, true, task, null);
+            assertEquals(exampleURIs.size(), task.results.documentLinks.size());
+
+            task = createExampleQueryTask(EnumSet.of(QueryOption.COUNT));
+            this.host.createQueryTaskService(queryFactoryUri, task, false, true, task, null);
+            assertEquals(exampleURIs.size(), (long) task.results.documentCount);
         } finally {
             h.stop();
             tmpFolder.delete();
@@ -704,6 +721,258 @@ public class TestLuceneDocumentIndexService extends BasicReportTestCase {
         doDurableServiceUpdate(Action.PUT, this.serviceCount, this.updateCount, null);
     }
 
+    @Test
+    public void batchedIndexUpdates() throws Throwable {
+        List<Service> services = this.host.doThroughputServiceStart(
+                this.serviceCount, MinimalTestService.class, this.host.buildMinimalTestState(),
+                EnumSet.of(Service.ServiceOption.PERSISTENCE), null);
+
+        // issue all updates concurrently so index requests accumulate and get grouped
+        this.host.testStart(this.serviceCount * this.updateCount);
+        for (int i = 0; i < this.updateCount; i++) {
+            for (Service s : services) {
+                this.host.send(Operation.createPut(s.getUri())
+                        .setBody(this.host.buildMinimalTestState())
+                        .setCompletion(this.host.getCompletion()));
+            }
+        }
+        this.host.testWait();
+
+        Map<URI, MinimalTestServiceState> states = this.host.getServiceState(null,
+                MinimalTestServiceState.class, services);
+        for (MinimalTestServiceState s : states.values()) {
+            assertEquals(this.updateCount, s.documentVersion);
+        }
+
+        URI luceneServiceStats = UriUtils.buildStatsUri(this.host,
+                LuceneDocumentIndexService.SELF_LINK);
+        ServiceStats stats = this.host
+                .getServiceState(null, ServiceStats.class, luceneServiceStats);
+        ServiceStat batchCountStat = stats.entries
+                .get(LuceneDocumentIndexService.STAT_NAME_INDEXING_BATCH_COUNT);
+        assertTrue(batchCountStat != null);
+        assertTrue(batchCountStat.latestValue > 0);
+        ServiceStat batchSizeStat = stats.entries
+                .get(LuceneDocumentIndexService.STAT_NAME_INDEXING_BATCH_SIZE);
+        assertTrue(batchSizeStat != null);
+        assertTrue(batchSizeStat.logHistogram != null);
+        assertTrue(batchSizeStat.latestValue <= LuceneDocumentIndexService.UPDATE_BATCH_SIZE_LIMIT);
+        assertTrue(stats.entries
+                .containsKey(LuceneDocumentIndexService.STAT_NAME_INDEXING_BATCH_DURATION_MICROS));
+    }
+
+    @Test
+    public void doNotRefreshQueryWithBackgroundSearcherRefresh() throws Throwable {
+        this.host.waitForServiceAvailable(ExampleFactoryService.SELF_LINK);
+        URI factoryUri = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        this.host.doFactoryChildServiceStart(null, this.serviceCount,
+                ExampleServiceState.class, (o) -> {
+                    ExampleServiceState s = new ExampleServiceState();
+                    s.name = UUID.randomUUID().toString();
+                    o.setBody(s);
+                }, factoryUri);
+
+        // queries that do not refresh the searcher must observe the updates once the
+        // background refresh runs, without any query forcing a new searcher
+        Date exp = this.host.getTestExpiration();
+        while (true) {
+            QueryTask.QuerySpecification q = new QueryTask.QuerySpecification();
+            q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                    .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
+            q.options = EnumSet.of(QueryOption.DO_NOT_REFRESH);
+            QueryTask task = QueryTask.create(q).setDirect(true);
+            this.host.createQueryTaskService(task, false, true, task, null);
+            if (task.results.documentLinks.size() == this.serviceCount) {
+                break;
+            }
+            if (new Date().after(exp)) {
+                throw new TimeoutException("Searcher was never refreshed");
+            }
+            Thread.sleep(100);
+        }
+
+        URI luceneServiceStats = UriUtils.buildStatsUri(this.host,
+                LuceneDocumentIndexService.SELF_LINK);
+        ServiceStats stats = this.host
+                .getServiceState(null, ServiceStats.class, luceneServiceStats);
+        ServiceStat updateCountStat = stats.entries
+                .get(LuceneDocumentIndexService.STAT_NAME_SEARCHER_UPDATE_COUNT);
+        assertTrue(updateCountStat != null);
+        assertTrue(updateCountStat.latestValue > 0);
+        ServiceStat ageStat = stats.entries
+                .get(LuceneDocumentIndexService.STAT_NAME_SEARCHER_AGE_MICROS);
+        assertTrue(ageStat != null);
+        assertTrue(ageStat.logHistogram != null);
+    }
+
+    @Test
+    public void repeatedQueryResultCache() throws Throwable {
+        this.host.waitForServiceAvailable(ExampleFactoryService.SELF_LINK);
+        URI factoryUri = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        Map<URI, ExampleServiceState> states = this.host.doFactoryChildServiceStart(null,
+                this.serviceCount, ExampleServiceState.class, (o) -> {
+                    ExampleServiceState s = new ExampleServiceState();
+                    s.name = UUID.randomUUID().toString();
+                    o.setBody(s);
+                }, factoryUri);
+        URI serviceUri = states.keySet().iterator().next();
+
+        // identical queries on an unchanged index are answered from the result cache, once
+        // the query missed twice
+        long hitCount = getIndexStatValue(
+                LuceneDocumentIndexService.STAT_NAME_QUERY_RESULT_CACHE_HIT_COUNT);
+        long start = Utils.getNowMicrosUtc();
+        QueryTask task = null;
+        for (int i = 0; i < this.queryCount; i++) {
+            task = createExampleQueryTask(EnumSet.noneOf(QueryOption.class));
+            this.host.createQueryTaskService(task, false, true, task, null);
+            assertEquals(this.serviceCount, task.results.documentLinks.size());
+        }
+        long cachedMicros = (Utils.getNowMicrosUtc() - start) / this.queryCount;
+        assertTrue(getIndexStatValue(
+                LuceneDocumentIndexService.STAT_NAME_QUERY_RESULT_CACHE_HIT_COUNT)
+                >= hitCount + this.queryCount - 2);
+
+        // an update invalidates cached results once the searcher is refreshed
+        long uncachedMicros = 0;
+        for (int i = 0; i < this.queryCount; i++) {
+            ExampleServiceState body = new ExampleServiceState();
+            body.name = UUID.randomUUID().toString();
+            this.host.testStart(1);
+            this.host.send(Operation.createPatch(serviceUri).setBody(body)
+                    .setCompletion(this.host.getCompletion()));
+            this.host.testWait();
+
+            start = Utils.getNowMicrosUtc();
+            task = createExampleQueryTask(EnumSet.noneOf(QueryOption.class));
+            this.host.createQueryTaskService(task, false, true, task, null);
+            uncachedMicros += Utils.getNowMicrosUtc() - start;
+            assertEquals(this.serviceCount, task.results.documentLinks.size());
+
+            task = createExampleQueryTask(EnumSet.of(QueryOption.EXPAND_CONTENT));
+            this.host.createQueryTaskService(task, false, true, task, null);
+            ExampleServiceState st = Utils.fromJson(
+                    task.results.documents.get(serviceUri.getPath()), ExampleServiceState.class);
+            assertEquals(body.name, st.name);
+        }
+        uncachedMicros /= this.queryCount;
+
+        this.host.log("Documents: %d, query latency (micros), cached: %d, after update: %d",
+                this.serviceCount, cachedMicros, uncachedMicros);
+    }
+
+    @Test
+    public void queryResultCacheAdmissionAndSizeLimit() {
+        ExampleServiceState state = new ExampleServiceState();
+        state.name = UUID.randomUUID().toString();
+        state.documentSelfLink = ExampleFactoryService.SELF_LINK + "/" + state.name;
+        ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
+        rsp.documentCount = 1L;
+        rsp.documentLinks = new ArrayList<>();
+        rsp.documentLinks.add(state.documentSelfLink);
+        rsp.documents = new HashMap<>();
+        rsp.documents.put(state.documentSelfLink, state);
+        EnumSet<QueryOption> options = EnumSet.of(QueryOption.EXPAND_CONTENT);
+        long readerVersion = 1;
+        long exp = Long.MAX_VALUE;
+
+        // results are cached on the second miss of their query
+        LuceneQueryResultCache cache = new LuceneQueryResultCache(16, 1000, Long.MAX_VALUE);
+        LuceneQueryResultCache.Key key = new LuceneQueryResultCache.Key(
+                new TermQuery(new Term("name", "a")), null, options, Integer.MAX_VALUE);
+        cache.put(key, readerVersion, exp, rsp);
+        assertEquals(0, cache.size());
+        cache.put(key, readerVersion, exp, rsp);
+        assertEquals(1, cache.size());
+        long entrySizeBytes = cache.getSizeBytes();
+        assertTrue(entrySizeBytes > 0);
+        ServiceDocumentQueryResult cached = new ServiceDocumentQueryResult();
+        assertTrue(cache.get(key, readerVersion, 0, cached));
+        assertEquals(rsp.documentLinks, cached.documentLinks);
+
+        // least recently used results are evicted to stay within the size limit
+        cache = new LuceneQueryResultCache(16, 1000, entrySizeBytes * 2);
+        for (int i = 0; i < 4; i++) {
+            key = new LuceneQueryResultCache.Key(new TermQuery(new Term("name", "" + i)), null,
+                    options, Integer.MAX_VALUE);
+            cache.put(key, readerVersion, exp, rsp);
+            cache.put(key, readerVersion, exp, rsp);
+            assertTrue(cache.getSizeBytes() <= entrySizeBytes * 2);
+        }
+        assertEquals(2, cache.size());
+        assertTrue(cache.get(key, readerVersion, 0, new ServiceDocumentQueryResult()));
+
+        // results larger than the size limit are not cached
+        cache = new LuceneQueryResultCache(16, 1000, entrySizeBytes - 1);
+        cache.put(key, readerVersion, exp, rsp);
+        cache.put(key, readerVersion, exp, rsp);
+        assertEquals(0, cache.size());
+    }
+
+    private QueryTask createExampleQueryTask(EnumSet<QueryOption> options) {
+        QueryTask.QuerySpecification q = new QueryTask.QuerySpecification();
+        q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
+        q.options = options;
+        return QueryTask.create(q).setDirect(true);
+    }
+
+    private long getIndexStatValue(String name) throws Throwable {
+        URI luceneServiceStats = UriUtils.buildStatsUri(this.host,
+                LuceneDocumentIndexService.SELF_LINK);
+        ServiceStats stats = this.host
+                .getServiceState(null, ServiceStats.class, luceneServiceStats);
+        ServiceStat st = stats.entries.get(name);
+        return st == null ? 0 : (long) st.latestValue;
+    }
+
+    @Test
+    public void queryLatestVersionsWithManyVersionsPerLink() throws Throwable {
+        List<Service> services = this.host.doThroughputServiceStart(
+                this.serviceCount, MinimalTestService.class, this.host.buildMinimalTestState(),
+                EnumSet.of(Service.ServiceOption.PERSISTENCE), null);
+
+        for (int i = 0; i < this.updateCount; i++) {
+            this.host.testStart(this.serviceCount);
+            for (Service s : services) {
+                this.host.send(Operation.createPut(s.getUri())
+                        .setBody(this.host.buildMinimalTestState())
+                        .setCompletion(this.host.getCompletion()));
+            }
+            this.host.testWait();
+        }
+
+        // only the latest version of each link should be returned, while all versions
+        // remain available to INCLUDE_ALL_VERSIONS queries
+        QueryTask.QuerySpecification q = new QueryTask.QuerySpecification();
+        q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                .setTermMatchValue(Utils.buildKind(MinimalTestServiceState.class));
+        q.options = EnumSet.of(QueryOption.INCLUDE_ALL_VERSIONS);
+        QueryTask task = QueryTask.create(q).setDirect(true);
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertEquals(this.serviceCount * (this.updateCount + 1),
+                task.results.documentLinks.size());
+
+        long start = Utils.getNowMicrosUtc();
+        for (int i = 0; i < this.queryCount; i++) {
+            q = new QueryTask.QuerySpecification();
+            q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                    .setTermMatchValue(Utils.buildKind(MinimalTestServiceState.class));
+            q.options = EnumSet.of(QueryOption.EXPAND_CONTENT);
+            task = QueryTask.create(q).setDirect(true);
+            this.host.createQueryTaskService(task, false, true, task, null);
+            assertEquals(this.serviceCount, task.results.documentLinks.size());
+            for (Object json : task.results.documents.values()) {
+                MinimalTestServiceState st = Utils.fromJson(json, MinimalTestServiceState.class);
+                assertEquals(this.updateCount, st.documentVersion);
+            }
+        }
+        long end = Utils.getNowMicrosUtc();
+        this.host.log("Documents: %d, versions per link: %d, query latency (micros): %d",
+                this.serviceCount * (this.updateCount + 1), this.updateCount + 1,
+                (end - start) / this.queryCount);
+    }
+
     @Test
     public void putWithFailureAndCacheValidation() throws Throwable {
         List<Service> services = this.host.doThroughputServiceStart(
@@ -18,6 +18,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -36,6 +38,7 @@ import com.vmware.xenon.services.common.QueryFilter.QueryFilterException;
 import com.vmware.xenon.services.common.QueryFilter.UnsupportedMatchTypeException;
 import com.vmware.xenon.services.common.QueryTask.Query;
 import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
 
 public class TestQueryFilter {
@@ -642,6 +645,73 @@ public class TestQueryFilter {
         return q;
     }
 
+    QueryTask createIndexedTask(QueryFilterIndex index, String link, Query q) {
+        QueryTask task = QueryTask.create(new QuerySpecification());
+        task.documentSelfLink = link;
+        task.querySpec.query = q;
+        index.add(task);
+        return task;
+    }
+
+    @Test
+    public void indexCandidates() {
+        String kind = "k1";
+        QueryFilterIndex index = new QueryFilterIndex();
+
+        QueryTask t1 = createIndexedTask(index, "t1", createTerm("c1", "v1"));
+
+        // indexed under c2, not under the kind shared with other tasks
+        Query q2 = new Query();
+        q2.addBooleanClause(createTerm(ServiceDocument.FIELD_NAME_KIND, kind));
+        q2.addBooleanClause(createTerm("c2", "v2"));
+        QueryTask t2 = createIndexedTask(index, "t2", q2);
+
+        QueryTask t3 = createIndexedTask(index, "t3",
+                createTerm(ServiceDocument.FIELD_NAME_KIND, kind));
+
+        // negated terms can not be indexed, the task is a candidate for every document
+        Query q4 = new Query();
+        q4.addBooleanClause(createTerm("c1", "v1", Occurance.MUST_NOT_OCCUR));
+        QueryTask t4 = createIndexedTask(index, "t4", q4);
+
+        // indexed under both branches of the disjunction
+        Query q5 = new Query();
+        q5.addBooleanClause(createTerm("c1", "v1", Occurance.SHOULD_OCCUR));
+        q5.addBooleanClause(createTerm("c3", "v3", Occurance.SHOULD_OCCUR));
+        QueryTask t5 = createIndexedTask(index, "t5", q5);
+
+        QueryFilterDocument document = new QueryFilterDocument();
+        document.documentKind = kind;
+        document.c1 = "v1";
+        Collection<QueryTask> candidates = index.getCandidates(document, this.description);
+        assertEquals(4, candidates.size());
+        assertTrue(candidates.containsAll(Arrays.asList(t1, t3, t4, t5)));
+
+        document = new QueryFilterDocument();
+        document.c2 = "v2";
+        document.c3 = "v3";
+        candidates = index.getCandidates(document, this.description);
+        assertEquals(3, candidates.size());
+        assertTrue(candidates.containsAll(Arrays.asList(t2, t4, t5)));
+
+        index.remove(t5.documentSelfLink);
+        index.remove(t4.documentSelfLink);
+        candidates = index.getCandidates(document, this.description);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(t2));
+
+        // a task added with the same self link replaces the indexed one
+        QueryTask t1Replacement = createIndexedTask(index, t1.documentSelfLink,
+                createTerm("c3", "v3"));
+        candidates = index.getCandidates(document, this.description);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(t1Replacement));
+
+        document = new QueryFilterDocument();
+        document.c1 = "v1";
+        assertTrue(index.getCandidates(document, this.description).isEmpty());
+    }
+
     @Test
     public void throughputQueryFilterCreation() throws QueryFilterException {
         if (!this.isStressTest) {
@@ -20,8 +20,10 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -56,6 +58,7 @@ import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceDocumentQueryResult.AggregationResult;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost.ServiceNotFoundException;
 import com.vmware.xenon.common.ServiceStats;
@@ -68,6 +71,8 @@ import com.vmware.xenon.common.test.MinimalTestServiceState;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.QueryTask.NumericRange;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification;
+import com.vmware.xenon.services.common.QueryTask.PostProcessingSpecification.GroupOperation;
 import com.vmware.xenon.services.common.QueryTask.Query;
 import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
@@ -84,6 +89,12 @@ public class TestQueryTaskService {
     public int serviceCount = 50;
     public int queryCount = 10;
 
+    /**
+     * Parameter that specifies the number of active continuous queries, when measuring update
+     * throughput
+     */
+    public int continuousQueryCount = 10;
+
     private VerificationHost host;
 
     private void setUpHost() throws Throwable {
@@ -367,11 +378,14 @@ public class TestQueryTaskService {
         this.host.startSubscriptionService(
                 post,
                 (notifyOp) -> {
+                    // updates indexed together are delivered in one notification
+                    int updateCount = 1;
                     try {
                         QueryTask body = notifyOp.getBody(QueryTask.class);
                         if (body.results == null || body.results.documentLinks.isEmpty()) {
                             return;
                         }
+                        updateCount = body.results.documentLinks.size();
 
                         for (Object doc : body.results.documents.values()) {
                             QueryValidationServiceState state = Utils.fromJson(doc,
@@ -386,7 +400,9 @@ public class TestQueryTaskService {
                     } catch (Throwable e) {
                         failure[0] = e;
                     } finally {
-                        stateUpdates.countDown();
+                        for (int i = 0; i < updateCount; i++) {
+                            stateUpdates.countDown();
+                        }
                     }
                 });
 
@@ -395,20 +411,62 @@ public class TestQueryTaskService {
 
         // wait for filter to be active in the index service, which happens asynchronously
         // in relation to query task creation, before issuing updates.
+        waitForActiveQueryFilters(1);
+        return newState;
+    }
 
+    private void waitForActiveQueryFilters(int count) throws Throwable {
         Date exp = this.host.getTestExpiration();
         while (new Date().before(exp)) {
             ServiceStats indexStats = this.host.getServiceState(null, ServiceStats.class,
                     UriUtils.buildStatsUri(this.host.getDocumentIndexServiceUri()));
             ServiceStat activeQueryStat = indexStats.entries.get(
                     LuceneDocumentIndexService.STAT_NAME_ACTIVE_QUERY_FILTERS);
-            if (activeQueryStat == null || activeQueryStat.latestValue < 1.0) {
+            if (activeQueryStat == null || activeQueryStat.latestValue < count) {
                 Thread.sleep(250);
                 continue;
             }
             break;
         }
-        return newState;
+    }
+
+    @Test
+    public void continuousQueryUpdateThroughput() throws Throwable {
+        setUpHost();
+        List<URI> services = startQueryTargetServices(this.serviceCount);
+
+        // one continuous query per client session, each selecting the services with its own
+        // string value
+        URI factoryUri = UriUtils.buildUri(this.host, ServiceUriPaths.CORE_QUERY_TASKS);
+        this.host.testStart(this.continuousQueryCount);
+        for (int i = 0; i < this.continuousQueryCount; i++) {
+            Query query = Query.Builder.create()
+                    .addKindFieldClause(QueryValidationServiceState.class)
+                    .addFieldClause("stringValue", "session-" + i)
+                    .build();
+            QueryTask task = QueryTask.Builder.create()
+                    .addOption(QueryOption.CONTINUOUS)
+                    .setQuery(query)
+                    .build();
+            this.host.send(Operation.createPost(factoryUri)
+                    .setBody(task)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+        waitForActiveQueryFilters(this.continuousQueryCount);
+
+        // every update matches one of the queries
+        QueryValidationServiceState newState = new QueryValidationServiceState();
+        newState.stringValue = "session-0";
+        long start = Utils.getNowMicrosUtc();
+        for (int i = 0; i < this.queryCount; i++) {
+            putSimpleStateOnQueryTargetServices(services, newState);
+        }
+        long end = Utils.getNowMicrosUtc();
+
+        double thpt = (services.size() * this.queryCount) / ((end - start) / 1000000.0);
+        this.host.log("Active continuous queries: %d, update throughput (updates/sec): %f",
+                this.continuousQueryCount, thpt);
     }
 
     /**
@@ -1015,6 +1073,7 @@ public class TestQueryTaskService {
         this.host.testWait();
 
         nonpaginatedBroadcastQueryTasksOnExampleStates(targetHost);
+        broadcastQueryTasksWithPostProcessing();
         paginatedbroadcastQueryTasksOnExampleStates();
         paginatedBroadcastQueryTasksWithoutMatching();
         paginatedBroadcastQueryTasksRepeatSamePage();
@@ -1126,6 +1185,28 @@ public class TestQueryTaskService {
         targetHost.testWait();
     }
 
+    private void broadcastQueryTasksWithPostProcessing() throws Throwable {
+        QuerySpecification q = new QuerySpecification();
+        q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
+        q.options = EnumSet.of(QueryOption.BROADCAST);
+
+        QueryTask task = QueryTask.create(q);
+        task.postProcessingSpec = new PostProcessingSpecification();
+        task.postProcessingSpec.groupOperation = GroupOperation.COUNT;
+
+        URI taskUri = this.host.createQueryTaskService(task, false, task.taskInfo.isDirect, task,
+                null);
+        task = this.host.waitForQueryTaskCompletion(task.querySpec, 0, 0, taskUri, false, false);
+
+        // example states are replicated to all nodes, but only owners contribute to the
+        // merged aggregate
+        AggregationResult r = task.results.aggregations
+                .get(ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL);
+        assertEquals(this.serviceCount, r.count);
+        assertEquals(this.serviceCount, r.value.intValue());
+    }
+
     private void paginatedbroadcastQueryTasksOnExampleStates () throws Throwable {
 
         VerificationHost targetHost = this.host.getPeerHost();
@@ -1339,6 +1420,143 @@ public class TestQueryTaskService {
         doSortTestOnExampleStates(true, Integer.MAX_VALUE);
     }
 
+    @Test
+    public void postProcessingAggregations() throws Throwable {
+        setUpHost();
+        URI factoryUri = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        int groupCount = 3;
+        List<URI> services = new ArrayList<>();
+        this.host.testStart(this.serviceCount);
+        for (int i = 0; i < this.serviceCount; i++) {
+            ExampleServiceState s = new ExampleServiceState();
+            s.name = "group" + (i % groupCount);
+            s.counter = (long) i;
+            s.documentSelfLink = UUID.randomUUID().toString();
+            services.add(UriUtils.extendUri(factoryUri, s.documentSelfLink));
+            this.host.send(Operation.createPost(factoryUri)
+                    .setBody(s)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        // update the first service, so only the latest version must be aggregated
+        ExampleServiceState update = new ExampleServiceState();
+        update.name = "group0";
+        update.counter = 1000L;
+        this.host.testStart(1);
+        this.host.send(Operation.createPut(services.get(0))
+                .setBody(update)
+                .setCompletion(this.host.getCompletion()));
+        this.host.testWait();
+
+        Map<String, Double> sums = new HashMap<>();
+        Map<String, Long> counts = new HashMap<>();
+        double min = Double.MAX_VALUE;
+        double max = Double.MIN_VALUE;
+        double total = 0;
+        for (int i = 0; i < this.serviceCount; i++) {
+            String group = "group" + (i % groupCount);
+            double counter = i == 0 ? 1000 : i;
+            sums.merge(group, counter, Double::sum);
+            counts.merge(group, 1L, Long::sum);
+            min = Math.min(min, counter);
+            max = Math.max(max, counter);
+            total += counter;
+        }
+
+        QueryTask.QueryTerm counterTerm = new QueryTask.QueryTerm();
+        counterTerm.propertyName = ExampleServiceState.FIELD_NAME_COUNTER;
+        counterTerm.propertyType = TypeName.LONG;
+        QueryTask.QueryTerm nameTerm = new QueryTask.QueryTerm();
+        nameTerm.propertyName = ExampleServiceState.FIELD_NAME_NAME;
+        nameTerm.propertyType = TypeName.STRING;
+
+        Map<String, AggregationResult> results = doPostProcessingQuery(GroupOperation.SUM,
+                counterTerm, nameTerm);
+        assertEquals(groupCount, results.size());
+        for (Entry<String, Double> e : sums.entrySet()) {
+            AggregationResult r = results.get(e.getKey());
+            assertEquals(e.getValue(), r.value);
+            assertEquals(counts.get(e.getKey()).longValue(), r.count);
+        }
+
+        results = doPostProcessingQuery(GroupOperation.AVG, counterTerm, null);
+        AggregationResult all = results.get(ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL);
+        assertEquals(total / this.serviceCount, all.value, 0.0001);
+        results = doPostProcessingQuery(GroupOperation.MIN, counterTerm, null);
+        assertEquals(min, results.get(ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL).value,
+                0);
+        results = doPostProcessingQuery(GroupOperation.MAX, counterTerm, null);
+        assertEquals(max, results.get(ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL).value,
+                0);
+        results = doPostProcessingQuery(GroupOperation.COUNT, null, null);
+        assertEquals(this.serviceCount,
+                results.get(ServiceDocumentQueryResult.AGGREGATION_GROUP_ALL).count);
+
+        // deleted documents are not aggregated
+        this.host.testStart(1);
+        this.host.send(Operation.createDelete(services.get(0))
+                .setBody(new ServiceDocument())
+                .setCompletion(this.host.getCompletion()));
+        this.host.testWait();
+        results = doPostProcessingQuery(GroupOperation.COUNT, null, nameTerm);
+        assertEquals(counts.get("group0") - 1, results.get("group0").count);
+
+        // SUM requires a selection term
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class).build())
+                .build();
+        task.postProcessingSpec = new PostProcessingSpecification();
+        task.postProcessingSpec.groupOperation = GroupOperation.SUM;
+        this.host.testStart(1);
+        this.host.send(Operation
+                .createPost(UriUtils.buildUri(this.host, ServiceUriPaths.CORE_QUERY_TASKS))
+                .setBody(task)
+                .setCompletion(this.host.getExpectedFailureCompletion()));
+        this.host.testWait();
+
+        // grouping by a property without sorted doc values is rejected
+        QueryTask.QueryTerm kindTerm = new QueryTask.QueryTerm();
+        kindTerm.propertyName = ServiceDocument.FIELD_NAME_KIND;
+        kindTerm.propertyType = TypeName.STRING;
+        task.postProcessingSpec.groupOperation = GroupOperation.COUNT;
+        task.postProcessingSpec.groupByTerm = kindTerm;
+        this.host.testStart(1);
+        this.host.send(Operation
+                .createPost(UriUtils.buildUri(this.host, ServiceUriPaths.CORE_QUERY_TASKS))
+                .setBody(task)
+                .setCompletion((o, e) -> {
+                    if (e == null) {
+                        this.host.failIteration(new IllegalStateException(
+                                "expected failure"));
+                        return;
+                    }
+                    if (o.getStatusCode() != Operation.STATUS_CODE_BAD_REQUEST) {
+                        this.host.failIteration(new IllegalStateException(
+                                "unexpected status " + o.getStatusCode()));
+                        return;
+                    }
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+    }
+
+    private Map<String, AggregationResult> doPostProcessingQuery(GroupOperation groupOperation,
+            QueryTask.QueryTerm selectionTerm, QueryTask.QueryTerm groupByTerm) throws Throwable {
+        QuerySpecification q = new QuerySpecification();
+        q.query.setTermPropertyName(ServiceDocument.FIELD_NAME_KIND)
+                .setTermMatchValue(Utils.buildKind(ExampleServiceState.class));
+        QueryTask task = QueryTask.create(q).setDirect(true);
+        task.postProcessingSpec = new PostProcessingSpecification();
+        task.postProcessingSpec.groupOperation = groupOperation;
+        task.postProcessingSpec.selectionTerm = selectionTerm;
+        task.postProcessingSpec.groupByTerm = groupByTerm;
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertNotNull(task.results.aggregations);
+        return task.results.aggregations;
+    }
+
     @Test
     public void topResultsWithSort() throws Throwable {
         doSortTestOnExampleStates(true, 10);
@@ -1585,6 +1803,124 @@ public class TestQueryTaskService {
         this.host.testWait();
     }
 
+    @Test
+    public void sortOnNumericCollectionItems() throws Throwable {
+        setUpHost();
+        int sc = this.serviceCount;
+        List<URI> services = startQueryTargetServices(sc);
+
+        // two items per service, so the numeric fields of the items have two values per
+        // document. Ascending sorts use the lowest value, descending sorts the highest, and
+        // both order the services opposite to the single valued property
+        this.host.testStart(sc);
+        for (int i = 0; i < sc; i++) {
+            ExampleServiceState low = new ExampleServiceState();
+            low.name = "low";
+            low.counter = (long) (sc - i);
+            ExampleServiceState high = new ExampleServiceState();
+            high.name = "high";
+            high.counter = (long) (2 * sc + i);
+            QueryValidationServiceState s = new QueryValidationServiceState();
+            s.longValue = (long) i;
+            s.listOfExampleValues = new ArrayList<>();
+            s.listOfExampleValues.add(low);
+            s.listOfExampleValues.add(high);
+            this.host.send(Operation.createPut(services.get(i)).setBody(s)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        List<String> expectedLinks = new ArrayList<>();
+        for (URI u : services) {
+            expectedLinks.add(u.getPath());
+        }
+        List<String> reversedLinks = new ArrayList<>(expectedLinks);
+        Collections.reverse(reversedLinks);
+        Query kindClause = Query.Builder.create()
+                .addKindFieldClause(QueryValidationServiceState.class)
+                .build();
+        String counterItemName = QuerySpecification.buildCompositeFieldName(
+                "listOfExampleValues", QuerySpecification.COLLECTION_FIELD_SUFFIX,
+                ExampleServiceState.FIELD_NAME_COUNTER);
+
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(kindClause)
+                .orderAscending(counterItemName, TypeName.LONG)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertEquals(reversedLinks, task.results.documentLinks);
+
+        task = QueryTask.Builder.createDirectTask()
+                .setQuery(kindClause)
+                .orderDescending(counterItemName, TypeName.LONG)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertEquals(reversedLinks, task.results.documentLinks);
+
+        // single valued numeric property
+        long start = Utils.getNowMicrosUtc();
+        for (int i = 0; i < this.queryCount; i++) {
+            task = QueryTask.Builder.createDirectTask()
+                    .setQuery(kindClause)
+                    .orderAscending("longValue", TypeName.LONG)
+                    .build();
+            this.host.createQueryTaskService(task, false, true, task, null);
+        }
+        long queryMicros = (Utils.getNowMicrosUtc() - start) / this.queryCount;
+        this.host.log("Documents: %d, sort query latency (micros): %d, index query time"
+                + " (micros): %d", sc, queryMicros, task.results.queryTimeMicros);
+        assertEquals(expectedLinks, task.results.documentLinks);
+    }
+
+    @Test
+    public void malformedPageCursor() throws Throwable {
+        setUpHost();
+        int serviceCount = 3;
+        URI exampleFactoryURI = UriUtils.buildUri(this.host, ExampleFactoryService.SELF_LINK);
+        this.host.testStart(serviceCount);
+        for (int i = 0; i < serviceCount; i++) {
+            ExampleServiceState s = new ExampleServiceState();
+            s.name = UUID.randomUUID().toString();
+            this.host.send(Operation.createPost(exampleFactoryURI)
+                    .setBody(s)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class)
+                        .build())
+                .orderAscending(ServiceDocument.FIELD_NAME_SELF_LINK, TypeName.STRING)
+                .setResultLimit(2)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertNotNull(task.results.nextPageLink);
+
+        // a cursor with a single sort value claiming more bytes than the token holds: format
+        // version, reader version, value count, document id, result count, value type, length
+        ByteBuffer cursor = ByteBuffer.allocate(23);
+        cursor.put((byte) 1).putLong(0).put((byte) 1).putInt(0).putInt(1).put((byte) 5)
+                .putInt(Integer.MAX_VALUE);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.array());
+        // page links forward to the page service on the node holding the query
+        String pagePath = UriUtils.parseUriQueryParams(
+                UriUtils.buildUri(this.host, task.results.nextPageLink))
+                .get(UriUtils.FORWARDING_URI_PARAM_NAME_PATH);
+        URI pageUri = UriUtils.extendUriWithQuery(UriUtils.buildUri(this.host, pagePath),
+                LuceneQueryPageService.URI_PARAM_CURSOR, token);
+
+        int[] statusCode = new int[1];
+        this.host.testStart(1);
+        this.host.send(Operation.createGet(pageUri)
+                .setCompletion((o, e) -> {
+                    statusCode[0] = o.getStatusCode();
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, statusCode[0]);
+    }
+
     private void validateSortedResults(List<ExampleServiceState> documents, String fieldName) {
         ExampleServiceState prevDoc = documents.get(0);
 
@@ -2282,6 +2618,137 @@ public class TestQueryTaskService {
         throw new TimeoutException("Next page services should have expired");
     }
 
+    @Test
+    public void paginatedQueryScan() throws Throwable {
+        setUpHost();
+        int sc = this.host.isStressTest() ? 100000 : 1000;
+        int resultLimit = 10;
+        List<URI> services = startQueryTargetServices(sc);
+        putStateOnQueryTargetServices(services, 1);
+
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addFieldClause("stringValue", TEXT_VALUE, MatchType.PHRASE)
+                        .build())
+                .setResultLimit(resultLimit)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        String nextPageLink = task.results.nextPageLink;
+        assertNotNull(nextPageLink);
+
+        System.gc();
+        long usedMemoryBefore = getUsedMemory();
+
+        // update the index while the pages are retrieved, so every page sees a new searcher
+        QueryValidationServiceState update = new QueryValidationServiceState();
+        update.stringValue = TEXT_VALUE;
+        int pageCount = 0;
+        int documentCount = 0;
+        long pageMicros = 0;
+        while (nextPageLink != null) {
+            this.host.testStart(1);
+            this.host.send(Operation.createPut(services.get(pageCount % sc))
+                    .setBody(update)
+                    .setCompletion(this.host.getCompletion()));
+            this.host.testWait();
+
+            long start = Utils.getNowMicrosUtc();
+            QueryTask page = this.host.getServiceState(null, QueryTask.class,
+                    UriUtils.buildUri(this.host, nextPageLink));
+            pageMicros += Utils.getNowMicrosUtc() - start;
+            documentCount += page.results.documentLinks.size();
+            nextPageLink = page.results.nextPageLink;
+            pageCount++;
+        }
+
+        System.gc();
+        long usedMemoryAfter = getUsedMemory();
+
+        int[] pageServiceCount = new int[1];
+        this.host.testStart(1);
+        Operation get = Operation.createGet(null).setCompletion((o, e) -> {
+            if (e != null) {
+                this.host.failIteration(e);
+                return;
+            }
+            ServiceDocumentQueryResult r = o.getBody(ServiceDocumentQueryResult.class);
+            pageServiceCount[0] = r.documentLinks.size();
+            this.host.completeIteration();
+        });
+        this.host.queryServiceUris(UriUtils.buildUriPath(ServiceUriPaths.CORE_QUERY_PAGE,
+                UriUtils.URI_WILDCARD_CHAR), get);
+        this.host.testWait();
+
+        double pagesPerSecond = pageCount / (pageMicros / (double) TimeUnit.SECONDS.toMicros(1));
+        this.host.log("Pages: %d, documents: %d, pages per second: %f, page services: %d,"
+                + " retained bytes: %d", pageCount, documentCount, pagesPerSecond,
+                pageServiceCount[0], usedMemoryAfter - usedMemoryBefore);
+
+        // one page service for the query, independent of the number of pages
+        assertEquals(sc, documentCount);
+        assertEquals(1, pageServiceCount[0]);
+    }
+
+    @Test
+    public void countQuery() throws Throwable {
+        setUpHost();
+        int sc = this.serviceCount;
+        List<URI> services = startQueryTargetServices(sc);
+        int versionCount = 2;
+        putStateOnQueryTargetServices(services, versionCount);
+
+        int deletedCount = sc / 10;
+        this.host.testStart(deletedCount);
+        for (int i = 0; i < deletedCount; i++) {
+            this.host.send(Operation.createDelete(services.get(i))
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        Query kindClause = Query.Builder.create()
+                .addKindFieldClause(QueryValidationServiceState.class)
+                .build();
+
+        long start = Utils.getNowMicrosUtc();
+        QueryTask task = null;
+        for (int i = 0; i < this.queryCount; i++) {
+            task = QueryTask.Builder.createDirectTask()
+                    .setQuery(kindClause)
+                    .addOption(QueryOption.COUNT)
+                    .build();
+            this.host.createQueryTaskService(task, false, true, task, null);
+        }
+        long queryMicros = (Utils.getNowMicrosUtc() - start) / this.queryCount;
+        this.host.log("Documents: %d, count query latency (micros): %d, index query time"
+                + " (micros): %d", sc, queryMicros, task.results.queryTimeMicros);
+
+        // latest versions of services that are not deleted
+        assertEquals(sc - deletedCount, task.results.documentCount.longValue());
+        assertTrue(task.results.documentLinks.isEmpty());
+
+        task = QueryTask.Builder.createDirectTask()
+                .setQuery(kindClause)
+                .addOption(QueryOption.COUNT)
+                .addOption(QueryOption.INCLUDE_DELETED)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertEquals(sc, task.results.documentCount.longValue());
+
+        // every version, except the deleted ones: the initial state, and one per update
+        task = QueryTask.Builder.createDirectTask()
+                .setQuery(kindClause)
+                .addOption(QueryOption.COUNT)
+                .addOption(QueryOption.INCLUDE_ALL_VERSIONS)
+                .build();
+        this.host.createQueryTaskService(task, false, true, task, null);
+        assertEquals(sc * (versionCount + 1), task.results.documentCount.longValue());
+    }
+
+    private long getUsedMemory() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
     private void getNextPageLinks(String nextPageLink, int resultLimit,
             final int[] numberOfDocumentLinks, final List<URI> serviceURIs) {
 